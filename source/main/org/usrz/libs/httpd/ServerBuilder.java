@@ -35,19 +35,28 @@ import org.glassfish.grizzly.http.server.HttpHandler;
 import org.glassfish.grizzly.http.server.HttpServer;
 import org.glassfish.grizzly.http.server.NetworkListener;
 import org.glassfish.grizzly.http.server.accesslog.AccessLogProbe;
+import org.glassfish.grizzly.memory.MemoryManager;
 import org.glassfish.jersey.server.ResourceConfig;
 import org.usrz.libs.configurations.Configurations;
 import org.usrz.libs.httpd.handlers.FileHandlerProvider;
+import org.usrz.libs.httpd.handlers.MetricsHandler;
 import org.usrz.libs.httpd.handlers.RedirectHandler;
+import org.usrz.libs.httpd.handlers.ResourceHandlerProvider;
 import org.usrz.libs.httpd.handlers.RestHandlerProvider;
 import org.usrz.libs.httpd.handlers.RestObjectMapperProvider;
 import org.usrz.libs.httpd.inject.AccessLogProvider;
 import org.usrz.libs.httpd.inject.DefaultEPGProvider;
+import org.usrz.libs.httpd.inject.HandlerTimings;
 import org.usrz.libs.httpd.inject.HttpHandlerPath;
 import org.usrz.libs.httpd.inject.HttpHandlerProvider;
 import org.usrz.libs.httpd.inject.HttpServerConfigurations;
 import org.usrz.libs.httpd.inject.HttpServerProvider;
+import org.usrz.libs.httpd.inject.MemoryManagerProvider;
 import org.usrz.libs.httpd.inject.NetworkListenerProvider;
+import org.usrz.libs.httpd.inject.SSLContextCache;
+import org.usrz.libs.httpd.inject.ServerMBeans;
+import org.usrz.libs.httpd.inject.ServerMetrics;
+import org.usrz.libs.httpd.inject.SlowRequestWatchdog;
 import org.usrz.libs.utils.inject.ConfiguringBindingBuilder;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
@@ -59,11 +68,14 @@ import com.google.inject.name.Names;
 
 public class ServerBuilder extends ConfiguringBindingBuilder<ServerBuilder> {
 
+    private boolean timings;
+
     protected ServerBuilder(Binder binder) {
         super(binder, HttpServerConfigurations.class);
 
         /* Add the HttpServer in the child isolate as it might needs configs */
         binder.bind(HttpServer.class).toProvider(HttpServerProvider.class);
+        binder.bind(MemoryManager.class).toProvider(MemoryManagerProvider.class);
     }
 
     /* ====================================================================== */
@@ -93,9 +105,23 @@ public class ServerBuilder extends ConfiguringBindingBuilder<ServerBuilder> {
         configurations.group("listeners").values().forEach((configuration) ->
             addListener(configuration));
 
+        /* Session tickets are JVM-wide, they can't be set per listener */
+        final String sessionTickets = configurations.getString("session_tickets");
+        if (sessionTickets != null) withSessionTickets(Boolean.parseBoolean(sessionTickets));
+
+        /* Watch for slow requests if configured to do so */
+        final Configurations slowRequests = configurations.strip("slow_requests");
+        if (! slowRequests.isEmpty()) withSlowRequestWatchdog(slowRequests);
+
+        /* Metrics, if they should be served, and handler latencies */
+        if (configurations.get("handler_timings", false)) withHandlerTimings();
+        if (configurations.get("jmx", false)) withJmx();
+        final String metricsPath = configurations.getString("metrics_path");
+        if (metricsPath != null) withMetrics(metricsPath);
+
         /* Any document root? */
         final File documentRoot = configurations.getFile("document_root");
-        if (documentRoot != null) this.serveFiles("/", documentRoot);
+        if (documentRoot != null) this.serveFiles("/", documentRoot, configurations.strip("files"));
 
         /* And finally remember our JSON configurations */
         final Configurations json = configurations.strip("json");
@@ -131,6 +157,40 @@ public class ServerBuilder extends ConfiguringBindingBuilder<ServerBuilder> {
 
     /* ====================================================================== */
 
+    public void withMetrics(String path) {
+        binder().bind(ServerMetrics.class).asEagerSingleton();
+        this.addHandler(path, MetricsHandler.class);
+    }
+
+    public void withHandlerTimings() {
+        if (timings) return;
+        binder().bind(HandlerTimings.class).asEagerSingleton();
+        timings = true;
+    }
+
+    /**
+     * Register MBeans for the server, its listeners, worker pools and
+     * handlers (timing handlers, so that their latencies are available).
+     */
+    public void withJmx() {
+        binder().bind(ServerMBeans.class).asEagerSingleton();
+        withHandlerTimings();
+    }
+
+    /**
+     * Enable or disable TLS session tickets, for all the listeners of all
+     * the servers in this JVM (see {@link SSLContextCache#sessionTickets(boolean)}).
+     */
+    public void withSessionTickets(boolean enabled) {
+        SSLContextCache.sessionTickets(enabled);
+    }
+
+    public void withSlowRequestWatchdog(Configurations configurations) {
+        binder().bind(SlowRequestWatchdog.class).toInstance(new SlowRequestWatchdog(configurations));
+    }
+
+    /* ====================================================================== */
+
     public void addAccessLog(Configurations configurations) {
         final AccessLogProvider provider = new AccessLogProvider(configurations);
         binder().bind(AccessLogProbe.class)
@@ -189,6 +249,40 @@ public class ServerBuilder extends ConfiguringBindingBuilder<ServerBuilder> {
         this.serveFiles(path, new File(documentRoot));
     }
 
+    public void serveFiles(String path, File documentRoot, Configurations configurations) {
+        final HttpHandlerPath at = handlerPath(path);
+        this.addHandler(at, new FileHandlerProvider(documentRoot, at, configurations));
+    }
+
+    public void serveFiles(String path, String documentRoot, Configurations configurations) {
+        this.serveFiles(path, new File(documentRoot), configurations);
+    }
+
+    /* ---------------------------------------------------------------------- */
+
+    public void serveResources(String path, String prefix) {
+        this.serveResources(path, classLoader(), prefix);
+    }
+
+    public void serveResources(String path, ClassLoader classLoader, String prefix) {
+        final HttpHandlerPath at = handlerPath(path);
+        this.addHandler(at, new ResourceHandlerProvider(classLoader, prefix, at));
+    }
+
+    public void serveResources(String path, String prefix, Configurations configurations) {
+        this.serveResources(path, classLoader(), prefix, configurations);
+    }
+
+    public void serveResources(String path, ClassLoader classLoader, String prefix, Configurations configurations) {
+        final HttpHandlerPath at = handlerPath(path);
+        this.addHandler(at, new ResourceHandlerProvider(classLoader, prefix, at, configurations));
+    }
+
+    private static ClassLoader classLoader() {
+        final ClassLoader classLoader = Thread.currentThread().getContextClassLoader();
+        return classLoader != null ? classLoader : ServerBuilder.class.getClassLoader();
+    }
+
     /* ---------------------------------------------------------------------- */
 
     public RestConfigurator serveApp(String path, Application application) {
@@ -212,6 +306,14 @@ public class ServerBuilder extends ConfiguringBindingBuilder<ServerBuilder> {
         return new RedirectConfigurator(handler);
     }
 
+    public RedirectConfigurator serveRedirects(String path, File redirectMap) {
+        return this.serveRedirects(path).withRedirectMap(redirectMap);
+    }
+
+    public RedirectConfigurator serveRedirects(String path, String redirectMap) {
+        return this.serveRedirects(path, new File(redirectMap));
+    }
+
     /* ---------------------------------------------------------------------- */
 
     public final class RestConfigurator {
@@ -272,5 +374,15 @@ public class ServerBuilder extends ConfiguringBindingBuilder<ServerBuilder> {
             handler.addRedirect(location, redirect, matchEntireLine, permanentRedirect, preserveQueryString);
             return this;
         }
+
+        public RedirectConfigurator withRedirectMap(File redirectMap) {
+            handler.addRedirectMap(redirectMap);
+            return this;
+        }
+
+        public RedirectConfigurator withCacheSize(int cacheSize) {
+            handler.setCacheSize(cacheSize);
+            return this;
+        }
     }
 }
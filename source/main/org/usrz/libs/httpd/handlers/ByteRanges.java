@@ -0,0 +1,99 @@
+/* ========================================================================== *
+ * Copyright 2014 USRZ.com and Pier Paolo Fumagalli                           *
+ * -------------------------------------------------------------------------- *
+ * Licensed under the Apache License, Version 2.0 (the "License");            *
+ * you may not use this file except in compliance with the License.           *
+ * You may obtain a copy of the License at                                    *
+ *                                                                            *
+ *  http://www.apache.org/licenses/LICENSE-2.0                                *
+ *                                                                            *
+ * Unless required by applicable law or agreed to in writing, software        *
+ * distributed under the License is distributed on an "AS IS" BASIS,          *
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.   *
+ * See the License for the specific language governing permissions and        *
+ * limitations under the License.                                             *
+ * ========================================================================== */
+package org.usrz.libs.httpd.handlers;
+
+import java.util.Arrays;
+import java.util.StringTokenizer;
+
+/**
+ * A parser for <code>Range: bytes=...</code> headers.
+ *
+ * <p>Ranges are returned as an array of <em>first</em> and <em>last</em>
+ * byte positions (both inclusive), in the order they were requested.</p>
+ *
+ * @author <a href="mailto:pier@usrz.com">Pier Fumagalli</a>
+ */
+final class ByteRanges {
+
+    /** Returned when none of the requested ranges can be satisfied. */
+    static final long[] UNSATISFIABLE = new long[0];
+
+    /* More ranges than this and we simply send the whole file */
+    static final int MAX_RANGES = 16;
+
+    private ByteRanges() {
+        throw new IllegalStateException("Do not construct");
+    }
+
+    /**
+     * Parse the specified header for a file of the specified length,
+     * returning {@link #UNSATISFIABLE} or <b>null</b> if the header is
+     * invalid and should be ignored.
+     */
+    static long[] parse(String header, long length) {
+        if (header == null) return null;
+
+        final int equals = header.indexOf('=');
+        if ((equals < 0) || (! "bytes".equalsIgnoreCase(header.substring(0, equals).trim()))) return null;
+
+        final StringTokenizer tokenizer = new StringTokenizer(header.substring(equals + 1), ",");
+        long[] ranges = new long[8];
+        long total = 0;
+        int specs = 0;
+        int count = 0;
+
+        while (tokenizer.hasMoreTokens()) {
+            final String spec = tokenizer.nextToken().trim();
+            if (spec.isEmpty()) continue; // "bytes=0-1,,2-3" is legal
+            specs ++;
+
+            final int dash = spec.indexOf('-');
+            if (dash < 0) return null;
+
+            final long first, last;
+            try {
+                if (dash == 0) {
+                    /* Suffix range, "-500" means "the last 500 bytes" */
+                    final long suffix = Long.parseLong(spec.substring(1));
+                    if (suffix < 0) return null;
+                    if ((suffix == 0) || (length == 0)) continue;
+                    first = Math.max(0, length - suffix);
+                    last = length - 1;
+                } else {
+                    first = Long.parseLong(spec.substring(0, dash));
+                    final String end = spec.substring(dash + 1);
+                    final long requested = end.isEmpty() ? Long.MAX_VALUE : Long.parseLong(end);
+                    if (requested < first) return null;
+                    if (first >= length) continue;
+                    last = Math.min(requested, length - 1);
+                }
+            } catch (NumberFormatException exception) {
+                return null;
+            }
+            if (first < 0) return null;
+
+            /* Too many ranges, or overlapping ones asking for more than the file */
+            if ((++ count > MAX_RANGES) || ((total += last - first + 1) > length)) return null;
+
+            if (ranges.length < count * 2) ranges = Arrays.copyOf(ranges, ranges.length * 2);
+            ranges[count * 2 - 2] = first;
+            ranges[count * 2 - 1] = last;
+        }
+
+        if (specs == 0) return null;
+        return count == 0 ? UNSATISFIABLE : Arrays.copyOf(ranges, count * 2);
+    }
+}
@@ -0,0 +1,109 @@
+/* ========================================================================== *
+ * Copyright 2014 USRZ.com and Pier Paolo Fumagalli                           *
+ * -------------------------------------------------------------------------- *
+ * Licensed under the Apache License, Version 2.0 (the "License");            *
+ * you may not use this file except in compliance with the License.           *
+ * You may obtain a copy of the License at                                    *
+ *                                                                            *
+ *  http://www.apache.org/licenses/LICENSE-2.0                                *
+ *                                                                            *
+ * Unless required by applicable law or agreed to in writing, software        *
+ * distributed under the License is distributed on an "AS IS" BASIS,          *
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.   *
+ * See the License for the specific language governing permissions and        *
+ * limitations under the License.                                             *
+ * ========================================================================== */
+package org.usrz.libs.httpd.handlers;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+
+/**
+ * The contents of a file, read once and kept in memory by a
+ * {@link FileCache}, or a reference to a file to be streamed from disk
+ * (when its {@link #content} is <b>null</b>) or from a {@link Source}
+ * (when its {@link #file} is also <b>null</b>).
+ *
+ * @author <a href="mailto:pier@usrz.com">Pier Fumagalli</a>
+ */
+final class CachedFile {
+
+    /** Where to read resources not kept in memory from. */
+    interface Source {
+        InputStream open() throws IOException;
+    }
+
+    final Path file;
+    final Source source;
+    final ByteBuffer content;
+    final String contentType;
+    final String contentEncoding;
+    final long lastModified;
+    final long length;
+    final boolean absent;
+
+    /* Second chance for eviction and lazily computed ETag: racy updates are harmless */
+    boolean referenced;
+    String etag;
+
+    CachedFile(Path file, ByteBuffer content, String contentType, String contentEncoding, long lastModified) {
+        this(file, null, content, contentType, contentEncoding, content.remaining(), lastModified, false);
+    }
+
+    private CachedFile(Path file, Source source, ByteBuffer content, String contentType, String contentEncoding, long length, long lastModified, boolean absent) {
+        this.file = file;
+        this.source = source;
+        this.content = content;
+        this.contentType = contentType;
+        this.contentEncoding = contentEncoding;
+        this.lastModified = lastModified;
+        this.length = length;
+        this.absent = absent;
+    }
+
+    /**
+     * Create a reference to a file too big to be kept in memory.
+     */
+    static CachedFile streamed(Path file, String contentType, String contentEncoding) {
+        final File streamed = file.toFile();
+        return new CachedFile(file, null, null, contentType, contentEncoding, streamed.length(), streamed.lastModified(), false);
+    }
+
+    /**
+     * Create a reference to a file to be streamed, whose length and last
+     * modification time are already known.
+     */
+    static CachedFile streamed(Path file, String contentType, long length, long lastModified) {
+        return new CachedFile(file, null, null, contentType, null, length, lastModified, false);
+    }
+
+    /**
+     * Create a reference to a resource to be read from a {@link Source}
+     * every time it is sent.
+     */
+    static CachedFile streamed(Source source, String contentType, String contentEncoding, long length, long lastModified) {
+        return new CachedFile(null, source, null, contentType, contentEncoding, length, lastModified, false);
+    }
+
+    /**
+     * Create a marker remembering that <em>no</em> file exists for a
+     * resource, invalidated like any other entry whenever the specified
+     * file changes.
+     */
+    static CachedFile absent(Path file) {
+        return new CachedFile(file, null, null, null, null, 0, 0, true);
+    }
+
+    /* Same opaque value as Grizzly's addCachingHeaders(...), plus encoding */
+    String validator() {
+        return length + "-" + lastModified + (contentEncoding == null ? "" : "-" + contentEncoding);
+    }
+
+    /* The number of bytes this entry takes in memory */
+    int size() {
+        return content == null ? 0 : content.remaining();
+    }
+}
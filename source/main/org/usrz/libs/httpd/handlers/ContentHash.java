@@ -0,0 +1,92 @@
+/* ========================================================================== *
+ * Copyright 2014 USRZ.com and Pier Paolo Fumagalli                           *
+ * -------------------------------------------------------------------------- *
+ * Licensed under the Apache License, Version 2.0 (the "License");            *
+ * you may not use this file except in compliance with the License.           *
+ * You may obtain a copy of the License at                                    *
+ *                                                                            *
+ *  http://www.apache.org/licenses/LICENSE-2.0                                *
+ *                                                                            *
+ * Unless required by applicable law or agreed to in writing, software        *
+ * distributed under the License is distributed on an "AS IS" BASIS,          *
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.   *
+ * See the License for the specific language governing permissions and        *
+ * limitations under the License.                                             *
+ * ========================================================================== */
+package org.usrz.libs.httpd.handlers;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Base64;
+
+/**
+ * Content hashes of static files, used as strong <code>ETag</code>s and
+ * stored in {@link FileIndex}es.
+ *
+ * <p>Hashes are the first 128 bits of a SHA-256 digest (plenty to tell
+ * two versions of a file apart) in URL-safe Base 64.</p>
+ *
+ * @author <a href="mailto:pier@usrz.com">Pier Fumagalli</a>
+ */
+final class ContentHash {
+
+    private static final int BUFFER_SIZE = 65536;
+
+    private ContentHash() {
+        throw new IllegalStateException("Do not construct");
+    }
+
+    /** Hash the remaining bytes of a buffer, leaving it untouched. */
+    static String hash(ByteBuffer content) {
+        final MessageDigest digest = digest();
+        digest.update(content.duplicate());
+        return encode(digest);
+    }
+
+    /** Hash the whole content of a file. */
+    static String hash(Path file)
+    throws IOException {
+        final MessageDigest digest = digest();
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+            while (channel.read(buffer) >= 0) {
+                buffer.flip();
+                digest.update(buffer);
+                buffer.clear();
+            }
+        }
+        return encode(digest);
+    }
+
+    /** Hash the whole content of a stream, without closing it. */
+    static String hash(InputStream input)
+    throws IOException {
+        final MessageDigest digest = digest();
+        final byte[] buffer = new byte[BUFFER_SIZE];
+        for (int read = input.read(buffer); read >= 0; read = input.read(buffer)) {
+            digest.update(buffer, 0, read);
+        }
+        return encode(digest);
+    }
+
+    /* ====================================================================== */
+
+    private static MessageDigest digest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException exception) {
+            throw new IllegalStateException("SHA-256 not supported", exception);
+        }
+    }
+
+    private static String encode(MessageDigest digest) {
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(Arrays.copyOf(digest.digest(), 16));
+    }
+}
@@ -0,0 +1,340 @@
+/* ========================================================================== *
+ * Copyright 2014 USRZ.com and Pier Paolo Fumagalli                           *
+ * -------------------------------------------------------------------------- *
+ * Licensed under the Apache License, Version 2.0 (the "License");            *
+ * you may not use this file except in compliance with the License.           *
+ * You may obtain a copy of the License at                                    *
+ *                                                                            *
+ *  http://www.apache.org/licenses/LICENSE-2.0                                *
+ *                                                                            *
+ * Unless required by applicable law or agreed to in writing, software        *
+ * distributed under the License is distributed on an "AS IS" BASIS,          *
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.   *
+ * See the License for the specific language governing permissions and        *
+ * limitations under the License.                                             *
+ * ========================================================================== */
+package org.usrz.libs.httpd.handlers;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_DELETE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+import static java.nio.file.StandardWatchEventKinds.OVERFLOW;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.GZIPOutputStream;
+
+import org.glassfish.grizzly.http.util.MimeType;
+import org.usrz.libs.configurations.Configurations;
+import org.usrz.libs.httpd.jfr.FileCacheEvent;
+import org.usrz.libs.httpd.jfr.FlightEvents;
+import org.usrz.libs.logging.Log;
+
+/**
+ * A size-bounded, in-memory cache of small static files.
+ *
+ * <p>Entries are evicted (approximating LRU with the CLOCK algorithm, where
+ * entries served since they were last considered get a second chance)
+ * when the total size of all cached files exceeds the configured limit,
+ * and are invalidated
+ * as soon as a {@link WatchService} reports a change in their directory,
+ * so that serving a cached file never touches the file system.</p>
+ *
+ * <p>Configurations keys are <code>max_size</code> (total bytes, default
+ * 64 MB), <code>max_file_size</code> (bytes, default 256 KB) and
+ * <code>direct</code> (whether to use direct buffers, default false).</p>
+ *
+ * @author <a href="mailto:pier@usrz.com">Pier Fumagalli</a>
+ */
+public class FileCache implements Closeable {
+
+    private static final Log log = new Log();
+
+    private final ConcurrentHashMap<String, CachedFile> entries = new ConcurrentHashMap<>();
+    private final LinkedHashMap<String, CachedFile> clock = new LinkedHashMap<>();
+    private final Map<Path, WatchKey> directories = new ConcurrentHashMap<>();
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final WatchService watcher;
+
+    private final long maxSize;
+    private final int maxFileSize;
+    private final boolean direct;
+    private Thread thread;
+    private long generation;
+    private long size;
+
+    public FileCache(Configurations configurations) {
+        maxSize = configurations.get("max_size", 64L * 1024 * 1024);
+        maxFileSize = configurations.get("max_file_size", 256 * 1024);
+        direct = configurations.get("direct", false);
+
+        if (maxSize < 1) throw new IllegalArgumentException("Invalid cache size " + maxSize);
+        if (maxFileSize < 1) throw new IllegalArgumentException("Invalid maximum cached file size " + maxFileSize);
+
+        try {
+            watcher = FileSystems.getDefault().newWatchService();
+        } catch (IOException exception) {
+            throw new IllegalStateException("Unable to create file system watcher", exception);
+        }
+    }
+
+    /* ====================================================================== */
+
+    /** The number of requests served from this cache. */
+    public long getHits() {
+        return hits.sum();
+    }
+
+    /** The number of requests <em>not</em> served from this cache. */
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    /** The number of files currently held in this cache. */
+    public int getEntries() {
+        return entries.size();
+    }
+
+    /** The total number of bytes currently held in this cache. */
+    public synchronized long getSize() {
+        return size;
+    }
+
+    /** The maximum number of bytes this cache will hold. */
+    public long getMaxSize() {
+        return maxSize;
+    }
+
+    @Override
+    public void close() {
+        try {
+            watcher.close();
+        } catch (IOException exception) {
+            log.warn(exception, "Exception closing file cache watcher");
+        }
+        synchronized (this) {
+            entries.clear();
+            clock.clear();
+            size = 0;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + "[entries=" + getEntries()
+                                          + ",size=" + getSize()
+                                          + ",hits=" + getHits()
+                                          + ",misses=" + getMisses() + "]";
+    }
+
+    /* ====================================================================== */
+
+    /**
+     * Return the cached file associated with the specified resource path
+     * or <b>null</b>, and update our hit/miss counters.
+     */
+    CachedFile get(String resource) {
+        final CachedFile cached = entries.get(resource);
+        if (cached == null) {
+            misses.increment();
+            if (FlightEvents.AVAILABLE) FileCacheEvent.emit(resource, false, 0);
+            return null;
+        }
+
+        hits.increment();
+        if (FlightEvents.AVAILABLE) FileCacheEvent.emit(resource, true, cached.length);
+        if (! cached.referenced) cached.referenced = true;
+        return cached;
+    }
+
+    /**
+     * Read the specified file and associate it with the specified resource
+     * path, returning <b>null</b> if the file can not be cached.
+     */
+    CachedFile load(String resource, Path file)
+    throws IOException {
+        return load(resource, file, contentType(file), null, -1);
+    }
+
+    /**
+     * Remember that nothing exists for the specified resource path until
+     * the specified file changes.
+     */
+    void absent(String resource, Path file)
+    throws IOException {
+        watch(file);
+        put(resource, CachedFile.absent(file), generation());
+    }
+
+    /**
+     * Read the specified file (compressing it with GZIP if the level is not
+     * negative) and associate it with the specified resource path,
+     * returning <b>null</b> if the file can not be cached.
+     */
+    CachedFile load(String resource, Path file, String contentType, String contentEncoding, int level)
+    throws IOException {
+        watch(file);
+        final long generation = generation();
+
+        final CachedFile cached;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            final long length = channel.size();
+            if (length > maxFileSize) return null;
+
+            final long lastModified = file.toFile().lastModified();
+            final ByteBuffer buffer = ByteBuffer.allocate((int) length);
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer) < 0) return null; // truncated while reading
+            }
+
+            final byte[] content = level < 0 ? buffer.array() : gzip(buffer.array(), level);
+            cached = new CachedFile(file, wrap(content), contentType, contentEncoding, lastModified);
+        }
+
+        put(resource, cached, generation);
+        return cached;
+    }
+
+    /* ====================================================================== */
+
+    private void watch(Path file)
+    throws IOException {
+        /* Watch the directory *before* reading, so we don't miss changes */
+        final Path directory = file.getParent();
+        if (! directories.containsKey(directory)) {
+            directories.put(directory, directory.register(watcher, ENTRY_CREATE, ENTRY_DELETE, ENTRY_MODIFY));
+
+            /* Only start our thread when we have something to watch */
+            synchronized (this) {
+                if (thread == null) {
+                    thread = new Thread(this::watch, "FileCache@" + Integer.toHexString(hashCode()));
+                    thread.setDaemon(true);
+                    thread.start();
+                }
+            }
+        }
+    }
+
+    /* Anything invalidated while we read? Serve, but don't cache */
+    private synchronized long generation() {
+        return generation;
+    }
+
+    private ByteBuffer wrap(byte[] content) {
+        if (! direct) return ByteBuffer.wrap(content);
+        final ByteBuffer buffer = ByteBuffer.allocateDirect(content.length);
+        buffer.put(content).flip();
+        return buffer;
+    }
+
+    static byte[] gzip(byte[] content, int level)
+    throws IOException {
+        final ByteArrayOutputStream output = new ByteArrayOutputStream(content.length / 2);
+        try (GZIPOutputStream gzip = new GZIPOutputStream(output) {{ def.setLevel(level); }}) {
+            gzip.write(content);
+        }
+        return output.toByteArray();
+    }
+
+    /* ====================================================================== */
+
+    private synchronized void put(String resource, CachedFile cached, long generation) {
+        if (generation != this.generation) return;
+
+        /* New entries get their second chance, too */
+        remove(resource);
+        cached.referenced = true;
+        entries.put(resource, cached);
+        clock.put(resource, cached);
+        size += cached.size();
+
+        /* Evict from the head, moving entries served meanwhile to the tail */
+        while (size > maxSize) {
+            final Iterator<Map.Entry<String, CachedFile>> iterator = clock.entrySet().iterator();
+            if (! iterator.hasNext()) break;
+
+            final Map.Entry<String, CachedFile> entry = iterator.next();
+            final CachedFile victim = entry.getValue();
+            iterator.remove();
+
+            if (victim.referenced) {
+                victim.referenced = false;
+                clock.put(entry.getKey(), victim);
+            } else {
+                entries.remove(entry.getKey());
+                size -= victim.size();
+            }
+        }
+    }
+
+    private synchronized void remove(String resource) {
+        final CachedFile removed = clock.remove(resource);
+        if (removed == null) return;
+        entries.remove(resource);
+        size -= removed.size();
+    }
+
+    private synchronized void invalidate(Path path) {
+        generation ++;
+
+        /* String prefixes: changes to "file.js.gz" also invalidate "file.js" */
+        final String changed = path.toString();
+        final Iterator<Map.Entry<String, CachedFile>> iterator = clock.entrySet().iterator();
+        while (iterator.hasNext()) {
+            final Map.Entry<String, CachedFile> entry = iterator.next();
+            final String file = entry.getValue().file.toString();
+            if (file.startsWith(changed) || changed.startsWith(file)) {
+                entries.remove(entry.getKey());
+                size -= entry.getValue().size();
+                iterator.remove();
+            }
+        }
+    }
+
+    private static String contentType(Path file) {
+        return MimeType.getByFilename(file.getFileName().toString());
+    }
+
+    /* ====================================================================== */
+
+    private void watch() {
+        try {
+            while (true) {
+                final WatchKey key = watcher.take();
+                final Path directory = (Path) key.watchable();
+
+                for (WatchEvent<?> event: key.pollEvents()) {
+                    if (event.kind() == OVERFLOW) {
+                        invalidate(directory);
+                    } else {
+                        invalidate(directory.resolve((Path) event.context()));
+                    }
+                }
+
+                /* Directory gone? Forget about everything in it */
+                if (! key.reset()) {
+                    directories.remove(directory);
+                    invalidate(directory);
+                }
+            }
+        } catch (ClosedWatchServiceException | InterruptedException exception) {
+            log.debug("Stopped watching file cache directories");
+        }
+    }
+}
@@ -0,0 +1,236 @@
+/* ========================================================================== *
+ * Copyright 2014 USRZ.com and Pier Paolo Fumagalli                           *
+ * -------------------------------------------------------------------------- *
+ * Licensed under the Apache License, Version 2.0 (the "License");            *
+ * you may not use this file except in compliance with the License.           *
+ * You may obtain a copy of the License at                                    *
+ *                                                                            *
+ *  http://www.apache.org/licenses/LICENSE-2.0                                *
+ *                                                                            *
+ * Unless required by applicable law or agreed to in writing, software        *
+ * distributed under the License is distributed on an "AS IS" BASIS,          *
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.   *
+ * See the License for the specific language governing permissions and        *
+ * limitations under the License.                                             *
+ * ========================================================================== */
+package org.usrz.libs.httpd.handlers;
+
+import static org.usrz.libs.utils.Check.notNull;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.StringTokenizer;
+
+import org.glassfish.grizzly.http.server.Request;
+import org.glassfish.grizzly.http.util.Header;
+import org.glassfish.grizzly.http.util.MimeType;
+import org.usrz.libs.configurations.Configurations;
+
+/**
+ * Compressed variants of static files, either read from <code>.br</code>
+ * and <code>.gz</code> files next to the original, or compressed (with
+ * GZIP) once, on the first request, and kept in their own
+ * {@link FileCache}.
+ *
+ * <p>Configurations keys are those of the {@link FileCache} plus
+ * <code>precompressed</code> (look for sidecar files, default true),
+ * <code>min_size</code> (do not compress smaller files, default 256),
+ * <code>level</code> (the GZIP level, default 9) and
+ * <code>mime_types</code> (comma-separated compressible types, where
+ * everything <code>text/*</code> is always included).</p>
+ *
+ * @author <a href="mailto:pier@usrz.com">Pier Fumagalli</a>
+ */
+public class FileCompression implements Closeable {
+
+    /* Bit masks for the encodings we support, in order of preference */
+    static final int BROTLI = 0x01;
+    static final int GZIP = 0x02;
+
+    private static final String DEFAULT_MIME_TYPES = "application/javascript,application/json,"
+                                                   + "application/xml,application/xhtml+xml,"
+                                                   + "image/svg+xml,image/x-icon";
+
+    /* Returned when all the acceptable variants are known not to exist */
+    static final CachedFile NONE = CachedFile.absent(new File("").toPath());
+
+    private final Set<String> mimeTypes;
+    private final boolean precompressed;
+    private final FileCache cache;
+    private final int minSize;
+    private final int level;
+
+    public FileCompression(Configurations configurations) {
+        this(configurations, true);
+    }
+
+    /**
+     * Create a {@link FileCompression}, without a {@link FileCache} (and
+     * its file system watcher) when only its settings are needed, like
+     * for resources compressed once by a {@link ResourceHandler}.
+     */
+    FileCompression(Configurations configurations, boolean cached) {
+        notNull(configurations, "Null configurations");
+        cache = cached ? new FileCache(configurations) : null;
+        precompressed = configurations.get("precompressed", true);
+        minSize = configurations.get("min_size", 256);
+        level = configurations.get("level", 9);
+
+        if ((level < 1) || (level > 9)) throw new IllegalArgumentException("Invalid compression level " + level);
+
+        final Set<String> mimeTypes = new HashSet<>();
+        final StringTokenizer tokenizer = new StringTokenizer(configurations.get("mime_types", DEFAULT_MIME_TYPES), ", ");
+        while (tokenizer.hasMoreTokens()) mimeTypes.add(tokenizer.nextToken().toLowerCase());
+        this.mimeTypes = Collections.unmodifiableSet(mimeTypes);
+    }
+
+    /* ====================================================================== */
+
+    /** The {@link FileCache} holding our compressed variants, if any. */
+    public FileCache getFileCache() {
+        return cache;
+    }
+
+    @Override
+    public void close() {
+        if (cache != null) cache.close();
+    }
+
+    /* ====================================================================== */
+
+    /* Whether to look for ".br" and ".gz" files */
+    boolean isPrecompressed() {
+        return precompressed;
+    }
+
+    /* Files smaller than this are not compressed */
+    int getMinSize() {
+        return minSize;
+    }
+
+    /* The GZIP compression level */
+    int getLevel() {
+        return level;
+    }
+
+    /* ====================================================================== */
+
+    /**
+     * Parse the <code>Accept-Encoding</code> header of the request and
+     * return the bit mask of the encodings we can use.
+     */
+    static int accepted(Request request) {
+        return accepted(request.getHeader(Header.AcceptEncoding));
+    }
+
+    /**
+     * Parse the value of an <code>Accept-Encoding</code> header and return
+     * the bit mask of the encodings we can use.
+     */
+    static int accepted(String header) {
+        if (header == null) return 0;
+
+        int accepted = 0;
+        int rejected = 0;
+        int wildcard = 0;
+        final StringTokenizer tokenizer = new StringTokenizer(header, ",");
+        while (tokenizer.hasMoreTokens()) {
+            final String token = tokenizer.nextToken();
+            final int semicolon = token.indexOf(';');
+            final String coding = (semicolon < 0 ? token : token.substring(0, semicolon)).trim().toLowerCase();
+
+            /* Only care about "q=0", any other quality is good for us */
+            final boolean refused = (semicolon >= 0) && token.substring(semicolon + 1).trim().matches("[qQ]\\s*=\\s*0(\\.0*)?");
+
+            /* The wildcard only applies to codings not explicitly listed */
+            if ("*".equals(coding)) {
+                wildcard = refused ? 0 : BROTLI | GZIP;
+                continue;
+            }
+
+            final int mask = "br".equals(coding)   ? BROTLI :
+                             "gzip".equals(coding) ? GZIP :
+                             0;
+
+            if (refused) {
+                rejected |= mask;
+            } else {
+                accepted |= mask;
+            }
+        }
+        return (accepted & ~rejected) | (wildcard & ~(accepted | rejected));
+    }
+
+    /**
+     * Return the cached variant of a resource for the accepted encodings,
+     * {@link #NONE} if we know no variant exists, or <b>null</b> if the
+     * file system needs to be looked at.
+     */
+    CachedFile cached(String resource, int accepted) {
+        if ((accepted & BROTLI) != 0) {
+            final CachedFile cached = cache.get("br:" + resource);
+            if (cached == null) return null;
+            if (! cached.absent) return cached;
+        }
+        if ((accepted & GZIP) != 0) {
+            final CachedFile cached = cache.get("gzip:" + resource);
+            if (cached == null) return null;
+            if (! cached.absent) return cached;
+        }
+        return NONE;
+    }
+
+    /**
+     * Find or create the compressed variant of a file, returning
+     * <b>null</b> if no variant can be used.
+     */
+    CachedFile variant(String resource, File file, int accepted)
+    throws IOException {
+        if ((accepted & BROTLI) != 0) {
+            final CachedFile variant = variant("br:" + resource, file, ".br", "br", -1);
+            if (variant != null) return variant;
+        }
+        if ((accepted & GZIP) != 0) {
+            final CachedFile variant = variant("gzip:" + resource, file, ".gz", "gzip", level);
+            if (variant != null) return variant;
+        }
+        return null;
+    }
+
+    private CachedFile variant(String key, File file, String extension, String encoding, int level)
+    throws IOException {
+        final String contentType = MimeType.getByFilename(file.getName());
+
+        /* Do we have a precompressed file next to the original? */
+        if (precompressed) {
+            final File sidecar = new File(file.getPath() + extension);
+            if (sidecar.isFile()) {
+                final CachedFile cached = cache.load(key, sidecar.toPath(), contentType, encoding, -1);
+                return cached != null ? cached : CachedFile.streamed(sidecar.toPath(), contentType, encoding);
+            }
+        }
+
+        /* Compress the original, once, if it's worth it */
+        if ((level >= 0) && compressible(contentType) && (file.length() >= minSize)) {
+            final CachedFile cached = cache.load(key, file.toPath(), contentType, encoding, level);
+            if (cached != null) return cached;
+        }
+
+        /* Remember that we have no variant, until the sidecar changes */
+        cache.absent(key, new File(file.getPath() + extension).toPath());
+        return null;
+    }
+
+    /* Whether the content type is worth compressing */
+    boolean compressible(String contentType) {
+        if (contentType == null) return false;
+
+        final int semicolon = contentType.indexOf(';');
+        final String type = (semicolon < 0 ? contentType : contentType.substring(0, semicolon)).trim().toLowerCase();
+        return type.startsWith("text/") || mimeTypes.contains(type);
+    }
+}
@@ -0,0 +1,209 @@
+/* ========================================================================== *
+ * Copyright 2014 USRZ.com and Pier Paolo Fumagalli                           *
+ * -------------------------------------------------------------------------- *
+ * Licensed under the Apache License, Version 2.0 (the "License");            *
+ * you may not use this file except in compliance with the License.           *
+ * You may obtain a copy of the License at                                    *
+ *                                                                            *
+ *  http://www.apache.org/licenses/LICENSE-2.0                                *
+ *                                                                            *
+ * Unless required by applicable law or agreed to in writing, software        *
+ * distributed under the License is distributed on an "AS IS" BASIS,          *
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.   *
+ * See the License for the specific language governing permissions and        *
+ * limitations under the License.                                             *
+ * ========================================================================== */
+package org.usrz.libs.httpd.handlers;
+
+import static org.usrz.libs.utils.Check.notNull;
+
+import java.io.File;
+
+import org.glassfish.grizzly.http.server.Request;
+import org.glassfish.grizzly.http.server.Response;
+import org.glassfish.grizzly.http.server.StaticHttpHandler;
+import org.glassfish.grizzly.http.server.StaticHttpHandlerBase;
+import org.glassfish.grizzly.http.util.Header;
+import org.glassfish.grizzly.http.util.MimeType;
+import org.usrz.libs.configurations.Configurations;
+
+/**
+ * A {@link StaticHttpHandlerBase} serving files from a single document
+ * root, optionally keeping small files in a {@link FileCache}, serving
+ * compressed variants through {@link FileCompression} and sending large
+ * files over TLS through a {@link FileMapping}.
+ *
+ * <p>Without a cache or compression, this behaves like Grizzly's own
+ * {@link StaticHttpHandler}, but always sends <code>ETag</code> and
+ * <code>Last-Modified</code> headers, answers conditional requests with
+ * <code>304</code> or <code>412</code> responses and supports single and
+ * multiple byte <code>Range</code>s.</p>
+ *
+ * @author <a href="mailto:pier@usrz.com">Pier Fumagalli</a>
+ */
+public class FileHandler extends StaticHttpHandlerBase {
+
+    /** How <code>ETag</code>s are generated for static files. */
+    public enum ETagType {
+        /** Weak, from length and modification time (Grizzly's own). */
+        WEAK,
+        /** Strong, from length and modification time (the default). */
+        STRONG,
+        /** Strong, from a hash of the content, computed once and cached. */
+        HASH
+    }
+
+    private final File documentRoot;
+    private final FileIndex index;
+    private final FileCache cache;
+    private final FileCompression compression;
+    private final FileMapping mapping;
+    private final ETagType etagType;
+    private final FileSender sender;
+
+    /**
+     * Create a {@link FileHandler} from {@link Configurations}, where the
+     * <code>index</code>, <code>cache</code>, <code>compression</code> and
+     * <code>mapping</code> groups (if not empty) configure the respective
+     * components, and <code>etag</code> is the name of an {@link ETagType}.
+     */
+    public FileHandler(File documentRoot, Configurations configurations) {
+        this(documentRoot,
+             configured(configurations, "index")       ? new FileIndex(documentRoot, configurations.strip("index")) : null,
+             configured(configurations, "cache")       ? new FileCache(configurations.strip("cache")) : null,
+             configured(configurations, "compression") ? new FileCompression(configurations.strip("compression")) : null,
+             configured(configurations, "mapping")     ? new FileMapping(configurations.strip("mapping")) : null,
+             etagType(configurations.get("etag", "strong")));
+    }
+
+    public FileHandler(File documentRoot, FileIndex index, FileCache cache, FileCompression compression, FileMapping mapping, ETagType etagType) {
+        this.documentRoot = notNull(documentRoot, "Null document root");
+        this.etagType = notNull(etagType, "Null ETag type");
+        this.compression = compression;
+        this.mapping = mapping;
+        this.index = index;
+        this.cache = cache;
+        sender = new FileSender(mapping, etagType);
+    }
+
+    private static boolean configured(Configurations configurations, String group) {
+        return ! notNull(configurations, "Null configurations").strip(group).isEmpty();
+    }
+
+    static ETagType etagType(String etag) {
+        try {
+            return ETagType.valueOf(etag.trim().toUpperCase());
+        } catch (IllegalArgumentException exception) {
+            throw new IllegalArgumentException("Invalid ETag type \"" + etag + "\" (must be \"weak\", \"strong\" or \"hash\")");
+        }
+    }
+
+    /* ====================================================================== */
+
+    public File getDocumentRoot() {
+        return documentRoot;
+    }
+
+    public FileIndex getFileIndex() {
+        return index;
+    }
+
+    public FileCache getFileCache() {
+        return cache;
+    }
+
+    public FileCompression getFileCompression() {
+        return compression;
+    }
+
+    public FileMapping getFileMapping() {
+        return mapping;
+    }
+
+    public ETagType getETagType() {
+        return etagType;
+    }
+
+    @Override
+    public void destroy() {
+        if (compression != null) compression.close();
+        if (cache != null) cache.close();
+        if (index != null) index.close();
+        super.destroy();
+    }
+
+    /* ====================================================================== */
+
+    @Override
+    protected boolean handle(String uri, Request request, Response response)
+    throws Exception {
+
+        /* With an index, we know what exists without looking at the disk */
+        final FileIndex.Entry indexed = index == null ? null : index.get(uri);
+        if (index != null) {
+            if (indexed == null) return false;
+            if (indexed.immutable) response.setHeader(Header.CacheControl, index.getCacheControl());
+        }
+
+        /* Compressed variants come first, if the client accepts them */
+        final int accepted = compression == null ? 0 : FileCompression.accepted(request);
+        if (compression != null) response.setHeader(Header.Vary, "Accept-Encoding");
+
+        final CachedFile variant = accepted == 0 ? FileCompression.NONE : compression.cached(uri, accepted);
+        if ((variant != null) && (! variant.absent)) {
+            if (FileSender.methodAllowed(request, response)) sender.send(request, response, variant);
+            return true;
+        }
+
+        /* Cached? Then we don't even need to look at the disk */
+        CachedFile cached = null;
+        if (cache != null) {
+            cached = cache.get(uri);
+            if ((cached != null) && (variant != null)) {
+                if (FileSender.methodAllowed(request, response)) sender.send(request, response, cached);
+                return true;
+            }
+        }
+
+        /* Resolve our file, redirecting directories or serving indexes */
+        File file;
+        if (indexed != null) {
+            if (indexed.isDirectory()) return FileSender.redirectDirectory(request, response);
+            file = indexed.file.toFile();
+        } else {
+            file = new File(documentRoot, uri);
+            if (file.isDirectory()) {
+                if (! uri.endsWith("/")) return FileSender.redirectDirectory(request, response);
+                file = new File(file, "index.html");
+            }
+
+            /* Nothing here, someone else will have to deal with this */
+            if (! file.isFile()) return false;
+        }
+        if (! FileSender.methodAllowed(request, response)) return true;
+
+        /* Look for (or create) a compressed variant of this file */
+        if (variant == null) {
+            final CachedFile compressed = compression.variant(uri, file, accepted);
+            if (compressed != null) {
+                sender.send(request, response, compressed);
+                return true;
+            }
+        }
+
+        /* Can we keep this in memory? */
+        if ((cache != null) && (cached == null)) cached = cache.load(uri, file.toPath());
+
+        /* If not, Grizzly will stream it (possibly using sendfile) */
+        if (cached == null) {
+            if (indexed == null) {
+                cached = CachedFile.streamed(file.toPath(), MimeType.getByFilename(file.getName()), null);
+            } else {
+                cached = CachedFile.streamed(indexed.file, indexed.contentType, indexed.length, indexed.lastModified);
+                if ((etagType == ETagType.HASH) && (indexed.hash != null)) cached.etag = "\"" + indexed.hash + "\"";
+            }
+        }
+        sender.send(request, response, cached);
+        return true;
+    }
+}
@@ -25,23 +25,33 @@ import javax.inject.Provider;
 
 import org.glassfish.grizzly.http.server.HttpHandler;
 import org.glassfish.grizzly.http.server.HttpServer;
-import org.glassfish.grizzly.http.server.StaticHttpHandler;
+import org.usrz.libs.configurations.Configurations;
+import org.usrz.libs.configurations.ConfigurationsBuilder;
 import org.usrz.libs.httpd.inject.HttpHandlerPath;
+import org.usrz.libs.httpd.inject.HttpHandlerProvider;
 import org.usrz.libs.logging.Log;
 
+import com.google.inject.Injector;
+
 public class FileHandlerProvider implements Provider<HttpHandler> {
 
     private final Log log = new Log();
-    private final StaticHttpHandler handler;
+    private final FileHandler handler;
     private final String path;
 
     public FileHandlerProvider(File documentRoot, HttpHandlerPath path) {
+        this(documentRoot, path, new ConfigurationsBuilder().build());
+    }
+
+    public FileHandlerProvider(File documentRoot, HttpHandlerPath path, Configurations configurations) {
         this.path = notNull(path, "Null path").value();
+        notNull(configurations, "Null configurations");
 
         try {
             final File directory = notNull(documentRoot, "Document root not specified").getCanonicalFile();
             if (directory.isDirectory()) {
-                handler = new StaticHttpHandler(directory.getAbsolutePath());
+                /* Index, cache, compress or map only if configured to do so */
+                handler = new FileHandler(directory, configurations);
             } else {
                 throw new IllegalArgumentException("Document root \"" + directory + "\" is not a directory");
             }
@@ -51,9 +61,14 @@ public class FileHandlerProvider implements Provider<HttpHandler> {
     }
 
     @Inject
-    private void setup(HttpServer server) {
-        server.getServerConfiguration().addHttpHandler(handler, path);
-        log.info("Serving \"%s\" as static files from \"%s\"", path, handler.getDefaultDocRoot());
+    private void setup(Injector injector, HttpServer server) {
+        server.getServerConfiguration().addHttpHandler(HttpHandlerProvider.decorate(injector, path, handler), path);
+        log.info("Serving \"%s\" as static files from \"%s\" (index %s, cache %s, compression %s, mapping %s, %s etags)", path, handler.getDocumentRoot(),
+                 handler.getFileIndex() == null ? "disabled" : handler.getFileIndex().getEntries() + " entries",
+                 handler.getFileCache() == null ? "disabled" : "up to " + handler.getFileCache().getMaxSize() + " bytes",
+                 handler.getFileCompression() == null ? "disabled" : "enabled",
+                 handler.getFileMapping() == null ? "disabled" : "from " + handler.getFileMapping().getMinSize() + " bytes",
+                 handler.getETagType().name().toLowerCase());
     }
 
     @Override
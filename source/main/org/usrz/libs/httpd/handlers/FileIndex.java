@@ -0,0 +1,240 @@
+/* ========================================================================== *
+ * Copyright 2014 USRZ.com and Pier Paolo Fumagalli                           *
+ * -------------------------------------------------------------------------- *
+ * Licensed under the Apache License, Version 2.0 (the "License");            *
+ * you may not use this file except in compliance with the License.           *
+ * You may obtain a copy of the License at                                    *
+ *                                                                            *
+ *  http://www.apache.org/licenses/LICENSE-2.0                                *
+ *                                                                            *
+ * Unless required by applicable law or agreed to in writing, software        *
+ * distributed under the License is distributed on an "AS IS" BASIS,          *
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.   *
+ * See the License for the specific language governing permissions and        *
+ * limitations under the License.                                             *
+ * ========================================================================== */
+package org.usrz.libs.httpd.handlers;
+
+import static java.nio.file.FileVisitOption.FOLLOW_LINKS;
+import static org.usrz.libs.utils.Check.notNull;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+import org.glassfish.grizzly.http.util.MimeType;
+import org.usrz.libs.configurations.Configurations;
+import org.usrz.libs.logging.Log;
+
+/**
+ * An immutable index of all the files and directories in a document
+ * root, built when the handler starts and optionally rebuilt in the
+ * background.
+ *
+ * <p>With an index, paths not in it are answered with a <code>404</code>
+ * without ever touching the disk, and files whose names carry a
+ * <em>fingerprint</em> (normally a content hash, for example
+ * <code>app.3f2a9c1b.js</code>) are served as immutable.</p>
+ *
+ * <p>Configurations keys are <code>fingerprint</code> (a regular
+ * expression matched against the whole path, default
+ * <code>.*[.-][0-9a-fA-F]{8,}\.[^/]+</code>), <code>max_age</code> (the
+ * seconds fingerprinted files can be cached for, default one year),
+ * <code>hashes</code> (whether to hash the content of all files, default
+ * true) and <code>rebuild_interval</code> (seconds between rebuilds, or
+ * zero, the default, to never rebuild).</p>
+ *
+ * @author <a href="mailto:pier@usrz.com">Pier Fumagalli</a>
+ */
+public class FileIndex implements Closeable {
+
+    private static final String DEFAULT_FINGERPRINT = ".*[.-][0-9a-fA-F]{8,}\\.[^/]+";
+
+    /* Shared by all directories, we only need to know they exist */
+    private static final Entry DIRECTORY = new Entry(null, 0, 0, null, null, false);
+
+    private static final Log log = new Log();
+
+    private final Path documentRoot;
+    private final Pattern fingerprint;
+    private final String cacheControl;
+    private final boolean hashes;
+    private final long interval;
+    private final Thread rebuilder;
+
+    private volatile Map<String, Entry> entries = Collections.emptyMap();
+
+    public FileIndex(File documentRoot, Configurations configurations) {
+        this.documentRoot = notNull(documentRoot, "Null document root").toPath();
+        notNull(configurations, "Null configurations");
+
+        fingerprint = Pattern.compile(configurations.get("fingerprint", DEFAULT_FINGERPRINT));
+        cacheControl = "max-age=" + configurations.get("max_age", 31536000L) + ", immutable";
+        hashes = configurations.get("hashes", true);
+        interval = configurations.get("rebuild_interval", 0L);
+
+        if (interval < 0) throw new IllegalArgumentException("Invalid rebuild interval " + interval);
+
+        try {
+            rebuild();
+        } catch (IOException exception) {
+            throw new IllegalStateException("I/O error indexing document root \"" + documentRoot + "\"", exception);
+        }
+
+        if (interval == 0) {
+            rebuilder = null;
+        } else {
+            rebuilder = new Thread(this::rebuildPeriodically, "FileIndex[" + documentRoot + "]");
+            rebuilder.setDaemon(true);
+            rebuilder.start();
+        }
+    }
+
+    /* ====================================================================== */
+
+    /** The number of files and directories in this index. */
+    public int getEntries() {
+        return entries.size();
+    }
+
+    /** The <code>Cache-Control</code> header value for fingerprinted files. */
+    public String getCacheControl() {
+        return cacheControl;
+    }
+
+    @Override
+    public void close() {
+        if (rebuilder != null) rebuilder.interrupt();
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + "[" + documentRoot + ",entries=" + getEntries() + "]";
+    }
+
+    /* ====================================================================== */
+
+    /**
+     * Return the entry for the specified resource path, or <b>null</b> if
+     * no such file or directory exists.
+     */
+    Entry get(String resource) {
+        return entries.get(resource);
+    }
+
+    /* ====================================================================== */
+
+    private void rebuildPeriodically() {
+        try {
+            while (true) {
+                TimeUnit.SECONDS.sleep(interval);
+                try {
+                    rebuild();
+                } catch (IOException exception) {
+                    log.error(exception, "Error rebuilding index of \"%s\", keeping %d old entries", documentRoot, entries.size());
+                }
+            }
+        } catch (InterruptedException exception) {
+            log.debug("Stopped rebuilding index of \"%s\"", documentRoot);
+        }
+    }
+
+    private void rebuild()
+    throws IOException {
+        final Map<String, Entry> previous = entries;
+        final Map<String, Entry> entries = new HashMap<>();
+        final long started = System.nanoTime();
+
+        Files.walkFileTree(documentRoot, EnumSet.of(FOLLOW_LINKS), Integer.MAX_VALUE, new SimpleFileVisitor<Path>() {
+
+            @Override
+            public FileVisitResult preVisitDirectory(Path directory, BasicFileAttributes attributes) {
+                entries.put(resource(directory), DIRECTORY);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attributes)
+            throws IOException {
+                if (! attributes.isRegularFile()) return FileVisitResult.CONTINUE;
+
+                final String resource = resource(file);
+                final long length = attributes.size();
+                final long lastModified = attributes.lastModifiedTime().toMillis();
+
+                /* Only hash files that changed since the last time */
+                final Entry old = previous.get(resource);
+                final String hash = ! hashes ? null :
+                                    (old != null) && (old.length == length) && (old.lastModified == lastModified) ?
+                                        old.hash : ContentHash.hash(file);
+
+                final Entry entry = new Entry(file, length, lastModified,
+                                              MimeType.getByFilename(file.getFileName().toString()), hash,
+                                              fingerprint.matcher(resource).matches());
+                entries.put(resource, entry);
+
+                /* Directory indexes ("/foo/" serves "/foo/index.html") */
+                if ("index.html".equals(file.getFileName().toString())) {
+                    entries.put(resource.substring(0, resource.length() - 10), entry);
+                }
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFileFailed(Path file, IOException exception) {
+                log.warn(exception, "Unable to index \"%s\"", file);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+
+        this.entries = Collections.unmodifiableMap(entries);
+        log.info("Indexed %d files and directories in \"%s\" in %d ms", entries.size(), documentRoot,
+                 TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started));
+    }
+
+    /* The resource path ("/foo/bar.html") of a file, the root is "" */
+    private String resource(Path path) {
+        final StringBuilder builder = new StringBuilder();
+        for (Path element: documentRoot.relativize(path)) {
+            final String name = element.toString();
+            if (! name.isEmpty()) builder.append('/').append(name);
+        }
+        return builder.toString();
+    }
+
+    /* ====================================================================== */
+
+    static final class Entry {
+
+        final Path file;
+        final long length;
+        final long lastModified;
+        final String contentType;
+        final String hash;
+        final boolean immutable;
+
+        private Entry(Path file, long length, long lastModified, String contentType, String hash, boolean immutable) {
+            this.file = file;
+            this.length = length;
+            this.lastModified = lastModified;
+            this.contentType = contentType;
+            this.hash = hash;
+            this.immutable = immutable;
+        }
+
+        boolean isDirectory() {
+            return file == null;
+        }
+    }
+}
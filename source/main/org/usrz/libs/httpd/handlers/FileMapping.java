@@ -0,0 +1,187 @@
+/* ========================================================================== *
+ * Copyright 2014 USRZ.com and Pier Paolo Fumagalli                           *
+ * -------------------------------------------------------------------------- *
+ * Licensed under the Apache License, Version 2.0 (the "License");            *
+ * you may not use this file except in compliance with the License.           *
+ * You may obtain a copy of the License at                                    *
+ *                                                                            *
+ *  http://www.apache.org/licenses/LICENSE-2.0                                *
+ *                                                                            *
+ * Unless required by applicable law or agreed to in writing, software        *
+ * distributed under the License is distributed on an "AS IS" BASIS,          *
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.   *
+ * See the License for the specific language governing permissions and        *
+ * limitations under the License.                                             *
+ * ========================================================================== */
+package org.usrz.libs.httpd.handlers;
+
+import static org.usrz.libs.utils.Check.notNull;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.glassfish.grizzly.WriteHandler;
+import org.glassfish.grizzly.http.io.OutputBuffer;
+import org.glassfish.grizzly.http.server.Response;
+import org.usrz.libs.configurations.Configurations;
+import org.usrz.libs.logging.Log;
+
+/**
+ * Send regions of large files from {@link MappedByteBuffer}s, on those
+ * connections (TLS, normally) where <em>sendfile</em> can not be used.
+ *
+ * <p>Files are mapped in windows, and every window is written in slices,
+ * without copying, only when the connection can accept more data: the
+ * memory used by each connection is bounded by the size of Grizzly's
+ * asynchronous write queue, not by the size of the file.</p>
+ *
+ * <p>Configurations keys are <code>min_size</code> (smaller files are
+ * read into buffers by Grizzly, default 256 KB), <code>chunk_size</code>
+ * (bytes per write, default 64 KB) and <code>window_size</code> (bytes
+ * mapped at once, default 16 MB).</p>
+ *
+ * @author <a href="mailto:pier@usrz.com">Pier Fumagalli</a>
+ */
+public class FileMapping {
+
+    private static final Log log = new Log();
+
+    private final AtomicInteger active = new AtomicInteger();
+    private final long minSize;
+    private final int chunkSize;
+    private final int windowSize;
+
+    public FileMapping(Configurations configurations) {
+        notNull(configurations, "Null configurations");
+        minSize = configurations.get("min_size", 256L * 1024);
+        chunkSize = configurations.get("chunk_size", 64 * 1024);
+        windowSize = configurations.get("window_size", 16 * 1024 * 1024);
+
+        if (chunkSize < 1) throw new IllegalArgumentException("Invalid chunk size " + chunkSize);
+        if (windowSize < chunkSize) throw new IllegalArgumentException("Window size " + windowSize + " smaller than chunk size " + chunkSize);
+    }
+
+    /* ====================================================================== */
+
+    /** Files smaller than this are not worth mapping. */
+    public long getMinSize() {
+        return minSize;
+    }
+
+    /** The maximum number of bytes written in one go. */
+    public int getChunkSize() {
+        return chunkSize;
+    }
+
+    /** The maximum number of bytes mapped at any time per response. */
+    public int getWindowSize() {
+        return windowSize;
+    }
+
+    /** The number of responses currently being sent from mapped files. */
+    public int getActive() {
+        return active.get();
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + "[minSize=" + minSize
+                                          + ",chunkSize=" + chunkSize
+                                          + ",windowSize=" + windowSize + "]";
+    }
+
+    /* ====================================================================== */
+
+    /**
+     * Suspend the response and send the specified region of a file,
+     * resuming the response once it has all been written.
+     */
+    void send(Response response, Path file, long position, long length)
+    throws IOException {
+        final FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+        final Writer writer = new Writer(response, channel, file, position, length);
+        active.incrementAndGet();
+        response.suspend();
+        response.getOutputBuffer().notifyCanWrite(writer);
+    }
+
+    /* ====================================================================== */
+
+    private final class Writer implements WriteHandler {
+
+        private final Response response;
+        private final OutputBuffer output;
+        private final FileChannel channel;
+        private final Path file;
+
+        private MappedByteBuffer window;
+        private long position;
+        private long remaining;
+        private boolean done;
+
+        private Writer(Response response, FileChannel channel, Path file, long position, long length) {
+            output = response.getOutputBuffer();
+            this.response = response;
+            this.channel = channel;
+            this.file = file;
+            this.position = position;
+            remaining = length;
+        }
+
+        @Override
+        public void onWritePossible()
+        throws Exception {
+            try {
+                while (remaining > 0) {
+                    /* Map the next window, the old one goes with the GC */
+                    if ((window == null) || (! window.hasRemaining())) {
+                        window = channel.map(MapMode.READ_ONLY, position, Math.min(remaining, windowSize));
+                    }
+
+                    final ByteBuffer chunk = window.slice();
+                    chunk.limit(Math.min(chunk.remaining(), chunkSize));
+                    window.position(window.position() + chunk.limit());
+                    position += chunk.limit();
+                    remaining -= chunk.limit();
+                    output.writeByteBuffer(chunk);
+
+                    /* Don't queue more than Grizzly is happy to hold */
+                    if ((remaining > 0) && (! output.canWrite())) {
+                        output.notifyCanWrite(this);
+                        return;
+                    }
+                }
+            } catch (IOException exception) {
+                onError(exception);
+                return;
+            }
+            done();
+        }
+
+        @Override
+        public void onError(Throwable throwable) {
+            log.debug(throwable, "Error sending mapped file \"%s\"", file);
+            done();
+        }
+
+        private synchronized void done() {
+            if (done) return;
+            done = true;
+            active.decrementAndGet();
+
+            window = null;
+            try {
+                channel.close();
+            } catch (IOException exception) {
+                log.warn(exception, "Exception closing mapped file \"%s\"", file);
+            }
+            if (response.isSuspended()) response.resume();
+        }
+    }
+}
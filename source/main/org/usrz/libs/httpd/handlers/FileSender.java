@@ -0,0 +1,383 @@
+/* ========================================================================== *
+ * Copyright 2014 USRZ.com and Pier Paolo Fumagalli                           *
+ * -------------------------------------------------------------------------- *
+ * Licensed under the Apache License, Version 2.0 (the "License");            *
+ * you may not use this file except in compliance with the License.           *
+ * You may obtain a copy of the License at                                    *
+ *                                                                            *
+ *  http://www.apache.org/licenses/LICENSE-2.0                                *
+ *                                                                            *
+ * Unless required by applicable law or agreed to in writing, software        *
+ * distributed under the License is distributed on an "AS IS" BASIS,          *
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.   *
+ * See the License for the specific language governing permissions and        *
+ * limitations under the License.                                             *
+ * ========================================================================== */
+package org.usrz.libs.httpd.handlers;
+
+import static java.nio.charset.StandardCharsets.US_ASCII;
+import static org.glassfish.grizzly.http.util.HttpStatus.METHOD_NOT_ALLOWED_405;
+import static org.glassfish.grizzly.http.util.HttpStatus.MOVED_PERMANENTLY_301;
+import static org.glassfish.grizzly.http.util.HttpStatus.NOT_MODIFIED_304;
+import static org.glassfish.grizzly.http.util.HttpStatus.OK_200;
+import static org.glassfish.grizzly.http.util.HttpStatus.PARTIAL_CONTENT_206;
+import static org.glassfish.grizzly.http.util.HttpStatus.PRECONDITION_FAILED_412;
+import static org.glassfish.grizzly.http.util.HttpStatus.REQUEST_RANGE_NOT_SATISFIABLE_416;
+import static org.usrz.libs.utils.Check.notNull;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+
+import org.glassfish.grizzly.http.Method;
+import org.glassfish.grizzly.http.io.OutputBuffer;
+import org.glassfish.grizzly.http.server.Request;
+import org.glassfish.grizzly.http.server.Response;
+import org.glassfish.grizzly.http.server.StaticHttpHandlerBase;
+import org.glassfish.grizzly.http.util.Header;
+import org.usrz.libs.httpd.handlers.FileHandler.ETagType;
+
+/**
+ * Send {@link CachedFile}s (from memory, disk or streams) generating
+ * <code>ETag</code>s and answering conditional and range requests, on
+ * behalf of {@link FileHandler}s and {@link ResourceHandler}s.
+ *
+ * @author <a href="mailto:pier@usrz.com">Pier Fumagalli</a>
+ */
+final class FileSender {
+
+    /* The maximum number of content hashes of streamed files to remember */
+    private static final int HASHES_SIZE = 4096;
+    /* The size of the buffers used when we can not use "sendfile" */
+    private static final int CHUNK_SIZE = 65536;
+
+    private final ConcurrentHashMap<String, String> hashes = new ConcurrentHashMap<>();
+    private final FileMapping mapping;
+    private final ETagType etagType;
+
+    FileSender(FileMapping mapping, ETagType etagType) {
+        this.etagType = notNull(etagType, "Null ETag type");
+        this.mapping = mapping;
+    }
+
+    /* ====================================================================== */
+
+    static boolean redirectDirectory(Request request, Response response) {
+        response.setStatus(MOVED_PERMANENTLY_301);
+        response.setHeader(Header.Location, response.encodeRedirectURL(request.getRequestURI() + "/"));
+        return true;
+    }
+
+    /* ====================================================================== */
+
+    static boolean methodAllowed(Request request, Response response) {
+        if (Method.GET.equals(request.getMethod())) return true;
+        response.setHeader(Header.Allow, "GET");
+        response.setStatus(METHOD_NOT_ALLOWED_405);
+        return false;
+    }
+
+    /**
+     * Send the specified file, answering conditional and range requests.
+     */
+    void send(Request request, Response response, CachedFile cached)
+    throws IOException {
+        final String etag = etag(cached);
+        response.setHeader(Header.ETag, etag);
+        response.setDateHeader(Header.LastModified, cached.lastModified);
+        response.setHeader(Header.AcceptRanges, "bytes");
+
+        /* Revalidations end here, with no body */
+        if (! preconditions(request, response, cached, etag)) return;
+
+        if (cached.contentType != null) response.setContentType(cached.contentType);
+        if (cached.contentEncoding != null) response.setHeader(Header.ContentEncoding, cached.contentEncoding);
+
+        /* Ranges only apply if "If-Range" (if any) still matches */
+        final long[] ranges = matchesIfRange(request, cached, etag) ?
+                              ByteRanges.parse(request.getHeader(Header.Range), cached.length) :
+                              null;
+
+        if (ranges == null) {
+            sendFull(request, response, cached);
+        } else if (ranges.length == 0) {
+            response.setStatus(REQUEST_RANGE_NOT_SATISFIABLE_416);
+            response.setHeader(Header.ContentRange, "bytes */" + cached.length);
+            response.setContentLengthLong(0);
+        } else if (ranges.length == 2) {
+            sendRange(request, response, cached, ranges[0], ranges[1]);
+        } else {
+            sendRanges(response, cached, ranges);
+        }
+    }
+
+    /* ====================================================================== */
+
+    private void sendFull(Request request, Response response, CachedFile cached)
+    throws IOException {
+        /* Files too big for our caches are mapped, or streamed by Grizzly */
+        if (cached.content == null) {
+            if (cached.file == null) {
+                response.setStatus(OK_200);
+                response.setContentLengthLong(cached.length);
+                try (Region region = new Region(cached)) {
+                    region.write(response.getOutputBuffer(), 0, cached.length);
+                }
+            } else if (mapped(request, response, cached)) {
+                response.setStatus(OK_200);
+                response.setContentLengthLong(cached.length);
+                mapping.send(response, cached.file, 0, cached.length);
+            } else {
+                StaticHttpHandlerBase.sendFile(response, cached.file.toFile());
+            }
+            return;
+        }
+
+        response.setStatus(OK_200);
+        response.setContentLengthLong(cached.length);
+        response.getOutputBuffer().writeByteBuffer(cached.content.duplicate());
+    }
+
+    private void sendRange(Request request, Response response, CachedFile cached, long first, long last)
+    throws IOException {
+        final long length = last - first + 1;
+        response.setStatus(PARTIAL_CONTENT_206);
+        response.setHeader(Header.ContentRange, "bytes " + first + "-" + last + "/" + cached.length);
+        response.setContentLengthLong(length);
+
+        /* Zero-copy from the file channel, unless SSL needs to see the bytes */
+        if ((cached.file != null) && (cached.content == null) && response.isSendFileEnabled() && (! request.isSecure())) {
+            response.getOutputBuffer().sendfile(cached.file.toFile(), first, length, null);
+        } else if (mapped(request, response, cached)) {
+            mapping.send(response, cached.file, first, length);
+        } else try (Region region = new Region(cached)) {
+            region.write(response.getOutputBuffer(), first, length);
+        }
+    }
+
+    private static void sendRanges(Response response, CachedFile cached, long[] ranges)
+    throws IOException {
+        final String boundary = Long.toHexString(ThreadLocalRandom.current().nextLong() | Long.MIN_VALUE);
+        final byte[][] headers = new byte[ranges.length / 2][];
+        final byte[] trailer = ("\r\n--" + boundary + "--\r\n").getBytes(US_ASCII);
+
+        /* Multipart headers first, so we know our content length */
+        long length = trailer.length;
+        for (int x = 0; x < ranges.length; x += 2) {
+            headers[x / 2] = ("\r\n--" + boundary + "\r\n"
+                           + (cached.contentType == null ? "" : "Content-Type: " + cached.contentType + "\r\n")
+                           + "Content-Range: bytes " + ranges[x] + "-" + ranges[x + 1] + "/" + cached.length + "\r\n"
+                           + "\r\n").getBytes(US_ASCII);
+            length += headers[x / 2].length + ranges[x + 1] - ranges[x] + 1;
+        }
+
+        response.setStatus(PARTIAL_CONTENT_206);
+        response.setContentType("multipart/byteranges; boundary=" + boundary);
+        response.setContentLengthLong(length);
+
+        final OutputBuffer output = response.getOutputBuffer();
+        try (Region region = new Region(cached)) {
+            for (int x = 0; x < ranges.length; x += 2) {
+                output.writeByteBuffer(ByteBuffer.wrap(headers[x / 2]));
+                region.write(output, ranges[x], ranges[x + 1] - ranges[x] + 1);
+            }
+        }
+        output.writeByteBuffer(ByteBuffer.wrap(trailer));
+    }
+
+    /* Map big files when sendfile is not available (for example with SSL) */
+    private boolean mapped(Request request, Response response, CachedFile cached) {
+        return (mapping != null)
+            && (cached.file != null)
+            && (cached.content == null)
+            && (cached.length >= mapping.getMinSize())
+            && (request.isSecure() || (! response.isSendFileEnabled()));
+    }
+
+    /* ====================================================================== */
+
+    private static boolean preconditions(Request request, Response response, CachedFile cached, String etag) {
+        final String ifMatch = request.getHeader(Header.IfMatch);
+        final String ifNoneMatch = request.getHeader(Header.IfNoneMatch);
+
+        /* RFC 7232, section 6: "If-Match" or "If-Unmodified-Since" */
+        if (ifMatch != null) {
+            if (! matches(ifMatch, etag, false)) {
+                response.setStatus(PRECONDITION_FAILED_412);
+                return false;
+            }
+        } else {
+            final long since = dateHeader(request, Header.IfUnmodifiedSince);
+            if ((since >= 0) && (cached.lastModified / 1000 > since / 1000)) {
+                response.setStatus(PRECONDITION_FAILED_412);
+                return false;
+            }
+        }
+
+        /* Then "If-None-Match" or "If-Modified-Since" */
+        if (ifNoneMatch != null) {
+            if (matches(ifNoneMatch, etag, true)) {
+                response.setStatus(NOT_MODIFIED_304);
+                return false;
+            }
+        } else {
+            final long since = dateHeader(request, Header.IfModifiedSince);
+            if ((since >= 0) && (cached.lastModified / 1000 <= since / 1000)) {
+                response.setStatus(NOT_MODIFIED_304);
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean matchesIfRange(Request request, CachedFile cached, String etag) {
+        final String ifRange = request.getHeader(Header.IfRange);
+        if (ifRange == null) return true;
+
+        /* Entity tags must match strongly, dates must be exact to the second */
+        final String value = ifRange.trim();
+        if (value.startsWith("\"") || value.startsWith("W/")) return (! etag.startsWith("W/")) && value.equals(etag);
+        final long date = dateHeader(request, Header.IfRange);
+        return (date >= 0) && (date / 1000 == cached.lastModified / 1000);
+    }
+
+    /* Compare "If-Match" (strong) or "If-None-Match" (weak) headers */
+    private static boolean matches(String header, String etag, boolean weak) {
+        if (header.trim().equals("*")) return true;
+        if ((! weak) && etag.startsWith("W/")) return false;
+
+        final String opaque = etag.startsWith("W/") ? etag.substring(2) : etag;
+        int position = 0;
+        while ((position = header.indexOf(opaque, position)) >= 0) {
+            /* Check that we matched a whole tag, maybe weak, in the list */
+            int before = position - 1;
+            if ((before >= 1) && (header.charAt(before) == '/') && (header.charAt(before - 1) == 'W')) {
+                if (! weak) return false;
+                before -= 2;
+            }
+            while ((before >= 0) && (header.charAt(before) == ' ')) before --;
+
+            int after = position + opaque.length();
+            while ((after < header.length()) && (header.charAt(after) == ' ')) after ++;
+
+            if (((before < 0) || (header.charAt(before) == ','))
+             && ((after == header.length()) || (header.charAt(after) == ','))) return true;
+            position += opaque.length();
+        }
+        return false;
+    }
+
+    private static long dateHeader(Request request, Header header) {
+        try {
+            return request.getDateHeader(header);
+        } catch (IllegalArgumentException exception) {
+            return -1; // unparseable dates are ignored
+        }
+    }
+
+    /* ====================================================================== */
+
+    private String etag(CachedFile cached)
+    throws IOException {
+        if (cached.etag != null) return cached.etag;
+
+        switch (etagType) {
+            case WEAK:   return cached.etag = "W/\"" + cached.validator() + "\"";
+            case STRONG: return cached.etag = "\"" + cached.validator() + "\"";
+            default:     break;
+        }
+
+        /* Hash in-memory files and resources once, streamed files when they change */
+        if (cached.content != null) return cached.etag = "\"" + ContentHash.hash(cached.content) + "\"";
+        if (cached.file == null) try (InputStream input = cached.source.open()) {
+            return cached.etag = "\"" + ContentHash.hash(input) + "\"";
+        }
+
+        final String key = cached.file + ":" + cached.validator();
+        String hash = hashes.get(key);
+        if (hash == null) {
+            hash = ContentHash.hash(cached.file);
+            if (hashes.size() >= HASHES_SIZE) {
+                final Iterator<String> iterator = hashes.keySet().iterator();
+                for (int x = HASHES_SIZE / 8; (x >= 0) && iterator.hasNext(); x --) {
+                    iterator.next();
+                    iterator.remove();
+                }
+            }
+            hashes.put(key, hash);
+        }
+        return cached.etag = "\"" + hash + "\"";
+    }
+
+    /* ====================================================================== */
+
+    /* Writes regions of a cached file, a file channel or a stream, by copying */
+    private static final class Region implements AutoCloseable {
+
+        private final ByteBuffer content;
+        private final FileChannel channel;
+        private final CachedFile.Source source;
+
+        private Region(CachedFile cached)
+        throws IOException {
+            content = cached.content;
+            source = cached.source;
+            channel = (content != null) || (cached.file == null) ? null : FileChannel.open(cached.file, StandardOpenOption.READ);
+        }
+
+        private void write(OutputBuffer output, long position, long length)
+        throws IOException {
+            if (content != null) {
+                final ByteBuffer slice = content.duplicate();
+                slice.position(slice.position() + (int) position).limit(slice.position() + (int) length);
+                output.writeByteBuffer(slice);
+                return;
+            }
+
+            /* Streams can only be read from the start, once per range */
+            if (channel == null) try (InputStream input = source.open()) {
+                for (long skip = position; skip > 0; ) {
+                    final long skipped = input.skip(skip);
+                    if (skipped > 0) skip -= skipped;
+                    else if (input.read() >= 0) skip --;
+                    else throw new EOFException("Resource truncated");
+                }
+                write(output, input, position, length);
+            } else {
+                write(output, null, position, length);
+            }
+        }
+
+        private void write(OutputBuffer output, InputStream input, long position, long length)
+        throws IOException {
+            /* Fresh buffers, Grizzly might hold on to them while writing */
+            while (length > 0) {
+                final int size = (int) Math.min(length, CHUNK_SIZE);
+                final ByteBuffer buffer = ByteBuffer.allocate(size);
+                while (buffer.hasRemaining()) {
+                    final int read = input == null ?
+                                     channel.read(buffer, position + buffer.position()) :
+                                     input.read(buffer.array(), buffer.position(), buffer.remaining());
+                    if (read < 0) throw new EOFException("File truncated");
+                    if (input != null) buffer.position(buffer.position() + read);
+                }
+                buffer.flip();
+                output.writeByteBuffer(buffer);
+                position += size;
+                length -= size;
+            }
+        }
+
+        @Override
+        public void close()
+        throws IOException {
+            if (channel != null) channel.close();
+        }
+    }
+}
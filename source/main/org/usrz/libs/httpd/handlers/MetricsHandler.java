@@ -0,0 +1,79 @@
+/* ========================================================================== *
+ * Copyright 2014 USRZ.com and Pier Paolo Fumagalli                           *
+ * -------------------------------------------------------------------------- *
+ * Licensed under the Apache License, Version 2.0 (the "License");            *
+ * you may not use this file except in compliance with the License.           *
+ * You may obtain a copy of the License at                                    *
+ *                                                                            *
+ *  http://www.apache.org/licenses/LICENSE-2.0                                *
+ *                                                                            *
+ * Unless required by applicable law or agreed to in writing, software        *
+ * distributed under the License is distributed on an "AS IS" BASIS,          *
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.   *
+ * See the License for the specific language governing permissions and        *
+ * limitations under the License.                                             *
+ * ========================================================================== */
+package org.usrz.libs.httpd.handlers;
+
+import static org.glassfish.grizzly.http.util.HttpStatus.METHOD_NOT_ALLOWED_405;
+import static org.usrz.libs.utils.Check.notNull;
+
+import javax.inject.Inject;
+
+import org.glassfish.grizzly.http.Method;
+import org.glassfish.grizzly.http.server.HttpHandler;
+import org.glassfish.grizzly.http.server.Request;
+import org.glassfish.grizzly.http.server.Response;
+import org.glassfish.grizzly.http.util.Header;
+import org.usrz.libs.httpd.inject.ServerMetrics;
+
+/**
+ * An {@link HttpHandler} serving {@link ServerMetrics} in Prometheus' text
+ * format.
+ *
+ * <p>Metrics are formatted in a buffer reused across scrapes, so nothing
+ * but the response itself is allocated.</p>
+ *
+ * @author <a href="mailto:pier@usrz.com">Pier Fumagalli</a>
+ */
+public class MetricsHandler extends HttpHandler {
+
+    /** The content type of Prometheus' text format. */
+    public static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+    private final StringBuilder buffer = new StringBuilder(8192);
+    private final ServerMetrics metrics;
+    private char[] chars = new char[8192];
+
+    @Inject
+    public MetricsHandler(ServerMetrics metrics) {
+        this.metrics = notNull(metrics, "Null metrics");
+    }
+
+    @Override
+    public void service(Request request, Response response)
+    throws Exception {
+        final Method method = request.getMethod();
+        if ((method != Method.GET) && (method != Method.HEAD)) {
+            response.setStatus(METHOD_NOT_ALLOWED_405);
+            response.setHeader(Header.Allow, "GET, HEAD");
+            response.finish();
+            return;
+        }
+
+        response.setContentType(CONTENT_TYPE);
+        response.setHeader(Header.CacheControl, "no-cache");
+        if (method == Method.HEAD) return;
+
+        /* Scrapes are rare, serialize them and reuse our buffers */
+        synchronized (buffer) {
+            buffer.setLength(0);
+            metrics.writeTo(buffer);
+
+            final int length = buffer.length();
+            if (chars.length < length) chars = new char[Integer.highestOneBit(length) << 1];
+            buffer.getChars(0, length, chars, 0);
+            response.getWriter().write(chars, 0, length);
+        }
+    }
+}
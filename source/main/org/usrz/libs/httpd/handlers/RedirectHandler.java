@@ -18,28 +18,44 @@ package org.usrz.libs.httpd.handlers;
 import static org.glassfish.grizzly.http.util.HttpStatus.MOVED_PERMANENTLY_301;
 import static org.glassfish.grizzly.http.util.HttpStatus.NOT_FOUND_404;
 import static org.glassfish.grizzly.http.util.HttpStatus.TEMPORARY_REDIRECT_307;
-import static org.usrz.libs.utils.Check.notNull;
 
+import java.io.File;
 import java.util.ArrayList;
+import java.util.Iterator;
 import java.util.List;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 import org.glassfish.grizzly.http.server.HttpHandler;
 import org.glassfish.grizzly.http.server.Request;
 import org.glassfish.grizzly.http.server.Response;
 import org.glassfish.grizzly.http.util.Header;
 import org.glassfish.grizzly.http.util.HttpStatus;
+import org.usrz.libs.httpd.handlers.RedirectRules.Match;
+import org.usrz.libs.httpd.handlers.RedirectRules.Rule;
 import org.usrz.libs.httpd.inject.HttpHandlerPath;
+import org.usrz.libs.httpd.jfr.FlightEvents;
+import org.usrz.libs.httpd.jfr.RedirectEvent;
 import org.usrz.libs.logging.Log;
 
 public class RedirectHandler extends HttpHandler {
 
+    /** The default number of path lookups to cache. */
+    public static final int DEFAULT_CACHE_SIZE = 4096;
+
+    /* A marker for cached paths not matching any rule */
+    private static final Match NO_MATCH = new Match(null, null);
+
     private static final Log log = new Log();
 
-    private final List<Redirect> redirects = new ArrayList<>();
+    private final ConcurrentHashMap<String, Match> cache = new ConcurrentHashMap<>();
+    private final List<RedirectMap> maps = new CopyOnWriteArrayList<>();
+    private final List<Rule> redirects = new ArrayList<>();
     private final String path;
 
+    private volatile RedirectRules rules;
+    private volatile int cacheSize = DEFAULT_CACHE_SIZE;
+
     public RedirectHandler(HttpHandlerPath path) {
         this.path = path.value().substring(0, path.value().length() - 2);
     }
@@ -47,61 +63,102 @@ public class RedirectHandler extends HttpHandler {
     @Override
     public void service(Request request, Response response)
     throws Exception {
-        final String query = request.getQueryString();
         String path = request.getPathInfo();
         if (path == null) path = "/";
 
-        log.info("Checking path \"%s\" against %d redirects", path, redirects.size());
-        for (Redirect redirect: redirects) {
-            final String location = redirect.apply(path, query);
-            if (location != null) {
-                response.setStatus(redirect.status);
-                response.setHeader(Header.Location, location);
-                response.finish();
+        /* Exact matches from our redirect maps come first */
+        for (RedirectMap map: maps) {
+            final RedirectMap.Table table = map.table();
+            final int index = table.find(path);
+            if (index >= 0) {
+                redirect(request, response, table.status(index), table.target(index), true, true);
                 return;
             }
         }
 
+        final Match match = match(path);
+        if (match != NO_MATCH) {
+            redirect(request, response, match.rule.status, match.location, match.rule.qsa, false);
+            return;
+        }
+
         response.setStatus(NOT_FOUND_404);
         response.finish();
     }
 
+    @Override
+    public void destroy() {
+        maps.forEach((map) -> map.close());
+        super.destroy();
+    }
+
+    private static void redirect(Request request, Response response, HttpStatus status, String location, boolean qsa, boolean mapped) {
+        if (FlightEvents.AVAILABLE) RedirectEvent.emit(request.getRequestURI(), location, status.getStatusCode(), mapped);
+        final String query = request.getQueryString();
+        response.setStatus(status);
+        response.setHeader(Header.Location, (qsa && (query != null)) ?
+                location + (location.indexOf('?') < 0 ? '?' : '&') + query :
+                location);
+        response.finish();
+    }
+
     /* ====================================================================== */
 
-    public void addRedirect(String match, String replacement, boolean matchEntireLine, boolean permanentRedirect, boolean preserveQueryString) {
+    private Match match(String path) {
+        final Match cached = cache.get(path);
+        if (cached != null) return cached;
 
-        final HttpStatus status = permanentRedirect ? MOVED_PERMANENTLY_301 : TEMPORARY_REDIRECT_307;
-        if (matchEntireLine) match = "^" + match + "$";
+        /* Compile our rules on the first request after any change */
+        RedirectRules rules = this.rules;
+        if (rules == null) synchronized (this) {
+            if (this.rules == null) this.rules = new RedirectRules(redirects);
+            rules = this.rules;
+        }
 
-        log.info("Redirecting \"%s\" to \"%s\" with status %d (application path \"%s\", query string %s)",
-                 match, replacement, status.getStatusCode(), path, preserveQueryString ? "preserved" : "ignored");
-        redirects.add(new Redirect(match, replacement, status, preserveQueryString));
+        final Match match = rules.match(path);
+        final Match result = match == null ? NO_MATCH : match;
+
+        /* Evict some random entries if the cache is full */
+        final int size = cacheSize;
+        if (size > 0) {
+            if (cache.size() >= size) {
+                final Iterator<String> iterator = cache.keySet().iterator();
+                for (int x = size / 8; (x >= 0) && iterator.hasNext(); x --) {
+                    iterator.next();
+                    iterator.remove();
+                }
+            }
+            cache.put(path, result);
+        }
+        return result;
     }
 
-    private static final class Redirect {
+    /* ====================================================================== */
 
-        private final HttpStatus status;
-        private final Pattern pattern;
-        private final String replace;
-        private final boolean qsa;
+    public void setCacheSize(int cacheSize) {
+        if (cacheSize < 0) throw new IllegalArgumentException("Negative cache size " + cacheSize);
+        this.cacheSize = cacheSize;
+        cache.clear();
+    }
 
-        private Redirect(String match, String replacement, HttpStatus status, boolean qsa) {
-            pattern = Pattern.compile(notNull(match, "Null match string"));
-            replace = notNull(replacement, "Null replacement string");
-            this.status = notNull(status, "Null status");
-            this.qsa = qsa;
-        }
+    public void addRedirectMap(File file) {
+        final RedirectMap map = new RedirectMap(file);
+        log.info("Redirecting %d paths from map \"%s\" (application path \"%s\", query string preserved)",
+                 map.size(), file, path);
+        maps.add(map);
+    }
 
-        private String apply(String path, String query) {
-            RedirectHandler.log.info("Checking path \"%s\" against \"%s\"", path, pattern);
-            final Matcher matcher = pattern.matcher(path);
-            if (! matcher.find()) return null;
+    public synchronized void addRedirect(String match, String replacement, boolean matchEntireLine, boolean permanentRedirect, boolean preserveQueryString) {
 
-            final String location = matcher.replaceAll(replace);
-            return (qsa && (query != null)) ?
-                location + (location.indexOf('?') < 0 ? '?' : '&') + query :
-                location;
-        }
-    }
+        final HttpStatus status = permanentRedirect ? MOVED_PERMANENTLY_301 : TEMPORARY_REDIRECT_307;
+        if (matchEntireLine) match = "^" + match + "$";
 
+        log.info("Redirecting \"%s\" to \"%s\" with status %d (application path \"%s\", query string %s)",
+                 match, replacement, status.getStatusCode(), path, preserveQueryString ? "preserved" : "ignored");
+        redirects.add(new Rule(redirects.size(), match, replacement, status, preserveQueryString));
+
+        /* Recompile on the next request */
+        rules = null;
+        cache.clear();
+    }
 }
@@ -0,0 +1,268 @@
+/* ========================================================================== *
+ * Copyright 2014 USRZ.com and Pier Paolo Fumagalli                           *
+ * -------------------------------------------------------------------------- *
+ * Licensed under the Apache License, Version 2.0 (the "License");            *
+ * you may not use this file except in compliance with the License.           *
+ * You may obtain a copy of the License at                                    *
+ *                                                                            *
+ *  http://www.apache.org/licenses/LICENSE-2.0                                *
+ *                                                                            *
+ * Unless required by applicable law or agreed to in writing, software        *
+ * distributed under the License is distributed on an "AS IS" BASIS,          *
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.   *
+ * See the License for the specific language governing permissions and        *
+ * limitations under the License.                                             *
+ * ========================================================================== */
+package org.usrz.libs.httpd.handlers;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+import static java.nio.file.StandardWatchEventKinds.OVERFLOW;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static org.glassfish.grizzly.http.util.HttpStatus.TEMPORARY_REDIRECT_307;
+import static org.usrz.libs.utils.Check.notNull;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.glassfish.grizzly.http.util.HttpStatus;
+import org.usrz.libs.logging.Log;
+
+/**
+ * A large table of <em>exact-match</em> redirects read from a file.
+ *
+ * <p>The file contains one redirect per line, with the source path, the
+ * target location and an optional status code (one of 301, 302, 303, 307
+ * or 308, defaulting to 307) separated by tabs. Empty lines and lines starting with <code>#</code>
+ * are ignored.</p>
+ *
+ * <p>Redirects are stored in an open-addressing hash table (no per-entry
+ * objects) and the whole table is re-read in the background and swapped
+ * atomically whenever the file changes on disk (and no further changes
+ * are seen for 100 milliseconds).</p>
+ *
+ * @author <a href="mailto:pier@usrz.com">Pier Fumagalli</a>
+ */
+public final class RedirectMap implements Closeable {
+
+    private static final Log log = new Log();
+    private static final long QUIET_PERIOD = 100;
+
+    private final WatchService watcher;
+    private final Path file;
+
+    private volatile Table table;
+    private FileTime modified;
+
+    public RedirectMap(File file) {
+        try {
+            this.file = notNull(file, "Null redirect map file").getCanonicalFile().toPath();
+            modified = Files.getLastModifiedTime(this.file);
+            table = load(this.file);
+        } catch (IOException exception) {
+            throw new IllegalStateException("I/O error reading redirect map \"" + file + "\"", exception);
+        }
+
+        /* Watch the directory containing our file for changes */
+        try {
+            watcher = this.file.getFileSystem().newWatchService();
+            this.file.getParent().register(watcher, ENTRY_CREATE, ENTRY_MODIFY);
+        } catch (IOException exception) {
+            throw new IllegalStateException("Unable to watch redirect map \"" + file + "\" for changes", exception);
+        }
+
+        final Thread thread = new Thread(this::watch, "RedirectMap[" + this.file + "]");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /* ====================================================================== */
+
+    /**
+     * Return the number of redirects in this map.
+     */
+    public int size() {
+        return table.size;
+    }
+
+    @Override
+    public void close() {
+        try {
+            watcher.close();
+        } catch (IOException exception) {
+            log.warn(exception, "Exception closing watcher for redirect map \"%s\"", file);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + "[" + file + "]";
+    }
+
+    /* ====================================================================== */
+
+    /* The current table, lookups must not read the volatile field twice */
+    Table table() {
+        return table;
+    }
+
+    /* ====================================================================== */
+
+    private void watch() {
+        try {
+            while (true) {
+                if (! changed(watcher.take())) continue;
+
+                /* Wait for writes to settle, a truncated file is not a new map */
+                WatchKey key;
+                while ((key = watcher.poll(QUIET_PERIOD, MILLISECONDS)) != null) changed(key);
+                reload();
+            }
+        } catch (ClosedWatchServiceException | InterruptedException exception) {
+            log.debug("Stopped watching redirect map \"%s\"", file);
+        }
+    }
+
+    private boolean changed(WatchKey key) {
+        boolean changed = false;
+        for (WatchEvent<?> event: key.pollEvents()) {
+            changed |= (event.kind() == OVERFLOW) || file.getFileName().equals(event.context());
+        }
+        key.reset();
+        return changed;
+    }
+
+    private void reload() {
+        try {
+            /* Multiple events are fired for a single write, only read once */
+            final FileTime modified = Files.getLastModifiedTime(file);
+            if (modified.equals(this.modified)) return;
+
+            this.table = load(file);
+            this.modified = modified;
+            log.info("Reloaded %d redirects from \"%s\"", table.size, file);
+
+        } catch (IOException | IllegalArgumentException exception) {
+            log.error(exception, "Error reloading redirect map \"%s\", keeping %d old redirects", file, table.size);
+        }
+    }
+
+    /* ====================================================================== */
+
+    private static Table load(Path file)
+    throws IOException {
+        final List<String> sources = new ArrayList<>();
+        final List<String> targets = new ArrayList<>();
+        final List<HttpStatus> statuses = new ArrayList<>();
+
+        try (final BufferedReader reader = Files.newBufferedReader(file, UTF_8)) {
+            int number = 0;
+            String line;
+            while ((line = reader.readLine()) != null) {
+                number ++;
+
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith("#")) continue;
+
+                final String[] columns = line.split("\t+");
+                if ((columns.length < 2) || (columns.length > 3) || (! columns[0].startsWith("/")))
+                    throw new IllegalArgumentException("Invalid redirect at line " + number + " of \"" + file + "\"");
+
+                final HttpStatus status;
+                if (columns.length == 2) {
+                    status = TEMPORARY_REDIRECT_307;
+                } else try {
+                    final int code = Integer.parseInt(columns[2].trim());
+                    switch (code) {
+                        case 301: case 302: case 303: case 307: case 308: break;
+                        default: throw new NumberFormatException();
+                    }
+                    status = HttpStatus.getHttpStatus(code);
+                } catch (NumberFormatException exception) {
+                    throw new IllegalArgumentException("Invalid status \"" + columns[2] + "\" at line " + number + " of \"" + file + "\"");
+                }
+
+                sources.add(columns[0].trim());
+                targets.add(columns[1].trim());
+                statuses.add(status);
+            }
+        }
+
+        final Table table = new Table(sources.size());
+        for (int x = 0; x < sources.size(); x ++) {
+            table.put(sources.get(x), targets.get(x), statuses.get(x));
+        }
+        return table;
+    }
+
+    /* ====================================================================== */
+
+    static final class Table {
+
+        private final String[] sources;
+        private final String[] targets;
+        private final HttpStatus[] statuses;
+        private final int mask;
+        private int size;
+
+        private Table(int entries) {
+            /* Keep the load factor at or below 0.5 */
+            int capacity = 16;
+            while (capacity < (entries * 2)) capacity <<= 1;
+
+            sources = new String[capacity];
+            targets = new String[capacity];
+            statuses = new HttpStatus[capacity];
+            mask = capacity - 1;
+        }
+
+        private void put(String source, String target, HttpStatus status) {
+            int index = hash(source) & mask;
+            while (sources[index] != null) {
+                /* First redirect for a path wins */
+                if (sources[index].equals(source)) return;
+                index = (index + 1) & mask;
+            }
+
+            sources[index] = source;
+            targets[index] = target;
+            statuses[index] = status;
+            size ++;
+        }
+
+        int find(String source) {
+            int index = hash(source) & mask;
+            String current;
+            while ((current = sources[index]) != null) {
+                if (current.equals(source)) return index;
+                index = (index + 1) & mask;
+            }
+            return -1;
+        }
+
+        String target(int index) {
+            return targets[index];
+        }
+
+        HttpStatus status(int index) {
+            return statuses[index];
+        }
+
+        private static int hash(String string) {
+            final int hash = string.hashCode();
+            return hash ^ (hash >>> 16);
+        }
+    }
+}
@@ -0,0 +1,259 @@
+/* ========================================================================== *
+ * Copyright 2014 USRZ.com and Pier Paolo Fumagalli                           *
+ * -------------------------------------------------------------------------- *
+ * Licensed under the Apache License, Version 2.0 (the "License");            *
+ * you may not use this file except in compliance with the License.           *
+ * You may obtain a copy of the License at                                    *
+ *                                                                            *
+ *  http://www.apache.org/licenses/LICENSE-2.0                                *
+ *                                                                            *
+ * Unless required by applicable law or agreed to in writing, software        *
+ * distributed under the License is distributed on an "AS IS" BASIS,          *
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.   *
+ * See the License for the specific language governing permissions and        *
+ * limitations under the License.                                             *
+ * ========================================================================== */
+package org.usrz.libs.httpd.handlers;
+
+import static org.usrz.libs.utils.Check.notNull;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+import org.glassfish.grizzly.http.util.HttpStatus;
+
+/**
+ * An immutable, compiled table of redirect rules.
+ *
+ * <p>Rules are classified when the table is built: patterns matching an
+ * entire literal line go in a hash table, patterns anchored to a literal
+ * prefix go in a character trie, and everything else is evaluated as a
+ * regular expression, guarded by a single combined pre-filter pattern.</p>
+ *
+ * <p>Regardless of how they are stored, the <em>first</em> rule (in the
+ * order they were added) matching a path always wins.</p>
+ *
+ * @author <a href="mailto:pier@usrz.com">Pier Fumagalli</a>
+ */
+final class RedirectRules {
+
+    /* Regular expression meta-characters, outside of escapes */
+    private static final String META = "\\^$.|?*+()[]{}";
+
+    private final Map<String, Rule> exact = new HashMap<>();
+    private final Node prefixes = new Node();
+    private final Rule[] expressions;
+    private final Pattern prefilter;
+
+    RedirectRules(List<Rule> rules) {
+        final List<Rule> expressions = new ArrayList<>();
+
+        for (Rule rule: rules) switch (rule.kind) {
+            case EXACT:  exact.putIfAbsent(rule.literal, rule); break;
+            case PREFIX: prefixes.add(rule.literal, rule); break;
+            default:     expressions.add(rule);
+        }
+
+        this.expressions = expressions.toArray(new Rule[expressions.size()]);
+        prefilter = prefilter(this.expressions);
+    }
+
+    /**
+     * Return the {@link Rule} matching the specified path and the computed
+     * location (without any query string), or <b>null</b>.
+     */
+    Match match(String path) {
+        Rule best = exact.get(path);
+        String location = best == null ? null : best.location;
+
+        /* Walk our prefixes trie, and see if we have a better match */
+        final Rule prefix = prefixes.match(path);
+        if ((prefix != null) && ((best == null) || (prefix.index < best.index))) {
+            best = prefix;
+            location = prefix.location + path.substring(prefix.literal.length());
+        }
+
+        /* Nothing can beat the first rule */
+        if ((best != null) && (best.index == 0)) return new Match(best, location);
+
+        /* Do we need to bother with regular expressions at all? */
+        final int limit = best == null ? Integer.MAX_VALUE : best.index;
+        if ((expressions.length > 0) && (expressions[0].index < limit)) {
+            if ((prefilter == null) || prefilter.matcher(path).find()) {
+                for (Rule rule: expressions) {
+                    if (rule.index >= limit) break;
+                    if ((rule.literal != null) && (! path.startsWith(rule.literal))) continue;
+
+                    final Matcher matcher = rule.pattern.matcher(path);
+                    if (matcher.find()) return new Match(rule, matcher.replaceAll(rule.replace));
+                }
+            }
+        }
+
+        /* Return whatever we found */
+        return best == null ? null : new Match(best, location);
+    }
+
+    /* ====================================================================== */
+
+    private static Pattern prefilter(Rule[] rules) {
+        if (rules.length < 2) return null;
+
+        final StringBuilder builder = new StringBuilder();
+        for (Rule rule: rules) {
+            final String pattern = rule.pattern.pattern();
+
+            /* Back references would be renumbered in an alternation */
+            if (pattern.matches(".*\\\\([1-9]|k<).*")) return null;
+            if (builder.length() > 0) builder.append('|');
+            builder.append("(?:").append(pattern).append(')');
+        }
+
+        try {
+            return Pattern.compile(builder.toString());
+        } catch (PatternSyntaxException exception) {
+            /* Most likely duplicate named groups, evaluate one by one */
+            return null;
+        }
+    }
+
+    /* ====================================================================== */
+
+    static final class Match {
+
+        final Rule rule;
+        final String location;
+
+        Match(Rule rule, String location) {
+            this.rule = rule;
+            this.location = location;
+        }
+    }
+
+    /* ====================================================================== */
+
+    enum Kind { EXACT, PREFIX, EXPRESSION }
+
+    static final class Rule {
+
+        final HttpStatus status;
+        final Pattern pattern;
+        final String replace;
+        final boolean qsa;
+        final int index;
+
+        final Kind kind;
+        final String literal;
+        final String location;
+
+        Rule(int index, String match, String replacement, HttpStatus status, boolean qsa) {
+            pattern = Pattern.compile(notNull(match, "Null match string"));
+            replace = notNull(replacement, "Null replacement string");
+            this.status = notNull(status, "Null status");
+            this.index = index;
+            this.qsa = qsa;
+
+            /* Figure out if we are matching something literal */
+            final boolean anchored = match.startsWith("^");
+            final boolean terminated = match.endsWith("$") && (! match.endsWith("\\$"));
+            final String body = match.substring(anchored ? 1 : 0, match.length() - (terminated ? 1 : 0));
+            final String literal = anchored ? literal(body) : null;
+
+            if ((literal != null) && terminated) {
+                kind = Kind.EXACT;
+                this.literal = literal;
+                location = pattern.matcher(literal).replaceAll(replace);
+            } else if ((literal != null) && (! literal.isEmpty())) {
+                kind = Kind.PREFIX;
+                this.literal = literal;
+                location = pattern.matcher(literal).replaceAll(replace);
+            } else {
+                kind = Kind.EXPRESSION;
+                this.literal = anchored ? literalPrefix(body) : null;
+                location = null;
+            }
+        }
+
+        /* Unescape a literal pattern, or return null if not literal */
+        private static String literal(String pattern) {
+            final StringBuilder builder = new StringBuilder(pattern.length());
+            for (int x = 0; x < pattern.length(); x ++) {
+                char c = pattern.charAt(x);
+                if (c == '\\') {
+                    if (++ x >= pattern.length()) return null;
+                    c = pattern.charAt(x);
+                    if (Character.isLetterOrDigit(c)) return null;
+                } else if (META.indexOf(c) >= 0) {
+                    return null;
+                }
+                builder.append(c);
+            }
+            return builder.toString();
+        }
+
+        /* The literal characters an expression starts with (for quick rejects) */
+        private static String literalPrefix(String pattern) {
+            if (pattern.indexOf('|') >= 0) return null;
+
+            int x = 0;
+            while ((x < pattern.length()) && (META.indexOf(pattern.charAt(x)) < 0)) x ++;
+
+            /* Quantifiers apply to the previous character, which is optional */
+            if ((x < pattern.length()) && ("?*{".indexOf(pattern.charAt(x)) >= 0)) x --;
+            return x > 0 ? pattern.substring(0, x) : null;
+        }
+    }
+
+    /* ====================================================================== */
+
+    private static final class Node {
+
+        private char[] keys = new char[0];
+        private Node[] nodes = new Node[0];
+        private Rule rule;
+
+        private void add(String literal, Rule rule) {
+            Node node = this;
+            for (int x = 0; x < literal.length(); x ++) node = node.child(literal.charAt(x));
+            if (node.rule == null) node.rule = rule;
+        }
+
+        private Node child(char key) {
+            final int position = Arrays.binarySearch(keys, key);
+            if (position >= 0) return nodes[position];
+
+            final int insert = -(position + 1);
+            final char[] keys = new char[this.keys.length + 1];
+            final Node[] nodes = new Node[this.nodes.length + 1];
+            System.arraycopy(this.keys, 0, keys, 0, insert);
+            System.arraycopy(this.nodes, 0, nodes, 0, insert);
+            System.arraycopy(this.keys, insert, keys, insert + 1, this.keys.length - insert);
+            System.arraycopy(this.nodes, insert, nodes, insert + 1, this.nodes.length - insert);
+            keys[insert] = key;
+            nodes[insert] = new Node();
+
+            this.keys = keys;
+            this.nodes = nodes;
+            return nodes[insert];
+        }
+
+        private Rule match(String path) {
+            Rule best = null;
+            Node node = this;
+            for (int x = 0; x < path.length(); x ++) {
+                final int position = Arrays.binarySearch(node.keys, path.charAt(x));
+                if (position < 0) break;
+
+                node = node.nodes[position];
+                if ((node.rule != null) && ((best == null) || (node.rule.index < best.index))) best = node.rule;
+            }
+            return best;
+        }
+    }
+}
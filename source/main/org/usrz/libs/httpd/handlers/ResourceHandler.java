@@ -0,0 +1,353 @@
+/* ========================================================================== *
+ * Copyright 2014 USRZ.com and Pier Paolo Fumagalli                           *
+ * -------------------------------------------------------------------------- *
+ * Licensed under the Apache License, Version 2.0 (the "License");            *
+ * you may not use this file except in compliance with the License.           *
+ * You may obtain a copy of the License at                                    *
+ *                                                                            *
+ *  http://www.apache.org/licenses/LICENSE-2.0                                *
+ *                                                                            *
+ * Unless required by applicable law or agreed to in writing, software        *
+ * distributed under the License is distributed on an "AS IS" BASIS,          *
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.   *
+ * See the License for the specific language governing permissions and        *
+ * limitations under the License.                                             *
+ * ========================================================================== */
+package org.usrz.libs.httpd.handlers;
+
+import static org.usrz.libs.utils.Check.notNull;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.JarURLConnection;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+
+import org.glassfish.grizzly.http.server.Request;
+import org.glassfish.grizzly.http.server.Response;
+import org.glassfish.grizzly.http.server.StaticHttpHandlerBase;
+import org.glassfish.grizzly.http.util.Header;
+import org.glassfish.grizzly.http.util.MimeType;
+import org.usrz.libs.configurations.Configurations;
+import org.usrz.libs.httpd.handlers.FileHandler.ETagType;
+import org.usrz.libs.logging.Log;
+
+/**
+ * A {@link StaticHttpHandlerBase} serving resources from a
+ * {@link ClassLoader} (normally, from within our own JAR file).
+ *
+ * <p>All resources under the configured prefix are indexed once, when
+ * the handler is created: small ones are kept in memory (together with
+ * their compressed variants), bigger ones are streamed from their JAR
+ * file (or directory) on each request. Conditional and range requests
+ * are answered just like they are by {@link FileHandler}s.</p>
+ *
+ * <p>Configurations keys are <code>max_file_size</code> (the maximum size
+ * of resources kept in memory, default 256 KB), <code>etag</code> (the
+ * name of an {@link ETagType}) and the <code>compression</code> group,
+ * whose keys are the same of {@link FileCompression}.</p>
+ *
+ * @author <a href="mailto:pier@usrz.com">Pier Fumagalli</a>
+ */
+public class ResourceHandler extends StaticHttpHandlerBase {
+
+    /* Shared by all directories, we only need to know they exist */
+    private static final Resource DIRECTORY = new Resource(null);
+
+    private static final Log log = new Log();
+
+    private final List<JarFile> jars = new ArrayList<>();
+    private final Map<String, Resource> resources;
+    private final FileCompression compression;
+    private final FileSender sender;
+    private final int maxFileSize;
+    private final String prefix;
+    private long size;
+
+    public ResourceHandler(ClassLoader classLoader, String prefix, Configurations configurations) {
+        notNull(classLoader, "Null class loader");
+        notNull(configurations, "Null configurations");
+
+        /* Normalize our prefix as "path/to/resources/" */
+        String normalized = notNull(prefix, "Null prefix").replace('\\', '/');
+        while (normalized.startsWith("/")) normalized = normalized.substring(1);
+        if (normalized.isEmpty()) throw new IllegalArgumentException("Empty resources prefix");
+        this.prefix = normalized.endsWith("/") ? normalized : normalized + "/";
+
+        maxFileSize = configurations.get("max_file_size", 256 * 1024);
+        final Configurations compression = configurations.strip("compression");
+        this.compression = compression.isEmpty() ? null : new FileCompression(compression, false);
+        sender = new FileSender(null, FileHandler.etagType(configurations.get("etag", "strong")));
+
+        try {
+            resources = index(classLoader);
+        } catch (IOException | URISyntaxException exception) {
+            close();
+            throw new IllegalStateException("Error indexing resources under \"" + this.prefix + "\"", exception);
+        }
+    }
+
+    /* ====================================================================== */
+
+    /** The prefix (like <code>path/to/resources/</code>) of our resources. */
+    public String getPrefix() {
+        return prefix;
+    }
+
+    /** The number of resources and directories indexed. */
+    public int getEntries() {
+        return resources.size();
+    }
+
+    /** The number of bytes (including compressed variants) kept in memory. */
+    public long getSize() {
+        return size;
+    }
+
+    public FileCompression getFileCompression() {
+        return compression;
+    }
+
+    @Override
+    public void destroy() {
+        close();
+        super.destroy();
+    }
+
+    private void close() {
+        if (compression != null) compression.close();
+        for (JarFile jar: jars) try {
+            jar.close();
+        } catch (IOException exception) {
+            log.warn(exception, "Exception closing JAR file \"%s\"", jar.getName());
+        }
+    }
+
+    /* ====================================================================== */
+
+    @Override
+    protected boolean handle(String uri, Request request, Response response)
+    throws Exception {
+        final Resource resource = resources.get(uri);
+        if (resource == null) return false;
+        if (resource == DIRECTORY) return FileSender.redirectDirectory(request, response);
+        if (! FileSender.methodAllowed(request, response)) return true;
+
+        /* Pick the best encoding we have for this client */
+        CachedFile selected = resource.identity;
+        if (compression != null) {
+            response.setHeader(Header.Vary, "Accept-Encoding");
+            final int accepted = FileCompression.accepted(request);
+            if (((accepted & FileCompression.BROTLI) != 0) && (resource.brotli != null)) {
+                selected = resource.brotli;
+            } else if (((accepted & FileCompression.GZIP) != 0) && (resource.gzip != null)) {
+                selected = resource.gzip;
+            }
+        }
+
+        sender.send(request, response, selected);
+        return true;
+    }
+
+    /* ====================================================================== */
+
+    private Map<String, Resource> index(ClassLoader classLoader)
+    throws IOException, URISyntaxException {
+        final Map<String, Resource> resources = new HashMap<>();
+
+        /* The same prefix might be in many JARs, the first one wins */
+        final Enumeration<URL> urls = classLoader.getResources(prefix);
+        while (urls.hasMoreElements()) {
+            final URL url = urls.nextElement();
+            switch (url.getProtocol()) {
+                case "jar":  indexJar(url, resources); break;
+                case "file": indexDirectory(Paths.get(url.toURI()), resources); break;
+                default:     log.warn("Unable to index resources from \"%s\"", url);
+            }
+        }
+
+        /* Compressed variants, from sidecars or compressed now */
+        if (compression != null) for (Map.Entry<String, Resource> entry: resources.entrySet()) {
+            final Resource resource = entry.getValue();
+            if ((resource == DIRECTORY) || entry.getKey().endsWith("/")) continue;
+
+            final Resource brotli = compression.isPrecompressed() ? resources.get(entry.getKey() + ".br") : null;
+            final Resource gzip = compression.isPrecompressed() ? resources.get(entry.getKey() + ".gz") : null;
+            if ((brotli != null) && (brotli != DIRECTORY)) resource.brotli = variant(brotli.identity, resource.identity, "br");
+            if ((gzip != null) && (gzip != DIRECTORY)) {
+                resource.gzip = variant(gzip.identity, resource.identity, "gzip");
+            } else {
+                resource.gzip = compress(resource.identity);
+            }
+        }
+
+        /* Directory indexes ("/foo/" serves "/foo/index.html") */
+        final Map<String, Resource> indexes = new HashMap<>();
+        for (Map.Entry<String, Resource> entry: resources.entrySet()) {
+            if (entry.getKey().endsWith("/index.html")) {
+                indexes.put(entry.getKey().substring(0, entry.getKey().length() - 10), entry.getValue());
+            }
+        }
+        resources.putAll(indexes);
+
+        log.debug("Indexed %d resources under \"%s\", %d bytes in memory", resources.size(), prefix, size);
+        return Collections.unmodifiableMap(resources);
+    }
+
+    private void indexJar(URL url, Map<String, Resource> resources)
+    throws IOException {
+        final JarURLConnection connection = (JarURLConnection) url.openConnection();
+        connection.setUseCaches(false); // our own copy, closed on destroy
+        final JarFile jar = connection.getJarFile();
+        jars.add(jar);
+
+        final String base = connection.getEntryName() + (connection.getEntryName().endsWith("/") ? "" : "/");
+        final long jarModified = new File(jar.getName()).lastModified();
+
+        final Enumeration<JarEntry> entries = jar.entries();
+        while (entries.hasMoreElements()) {
+            final JarEntry entry = entries.nextElement();
+            if (! entry.getName().startsWith(base)) continue;
+
+            final String name = entry.getName().substring(base.length());
+            final String resource = "/" + (name.endsWith("/") ? name.substring(0, name.length() - 1) : name);
+            if (resources.containsKey(resource)) continue;
+
+            if (entry.isDirectory()) {
+                resources.put(resource, DIRECTORY);
+                continue;
+            }
+
+            final long lastModified = entry.getTime() < 0 ? jarModified : entry.getTime();
+            final String contentType = MimeType.getByFilename(name);
+            if ((entry.getSize() >= 0) && (entry.getSize() <= maxFileSize)) {
+                try (InputStream input = jar.getInputStream(entry)) {
+                    resources.put(resource, new Resource(load(input, contentType, lastModified)));
+                }
+            } else {
+                final long length = entry.getSize() >= 0 ? entry.getSize() : count(jar, entry);
+                resources.put(resource, new Resource(CachedFile.streamed(() -> jar.getInputStream(entry), contentType, null, length, lastModified)));
+            }
+        }
+        if (! resources.containsKey("")) resources.put("", DIRECTORY);
+    }
+
+    private void indexDirectory(Path root, Map<String, Resource> resources)
+    throws IOException {
+        Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+
+            @Override
+            public FileVisitResult preVisitDirectory(Path directory, BasicFileAttributes attributes) {
+                resources.putIfAbsent(resource(root, directory), DIRECTORY);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attributes)
+            throws IOException {
+                final String resource = resource(root, file);
+                if ((! attributes.isRegularFile()) || resources.containsKey(resource)) return FileVisitResult.CONTINUE;
+
+                final String contentType = MimeType.getByFilename(file.getFileName().toString());
+                final long lastModified = attributes.lastModifiedTime().toMillis();
+                if (attributes.size() <= maxFileSize) {
+                    try (InputStream input = Files.newInputStream(file)) {
+                        resources.put(resource, new Resource(load(input, contentType, lastModified)));
+                    }
+                } else {
+                    resources.put(resource, new Resource(CachedFile.streamed(file, contentType, attributes.size(), lastModified)));
+                }
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    /* ====================================================================== */
+
+    private CachedFile load(InputStream input, String contentType, long lastModified)
+    throws IOException {
+        final ByteArrayOutputStream output = new ByteArrayOutputStream();
+        final byte[] buffer = new byte[8192];
+        for (int read = input.read(buffer); read >= 0; read = input.read(buffer)) output.write(buffer, 0, read);
+
+        size += output.size();
+        return new CachedFile(null, ByteBuffer.wrap(output.toByteArray()), contentType, null, lastModified);
+    }
+
+    /* A sidecar file, served with the content type of the original */
+    private CachedFile variant(CachedFile sidecar, CachedFile original, String encoding) {
+        if (sidecar.content != null) {
+            return new CachedFile(null, sidecar.content, original.contentType, encoding, sidecar.lastModified);
+        } else if (sidecar.file != null) {
+            return CachedFile.streamed(sidecar.file, original.contentType, encoding);
+        } else {
+            return CachedFile.streamed(sidecar.source, original.contentType, encoding, sidecar.length, sidecar.lastModified);
+        }
+    }
+
+    /* Compress in-memory resources now, if it's worth it */
+    private CachedFile compress(CachedFile identity)
+    throws IOException {
+        if ((identity.content == null) || (identity.length < compression.getMinSize())) return null;
+        if (! compression.compressible(identity.contentType)) return null;
+
+        final byte[] bytes = new byte[identity.content.remaining()];
+        identity.content.duplicate().get(bytes);
+        final byte[] compressed = FileCache.gzip(bytes, compression.getLevel());
+        if (compressed.length >= bytes.length) return null;
+
+        size += compressed.length;
+        return new CachedFile(null, ByteBuffer.wrap(compressed), identity.contentType, "gzip", identity.lastModified);
+    }
+
+    /* Some JARs don't record sizes in their central directory */
+    private static long count(JarFile jar, JarEntry entry)
+    throws IOException {
+        try (InputStream input = jar.getInputStream(entry)) {
+            final byte[] buffer = new byte[8192];
+            long count = 0;
+            for (int read = input.read(buffer); read >= 0; read = input.read(buffer)) count += read;
+            return count;
+        }
+    }
+
+    /* The resource path ("/foo/bar.html") of a file, the root is "" */
+    private static String resource(Path root, Path path) {
+        final StringBuilder builder = new StringBuilder();
+        for (Path element: root.relativize(path)) {
+            final String name = element.toString();
+            if (! name.isEmpty()) builder.append('/').append(name);
+        }
+        return builder.toString();
+    }
+
+    /* ====================================================================== */
+
+    private static final class Resource {
+
+        private final CachedFile identity;
+        private CachedFile brotli;
+        private CachedFile gzip;
+
+        private Resource(CachedFile identity) {
+            this.identity = identity;
+        }
+    }
+}
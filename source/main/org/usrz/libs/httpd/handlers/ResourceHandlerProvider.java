@@ -0,0 +1,60 @@
+/* ========================================================================== *
+ * Copyright 2014 USRZ.com and Pier Paolo Fumagalli                           *
+ * -------------------------------------------------------------------------- *
+ * Licensed under the Apache License, Version 2.0 (the "License");            *
+ * you may not use this file except in compliance with the License.           *
+ * You may obtain a copy of the License at                                    *
+ *                                                                            *
+ *  http://www.apache.org/licenses/LICENSE-2.0                                *
+ *                                                                            *
+ * Unless required by applicable law or agreed to in writing, software        *
+ * distributed under the License is distributed on an "AS IS" BASIS,          *
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.   *
+ * See the License for the specific language governing permissions and        *
+ * limitations under the License.                                             *
+ * ========================================================================== */
+package org.usrz.libs.httpd.handlers;
+
+import static org.usrz.libs.utils.Check.notNull;
+
+import javax.inject.Inject;
+import javax.inject.Provider;
+
+import org.glassfish.grizzly.http.server.HttpHandler;
+import org.glassfish.grizzly.http.server.HttpServer;
+import org.usrz.libs.configurations.Configurations;
+import org.usrz.libs.configurations.ConfigurationsBuilder;
+import org.usrz.libs.httpd.inject.HttpHandlerPath;
+import org.usrz.libs.httpd.inject.HttpHandlerProvider;
+import org.usrz.libs.logging.Log;
+
+import com.google.inject.Injector;
+
+public class ResourceHandlerProvider implements Provider<HttpHandler> {
+
+    private final Log log = new Log();
+    private final ResourceHandler handler;
+    private final String path;
+
+    public ResourceHandlerProvider(ClassLoader classLoader, String prefix, HttpHandlerPath path) {
+        this(classLoader, prefix, path, new ConfigurationsBuilder().build());
+    }
+
+    public ResourceHandlerProvider(ClassLoader classLoader, String prefix, HttpHandlerPath path, Configurations configurations) {
+        this.path = notNull(path, "Null path").value();
+        handler = new ResourceHandler(classLoader, prefix, configurations);
+    }
+
+    @Inject
+    private void setup(Injector injector, HttpServer server) {
+        server.getServerConfiguration().addHttpHandler(HttpHandlerProvider.decorate(injector, path, handler), path);
+        log.info("Serving \"%s\" as static resources from \"%s\" (%d entries, %d bytes in memory, compression %s)", path, handler.getPrefix(),
+                 handler.getEntries(), handler.getSize(),
+                 handler.getFileCompression() == null ? "disabled" : "enabled");
+    }
+
+    @Override
+    public HttpHandler get() {
+        return handler;
+    }
+}
@@ -18,6 +18,7 @@ package org.usrz.libs.httpd.handlers;
 import static org.usrz.libs.utils.Check.notNull;
 import static org.usrz.libs.utils.inject.Injections.getInstance;
 
+import java.io.File;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
@@ -37,8 +38,11 @@ import org.glassfish.jersey.grizzly2.httpserver.GrizzlyHttpContainer;
 import org.glassfish.jersey.server.ResourceConfig;
 import org.usrz.libs.configurations.Configurations;
 import org.usrz.libs.httpd.inject.HttpHandlerPath;
+import org.usrz.libs.httpd.inject.HttpHandlerProvider;
 import org.usrz.libs.httpd.jersey.GrizzlyHttpContainerFactory;
 import org.usrz.libs.httpd.jersey.ServiceLocatorFactory;
+import org.usrz.libs.httpd.jfr.FlightEvents;
+import org.usrz.libs.httpd.jfr.JerseyInitEvent;
 import org.usrz.libs.logging.Log;
 import org.usrz.libs.utils.inject.ConfigurableProvider;
 
@@ -54,6 +58,12 @@ import com.google.inject.Injector;
  * {@link Application}s and wrapping them in an appropriate
  * <a href="https://grizzly.java.net/">Grizzly</a> {@link HttpHandler}s.
  *
+ * <p>The application's <code>multipart</code> configurations
+ * (<code>buffer_threshold</code>, in bytes, and <code>temp_dir</code>)
+ * tell Jersey's multipart support (when registered by the application)
+ * to stream bigger body parts to temporary files rather than keeping
+ * them in memory.</p>
+ *
  * @author <a href="mailto:pier@usrz.com">Pier Fumagalli</a>
  */
 @Singleton
@@ -62,6 +72,10 @@ public class RestHandlerProvider extends ConfigurableProvider<HttpHandler> {
     /* Our Log instance */
     private static final Log log = new Log();
 
+    /* Jersey's MultiPartProperties, without depending on jersey-media-multipart */
+    private static final String MULTIPART_BUFFER_THRESHOLD = "jersey.config.multipart.bufferThreshold";
+    private static final String MULTIPART_TEMP_DIR = "jersey.config.multipart.tempDir";
+
     /** Jersey's {@link ResourceConfig} for non-trivial customization */
     protected final ResourceConfig config;
 
@@ -108,6 +122,13 @@ public class RestHandlerProvider extends ConfigurableProvider<HttpHandler> {
                     new Annotations[] { Annotations.JACKSON, Annotations.JAXB }),
                     Collections.unmodifiableMap(contractPriorities));
 
+        /* Stream big multipart uploads to disk */
+        final Configurations multipart = configurations.strip("multipart");
+        final int threshold = multipart.get("buffer_threshold", -1);
+        if (threshold >= 0) config.property(MULTIPART_BUFFER_THRESHOLD, threshold);
+        final File tempDir = multipart.getFile("temp_dir");
+        if (tempDir != null) config.property(MULTIPART_TEMP_DIR, tempDir.getAbsolutePath());
+
         /* Create a ServiceLocator parent of all locators and inject the configurations */
         final ServiceLocator locator = ServiceLocatorFactory.create(injector, path);
 
@@ -116,12 +137,14 @@ public class RestHandlerProvider extends ConfigurableProvider<HttpHandler> {
 
         /* Create a brand new Grizzly HTTP container from Jersey */
         log.debug("Jersey application at \"%s\" initializing", path.value());
+        final JerseyInitEvent event = FlightEvents.AVAILABLE ? new JerseyInitEvent() : null;
         GrizzlyHttpContainer container = GrizzlyHttpContainerFactory.create(config, locator);
+        if (event != null) event.commit(path.value(), config.getApplicationName());
         log.info("Jersey application at \"%s\" initialized successfully", path.value());
 
         /* Create our handler and add it to our server configuration  */
         final HttpServer server = injector.getInstance(HttpServer.class);
-        server.getServerConfiguration().addHttpHandler(container, path.value());
+        server.getServerConfiguration().addHttpHandler(HttpHandlerProvider.decorate(injector, path.value(), container), path.value());
         log.info("Serving \"%s\" using Jersey application \"%s\"", path.value(), config.getApplicationName());
 
         /* All done! */
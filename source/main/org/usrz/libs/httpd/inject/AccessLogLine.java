@@ -0,0 +1,236 @@
+/* ========================================================================== *
+ * Copyright 2014 USRZ.com and Pier Paolo Fumagalli                           *
+ * -------------------------------------------------------------------------- *
+ * Licensed under the Apache License, Version 2.0 (the "License");            *
+ * you may not use this file except in compliance with the License.           *
+ * You may obtain a copy of the License at                                    *
+ *                                                                            *
+ *  http://www.apache.org/licenses/LICENSE-2.0                                *
+ *                                                                            *
+ * Unless required by applicable law or agreed to in writing, software        *
+ * distributed under the License is distributed on an "AS IS" BASIS,          *
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.   *
+ * See the License for the specific language governing permissions and        *
+ * limitations under the License.                                             *
+ * ========================================================================== */
+package org.usrz.libs.httpd.inject;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * A reusable, growable buffer of UTF-8 bytes where access log lines are
+ * encoded, character by character, without any intermediate
+ * {@link String}.
+ *
+ * @author <a href="mailto:pier@usrz.com">Pier Fumagalli</a>
+ */
+final class AccessLogLine {
+
+    private static final byte[] HEX = "0123456789abcdef".getBytes(UTF_8);
+    private static final byte[] NULL = "null".getBytes(UTF_8);
+    private static final byte[] MIN_VALUE = Long.toString(Long.MIN_VALUE).getBytes(UTF_8);
+
+    private byte[] bytes;
+    private int length;
+
+    AccessLogLine() {
+        this(512);
+    }
+
+    AccessLogLine(int capacity) {
+        bytes = new byte[capacity];
+    }
+
+    /* ====================================================================== */
+
+    /** Discard everything appended so far. */
+    AccessLogLine reset() {
+        length = 0;
+        return this;
+    }
+
+    /** The number of bytes in this line. */
+    int length() {
+        return length;
+    }
+
+    /** Copy as many bytes as possible, starting at the given offset. */
+    int copy(int offset, ByteBuffer buffer) {
+        final int count = Math.min(length - offset, buffer.remaining());
+        buffer.put(bytes, offset, count);
+        return offset + count;
+    }
+
+    @Override
+    public String toString() {
+        return new String(bytes, 0, length, UTF_8);
+    }
+
+    /* ====================================================================== */
+
+    /** Append a single ASCII character. */
+    AccessLogLine append(char ascii) {
+        ensure(1);
+        bytes[length ++] = (byte) ascii;
+        return this;
+    }
+
+    /** Append some ASCII characters. */
+    AccessLogLine append(byte[] ascii) {
+        ensure(ascii.length);
+        System.arraycopy(ascii, 0, bytes, length, ascii.length);
+        length += ascii.length;
+        return this;
+    }
+
+    /** Append the contents of another line. */
+    AccessLogLine append(AccessLogLine line) {
+        ensure(line.length);
+        System.arraycopy(line.bytes, 0, bytes, length, line.length);
+        length += line.length;
+        return this;
+    }
+
+    /** Append a number in decimal notation. */
+    AccessLogLine append(long number) {
+        if (number == Long.MIN_VALUE) return append(MIN_VALUE);
+        if (number < 0) {
+            append('-');
+            number = -number;
+        }
+
+        /* Count digits, then fill them in backwards */
+        int digits = 1;
+        for (long x = number; x >= 10; x /= 10) digits ++;
+        ensure(digits);
+        for (int x = length + digits - 1; x >= length; x --) {
+            bytes[x] = (byte) ('0' + (number % 10));
+            number /= 10;
+        }
+        length += digits;
+        return this;
+    }
+
+    /** Append a number padded with zeroes to the specified width. */
+    AccessLogLine append(long number, int width) {
+        for (long x = 10; width > 1; x *= 10, width --) if (number < x) append('0');
+        return append(number);
+    }
+
+    /** Append a string, unescaped. */
+    AccessLogLine append(CharSequence string) {
+        final int size = string.length();
+        ensure(size * 3);
+        for (int x = 0; x < size; x ++) x = utf8(string, x);
+        return this;
+    }
+
+    /**
+     * Append a string escaping quotes, backslashes and control characters
+     * as Apache does, or a dash if the string is <b>null</b> or empty.
+     */
+    AccessLogLine apache(String string) {
+        if ((string == null) || string.isEmpty()) return append('-');
+
+        final int size = string.length();
+        ensure(size * 4);
+        final byte[] bytes = this.bytes;
+        for (int x = 0; x < size; x ++) {
+            final char c = string.charAt(x);
+            if ((c == '"') || (c == '\\')) {
+                bytes[length ++] = '\\';
+                bytes[length ++] = (byte) c;
+            } else if ((c < 0x20) || (c == 0x7F)) {
+                bytes[length ++] = '\\';
+                bytes[length ++] = 'x';
+                bytes[length ++] = HEX[c >> 4];
+                bytes[length ++] = HEX[c & 0x0F];
+            } else if (c < 0x80) {
+                bytes[length ++] = (byte) c;
+            } else {
+                x = utf8(string, x);
+            }
+        }
+        return this;
+    }
+
+    /**
+     * Append a quoted and escaped JSON string, or <code>null</code> if the
+     * string is <b>null</b>.
+     */
+    AccessLogLine json(String string) {
+        if (string == null) return append(NULL);
+
+        final int size = string.length();
+        ensure(size * 6 + 2);
+        final byte[] bytes = this.bytes;
+        bytes[length ++] = '"';
+        for (int x = 0; x < size; x ++) {
+            final char c = string.charAt(x);
+            if ((c == '"') || (c == '\\')) {
+                bytes[length ++] = '\\';
+                bytes[length ++] = (byte) c;
+            } else if (c < 0x20) {
+                bytes[length ++] = '\\';
+                switch (c) {
+                    case '\n': bytes[length ++] = 'n'; break;
+                    case '\r': bytes[length ++] = 'r'; break;
+                    case '\t': bytes[length ++] = 't'; break;
+                    default:
+                        bytes[length ++] = 'u';
+                        bytes[length ++] = '0';
+                        bytes[length ++] = '0';
+                        bytes[length ++] = HEX[c >> 4];
+                        bytes[length ++] = HEX[c & 0x0F];
+                }
+            } else if (c < 0x80) {
+                bytes[length ++] = (byte) c;
+            } else {
+                x = utf8(string, x);
+            }
+        }
+        bytes[length ++] = '"';
+        return this;
+    }
+
+    /* ====================================================================== */
+
+    /*
+     * Encode the character at the given index, return the last index used.
+     * Callers ensure there is space for three bytes per character left.
+     */
+    private int utf8(CharSequence string, int index) {
+        final char c = string.charAt(index);
+
+        if (c < 0x80) {
+            bytes[length ++] = (byte) c;
+        } else if (c < 0x800) {
+            bytes[length ++] = (byte) (0xC0 | (c >> 6));
+            bytes[length ++] = (byte) (0x80 | (c & 0x3F));
+        } else if (Character.isHighSurrogate(c)
+                   && (index + 1 < string.length())
+                   && Character.isLowSurrogate(string.charAt(index + 1))) {
+            /* Two characters, four bytes */
+            final int code = Character.toCodePoint(c, string.charAt(++ index));
+            bytes[length ++] = (byte) (0xF0 | (code >> 18));
+            bytes[length ++] = (byte) (0x80 | ((code >> 12) & 0x3F));
+            bytes[length ++] = (byte) (0x80 | ((code >> 6) & 0x3F));
+            bytes[length ++] = (byte) (0x80 | (code & 0x3F));
+        } else if (Character.isSurrogate(c)) {
+            bytes[length ++] = '?'; // unpaired surrogate
+        } else {
+            bytes[length ++] = (byte) (0xE0 | (c >> 12));
+            bytes[length ++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+            bytes[length ++] = (byte) (0x80 | (c & 0x3F));
+        }
+        return index;
+    }
+
+    private void ensure(int count) {
+        if (length + count > bytes.length)
+            bytes = Arrays.copyOf(bytes, Math.max(bytes.length << 1, length + count));
+    }
+}
@@ -16,6 +16,15 @@
 package org.usrz.libs.httpd.inject;
 
 import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TimeZone;
+import java.util.TreeMap;
+import java.util.stream.Collectors;
 
 import javax.inject.Inject;
 import javax.inject.Provider;
@@ -24,9 +33,67 @@ import org.glassfish.grizzly.http.server.HttpServer;
 import org.glassfish.grizzly.http.server.ServerConfiguration;
 import org.glassfish.grizzly.http.server.accesslog.AccessLogBuilder;
 import org.glassfish.grizzly.http.server.accesslog.AccessLogProbe;
+import org.glassfish.grizzly.http.server.accesslog.ApacheLogFormat;
 import org.usrz.libs.configurations.Configurations;
 import org.usrz.libs.logging.Log;
 
+/**
+ * A {@link Provider} for an {@link AccessLogProbe} configured from the
+ * following keys:
+ *
+ * <ul>
+ *   <li><code>file</code>: the file to write the log to (required).</li>
+ *   <li><code>rotate</code>: <code>daily</code> or <code>hourly</code>.</li>
+ *   <li><code>rotationPattern</code>: a date pattern for rotated files.</li>
+ *   <li><code>synchronous</code>: whether to write lines synchronously.</li>
+ *   <li><code>format</code>: the format of each line.</li>
+ *   <li><code>timezone</code>: the time zone for dates in the log.</li>
+ * </ul>
+ *
+ * <p>When <code>queue_size</code> is greater than zero, lines are handed
+ * over to an {@link AsyncAccessLog} ring buffer of that size (drained and
+ * closed when the server shuts down), further configured by:</p>
+ *
+ * <ul>
+ *   <li><code>overflow</code>: <code>block</code> (default) or
+ *       <code>drop</code> when the ring buffer is full.</li>
+ *   <li><code>buffer_size</code>: bytes buffered before writing (default
+ *       <code>65536</code>).</li>
+ * </ul>
+ *
+ * <p>In this case only Apache's common and combined formats are supported
+ * (either as patterns or by the names <code>common</code> and
+ * <code>combined</code>), and <code>rotationPattern</code> is not.</p>
+ *
+ * <p>A <code>format</code> of <code>json</code> writes one JSON object per
+ * line (always through an {@link AsyncAccessLog}, with a default
+ * <code>queue_size</code> of <code>8192</code>). The comma-separated
+ * <code>fields</code> key selects which {@link AsyncAccessLog.Field}s are
+ * included and in which order, by their lower case name (all of them by
+ * default, in declaration order).</p>
+ *
+ * <p>Requests to log can be sampled through an {@link AccessLogSampler}
+ * configured by <code>sample</code> (the fraction of requests to log when
+ * no rule matches, default <code>1</code>) and by the <code>rules</code>
+ * group, evaluated in order of name. Each rule can specify:</p>
+ *
+ * <ul>
+ *   <li><code>paths</code>: comma-separated path prefixes to match.</li>
+ *   <li><code>status</code>: comma-separated statuses to match, either
+ *       exact (<code>404</code>) or by class (<code>5xx</code>).</li>
+ *   <li><code>sample</code>: the fraction of matching requests to log
+ *       (default <code>1</code>, use <code>0</code> to exclude them).</li>
+ * </ul>
+ *
+ * <p>When <code>compress_rotated</code> is <b>true</b>, rotated files are
+ * compressed with GZIP in the background.</p>
+ *
+ * <p>Sampling and compression (like JSON) are only available through an
+ * {@link AsyncAccessLog}, and imply a default <code>queue_size</code> of
+ * <code>8192</code>.</p>
+ *
+ * @author <a href="mailto:pier@usrz.com">Pier Fumagalli</a>
+ */
 public class AccessLogProvider implements Provider<AccessLogProbe> {
 
     private final Log log = new Log();
@@ -36,6 +103,17 @@ public class AccessLogProvider implements Provider<AccessLogProbe> {
     public AccessLogProvider(Configurations configurations) {
         accessLog = configurations.requireFile("file");
 
+        /* Asynchronous ring buffer, if configured or needed by features */
+        final boolean needed = "json".equalsIgnoreCase(configurations.getString("format", null))
+                            || configurations.get("compress_rotated", false)
+                            || (configurations.getString("sample") != null)
+                            || (! configurations.strip("rules").isEmpty());
+        final int queueSize = configurations.get("queue_size", needed ? 8192 : 0);
+        if (queueSize > 0) {
+            probe = asynchronous(configurations, queueSize);
+            return;
+        }
+
         /* Start building our access log */
         final AccessLogBuilder accessLogBuilder = new AccessLogBuilder(accessLog);
 
@@ -65,15 +143,105 @@ public class AccessLogProvider implements Provider<AccessLogProbe> {
         probe = accessLogBuilder.build();
     }
 
+    private AsyncAccessLog asynchronous(Configurations configurations, int queueSize) {
+        final String rotate = configurations.getString("rotate", "never");
+        final AsyncAccessLog.Rotation rotation;
+        switch (rotate.toLowerCase()) {
+            case "never":  rotation = AsyncAccessLog.Rotation.NEVER; break;
+            case "daily":  rotation = AsyncAccessLog.Rotation.DAILY; break;
+            case "hourly": rotation = AsyncAccessLog.Rotation.HOURLY; break;
+            default: throw new IllegalStateException("Unsupported value \"" + rotate + "\" for parameter \"rotate\"");
+        }
+        if (configurations.getString("rotationPattern") != null)
+            throw new IllegalStateException("Parameter \"rotationPattern\" unsupported with \"queue_size\"");
+
+        final String format = configurations.getString("format", "common");
+        final AsyncAccessLog.Format logFormat;
+        if ("common".equalsIgnoreCase(format) || ApacheLogFormat.COMMON_FORMAT.equals(format)) {
+            logFormat = AsyncAccessLog.Format.COMMON;
+        } else if ("combined".equalsIgnoreCase(format) || ApacheLogFormat.COMBINED_FORMAT.equals(format)) {
+            logFormat = AsyncAccessLog.Format.COMBINED;
+        } else if ("json".equalsIgnoreCase(format)) {
+            logFormat = AsyncAccessLog.Format.JSON;
+        } else {
+            throw new IllegalStateException("Unsupported value \"" + format + "\" for parameter \"format\" with \"queue_size\"");
+        }
+
+        final String overflow = configurations.getString("overflow", "block");
+        final AsyncAccessLog.Overflow logOverflow;
+        switch (overflow.toLowerCase()) {
+            case "block": logOverflow = AsyncAccessLog.Overflow.BLOCK; break;
+            case "drop":  logOverflow = AsyncAccessLog.Overflow.DROP; break;
+            default: throw new IllegalStateException("Unsupported value \"" + overflow + "\" for parameter \"overflow\"");
+        }
+
+        final String names = configurations.getString("fields", null);
+        final Set<AsyncAccessLog.Field> fields = new LinkedHashSet<>();
+        if (names == null) fields.addAll(EnumSet.allOf(AsyncAccessLog.Field.class));
+        else for (String name: names.split(",")) if (! name.trim().isEmpty()) {
+            final AsyncAccessLog.Field field;
+            try {
+                field = AsyncAccessLog.Field.parse(name);
+            } catch (IllegalArgumentException exception) {
+                throw new IllegalStateException("Unsupported value \"" + name.trim() + "\" for parameter \"fields\"");
+            }
+            if (! fields.add(field)) throw new IllegalStateException("Duplicate value \"" + name.trim() + "\" for parameter \"fields\"");
+        }
+
+        final String timezone = configurations.getString("timezone", null);
+        final TimeZone timeZone = timezone == null ? TimeZone.getDefault() : TimeZone.getTimeZone(timezone);
+        final int bufferSize = configurations.get("buffer_size", 65536);
+
+        final AccessLogSampler sampler = sampler(configurations);
+
+        final AsyncAccessLog log;
+        try {
+            log = new AsyncAccessLog(accessLog, logFormat, fields, rotation, timeZone, queueSize, logOverflow, bufferSize);
+        } catch (IOException exception) {
+            throw new IllegalStateException("Unable to open access log \"" + accessLog + "\"", exception);
+        }
+
+        log.setSampler(sampler);
+        log.setCompressRotated(configurations.get("compress_rotated", false));
+        return log;
+    }
+
+    private static AccessLogSampler sampler(Configurations configurations) {
+        final Map<String, Configurations> rules = new TreeMap<>(configurations.group("rules"));
+        if ((configurations.getString("sample") == null) && rules.isEmpty()) return null;
+
+        try {
+            final AccessLogSampler sampler = new AccessLogSampler(configurations.get("sample", 1.0));
+            rules.values().forEach((rule) -> {
+                final String paths = rule.getString("paths");
+                sampler.add(paths == null ? null : Arrays.stream(paths.split(","))
+                                                         .map(String::trim)
+                                                         .filter((path) -> ! path.isEmpty())
+                                                         .collect(Collectors.toList()),
+                            rule.getString("status"),
+                            rule.get("sample", 1.0));
+            });
+            return sampler;
+        } catch (IllegalArgumentException exception) {
+            throw new IllegalStateException("Invalid access log sampling configuration", exception);
+        }
+    }
+
     public String getName() {
         return accessLog.getAbsolutePath();
     }
 
     @Inject
-    private void setup(HttpServer server) {
+    private void setup(HttpServer server, HttpServerProvider provider) {
         final ServerConfiguration configuration = server.getServerConfiguration();
         configuration.getMonitoringConfig().getWebServerConfig().addProbes(probe);
 
+        /* Flush and close our own log when the server stops */
+        if (probe instanceof AsyncAccessLog) {
+            ((AsyncAccessLog) probe).setServer(server);
+            provider.closeOnShutdown((AsyncAccessLog) probe);
+        }
+
         log.info("Configured access log writing to \"%s\" on server \"%s\"", accessLog, configuration.getName());
     }
 
@@ -0,0 +1,138 @@
+/* ========================================================================== *
+ * Copyright 2014 USRZ.com and Pier Paolo Fumagalli                           *
+ * -------------------------------------------------------------------------- *
+ * Licensed under the Apache License, Version 2.0 (the "License");            *
+ * you may not use this file except in compliance with the License.           *
+ * You may obtain a copy of the License at                                    *
+ *                                                                            *
+ *  http://www.apache.org/licenses/LICENSE-2.0                                *
+ *                                                                            *
+ * Unless required by applicable law or agreed to in writing, software        *
+ * distributed under the License is distributed on an "AS IS" BASIS,          *
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.   *
+ * See the License for the specific language governing permissions and        *
+ * limitations under the License.                                             *
+ * ========================================================================== */
+package org.usrz.libs.httpd.inject;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Decide whether a request should be written to the access log, according
+ * to a list of rules matching request paths and response statuses.
+ *
+ * <p>Rules are evaluated in the order they were added, and the first one
+ * matching a request decides the fraction of matching requests to log:
+ * <code>1</code> logs all of them, <code>0</code> none. Requests matching
+ * no rule are logged according to the default rate.</p>
+ *
+ * <p>For example, to log all server errors, only 1% of successful requests
+ * for static assets and no health checks at all:</p>
+ *
+ * <pre>
+ * new AccessLogSampler(1.0)
+ *     .add(null, "5xx", 1.0)
+ *     .add(Arrays.asList("/static/"), "200", 0.01)
+ *     .add(Arrays.asList("/health"), null, 0);
+ * </pre>
+ *
+ * @author <a href="mailto:pier@usrz.com">Pier Fumagalli</a>
+ */
+public final class AccessLogSampler {
+
+    private final List<Rule> rules = new ArrayList<>();
+    private final double rate;
+
+    /**
+     * Create a new {@link AccessLogSampler} logging the specified fraction
+     * of requests not matching any rule.
+     */
+    public AccessLogSampler(double rate) {
+        this.rate = check(rate);
+    }
+
+    /**
+     * Add a rule to this {@link AccessLogSampler}.
+     *
+     * @param paths The path prefixes matched by the rule, or <b>null</b>
+     *              (or empty) to match all paths.
+     * @param statuses A comma-separated list of statuses (like
+     *                 <code>404</code>) or classes of statuses (like
+     *                 <code>5xx</code>), or <b>null</b> to match all.
+     * @param rate The fraction of matching requests to log.
+     */
+    public AccessLogSampler add(Collection<String> paths, String statuses, double rate) {
+        final String[] prefixes = (paths == null) || paths.isEmpty() ? null : paths.toArray(new String[paths.size()]);
+        rules.add(new Rule(prefixes, statuses == null ? null : parse(statuses), check(rate)));
+        return this;
+    }
+
+    /** Return <b>true</b> if a request should be logged. */
+    public boolean sample(String path, int status) {
+        for (int x = 0; x < rules.size(); x ++) {
+            final Rule rule = rules.get(x);
+            if (rule.matches(path, status)) return sample(rule.rate);
+        }
+        return sample(rate);
+    }
+
+    /* ====================================================================== */
+
+    private static boolean sample(double rate) {
+        return (rate >= 1) || ((rate > 0) && (ThreadLocalRandom.current().nextDouble() < rate));
+    }
+
+    private static double check(double rate) {
+        if ((rate >= 0) && (rate <= 1)) return rate;
+        throw new IllegalArgumentException("Sampling rate " + rate + " not between 0 and 1");
+    }
+
+    /* Parse "200,3xx,404" into a table indexed by status */
+    private static boolean[] parse(String statuses) {
+        final boolean[] table = new boolean[600];
+        for (String status: statuses.split(",")) {
+            status = status.trim().toLowerCase();
+            if (status.isEmpty()) continue;
+            try {
+                if (status.matches("[1-5]xx")) {
+                    final int base = (status.charAt(0) - '0') * 100;
+                    for (int x = base; x < base + 100; x ++) table[x] = true;
+                } else {
+                    table[Integer.parseInt(status)] = true;
+                }
+            } catch (NumberFormatException | ArrayIndexOutOfBoundsException exception) {
+                throw new IllegalArgumentException("Invalid status \"" + status + "\"", exception);
+            }
+        }
+        return table;
+    }
+
+    /* ====================================================================== */
+
+    private static final class Rule {
+
+        private final String[] prefixes;
+        private final boolean[] statuses;
+        private final double rate;
+
+        private Rule(String[] prefixes, boolean[] statuses, double rate) {
+            this.prefixes = prefixes;
+            this.statuses = statuses;
+            this.rate = rate;
+        }
+
+        private boolean matches(String path, int status) {
+            if (statuses != null) {
+                if ((status < 0) || (status >= statuses.length) || (! statuses[status])) return false;
+            }
+
+            if (prefixes == null) return true;
+            if (path == null) return false;
+            for (String prefix: prefixes) if (path.startsWith(prefix)) return true;
+            return false;
+        }
+    }
+}
@@ -0,0 +1,876 @@
+/* ========================================================================== *
+ * Copyright 2014 USRZ.com and Pier Paolo Fumagalli                           *
+ * -------------------------------------------------------------------------- *
+ * Licensed under the Apache License, Version 2.0 (the "License");            *
+ * you may not use this file except in compliance with the License.           *
+ * You may obtain a copy of the License at                                    *
+ *                                                                            *
+ *  http://www.apache.org/licenses/LICENSE-2.0                                *
+ *                                                                            *
+ * Unless required by applicable law or agreed to in writing, software        *
+ * distributed under the License is distributed on an "AS IS" BASIS,          *
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.   *
+ * See the License for the specific language governing permissions and        *
+ * limitations under the License.                                             *
+ * ========================================================================== */
+package org.usrz.libs.httpd.inject;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+import static java.nio.file.StandardOpenOption.APPEND;
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.WRITE;
+import static org.usrz.libs.utils.Check.notNull;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.text.SimpleDateFormat;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.IdentityHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TimeZone;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.zip.GZIPOutputStream;
+
+import org.glassfish.grizzly.Connection;
+import org.glassfish.grizzly.filterchain.FilterChain;
+import org.glassfish.grizzly.http.Note;
+import org.glassfish.grizzly.http.server.HttpServer;
+import org.glassfish.grizzly.http.server.HttpServerFilter;
+import org.glassfish.grizzly.http.server.NetworkListener;
+import org.glassfish.grizzly.http.server.Request;
+import org.glassfish.grizzly.http.server.Response;
+import org.glassfish.grizzly.http.server.accesslog.AccessLogAppender;
+import org.glassfish.grizzly.http.server.accesslog.AccessLogProbe;
+import org.glassfish.grizzly.http.server.accesslog.ApacheLogFormat;
+import org.usrz.libs.logging.Log;
+
+/**
+ * An {@link AccessLogProbe} handing off the raw fields of each request to
+ * a single writer thread through a bounded, lock-free ring buffer.
+ *
+ * <p>Request threads never format nor write anything: they copy a handful
+ * of references and numbers into a preallocated slot. The writer thread
+ * formats lines into a reusable buffer and writes them to a
+ * {@link FileChannel} in large batches.</p>
+ *
+ * <p>When the ring is full, request threads either wait for the writer to
+ * catch up ({@link Overflow#BLOCK}) or discard their line and increment a
+ * counter ({@link Overflow#DROP}).</p>
+ *
+ * <p>An {@link AccessLogSampler} can be used to skip requests before they
+ * even get to the ring, and rotated files can be compressed with GZIP on
+ * a low priority background thread.</p>
+ *
+ * @author <a href="mailto:pier@usrz.com">Pier Fumagalli</a>
+ */
+public class AsyncAccessLog extends AccessLogProbe implements Closeable {
+
+    /** What to do with new lines when the ring buffer is full. */
+    public enum Overflow {
+        /** Wait for the writer thread to free up a slot. */
+        BLOCK,
+        /** Discard the line, counting it as dropped. */
+        DROP
+    }
+
+    /** How often the log file should be rotated. */
+    public enum Rotation {
+        /** Never rotate the log file. */
+        NEVER(null, 0),
+        /** Rotate the log file at midnight. */
+        DAILY("yyyyMMdd", Calendar.DAY_OF_MONTH),
+        /** Rotate the log file at the top of each hour. */
+        HOURLY("yyyyMMddHH", Calendar.HOUR_OF_DAY);
+
+        private final String pattern;
+        private final int field;
+
+        private Rotation(String pattern, int field) {
+            this.pattern = pattern;
+            this.field = field;
+        }
+    }
+
+    /* Request note recording when a request was received */
+    private static final Note<Long> RECEIVED = Request.createNote(AsyncAccessLog.class.getName() + ".received");
+
+    /* Handed to our superclass, which would otherwise write lines itself */
+    private static final AccessLogAppender NO_APPENDER = new AccessLogAppender() {
+        @Override
+        public void append(String line) {
+            /* Lines are never formatted by our superclass */
+        }
+
+        @Override
+        public void close() {
+            /* Nothing to close */
+        }
+    };
+
+    private static final Log log = new Log();
+
+    /* The ring: slots, a mask for indexes, producers and consumer positions */
+    private final Entry[] entries;
+    private final int mask;
+    private final AtomicLong tail = new AtomicLong();
+    private volatile long head;
+
+    /* Metrics */
+    private final LongAdder dropped = new LongAdder();
+    private final LongAdder blocked = new LongAdder();
+    private final LongAdder filtered = new LongAdder();
+    private volatile long written;
+
+    private final Overflow overflow;
+    private final Writer writer;
+    private final Thread thread;
+    private final Thread hook;
+    private volatile AccessLogSampler sampler;
+    private volatile boolean closed;
+
+    /**
+     * Create a new {@link AsyncAccessLog} writing to the specified file.
+     *
+     * @param file The file to append lines to.
+     * @param format The format of each line.
+     * @param fields The fields to include in {@link Format#JSON} lines, in
+     *               the order they are iterated.
+     * @param rotation How often the file should be rotated.
+     * @param timeZone The time zone for timestamps and rotation.
+     * @param capacity The number of slots in the ring, rounded up to the
+     *                 next power of two (and to at least two).
+     * @param overflow What to do when the ring is full.
+     * @param bufferSize The size in bytes of the write buffer.
+     */
+    public AsyncAccessLog(File file,
+                          Format format,
+                          Set<Field> fields,
+                          Rotation rotation,
+                          TimeZone timeZone,
+                          int capacity,
+                          Overflow overflow,
+                          int bufferSize)
+    throws IOException {
+        this(new Writer(file, format, fields, rotation, timeZone, bufferSize), capacity, overflow);
+    }
+
+    private AsyncAccessLog(Writer writer, int capacity, Overflow overflow) {
+        /* Our superclass requires both, but neither will ever be used */
+        super(NO_APPENDER, ApacheLogFormat.COMMON);
+        this.writer = writer;
+        this.overflow = notNull(overflow, "Null overflow policy");
+
+        if (capacity < 1) throw new IllegalArgumentException("Invalid ring buffer capacity " + capacity);
+        if (capacity > (1 << 30)) throw new IllegalArgumentException("Ring buffer capacity " + capacity + " too big");
+        /* With a single slot, a published entry would look free to producers */
+        final int size = capacity < 2 ? 2
+                       : Integer.highestOneBit(capacity) == capacity ? capacity
+                       : Integer.highestOneBit(capacity) << 1;
+
+        entries = new Entry[size];
+        for (int x = 0; x < size; x ++) entries[x] = new Entry(x);
+        mask = size - 1;
+
+        thread = new Thread(this::drain, "AsyncAccessLog writer [" + writer.file.getName() + "]");
+        thread.setDaemon(true);
+        thread.start();
+
+        /* Do not lose what is still in the ring when the JVM exits */
+        hook = new Thread(this::close, "AsyncAccessLog shutdown [" + writer.file.getName() + "]");
+        Runtime.getRuntime().addShutdownHook(hook);
+    }
+
+    /* ====================================================================== */
+
+    /**
+     * Set the {@link HttpServer} whose listener names will be included in
+     * {@link Format#JSON} lines.
+     */
+    void setServer(HttpServer server) {
+        writer.server = server;
+    }
+
+    /**
+     * Set the {@link AccessLogSampler} deciding which requests to log, or
+     * <b>null</b> to log all of them.
+     */
+    public void setSampler(AccessLogSampler sampler) {
+        this.sampler = sampler;
+    }
+
+    /**
+     * Set whether files should be compressed with GZIP once rotated.
+     */
+    public void setCompressRotated(boolean compress) {
+        writer.compress = compress;
+    }
+
+    /** The file this log is being written to. */
+    public File getFile() {
+        return writer.file;
+    }
+
+    /** The number of slots in the ring buffer. */
+    public int getCapacity() {
+        return entries.length;
+    }
+
+    /** The number of lines waiting to be written. */
+    public long getQueueDepth() {
+        return Math.max(0, tail.get() - head);
+    }
+
+    /** The number of lines discarded because the ring buffer was full. */
+    public long getDropped() {
+        return dropped.sum();
+    }
+
+    /** The number of times a request had to wait for a free slot. */
+    public long getBlocked() {
+        return blocked.sum();
+    }
+
+    /** The number of requests not logged because of sampling. */
+    public long getFiltered() {
+        return filtered.sum();
+    }
+
+    /** The number of rotated files compressed with GZIP. */
+    public long getCompressed() {
+        return writer.compressed.sum();
+    }
+
+    /** The number of lines written to the file. */
+    public long getWritten() {
+        return written;
+    }
+
+    /* ====================================================================== */
+
+    @Override
+    public void onRequestReceiveEvent(HttpServerFilter filter, Connection connection, Request request) {
+        request.setNote(RECEIVED, System.nanoTime());
+    }
+
+    @Override
+    public void onRequestCompleteEvent(HttpServerFilter filter, Connection connection, Response response) {
+        final long now = System.currentTimeMillis();
+        final long nanos = System.nanoTime();
+        final Request request = response.getRequest();
+
+        /* Skip sampled out requests before touching the ring */
+        final AccessLogSampler sampler = this.sampler;
+        if ((sampler != null) && (! sampler.sample(request.getRequestURI(), response.getStatus()))) {
+            filtered.increment();
+            return;
+        }
+
+        final Entry entry = acquire();
+        if (entry == null) return;
+
+        final Long received = request.getNote(RECEIVED);
+
+        entry.line = null;
+        entry.timestamp = now;
+        entry.duration = received == null ? -1 : nanos - received;
+        entry.remoteAddress = request.getRemoteAddr();
+        entry.remoteUser = request.getRemoteUser();
+        entry.method = request.getMethod().getMethodString();
+        entry.uri = request.getRequestURI();
+        entry.query = request.getQueryString();
+        entry.protocol = request.getProtocol().getProtocolString();
+        entry.status = response.getStatus();
+        entry.length = response.getContentLengthLong();
+        entry.referer = request.getHeader("Referer");
+        entry.userAgent = request.getHeader("User-Agent");
+        entry.handler = request.getContextPath();
+        entry.filter = filter;
+        entry.publish();
+    }
+
+    /* Acquire a slot in the ring, or null if full and dropping */
+    private Entry acquire() {
+        boolean waited = false;
+        int spins = 0;
+        while (! closed) {
+            final long position = tail.get();
+            final Entry entry = entries[(int) position & mask];
+            final long difference = entry.sequence - position;
+
+            if (difference == 0) {
+                if (tail.compareAndSet(position, position + 1)) return entry;
+            } else if (difference < 0) {
+                /* The ring is full: the writer has not freed this slot yet */
+                if (overflow == Overflow.DROP) break;
+                if (! waited) blocked.increment();
+                waited = true;
+                if (++ spins < 64) Thread.yield();
+                else LockSupport.parkNanos(50_000);
+            }
+        }
+
+        dropped.increment();
+        return null;
+    }
+
+    /* ====================================================================== */
+
+    /**
+     * Flush all pending lines, stop the writer thread and close the file.
+     */
+    @Override
+    public void close() {
+        if (closed) return;
+        closed = true;
+
+        LockSupport.unpark(thread);
+        try {
+            thread.join(10000);
+        } catch (InterruptedException exception) {
+            Thread.currentThread().interrupt();
+        }
+
+        try {
+            if (Thread.currentThread() != hook) Runtime.getRuntime().removeShutdownHook(hook);
+        } catch (IllegalStateException exception) {
+            /* Already shutting down, ignore */
+        }
+    }
+
+    /* The body of our writer thread */
+    private void drain() {
+        log.debug("Writing access log to \"%s\"", writer.file);
+
+        while (true) {
+            final long position = head;
+            final Entry entry = entries[(int) position & mask];
+
+            if (entry.sequence == position + 1) {
+                try {
+                    writer.write(entry);
+                    written ++;
+                } catch (Throwable throwable) {
+                    log.error(throwable, "Error writing access log to \"%s\"", writer.file);
+                }
+                entry.release(position + entries.length);
+                head = position + 1;
+                continue;
+            }
+
+            /* Nothing to write, flush what we have and rest a bit */
+            try {
+                writer.flush();
+            } catch (Throwable throwable) {
+                log.error(throwable, "Error flushing access log to \"%s\"", writer.file);
+            }
+            if (closed && (tail.get() == head)) break;
+            LockSupport.parkNanos(1_000_000);
+        }
+
+        writer.close();
+        log.debug("Closed access log \"%s\" after %d lines (%d dropped)", writer.file, written, getDropped());
+    }
+
+    /* ====================================================================== */
+
+    /**
+     * Append a pre-formatted line to this log, as a regular
+     * {@link AccessLogAppender}.
+     */
+    public void append(String line) {
+        append(line, System.currentTimeMillis());
+    }
+
+    /* Append a line as if written at the specified time */
+    void append(String line, long timestamp) {
+        final Entry entry = acquire();
+        if (entry == null) return;
+        entry.line = line;
+        entry.timestamp = timestamp;
+        entry.publish();
+    }
+
+    /* ====================================================================== */
+
+    /** The format of each line in the access log. */
+    public enum Format {
+
+        /** Apache's <em>common</em> log format. */
+        COMMON {
+            @Override
+            void format(Entry entry, AccessLogLine line, Dates dates, Field[] fields) {
+                common(entry, line, dates);
+            }
+        },
+
+        /** Apache's <em>combined</em> log format. */
+        COMBINED {
+            @Override
+            void format(Entry entry, AccessLogLine line, Dates dates, Field[] fields) {
+                common(entry, line, dates);
+                line.append(' ').append('"').apache(entry.referer).append('"');
+                line.append(' ').append('"').apache(entry.userAgent).append('"');
+            }
+        },
+
+        /** One JSON object per line, with the configured {@link Field}s. */
+        JSON {
+            @Override
+            void format(Entry entry, AccessLogLine line, Dates dates, Field[] fields) {
+                line.append('{');
+                for (int x = 0; x < fields.length; x ++) {
+                    if (x > 0) line.append(',');
+                    line.append(fields[x].name).append(':');
+                    fields[x].json(entry, line, dates);
+                }
+                line.append('}');
+            }
+        };
+
+        abstract void format(Entry entry, AccessLogLine line, Dates dates, Field[] fields);
+
+        /* %h %l %u %t "%r" %>s %b */
+        private static void common(Entry entry, AccessLogLine line, Dates dates) {
+            line.apache(entry.remoteAddress).append(' ').append('-').append(' ');
+            line.apache(entry.remoteUser).append(' ');
+            dates.apache(entry.timestamp, line).append(' ').append('"');
+            line.apache(entry.method).append(' ').apache(entry.uri);
+            if (entry.query != null) line.append('?').apache(entry.query);
+            line.append(' ').apache(entry.protocol).append('"').append(' ');
+            line.append(entry.status).append(' ');
+            if (entry.length > 0) line.append(entry.length);
+            else line.append('-');
+        }
+    }
+
+    /* ====================================================================== */
+
+    /** The fields that can be included in {@link Format#JSON} lines. */
+    public enum Field {
+
+        /** The ISO-8601 time when the response was completed. */
+        TIMESTAMP {
+            @Override
+            void json(Entry entry, AccessLogLine line, Dates dates) {
+                dates.iso(entry.timestamp, line.append('"')).append('"');
+            }
+        },
+
+        /** The request method. */
+        METHOD {
+            @Override
+            void json(Entry entry, AccessLogLine line, Dates dates) {
+                line.json(entry.method);
+            }
+        },
+
+        /** The request URI, without query string. */
+        URI {
+            @Override
+            void json(Entry entry, AccessLogLine line, Dates dates) {
+                line.json(entry.uri);
+            }
+        },
+
+        /** The query string, if any. */
+        QUERY {
+            @Override
+            void json(Entry entry, AccessLogLine line, Dates dates) {
+                line.json(entry.query);
+            }
+        },
+
+        /** The request protocol. */
+        PROTOCOL {
+            @Override
+            void json(Entry entry, AccessLogLine line, Dates dates) {
+                line.json(entry.protocol);
+            }
+        },
+
+        /** The response status. */
+        STATUS {
+            @Override
+            void json(Entry entry, AccessLogLine line, Dates dates) {
+                line.append(entry.status);
+            }
+        },
+
+        /** The response content length, if known. */
+        BYTES {
+            @Override
+            void json(Entry entry, AccessLogLine line, Dates dates) {
+                if (entry.length < 0) line.json(null);
+                else line.append(entry.length);
+            }
+        },
+
+        /** The time taken to process the request, in microseconds. */
+        DURATION_US {
+            @Override
+            void json(Entry entry, AccessLogLine line, Dates dates) {
+                if (entry.duration < 0) line.json(null);
+                else line.append(entry.duration / 1000);
+            }
+        },
+
+        /** The address of the client. */
+        REMOTE_ADDRESS {
+            @Override
+            void json(Entry entry, AccessLogLine line, Dates dates) {
+                line.json(entry.remoteAddress);
+            }
+        },
+
+        /** The authenticated user, if any. */
+        REMOTE_USER {
+            @Override
+            void json(Entry entry, AccessLogLine line, Dates dates) {
+                line.json(entry.remoteUser);
+            }
+        },
+
+        /** The <code>Referer</code> header. */
+        REFERER {
+            @Override
+            void json(Entry entry, AccessLogLine line, Dates dates) {
+                line.json(entry.referer);
+            }
+        },
+
+        /** The <code>User-Agent</code> header. */
+        USER_AGENT {
+            @Override
+            void json(Entry entry, AccessLogLine line, Dates dates) {
+                line.json(entry.userAgent);
+            }
+        },
+
+        /** The name of the listener that received the request. */
+        LISTENER {
+            @Override
+            void json(Entry entry, AccessLogLine line, Dates dates) {
+                line.json(entry.listener);
+            }
+        },
+
+        /** The path the handler serving the request is deployed under. */
+        HANDLER {
+            @Override
+            void json(Entry entry, AccessLogLine line, Dates dates) {
+                /* Grizzly's context path for the root handler is empty */
+                line.json("".equals(entry.handler) ? "/" : entry.handler);
+            }
+        };
+
+        /* The quoted JSON name of this field, precomputed */
+        private final byte[] name = ('"' + name().toLowerCase() + '"').getBytes(UTF_8);
+
+        abstract void json(Entry entry, AccessLogLine line, Dates dates);
+
+        /**
+         * Parse a {@link Field} from its lower case name as it appears in
+         * JSON lines (for example <code>remote_address</code>).
+         */
+        public static Field parse(String name) {
+            try {
+                return valueOf(name.trim().toUpperCase());
+            } catch (IllegalArgumentException exception) {
+                throw new IllegalArgumentException("Unknown access log field \"" + name + "\"", exception);
+            }
+        }
+    }
+
+    /* ====================================================================== */
+
+    /* Formatted dates, cached as they change only once a second */
+    static final class Dates {
+
+        private final SimpleDateFormat apacheFormat;
+        private final SimpleDateFormat isoFormat;
+        private final AccessLogLine apache = new AccessLogLine(32);
+        private final AccessLogLine iso = new AccessLogLine(32);
+        private final AccessLogLine zone = new AccessLogLine(8);
+        private long apacheSecond = Long.MIN_VALUE;
+        private long isoSecond = Long.MIN_VALUE;
+
+        Dates(TimeZone timeZone) {
+            apacheFormat = new SimpleDateFormat("'['dd/MMM/yyyy:HH:mm:ss Z']'", Locale.US);
+            apacheFormat.setTimeZone(timeZone);
+            isoFormat = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss", Locale.US);
+            isoFormat.setTimeZone(timeZone);
+        }
+
+        /* [10/Oct/2000:13:55:36 -0700] */
+        AccessLogLine apache(long timestamp, AccessLogLine line) {
+            final long second = Math.floorDiv(timestamp, 1000);
+            if (second != apacheSecond) {
+                apacheSecond = second;
+                apache.reset().append(apacheFormat.format(new Date(timestamp)));
+            }
+            return line.append(apache);
+        }
+
+        /* 2000-10-10T13:55:36.123-07:00 */
+        AccessLogLine iso(long timestamp, AccessLogLine line) {
+            final long second = Math.floorDiv(timestamp, 1000);
+            if (second != isoSecond) {
+                isoSecond = second;
+                final Date date = new Date(timestamp);
+                iso.reset().append(isoFormat.format(date));
+
+                final int offset = isoFormat.getTimeZone().getOffset(timestamp) / 60000;
+                zone.reset();
+                if (offset == 0) zone.append('Z');
+                else zone.append(offset < 0 ? '-' : '+')
+                         .append(Math.abs(offset) / 60, 2).append(':')
+                         .append(Math.abs(offset) % 60, 2);
+            }
+            line.append(iso).append('.').append(Math.floorMod(timestamp, 1000), 3);
+            return line.append(zone);
+        }
+    }
+
+    /* ====================================================================== */
+
+    /* A slot in the ring, reused over and over by producers */
+    static final class Entry {
+
+        /* Written by producers, read by the writer thread after publish() */
+        String line;
+        long timestamp;
+        long duration;
+        String remoteAddress;
+        String remoteUser;
+        String method;
+        String uri;
+        String query;
+        String protocol;
+        int status;
+        long length;
+        String referer;
+        String userAgent;
+        String handler;
+        Object filter;
+
+        /* Resolved by the writer thread from the filter */
+        String listener;
+
+        /* The position this slot is available for, plus one once filled */
+        private volatile long sequence;
+
+        Entry(long sequence) {
+            this.sequence = sequence;
+        }
+
+        private void publish() {
+            sequence = sequence + 1;
+        }
+
+        private void release(long next) {
+            line = remoteAddress = remoteUser = uri = query = referer = userAgent = handler = listener = null;
+            filter = null;
+            sequence = next;
+        }
+    }
+
+    /* ====================================================================== */
+
+    /*
+     * Compress a file with GZIP, writing to a temporary file first so that
+     * no half-written archive is ever left behind, then delete the original.
+     */
+    static boolean compress(File file) {
+        final File target = new File(file.getPath() + ".gz");
+        final File temporary = new File(file.getPath() + ".gz.tmp");
+        try {
+            try (InputStream input = new FileInputStream(file);
+                 OutputStream output = new GZIPOutputStream(new FileOutputStream(temporary), 65536)) {
+                final byte[] buffer = new byte[65536];
+                int read;
+                while ((read = input.read(buffer)) >= 0) output.write(buffer, 0, read);
+            }
+
+            Files.move(temporary.toPath(), target.toPath(), REPLACE_EXISTING, ATOMIC_MOVE);
+            Files.delete(file.toPath());
+            log.debug("Compressed rotated access log \"%s\"", target);
+            return true;
+        } catch (IOException exception) {
+            log.error(exception, "Unable to compress rotated access log \"%s\"", file);
+            temporary.delete();
+            return false;
+        }
+    }
+
+    /* ====================================================================== */
+
+    /* Formats entries and writes them in batches, only ever on one thread */
+    private static final class Writer {
+
+        private final AccessLogLine line = new AccessLogLine();
+        private final Map<Object, String> listeners = new IdentityHashMap<>();
+        private final ByteBuffer buffer;
+
+        private final File file;
+        private final Format format;
+        private final Field[] fields;
+        private final Rotation rotation;
+        private final Calendar calendar;
+        private final Dates dates;
+        private final SimpleDateFormat suffixFormat;
+
+        private final LongAdder compressed = new LongAdder();
+        private ExecutorService compressor;
+        private volatile boolean compress;
+
+        private volatile HttpServer server;
+        private FileChannel channel;
+        private long rotateAt = Long.MAX_VALUE;
+        private long rotationStart;
+
+        private Writer(File file, Format format, Set<Field> fields, Rotation rotation, TimeZone timeZone, int bufferSize)
+        throws IOException {
+            this.file = notNull(file, "Null file").getAbsoluteFile();
+            this.format = notNull(format, "Null format");
+            this.fields = notNull(fields, "Null fields").toArray(new Field[fields.size()]);
+            this.rotation = notNull(rotation, "Null rotation");
+            if (bufferSize < 1024) throw new IllegalArgumentException("Buffer size " + bufferSize + " too small");
+
+            calendar = Calendar.getInstance(notNull(timeZone, "Null time zone"), Locale.US);
+            dates = new Dates(timeZone);
+            if (rotation.pattern != null) {
+                suffixFormat = new SimpleDateFormat(rotation.pattern, Locale.US);
+                suffixFormat.setTimeZone(timeZone);
+            } else {
+                suffixFormat = null;
+            }
+
+            buffer = ByteBuffer.allocateDirect(bufferSize);
+            open(System.currentTimeMillis());
+        }
+
+        private void open(long now)
+        throws IOException {
+            channel = FileChannel.open(file.toPath(), CREATE, WRITE, APPEND);
+            if (rotation.pattern == null) return;
+
+            /* Rotate at the start of the next day or hour */
+            calendar.setTimeInMillis(now);
+            calendar.set(Calendar.MILLISECOND, 0);
+            calendar.set(Calendar.SECOND, 0);
+            calendar.set(Calendar.MINUTE, 0);
+            if (rotation.field == Calendar.DAY_OF_MONTH) calendar.set(Calendar.HOUR_OF_DAY, 0);
+            rotationStart = calendar.getTimeInMillis();
+            calendar.add(rotation.field, 1);
+            rotateAt = calendar.getTimeInMillis();
+        }
+
+        private void rotate(long now)
+        throws IOException {
+            flush();
+            channel.close();
+
+            /* "access.log" becomes "access-20141231.log" */
+            final String name = file.getName();
+            final int dot = name.lastIndexOf('.');
+            final String suffix = suffixFormat.format(new Date(rotationStart));
+            final String archive = dot > 0 ? name.substring(0, dot) + "-" + suffix + name.substring(dot)
+                                           : name + "-" + suffix;
+            final File target = new File(file.getParentFile(), archive);
+            if (! file.renameTo(target)) {
+                /* Keep appending to the same file, and try again next time */
+                log.error("Unable to rename \"%s\" to \"%s\", not rotating", file, target);
+                open(now);
+                return;
+            }
+
+            open(now);
+            if (compress) compressor().execute(() -> {
+                if (compress(target)) compressed.increment();
+            });
+        }
+
+        private ExecutorService compressor() {
+            if (compressor == null) compressor = Executors.newSingleThreadExecutor((runnable) -> {
+                final Thread thread = new Thread(runnable, "AsyncAccessLog compressor [" + file.getName() + "]");
+                thread.setPriority(Thread.MIN_PRIORITY);
+                thread.setDaemon(true);
+                return thread;
+            });
+            return compressor;
+        }
+
+        /* Find the name of the listener whose filter chain includes a filter */
+        private String listener(Object filter) {
+            if ((filter == null) || (server == null)) return null;
+            if (listeners.containsKey(filter)) return listeners.get(filter);
+
+            String name = null;
+            for (NetworkListener listener: server.getListeners()) {
+                final FilterChain chain = listener.getFilterChain();
+                if ((chain != null) && chain.contains(filter)) name = listener.getName();
+            }
+            listeners.put(filter, name);
+            return name;
+        }
+
+        void write(Entry entry)
+        throws IOException {
+            final long timestamp = entry.timestamp;
+            if (timestamp >= rotateAt) rotate(timestamp);
+
+            line.reset();
+            if (entry.line != null) {
+                line.append(entry.line);
+            } else {
+                entry.listener = listener(entry.filter);
+                format.format(entry, line, dates, fields);
+            }
+            line.append('\n');
+
+            /* Copy our line in the buffer, writing it out when full */
+            int offset = 0;
+            while ((offset = line.copy(offset, buffer)) < line.length()) flush();
+        }
+
+        void flush()
+        throws IOException {
+            if (buffer.position() == 0) return;
+            buffer.flip();
+            while (buffer.hasRemaining()) channel.write(buffer);
+            buffer.clear();
+        }
+
+        void close() {
+            if (compressor != null) compressor.shutdown();
+            try {
+                flush();
+            } catch (IOException exception) {
+                log.error(exception, "Error flushing access log \"%s\"", file);
+            } finally {
+                try {
+                    channel.close();
+                } catch (IOException exception) {
+                    log.error(exception, "Error closing access log \"%s\"", file);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,94 @@
+/* ========================================================================== *
+ * Copyright 2014 USRZ.com and Pier Paolo Fumagalli                           *
+ * -------------------------------------------------------------------------- *
+ * Licensed under the Apache License, Version 2.0 (the "License");            *
+ * you may not use this file except in compliance with the License.           *
+ * You may obtain a copy of the License at                                    *
+ *                                                                            *
+ *  http://www.apache.org/licenses/LICENSE-2.0                                *
+ *                                                                            *
+ * Unless required by applicable law or agreed to in writing, software        *
+ * distributed under the License is distributed on an "AS IS" BASIS,          *
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.   *
+ * See the License for the specific language governing permissions and        *
+ * limitations under the License.                                             *
+ * ========================================================================== */
+package org.usrz.libs.httpd.inject;
+
+import java.util.concurrent.atomic.LongAdder;
+
+import org.glassfish.grizzly.Buffer;
+import org.glassfish.grizzly.Connection;
+import org.glassfish.grizzly.ConnectionProbe;
+import org.glassfish.grizzly.nio.transport.TCPNIOServerConnection;
+
+/**
+ * A {@link ConnectionProbe} counting connections and bytes transferred.
+ *
+ * @author <a href="mailto:pier@usrz.com">Pier Fumagalli</a>
+ */
+final class ConnectionCounters extends ConnectionProbe.Adapter {
+
+    private final LongAdder accepted = new LongAdder();
+    private final LongAdder closed = new LongAdder();
+    private final LongAdder errors = new LongAdder();
+    private final LongAdder bytesRead = new LongAdder();
+    private final LongAdder bytesWritten = new LongAdder();
+
+    ConnectionCounters() {
+        /* Nothing to do */
+    }
+
+    /* ====================================================================== */
+
+    long getAccepted() {
+        return accepted.sum();
+    }
+
+    long getClosed() {
+        return closed.sum();
+    }
+
+    long getOpen() {
+        return Math.max(0, accepted.sum() - closed.sum());
+    }
+
+    long getErrors() {
+        return errors.sum();
+    }
+
+    long getBytesRead() {
+        return bytesRead.sum();
+    }
+
+    long getBytesWritten() {
+        return bytesWritten.sum();
+    }
+
+    /* ====================================================================== */
+
+    @Override
+    public void onAcceptEvent(Connection serverConnection, Connection clientConnection) {
+        accepted.increment();
+    }
+
+    @Override
+    public void onCloseEvent(Connection connection) {
+        if (! (connection instanceof TCPNIOServerConnection)) closed.increment();
+    }
+
+    @Override
+    public void onErrorEvent(Connection connection, Throwable error) {
+        errors.increment();
+    }
+
+    @Override
+    public void onReadEvent(Connection connection, Buffer data, int size) {
+        if (size > 0) bytesRead.add(size);
+    }
+
+    @Override
+    public void onWriteEvent(Connection connection, Buffer data, long size) {
+        if (size > 0) bytesWritten.add(size);
+    }
+}
@@ -0,0 +1,112 @@
+/* ========================================================================== *
+ * Copyright 2014 USRZ.com and Pier Paolo Fumagalli                           *
+ * -------------------------------------------------------------------------- *
+ * Licensed under the Apache License, Version 2.0 (the "License");            *
+ * you may not use this file except in compliance with the License.           *
+ * You may obtain a copy of the License at                                    *
+ *                                                                            *
+ *  http://www.apache.org/licenses/LICENSE-2.0                                *
+ *                                                                            *
+ * Unless required by applicable law or agreed to in writing, software        *
+ * distributed under the License is distributed on an "AS IS" BASIS,          *
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.   *
+ * See the License for the specific language governing permissions and        *
+ * limitations under the License.                                             *
+ * ========================================================================== */
+package org.usrz.libs.httpd.inject;
+
+import static org.usrz.libs.utils.Check.notNull;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+import javax.inject.Singleton;
+
+import org.glassfish.grizzly.http.Note;
+import org.glassfish.grizzly.http.server.AfterServiceListener;
+import org.glassfish.grizzly.http.server.HttpHandler;
+import org.glassfish.grizzly.http.server.Request;
+import org.glassfish.grizzly.http.server.Response;
+
+import com.google.inject.Injector;
+
+/**
+ * Latency histograms of all {@link HttpHandler}s, by the path they are
+ * served at and by status class (<code>1xx</code> to <code>5xx</code>).
+ *
+ * <p>When bound in an {@link Injector}, handler providers
+ * {@linkplain HttpHandlerProvider#decorate(Injector, String, HttpHandler)
+ * wrap} their handlers before adding them to the server. Requests are
+ * timed from the moment they reach the handler until the response is
+ * completed, so suspended responses are measured correctly.</p>
+ *
+ * @author <a href="mailto:pier@usrz.com">Pier Fumagalli</a>
+ */
+@Singleton
+public class HandlerTimings {
+
+    private static final Note<Long> STARTED = Request.createNote(HandlerTimings.class.getName() + ".started");
+
+    private final Map<String, LatencyHistogram[]> histograms = new ConcurrentSkipListMap<>();
+
+    public HandlerTimings() {
+        /* Nothing to do */
+    }
+
+    /* ====================================================================== */
+
+    /** Wrap an {@link HttpHandler} timing its requests. */
+    public HttpHandler wrap(String path, HttpHandler handler) {
+        final LatencyHistogram[] histograms = new LatencyHistogram[ServerMetrics.STATUS_CLASSES.length];
+        for (int x = 0; x < histograms.length; x ++) histograms[x] = new LatencyHistogram();
+        if (this.histograms.putIfAbsent(notNull(path, "Null path"), histograms) != null)
+            throw new IllegalStateException("Handler at \"" + path + "\" already timed");
+        return new TimedHandler(notNull(handler, "Null handler"), histograms);
+    }
+
+    /* ====================================================================== */
+
+    /** The paths of all timed handlers, sorted. */
+    public Set<String> getPaths() {
+        return Collections.unmodifiableSet(histograms.keySet());
+    }
+
+    /**
+     * The {@link LatencyHistogram} for responses with the given status from
+     * the handler at the specified path, or <b>null</b>.
+     */
+    public LatencyHistogram getHistogram(String path, int status) {
+        final LatencyHistogram[] histograms = this.histograms.get(path);
+        return histograms == null ? null : histograms[ServerMetrics.statusClass(status)];
+    }
+
+    /* ====================================================================== */
+
+    private static final class TimedHandler extends HttpHandlerWrapper implements AfterServiceListener {
+
+        private final LatencyHistogram[] histograms;
+
+        private TimedHandler(HttpHandler handler, LatencyHistogram[] histograms) {
+            super(handler);
+            this.histograms = histograms;
+        }
+
+        @Override
+        public void service(Request request, Response response)
+        throws Exception {
+            request.setNote(STARTED, System.nanoTime());
+            request.addAfterServiceListener(this);
+            handler.service(request, response);
+        }
+
+        @Override
+        public void onAfterService(Request request) {
+            final Long started = request.getNote(STARTED);
+            if (started == null) return;
+            final long micros = (System.nanoTime() - started) / 1000;
+            histograms[ServerMetrics.statusClass(request.getResponse().getStatus())].record(micros);
+        }
+    }
+}
@@ -0,0 +1,108 @@
+/* ========================================================================== *
+ * Copyright 2014 USRZ.com and Pier Paolo Fumagalli                           *
+ * -------------------------------------------------------------------------- *
+ * Licensed under the Apache License, Version 2.0 (the "License");            *
+ * you may not use this file except in compliance with the License.           *
+ * You may obtain a copy of the License at                                    *
+ *                                                                            *
+ *  http://www.apache.org/licenses/LICENSE-2.0                                *
+ *                                                                            *
+ * Unless required by applicable law or agreed to in writing, software        *
+ * distributed under the License is distributed on an "AS IS" BASIS,          *
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.   *
+ * See the License for the specific language governing permissions and        *
+ * limitations under the License.                                             *
+ * ========================================================================== */
+package org.usrz.libs.httpd.inject;
+
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLSession;
+
+import org.glassfish.grizzly.Connection;
+import org.glassfish.grizzly.Grizzly;
+import org.glassfish.grizzly.attributes.Attribute;
+import org.glassfish.grizzly.filterchain.FilterChainBuilder;
+import org.glassfish.grizzly.http.server.AddOn;
+import org.glassfish.grizzly.http.server.NetworkListener;
+import org.glassfish.grizzly.ssl.SSLBaseFilter;
+import org.glassfish.grizzly.ssl.SSLBaseFilter.HandshakeListener;
+import org.glassfish.grizzly.ssl.SSLUtils;
+import org.usrz.libs.httpd.jfr.FlightEvents;
+import org.usrz.libs.httpd.jfr.TlsHandshakeEvent;
+import org.usrz.libs.logging.Log;
+
+/**
+ * An {@link AddOn} counting full and resumed TLS handshakes on a secure
+ * {@link NetworkListener}.
+ *
+ * <p>A handshake is considered <em>resumed</em> when the negotiated
+ * session was created before the handshake itself started. Creation times
+ * only have millisecond resolution, but this is enough: a full handshake
+ * never creates its session before it starts, while a resumed session
+ * (from a TLS 1.2 session ID or a TLS 1.3 pre-shared key) keeps the
+ * creation time of the earlier, completed, handshake that created it.</p>
+ *
+ * @author <a href="mailto:pier@usrz.com">Pier Fumagalli</a>
+ */
+public class HandshakeCounter implements AddOn, HandshakeListener {
+
+    private static final Attribute<Long> STARTED = Grizzly.DEFAULT_ATTRIBUTE_BUILDER.createAttribute(HandshakeCounter.class.getName() + ".started");
+
+    private final Log log = new Log();
+    private final LongAdder full = new LongAdder();
+    private final LongAdder resumed = new LongAdder();
+    private String listener;
+
+    public HandshakeCounter() {
+        /* Nothing to do */
+    }
+
+    /* ====================================================================== */
+
+    /** The number of full handshakes completed so far. */
+    public long getFullHandshakes() {
+        return full.sum();
+    }
+
+    /** The number of abbreviated (resumed) handshakes completed so far. */
+    public long getResumedHandshakes() {
+        return resumed.sum();
+    }
+
+    /* ====================================================================== */
+
+    @Override
+    public void setup(NetworkListener listener, FilterChainBuilder builder) {
+        this.listener = listener.getName();
+        final int index = builder.indexOfType(SSLBaseFilter.class);
+        if (index < 0) {
+            log.warn("No SSL filter found for listener \"%s\", not counting handshakes", listener.getName());
+        } else {
+            ((SSLBaseFilter) builder.get(index)).addHandshakeListener(this);
+        }
+    }
+
+    @Override
+    public void onStart(Connection connection) {
+        STARTED.set(connection, System.currentTimeMillis());
+        if (FlightEvents.AVAILABLE) TlsHandshakeEvent.begin(connection);
+    }
+
+    @Override
+    public void onComplete(Connection connection) {
+        final Long started = STARTED.remove(connection);
+        final SSLEngine engine = SSLUtils.getSSLEngine(connection);
+        final SSLSession session = engine == null ? null : engine.getSession();
+
+        final boolean abbreviated = (started != null) && (session != null) && (session.getCreationTime() < started);
+        if (abbreviated) {
+            resumed.increment();
+        } else {
+            full.increment();
+        }
+
+        if (FlightEvents.AVAILABLE) TlsHandshakeEvent.end(connection, listener, abbreviated, session);
+    }
+}
@@ -59,7 +59,7 @@ public class HttpHandlerProvider implements Provider<HttpHandler> {
             httpHandler = handler;
         }
 
-        server.getServerConfiguration().addHttpHandler(httpHandler, path);
+        server.getServerConfiguration().addHttpHandler(decorate(injector, path, httpHandler), path);
         log.info("Serving \"%s\" using handler %s", path, httpHandler.getClass().getName());
     }
 
@@ -70,6 +70,26 @@ public class HttpHandlerProvider implements Provider<HttpHandler> {
 
     /* ====================================================================== */
 
+    /**
+     * Wrap an {@link HttpHandler} about to be served at the specified path
+     * with whatever {@link SlowRequestWatchdog} and {@link HandlerTimings}
+     * are bound in the {@link Injector}, registering its MBean if
+     * {@link ServerMBeans} are bound, too.
+     */
+    public static HttpHandler decorate(Injector injector, String path, HttpHandler handler) {
+        if (injector.getExistingBinding(Key.get(ServerMBeans.class)) != null)
+            injector.getInstance(ServerMBeans.class).register(path, handler);
+
+        HttpHandler decorated = handler;
+        if (injector.getExistingBinding(Key.get(SlowRequestWatchdog.class)) != null)
+            decorated = injector.getInstance(SlowRequestWatchdog.class).wrap(path, decorated);
+        if (injector.getExistingBinding(Key.get(HandlerTimings.class)) != null)
+            decorated = injector.getInstance(HandlerTimings.class).wrap(path, decorated);
+        return decorated;
+    }
+
+    /* ---------------------------------------------------------------------- */
+
     public static final HttpHandlerPath handlerPath(String path) {
         return new HttpHandlerPathImpl(notNull(path, "Null path"));
     }
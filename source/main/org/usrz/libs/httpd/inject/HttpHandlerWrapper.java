@@ -0,0 +1,66 @@
+/* ========================================================================== *
+ * Copyright 2014 USRZ.com and Pier Paolo Fumagalli                           *
+ * -------------------------------------------------------------------------- *
+ * Licensed under the Apache License, Version 2.0 (the "License");            *
+ * you may not use this file except in compliance with the License.           *
+ * You may obtain a copy of the License at                                    *
+ *                                                                            *
+ *  http://www.apache.org/licenses/LICENSE-2.0                                *
+ *                                                                            *
+ * Unless required by applicable law or agreed to in writing, software        *
+ * distributed under the License is distributed on an "AS IS" BASIS,          *
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.   *
+ * See the License for the specific language governing permissions and        *
+ * limitations under the License.                                             *
+ * ========================================================================== */
+package org.usrz.libs.httpd.inject;
+
+import static org.usrz.libs.utils.Check.notNull;
+
+import org.glassfish.grizzly.http.server.HttpHandler;
+import org.glassfish.grizzly.http.server.RequestExecutorProvider;
+
+/**
+ * An {@link HttpHandler} wrapping another one.
+ *
+ * <p>Grizzly applies some of the settings of a handler (URI decoding and
+ * custom status messages) in <code>doHandle(...)</code>, on the instance
+ * registered with the server: wrappers copy them from the handler, and
+ * forward its lifecycle.</p>
+ *
+ * @author <a href="mailto:pier@usrz.com">Pier Fumagalli</a>
+ */
+abstract class HttpHandlerWrapper extends HttpHandler {
+
+    /** The wrapped {@link HttpHandler}. */
+    protected final HttpHandler handler;
+
+    protected HttpHandlerWrapper(HttpHandler handler) {
+        super(notNull(handler, "Null handler").getName());
+        this.handler = handler;
+
+        setAllowCustomStatusMessage(handler.isAllowCustomStatusMessage());
+        setAllowEncodedSlash(handler.isAllowEncodedSlash());
+        setRequestURIEncoding(handler.getRequestURIEncoding());
+    }
+
+    @Override
+    public void start() {
+        handler.start();
+    }
+
+    @Override
+    public void destroy() {
+        handler.destroy();
+    }
+
+    @Override
+    public RequestExecutorProvider getRequestExecutorProvider() {
+        return handler.getRequestExecutorProvider();
+    }
+
+    @Override
+    public String toString() {
+        return handler.toString();
+    }
+}
@@ -15,6 +15,13 @@
  * ========================================================================== */
 package org.usrz.libs.httpd.inject;
 
+import static org.usrz.libs.utils.Check.notNull;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
 import javax.inject.Singleton;
 
 import org.glassfish.grizzly.Grizzly;
@@ -22,6 +29,8 @@ import org.glassfish.grizzly.http.server.ErrorPageGenerator;
 import org.glassfish.grizzly.http.server.HttpServer;
 import org.glassfish.grizzly.http.server.ServerConfiguration;
 import org.usrz.libs.configurations.Configurations;
+import org.usrz.libs.httpd.jfr.FlightEvents;
+import org.usrz.libs.httpd.jfr.RequestEvent;
 import org.usrz.libs.logging.Log;
 import org.usrz.libs.utils.inject.ConfigurableProvider;
 
@@ -30,6 +39,7 @@ public class HttpServerProvider extends ConfigurableProvider<HttpServer> {
 
     private final Log log = new Log();
 
+    private final List<Closeable> closeables = new ArrayList<>();
     private ErrorPageGenerator defaultErrorPageGenerator;
     private HttpServer server;
 
@@ -41,7 +51,14 @@ public class HttpServerProvider extends ConfigurableProvider<HttpServer> {
     protected HttpServer get(Configurations configurations) {
         if (server != null) return server;
 
-        final HttpServer server = new HttpServer();
+        /* Grizzly destroys handlers on shutdown, we close everything else */
+        final HttpServer server = new HttpServer() {
+            @Override
+            public synchronized void shutdownNow() {
+                super.shutdownNow();
+                closeAll();
+            }
+        };
 
         /* Get our configurations */
         final ServerConfiguration configuration = server.getServerConfiguration();
@@ -60,6 +77,16 @@ public class HttpServerProvider extends ConfigurableProvider<HttpServer> {
         configuration.setPassTraceRequest(false);
         configuration.setTraceEnabled(false);
 
+        /* Grizzly's own MBeans, along with ours (see ServerMBeans) */
+        if (configurations.get("jmx", false)) {
+            if (isGrizzlyJmxAvailable()) configuration.setJmxEnabled(true);
+            else log.warn("Grizzly monitoring modules not in the class path, registering our MBeans only");
+        }
+
+        /* Flight recorder events, costing nothing until a recording starts */
+        if (FlightEvents.AVAILABLE && configurations.get("flight_recorder", true))
+            configuration.getMonitoringConfig().getWebServerConfig().addProbes(new RequestEvent.Probe());
+
         /* Log something */
         log.info("Created server %s/%s with name \"%s\"",
                         configuration.getHttpServerName(),
@@ -69,4 +96,41 @@ public class HttpServerProvider extends ConfigurableProvider<HttpServer> {
         /* Done */
         return this.server = server;
     }
+
+    /**
+     * Close the specified {@link Closeable} (after all the listeners and
+     * handlers) when the {@link HttpServer} shuts down.
+     */
+    public synchronized void closeOnShutdown(Closeable closeable) {
+        closeables.add(notNull(closeable, "Null closeable"));
+    }
+
+    /* Close in reverse order of registration, and only once */
+    private void closeAll() {
+        final List<Closeable> closeables;
+        synchronized (this) {
+            closeables = new ArrayList<>(this.closeables);
+            this.closeables.clear();
+        }
+
+        for (int x = closeables.size() - 1; x >= 0; x --) try {
+            closeables.get(x).close();
+        } catch (IOException | RuntimeException exception) {
+            log.error(exception, "Exception closing %s on shutdown", closeables.get(x));
+        }
+    }
+
+    /* ====================================================================== */
+
+    /* Without all its monitoring modules, Grizzly fails starting the server */
+    private static boolean isGrizzlyJmxAvailable() {
+        try {
+            Class.forName("org.glassfish.grizzly.nio.transport.jmx.TCPNIOTransport");
+            Class.forName("org.glassfish.grizzly.http.jmx.KeepAlive");
+            Class.forName("org.glassfish.grizzly.http.server.jmx.HttpServer");
+            return true;
+        } catch (ClassNotFoundException exception) {
+            return false;
+        }
+    }
 }
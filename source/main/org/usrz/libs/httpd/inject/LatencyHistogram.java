@@ -0,0 +1,140 @@
+/* ========================================================================== *
+ * Copyright 2014 USRZ.com and Pier Paolo Fumagalli                           *
+ * -------------------------------------------------------------------------- *
+ * Licensed under the Apache License, Version 2.0 (the "License");            *
+ * you may not use this file except in compliance with the License.           *
+ * You may obtain a copy of the License at                                    *
+ *                                                                            *
+ *  http://www.apache.org/licenses/LICENSE-2.0                                *
+ *                                                                            *
+ * Unless required by applicable law or agreed to in writing, software        *
+ * distributed under the License is distributed on an "AS IS" BASIS,          *
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.   *
+ * See the License for the specific language governing permissions and        *
+ * limitations under the License.                                             *
+ * ========================================================================== */
+package org.usrz.libs.httpd.inject;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A lock-free histogram of latencies in microseconds, in fixed memory.
+ *
+ * <p>Buckets are log-linear: every power of two is split in 16 buckets of
+ * equal width, so that quantiles are never off by more than 1/16th (6.25%)
+ * of their value. Latencies from 0 up to about 38 hours are tracked in 560
+ * counters, longer ones are counted in the last bucket.</p>
+ *
+ * @author <a href="mailto:pier@usrz.com">Pier Fumagalli</a>
+ */
+public final class LatencyHistogram {
+
+    private static final int SUB_BITS = 4;
+    private static final int SUB_BUCKETS = 1 << SUB_BITS;
+    private static final int MAX_EXPONENT = 37;
+    private static final int BUCKETS = (MAX_EXPONENT - SUB_BITS + 1) * SUB_BUCKETS + SUB_BUCKETS;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+
+    /** Create a new, empty {@link LatencyHistogram}. */
+    public LatencyHistogram() {
+        /* Nothing to do */
+    }
+
+    /* ====================================================================== */
+
+    /** Record a latency in microseconds, negative values count as zero. */
+    public void record(long micros) {
+        if (micros < 0) micros = 0;
+        buckets.incrementAndGet(bucket(micros));
+        count.increment();
+        sum.add(micros);
+    }
+
+    /** The number of latencies recorded. */
+    public long getCount() {
+        return count.sum();
+    }
+
+    /** The sum of all latencies recorded, in microseconds. */
+    public long getSum() {
+        return sum.sum();
+    }
+
+    /**
+     * Return the latency (in microseconds) below which the specified
+     * fraction of all recorded latencies fall, or <code>0</code> if nothing
+     * was recorded yet.
+     */
+    public long getQuantile(double quantile) {
+        if ((quantile < 0) || (quantile > 1))
+            throw new IllegalArgumentException("Quantile " + quantile + " not between 0 and 1");
+
+        /* Count what we have now, as other threads keep on recording */
+        long total = 0;
+        for (int x = 0; x < BUCKETS; x ++) total += buckets.get(x);
+        if (total == 0) return 0;
+
+        final long rank = Math.max(1, (long) Math.ceil(quantile * total));
+        long seen = 0;
+        for (int x = 0; x < BUCKETS; x ++) {
+            seen += buckets.get(x);
+            if (seen >= rank) return highest(x);
+        }
+        return highest(BUCKETS - 1);
+    }
+
+    /**
+     * Return the latency (in microseconds) below which the specified
+     * fraction of all latencies recorded by all the given histograms fall,
+     * or <code>0</code> if nothing was recorded yet.
+     *
+     * <p>Unlike {@link #getQuantile(double)} this allocates a scratch copy
+     * of all buckets, and is meant for occasional reads.</p>
+     */
+    public static long getQuantile(double quantile, LatencyHistogram... histograms) {
+        if ((quantile < 0) || (quantile > 1))
+            throw new IllegalArgumentException("Quantile " + quantile + " not between 0 and 1");
+
+        /* Count what we have now, as other threads keep on recording */
+        final long[] counts = new long[BUCKETS];
+        long total = 0;
+        for (LatencyHistogram histogram: histograms) {
+            for (int x = 0; x < BUCKETS; x ++) {
+                final long count = histogram.buckets.get(x);
+                counts[x] += count;
+                total += count;
+            }
+        }
+        if (total == 0) return 0;
+
+        final long rank = Math.max(1, (long) Math.ceil(quantile * total));
+        long seen = 0;
+        for (int x = 0; x < BUCKETS; x ++) {
+            seen += counts[x];
+            if (seen >= rank) return highest(x);
+        }
+        return highest(BUCKETS - 1);
+    }
+
+    /* ====================================================================== */
+
+    /* The first 32 buckets are one microsecond wide, then they double */
+    static int bucket(long micros) {
+        if (micros < SUB_BUCKETS << 1) return (int) micros;
+        final int exponent = 63 - Long.numberOfLeadingZeros(micros);
+        if (exponent > MAX_EXPONENT) return BUCKETS - 1;
+        return ((exponent - SUB_BITS) << SUB_BITS) + (int) (micros >>> (exponent - SUB_BITS));
+    }
+
+    /* The highest latency counted in a bucket */
+    static long highest(int bucket) {
+        if (bucket < SUB_BUCKETS << 1) return bucket;
+        final int shift = (bucket >> SUB_BITS) - 1;
+        final long mantissa = (bucket & (SUB_BUCKETS - 1)) + SUB_BUCKETS;
+        return ((mantissa + 1) << shift) - 1;
+    }
+}
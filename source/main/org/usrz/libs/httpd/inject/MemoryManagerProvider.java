@@ -0,0 +1,128 @@
+/* ========================================================================== *
+ * Copyright 2014 USRZ.com and Pier Paolo Fumagalli                           *
+ * -------------------------------------------------------------------------- *
+ * Licensed under the Apache License, Version 2.0 (the "License");            *
+ * you may not use this file except in compliance with the License.           *
+ * You may obtain a copy of the License at                                    *
+ *                                                                            *
+ *  http://www.apache.org/licenses/LICENSE-2.0                                *
+ *                                                                            *
+ * Unless required by applicable law or agreed to in writing, software        *
+ * distributed under the License is distributed on an "AS IS" BASIS,          *
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.   *
+ * See the License for the specific language governing permissions and        *
+ * limitations under the License.                                             *
+ * ========================================================================== */
+package org.usrz.libs.httpd.inject;
+
+import javax.inject.Singleton;
+
+import org.glassfish.grizzly.memory.AbstractMemoryManager;
+import org.glassfish.grizzly.memory.ByteBufferManager;
+import org.glassfish.grizzly.memory.HeapMemoryManager;
+import org.glassfish.grizzly.memory.MemoryManager;
+import org.glassfish.grizzly.memory.PooledMemoryManager;
+import org.usrz.libs.configurations.Configurations;
+import org.usrz.libs.logging.Log;
+import org.usrz.libs.utils.inject.ConfigurableProvider;
+
+/**
+ * A provider for the {@link MemoryManager} shared by the transports of
+ * all listeners of a server, configured by the server's
+ * <code>memory</code> group.
+ *
+ * <p>The <code>type</code> key selects the memory manager:</p>
+ *
+ * <ul>
+ * <li><code>default</code>: Grizzly's JVM-wide default.</li>
+ * <li><code>heap</code>: a {@link HeapMemoryManager} with thread-local
+ *     pools of <code>thread_pool_size</code> bytes.</li>
+ * <li><code>direct</code>: a {@link ByteBufferManager} allocating direct
+ *     buffers, with thread-local pools of <code>thread_pool_size</code>
+ *     bytes serving buffers up to <code>small_buffer_size</code>.</li>
+ * <li><code>pooled</code>: a {@link PooledMemoryManager} with
+ *     <code>pools</code> global pools, the smallest holding buffers of
+ *     <code>base_buffer_size</code> bytes, each next one
+ *     <code>growth_factor</code> times bigger, split in
+ *     <code>slices</code> to reduce contention, and altogether taking
+ *     a <code>heap_fraction</code> of the maximum heap, of which a
+ *     <code>preallocated_fraction</code> is allocated upfront (both
+ *     between 0 and 1); buffers are <code>direct</code> if so
+ *     configured.</li>
+ * </ul>
+ *
+ * <p>Allocations by memory managers created here are counted in
+ * {@link MemoryStatistics}. Grizzly's <code>default</code> manager is
+ * shared by the whole JVM, so it is left alone and not counted.</p>
+ *
+ * @author <a href="mailto:pier@usrz.com">Pier Fumagalli</a>
+ */
+@Singleton
+public class MemoryManagerProvider extends ConfigurableProvider<MemoryManager> {
+
+    private final Log log = new Log();
+    private volatile MemoryStatistics statistics;
+    private MemoryManager<?> memoryManager;
+
+    public MemoryManagerProvider() {
+        super(HttpServerConfigurations.class);
+    }
+
+    /**
+     * The {@link MemoryStatistics} of the {@link MemoryManager}, or
+     * <b>null</b> if not yet created or if it is Grizzly's default.
+     */
+    public MemoryStatistics getStatistics() {
+        return statistics;
+    }
+
+    /* ====================================================================== */
+
+    @Override
+    protected MemoryManager get(Configurations configurations) {
+        if (memoryManager != null) return memoryManager;
+
+        final Configurations memory = configurations.strip("memory");
+        final String type = memory.get("type", "default");
+        final MemoryManager<?> memoryManager = create(type, memory);
+
+        /* Never add probes to the JVM-wide default, only to our own */
+        if (memoryManager != MemoryManager.DEFAULT_MEMORY_MANAGER) {
+            final MemoryStatistics statistics = new MemoryStatistics();
+            memoryManager.getMonitoringConfig().addProbes(statistics);
+            this.statistics = statistics;
+        }
+
+        log.info("Using %s memory manager %s", type, memoryManager.getClass().getName());
+        return this.memoryManager = memoryManager;
+    }
+
+    static MemoryManager<?> create(String type, Configurations memory) {
+        final int threadPoolSize = memory.get("thread_pool_size", AbstractMemoryManager.DEFAULT_MAX_BUFFER_SIZE);
+
+        switch (type.toLowerCase()) {
+            case "default":
+                return MemoryManager.DEFAULT_MEMORY_MANAGER;
+
+            case "heap":
+                return new HeapMemoryManager(threadPoolSize);
+
+            case "direct":
+                final int smallBufferSize = memory.get("small_buffer_size", ByteBufferManager.DEFAULT_SMALL_BUFFER_SIZE);
+                if (smallBufferSize > threadPoolSize) throw new IllegalArgumentException("Small buffer size " + smallBufferSize + " exceeds thread pool size " + threadPoolSize);
+                return new ByteBufferManager(true, threadPoolSize, smallBufferSize);
+
+            case "pooled":
+                return new PooledMemoryManager(memory.get("base_buffer_size", PooledMemoryManager.DEFAULT_BASE_BUFFER_SIZE),
+                                               memory.get("pools", PooledMemoryManager.DEFAULT_NUMBER_OF_POOLS),
+                                               memory.get("growth_factor", PooledMemoryManager.DEFAULT_GROWTH_FACTOR),
+                                               memory.get("slices", Runtime.getRuntime().availableProcessors()),
+                                               (float) memory.get("heap_fraction", (double) PooledMemoryManager.DEFAULT_HEAP_USAGE_PERCENTAGE),
+                                               (float) memory.get("preallocated_fraction", (double) PooledMemoryManager.DEFAULT_PREALLOCATED_BUFFERS_PERCENTAGE),
+                                               memory.get("direct", false));
+
+            default:
+                throw new IllegalArgumentException("Unsupported memory manager type \"" + type + "\" (must be \"default\", \"heap\", \"direct\" or \"pooled\")");
+        }
+    }
+}
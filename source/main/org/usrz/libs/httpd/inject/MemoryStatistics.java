@@ -0,0 +1,112 @@
+/* ========================================================================== *
+ * Copyright 2014 USRZ.com and Pier Paolo Fumagalli                           *
+ * -------------------------------------------------------------------------- *
+ * Licensed under the Apache License, Version 2.0 (the "License");            *
+ * you may not use this file except in compliance with the License.           *
+ * You may obtain a copy of the License at                                    *
+ *                                                                            *
+ *  http://www.apache.org/licenses/LICENSE-2.0                                *
+ *                                                                            *
+ * Unless required by applicable law or agreed to in writing, software        *
+ * distributed under the License is distributed on an "AS IS" BASIS,          *
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.   *
+ * See the License for the specific language governing permissions and        *
+ * limitations under the License.                                             *
+ * ========================================================================== */
+package org.usrz.libs.httpd.inject;
+
+import java.util.concurrent.atomic.LongAdder;
+
+import org.glassfish.grizzly.memory.MemoryManager;
+import org.glassfish.grizzly.memory.MemoryProbe;
+
+/**
+ * A {@link MemoryProbe} counting buffers allocated by a
+ * {@link MemoryManager}, either freshly or from its pools, and returned
+ * to its pools.
+ *
+ * @author <a href="mailto:pier@usrz.com">Pier Fumagalli</a>
+ */
+public class MemoryStatistics implements MemoryProbe {
+
+    private final LongAdder allocated = new LongAdder();
+    private final LongAdder allocatedBytes = new LongAdder();
+    private final LongAdder pooled = new LongAdder();
+    private final LongAdder pooledBytes = new LongAdder();
+    private final LongAdder released = new LongAdder();
+    private final LongAdder releasedBytes = new LongAdder();
+
+    public MemoryStatistics() {
+        /* Nothing to do */
+    }
+
+    /* ====================================================================== */
+
+    /** The number of buffers allocated outside of any pool. */
+    public long getAllocatedBuffers() {
+        return allocated.sum();
+    }
+
+    /** The number of bytes allocated outside of any pool. */
+    public long getAllocatedBytes() {
+        return allocatedBytes.sum();
+    }
+
+    /** The number of buffers taken from a pool. */
+    public long getPooledBuffers() {
+        return pooled.sum();
+    }
+
+    /** The number of bytes taken from a pool. */
+    public long getPooledBytes() {
+        return pooledBytes.sum();
+    }
+
+    /** The number of buffers returned to a pool. */
+    public long getReleasedBuffers() {
+        return released.sum();
+    }
+
+    /** The number of bytes returned to a pool. */
+    public long getReleasedBytes() {
+        return releasedBytes.sum();
+    }
+
+    /**
+     * The fraction (between 0 and 1) of all allocations served by a pool,
+     * or zero if nothing was allocated yet.
+     */
+    public double getPoolHitRatio() {
+        final long pooled = this.pooled.sum();
+        final long total = pooled + allocated.sum();
+        return total == 0 ? 0 : (double) pooled / total;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s[allocated=%d/%d,pooled=%d/%d,released=%d/%d]", getClass().getSimpleName(),
+                             getAllocatedBuffers(), getAllocatedBytes(),
+                             getPooledBuffers(), getPooledBytes(),
+                             getReleasedBuffers(), getReleasedBytes());
+    }
+
+    /* ====================================================================== */
+
+    @Override
+    public void onBufferAllocateEvent(int size) {
+        allocated.increment();
+        allocatedBytes.add(size);
+    }
+
+    @Override
+    public void onBufferAllocateFromPoolEvent(int size) {
+        pooled.increment();
+        pooledBytes.add(size);
+    }
+
+    @Override
+    public void onBufferReleaseToPoolEvent(int size) {
+        released.increment();
+        releasedBytes.add(size);
+    }
+}
@@ -15,35 +15,115 @@
  * ========================================================================== */
 package org.usrz.libs.httpd.inject;
 
+import static java.util.concurrent.TimeUnit.SECONDS;
 import static org.glassfish.grizzly.http.server.NetworkListener.DEFAULT_NETWORK_HOST;
 import static org.glassfish.grizzly.http.server.NetworkListener.DEFAULT_NETWORK_PORT;
 import static org.usrz.libs.utils.Check.notNull;
 
 import java.io.IOException;
 import java.security.GeneralSecurityException;
-import java.security.KeyStore;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.StringTokenizer;
+import java.util.TreeMap;
+import java.util.zip.Deflater;
 
 import javax.inject.Inject;
 import javax.inject.Provider;
 import javax.inject.Singleton;
-import javax.net.ssl.KeyManagerFactory;
 import javax.net.ssl.SSLContext;
-import javax.net.ssl.TrustManagerFactory;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLParameters;
 
+import org.glassfish.grizzly.IOStrategy;
+import org.glassfish.grizzly.http.CompressionConfig;
+import org.glassfish.grizzly.http.CompressionConfig.CompressionMode;
+import org.glassfish.grizzly.http.KeepAlive;
 import org.glassfish.grizzly.http.server.HttpServer;
 import org.glassfish.grizzly.http.server.NetworkListener;
+import org.glassfish.grizzly.memory.MemoryManager;
+import org.glassfish.grizzly.nio.transport.TCPNIOTransport;
 import org.glassfish.grizzly.ssl.SSLEngineConfigurator;
+import org.glassfish.grizzly.strategies.LeaderFollowerNIOStrategy;
+import org.glassfish.grizzly.strategies.SameThreadIOStrategy;
+import org.glassfish.grizzly.strategies.SimpleDynamicNIOStrategy;
+import org.glassfish.grizzly.strategies.WorkerThreadIOStrategy;
+import org.glassfish.grizzly.threadpool.ThreadPoolConfig;
 import org.usrz.libs.configurations.Configurations;
-import org.usrz.libs.configurations.Password;
-import org.usrz.libs.crypto.utils.KeyStoreBuilder;
 import org.usrz.libs.logging.Log;
 
 import com.google.inject.Injector;
+import com.google.inject.Key;
 import com.google.inject.ProvisionException;
 
+/**
+ * A {@link Provider} for Grizzly {@link NetworkListener}s.
+ *
+ * <p>Other than <code>host</code>, <code>port</code>, <code>name</code>
+ * and the <code>secure</code> flag (with its <code>keystore</code> group),
+ * the listener's transport can be tuned with <code>io_strategy</code>
+ * (<code>worker_thread</code>, <code>same_thread</code>,
+ * <code>leader_follower</code> or <code>dynamic</code>),
+ * <code>selectors</code>, <code>tcp_no_delay</code>,
+ * <code>reuse_address</code>, <code>backlog</code>,
+ * <code>receive_buffer_size</code> and <code>send_buffer_size</code>.</p>
+ *
+ * <p>Secure listeners use the <code>keystore</code> group and/or all the
+ * groups under <code>keystores</code> (or an injected {@link SSLContext}),
+ * shared through the {@link SSLContextCache}, which also applies the
+ * <code>session</code> group. With more than one certificate, these are
+ * selected by SNI host name and key type. Enabled <code>protocols</code>
+ * (default <code>TLSv1.3,TLSv1.2</code>) and <code>cipher_suites</code>
+ * (default: the JVM's own) are comma-separated lists, in order of
+ * preference (unless <code>cipher_suites_order</code> is false). Secure
+ * listeners also count their handshakes with a {@link HandshakeCounter}.
+ * Key store files are checked for changes every
+ * <code>keystore_reload_interval</code> seconds (default 60, zero to never
+ * check) and rotated certificates are used for new handshakes.</p>
+ *
+ * <p>The <code>worker_pool</code> group (<code>core_size</code>,
+ * <code>max_size</code>, <code>queue_limit</code> and
+ * <code>idle_timeout</code> in seconds) configures worker threads, which
+ * can be replaced by {@linkplain VirtualThreadExecutor virtual threads}
+ * with <code>virtual_threads</code> (limited to <code>max_concurrency</code>
+ * concurrent requests, default 4096, zero for no limit), and
+ * the <code>keep_alive</code> group (<code>max_requests</code> and
+ * <code>idle_timeout</code> in seconds) HTTP keep-alive. Anything not
+ * configured keeps Grizzly's defaults. Buffers are allocated by the
+ * server's {@link MemoryManager} (see {@link MemoryManagerProvider}).</p>
+ *
+ * <p>Requests are limited by <code>max_header_size</code> (in bytes),
+ * <code>max_request_headers</code>, <code>max_body_size</code> (in bytes,
+ * default unlimited), <code>max_form_post_size</code> (form parameters
+ * parsed from the body) and <code>max_buffered_post_size</code> (bytes
+ * buffered for a handler not reading its body yet), where oversized
+ * headers and bodies are rejected early by {@link RequestLimits}.</p>
+ *
+ * <p>A non-empty <code>compression</code> group enables GZIP compression
+ * of responses (see {@link ResponseCompression}). Its keys are
+ * <code>mode</code> (<code>on</code>, the default, <code>off</code> or
+ * <code>force</code>), <code>min_size</code> (default 1024),
+ * <code>mime_types</code> (comma-separated prefixes, by default all
+ * <code>text/*</code>, JSON, JavaScript, XML and SVG),
+ * <code>excluded_user_agents</code> (comma-separated strings matched
+ * anywhere in the <code>User-Agent</code>) and <code>level</code> (from
+ * 1 to 9, default 6). Images are not compressible by default, and
+ * responses already carrying a <code>Content-Encoding</code> (like
+ * precompressed static files) are never compressed again.</p>
+ *
+ * @author <a href="mailto:pier@usrz.com">Pier Fumagalli</a>
+ */
 @Singleton
 public class NetworkListenerProvider implements Provider<NetworkListener> {
 
+    private static final String DEFAULT_PROTOCOLS = "TLSv1.3,TLSv1.2";
+    private static final String DEFAULT_COMPRESSIBLE_TYPES = "text/,application/javascript,application/json,"
+                                                           + "application/xml,application/xhtml+xml,"
+                                                           + "image/svg+xml";
+
     private final Log log = new Log();
 
     private final Configurations configurations;
@@ -52,6 +132,8 @@ public class NetworkListenerProvider implements Provider<NetworkListener> {
     private final int port;
 
     private NetworkListener listener;
+    private HandshakeCounter handshakes;
+    private RequestLimits limits;
 
     public NetworkListenerProvider(Configurations configurations) {
         this.configurations = notNull(configurations, "Null configurations");
@@ -67,13 +149,42 @@ public class NetworkListenerProvider implements Provider<NetworkListener> {
         return name;
     }
 
+    /** The {@link RequestLimits} enforced by this listener. */
+    public RequestLimits getRequestLimits() {
+        return limits;
+    }
+
+    /** The {@link HandshakeCounter} of a secure listener, or <b>null</b>. */
+    public HandshakeCounter getHandshakeCounter() {
+        return handshakes;
+    }
+
+    /** The {@link VirtualThreadExecutor} of this listener, or <b>null</b>. */
+    public VirtualThreadExecutor getVirtualThreadExecutor() {
+        if (listener == null) return null;
+        final Object pool = listener.getTransport().getWorkerThreadPool();
+        return pool instanceof VirtualThreadExecutor ? (VirtualThreadExecutor) pool : null;
+    }
+
     @Inject
-    private void setup(Injector injector, HttpServer server) {
+    private void setup(Injector injector, HttpServer server, MemoryManager memoryManager) {
 
         /* Start by creating our listener */
         listener = new NetworkListener(name, host, port);
         listener.setUriEncoding("UTF-8");
 
+        /* Tune our transport, thread pool and keep-alive */
+        listener.getTransport().setMemoryManager(memoryManager);
+        configureTransport(listener);
+
+        /* Header and body size limits, rejected before reaching handlers */
+        listener.setMaxHttpHeaderSize(configurations.get("max_header_size", listener.getMaxHttpHeaderSize()));
+        listener.setMaxRequestHeaders(configurations.get("max_request_headers", listener.getMaxRequestHeaders()));
+        listener.setMaxFormPostSize(configurations.get("max_form_post_size", listener.getMaxFormPostSize()));
+        listener.setMaxBufferedPostSize(configurations.get("max_buffered_post_size", listener.getMaxBufferedPostSize()));
+        limits = new RequestLimits(configurations.get("max_body_size", -1L));
+        listener.registerAddOn(limits);
+
         final boolean secure = configurations.get("secure", false);
         if (secure) {
 
@@ -81,58 +192,65 @@ public class NetworkListenerProvider implements Provider<NetworkListener> {
             final boolean needClientAuth = configurations.get("need_client_auth", false);
 
             final SSLContext sslContext;
+            final Configurations sessionConfig = configurations.strip("session");
+
+            /* A single "keystore" comes first, then all "keystores" by name */
+            final List<Configurations> keyStoreConfigs = new ArrayList<>();
             final Configurations keyStoreConfig = configurations.strip("keystore");
+            if (! keyStoreConfig.isEmpty()) keyStoreConfigs.add(keyStoreConfig);
+            keyStoreConfigs.addAll(new TreeMap<>(configurations.group("keystores")).values());
 
-            if (keyStoreConfig.isEmpty()) {
+            if (keyStoreConfigs.isEmpty()) {
 
                 /* If we don't have a keystore configuration, we MUST have a SSL context */
-                sslContext = injector.getInstance(SSLContext.class);
+                sslContext = injector.getInstance(SSLContextCache.class).configure(injector.getInstance(SSLContext.class), sessionConfig);
 
             } else try {
 
-                /* Start building a KeyStore */
-                final KeyStore keyStore = new KeyStoreBuilder().withConfiguration(keyStoreConfig).build();
-
-                /* We can't use a callback handler (for key store or key passwords), as KeyManagerFactory wants a password */
-                final Password keyPasswd = keyStoreConfig.getPassword("key_password");
-                final Password sharedPwd = keyStoreConfig.getPassword("password");
-                final Password password = keyPasswd != null ? keyPasswd :
-                                          sharedPwd != null ? sharedPwd :
-                                          null;
-
-                /* Build up our key manager factory and close up the password */
-                final KeyManagerFactory keyFactory = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
-                keyFactory.init(keyStore, password == null ? null : password.get());
-                if (keyPasswd != null) keyPasswd.close();
-                if (sharedPwd != null) sharedPwd.close();
-
-                /* Build up our trust manager factory */
-                final TrustManagerFactory trustFactory = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
-                trustFactory.init(keyStore);
-
-                /* Initialize the SSL context */
-                sslContext = SSLContext.getInstance("TLS");
-                sslContext.init(keyFactory.getKeyManagers(), null, null);
+                /* Build or share the SSL context for these keystores */
+                sslContext = injector.getInstance(SSLContextCache.class).get(keyStoreConfigs, sessionConfig, configurations.get("keystore_reload_interval", 60));
 
             } catch (GeneralSecurityException exception) {
-                throw new ProvisionException("Security error reading from keystore " + keyStoreConfig.get("file", "(no file specified)"), exception);
+                throw new ProvisionException("Security error reading from keystores " + SSLContextCache.files(keyStoreConfigs), exception);
             } catch (IOException exception) {
-                throw new ProvisionException("I/O error reading from keystore " + keyStoreConfig.get("file", "(no file specified)"), exception);
+                throw new ProvisionException("I/O error reading from keystores " + SSLContextCache.files(keyStoreConfigs), exception);
             } catch (Exception exception) {
-                throw new ProvisionException("Error provisioning keystore " + keyStoreConfig.get("file", "(no file specified)"), exception);
+                throw new ProvisionException("Error provisioning keystores " + SSLContextCache.files(keyStoreConfigs), exception);
             }
 
-            final SSLEngineConfigurator sslConfigurator = new SSLEngineConfigurator(sslContext);
+            final SSLEngineConfigurator sslConfigurator = new OrderedSSLEngineConfigurator(sslContext, configurations.get("cipher_suites_order", true));
 
             sslConfigurator.setClientMode(false);
             sslConfigurator.setWantClientAuth(wantClientAuth);
             sslConfigurator.setNeedClientAuth(needClientAuth);
 
+            /* Protocols and cipher suites, in order of preference */
+            final SSLParameters supported = sslContext.getSupportedSSLParameters();
+            sslConfigurator.setEnabledProtocols(enabled("protocols", configurations.get("protocols", DEFAULT_PROTOCOLS), supported.getProtocols()));
+            final String cipherSuites = configurations.getString("cipher_suites");
+            if (cipherSuites != null) sslConfigurator.setEnabledCipherSuites(enabled("cipher_suites", cipherSuites, supported.getCipherSuites()));
+
             listener.setSSLEngineConfig(sslConfigurator);
 
             listener.setSecure(true);
+
+            /* Count full and resumed handshakes */
+            handshakes = new HandshakeCounter();
+            listener.registerAddOn(handshakes);
         }
 
+        /* Compression of responses not already compressed by handlers */
+        final Configurations compression = configurations.strip("compression");
+        if (! compression.isEmpty()) configureCompression(listener, compression);
+
+        /* Report our own counters along with the server's metrics */
+        if (injector.getExistingBinding(Key.get(ServerMetrics.class)) != null)
+            injector.getInstance(ServerMetrics.class).register(this);
+
+        /* And expose them (and the worker pool) as MBeans if asked to */
+        if (injector.getExistingBinding(Key.get(ServerMBeans.class)) != null)
+            injector.getInstance(ServerMBeans.class).register(this);
+
         final String name = server.getServerConfiguration().getName();
         server.addListener(listener);
 
@@ -144,5 +262,176 @@ public class NetworkListenerProvider implements Provider<NetworkListener> {
         return listener;
     }
 
+    /* ====================================================================== */
+
+    /*
+     * Apply our tuning keys to the listener's transport and keep-alive,
+     * where every key defaults to whatever Grizzly would use otherwise.
+     */
+    private void configureTransport(NetworkListener listener) {
+        final TCPNIOTransport transport = listener.getTransport();
+
+        /* The I/O strategy comes first, as it defines the worker pool */
+        final String strategyName = configurations.get("io_strategy", "worker_thread");
+        final IOStrategy strategy = ioStrategy(strategyName);
+        transport.setIOStrategy(strategy);
+
+        /* Selector runners and socket options */
+        transport.setSelectorRunnersCount(configurations.get("selectors", transport.getSelectorRunnersCount()));
+        transport.setTcpNoDelay(configurations.get("tcp_no_delay", transport.isTcpNoDelay()));
+        transport.setReuseAddress(configurations.get("reuse_address", transport.isReuseAddress()));
+        transport.setServerConnectionBackLog(configurations.get("backlog", transport.getServerConnectionBackLog()));
+        transport.setReadBufferSize(configurations.get("receive_buffer_size", transport.getReadBufferSize()));
+        transport.setWriteBufferSize(configurations.get("send_buffer_size", transport.getWriteBufferSize()));
+
+        /* The worker pool, if the strategy wants one at all */
+        final ThreadPoolConfig defaults = strategy.createDefaultWorkerPoolConfig(transport);
+        final Configurations pool = configurations.strip("worker_pool");
+        if (defaults != null) {
+            final int coreSize = pool.get("core_size", defaults.getCorePoolSize());
+            final int maxSize = pool.get("max_size", Math.max(coreSize, defaults.getMaxPoolSize()));
+            if ((coreSize < 0) || (maxSize < 1) || (coreSize > maxSize)) {
+                throw new ProvisionException("Invalid worker pool for listener \"" + name + "\" (core_size=" + coreSize + ", max_size=" + maxSize + ")");
+            }
+
+            transport.setWorkerThreadPoolConfig(defaults.setPoolName("Grizzly-worker(" + name + ")")
+                                                        .setCorePoolSize(coreSize)
+                                                        .setMaxPoolSize(maxSize)
+                                                        .setQueueLimit(pool.get("queue_limit", defaults.getQueueLimit()))
+                                                        .setKeepAliveTime(pool.get("idle_timeout", defaults.getKeepAliveTime(SECONDS)), SECONDS));
+
+            /* Virtual threads replace the worker pool, selectors stay as they are */
+            if (pool.get("virtual_threads", false)) {
+                if (VirtualThreadExecutor.isAvailable()) {
+                    transport.setWorkerThreadPool(new VirtualThreadExecutor("Grizzly-virtual(" + name + ")", pool.get("max_concurrency", 4096)));
+                } else {
+                    log.warn("Virtual threads not available in Java %s, listener \"%s\" will use platform threads", System.getProperty("java.version"), name);
+                }
+            }
+        } else {
+            if (! pool.isEmpty()) log.warn("Ignoring worker pool configurations for listener \"%s\" with I/O strategy \"%s\"", name, strategyName);
+            transport.setWorkerThreadPoolConfig(null);
+        }
+
+        /* HTTP keep-alive (a negative value means "unlimited") */
+        final KeepAlive keepAlive = listener.getKeepAlive();
+        keepAlive.setMaxRequestsCount(configurations.get("keep_alive.max_requests", keepAlive.getMaxRequestsCount()));
+        keepAlive.setIdleTimeoutInSeconds(configurations.get("keep_alive.idle_timeout", keepAlive.getIdleTimeoutInSeconds()));
+
+        log.debug("Listener \"%s\" using %s strategy, %d selectors, %s workers, keep-alive %d requests / %d seconds", name,
+                  strategyName, transport.getSelectorRunnersCount(),
+                  defaults == null ? "no" :
+                  transport.getWorkerThreadPool() instanceof VirtualThreadExecutor ? "virtual" :
+                  defaults.getCorePoolSize() + "-" + defaults.getMaxPoolSize(),
+                  keepAlive.getMaxRequestsCount(), keepAlive.getIdleTimeoutInSeconds());
+    }
+
+    /*
+     * Configure Grizzly's own compression (which decides what is worth
+     * compressing) and replace its encodings with our own, which knows
+     * about compression levels and partial responses.
+     */
+    private void configureCompression(NetworkListener listener, Configurations compression) {
+        final String mode = compression.get("mode", "on");
+        final CompressionConfig config = listener.getCompressionConfig();
+        try {
+            config.setCompressionMode(CompressionMode.valueOf(mode.trim().toUpperCase()));
+        } catch (IllegalArgumentException exception) {
+            throw new ProvisionException("Invalid compression mode \"" + mode + "\" for listener \"" + name + "\" (must be \"on\", \"off\" or \"force\")");
+        }
+        if (config.getCompressionMode() == CompressionMode.OFF) return;
+
+        config.setCompressionMinSize(compression.get("min_size", 1024));
+        config.setCompressableMimeTypes(list(compression.get("mime_types", DEFAULT_COMPRESSIBLE_TYPES)));
 
+        try {
+            listener.registerAddOn(new ResponseCompression(compression.get("level", Deflater.DEFAULT_COMPRESSION),
+                                                           Arrays.asList(list(compression.get("excluded_user_agents", "")))));
+        } catch (IllegalArgumentException exception) {
+            throw new ProvisionException(exception.getMessage() + " for listener \"" + name + "\"", exception);
+        }
+    }
+
+    /* Parse a comma-separated list */
+    private static String[] list(String configured) {
+        final List<String> list = new ArrayList<>();
+        final StringTokenizer tokenizer = new StringTokenizer(configured, ",");
+        while (tokenizer.hasMoreTokens()) {
+            final String value = tokenizer.nextToken().trim();
+            if (! value.isEmpty()) list.add(value);
+        }
+        return list.toArray(new String[list.size()]);
+    }
+
+    /* Parse a comma-separated list, keeping only the supported values */
+    private String[] enabled(String key, String configured, String[] supported) {
+        final Set<String> available = new HashSet<>(Arrays.asList(supported));
+        final List<String> enabled = new ArrayList<>();
+        final StringTokenizer tokenizer = new StringTokenizer(configured, ", ");
+        while (tokenizer.hasMoreTokens()) {
+            final String value = tokenizer.nextToken();
+            if (available.contains(value)) {
+                enabled.add(value);
+            } else {
+                log.warn("Ignoring unsupported %s \"%s\" for listener \"%s\"", key.replace('_', ' '), value, name);
+            }
+        }
+
+        if (enabled.isEmpty()) throw new ProvisionException("No supported " + key.replace('_', ' ') + " in \"" + configured + "\" for listener \"" + name + "\"");
+        return enabled.toArray(new String[enabled.size()]);
+    }
+
+    private IOStrategy ioStrategy(String strategy) {
+        switch (strategy.trim().toLowerCase()) {
+            case "worker_thread":   return WorkerThreadIOStrategy.getInstance();
+            case "same_thread":     return SameThreadIOStrategy.getInstance();
+            case "leader_follower": return LeaderFollowerNIOStrategy.getInstance();
+            case "dynamic":         return SimpleDynamicNIOStrategy.getInstance();
+            default: throw new ProvisionException("Invalid I/O strategy \"" + strategy + "\" for listener \"" + name + "\"");
+        }
+    }
+
+    /* ====================================================================== */
+
+    /* Make the server, not the client, choose the cipher suite */
+    private static final class OrderedSSLEngineConfigurator extends SSLEngineConfigurator {
+
+        private final boolean useCipherSuitesOrder;
+        private String[] cipherSuites;
+
+        private OrderedSSLEngineConfigurator(SSLContext sslContext, boolean useCipherSuitesOrder) {
+            super(sslContext);
+            this.useCipherSuitesOrder = useCipherSuitesOrder;
+        }
+
+        private OrderedSSLEngineConfigurator(OrderedSSLEngineConfigurator configurator) {
+            super(configurator);
+            useCipherSuitesOrder = configurator.useCipherSuitesOrder;
+            cipherSuites = configurator.cipherSuites;
+        }
+
+        @Override
+        public SSLEngineConfigurator setEnabledCipherSuites(String[] cipherSuites) {
+            this.cipherSuites = cipherSuites == null ? null : cipherSuites.clone();
+            return super.setEnabledCipherSuites(cipherSuites);
+        }
+
+        @Override
+        public SSLEngine configure(SSLEngine engine) {
+            super.configure(engine);
+
+            /* Grizzly enables cipher suites in the JVM's order, not ours */
+            if (cipherSuites != null) engine.setEnabledCipherSuites(cipherSuites);
+
+            final SSLParameters parameters = engine.getSSLParameters();
+            parameters.setUseCipherSuitesOrder(useCipherSuitesOrder);
+            engine.setSSLParameters(parameters);
+            return engine;
+        }
+
+        @Override
+        public SSLEngineConfigurator copy() {
+            return new OrderedSSLEngineConfigurator(this);
+        }
+    }
 }
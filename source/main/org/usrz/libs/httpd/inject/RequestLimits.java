@@ -0,0 +1,223 @@
+/* ========================================================================== *
+ * Copyright 2014 USRZ.com and Pier Paolo Fumagalli                           *
+ * -------------------------------------------------------------------------- *
+ * Licensed under the Apache License, Version 2.0 (the "License");            *
+ * you may not use this file except in compliance with the License.           *
+ * You may obtain a copy of the License at                                    *
+ *                                                                            *
+ *  http://www.apache.org/licenses/LICENSE-2.0                                *
+ *                                                                            *
+ * Unless required by applicable law or agreed to in writing, software        *
+ * distributed under the License is distributed on an "AS IS" BASIS,          *
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.   *
+ * See the License for the specific language governing permissions and        *
+ * limitations under the License.                                             *
+ * ========================================================================== */
+package org.usrz.libs.httpd.inject;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.glassfish.grizzly.Connection;
+import org.glassfish.grizzly.EmptyCompletionHandler;
+import org.glassfish.grizzly.WriteResult;
+import org.glassfish.grizzly.filterchain.BaseFilter;
+import org.glassfish.grizzly.filterchain.FilterChainBuilder;
+import org.glassfish.grizzly.filterchain.FilterChainContext;
+import org.glassfish.grizzly.filterchain.NextAction;
+import org.glassfish.grizzly.http.HttpCodecFilter.HeaderParsingState;
+import org.glassfish.grizzly.http.HttpContent;
+import org.glassfish.grizzly.http.HttpHeader;
+import org.glassfish.grizzly.http.HttpPacket;
+import org.glassfish.grizzly.http.HttpPacketParsing;
+import org.glassfish.grizzly.http.HttpProbe;
+import org.glassfish.grizzly.http.HttpRequestPacket;
+import org.glassfish.grizzly.http.HttpResponsePacket;
+import org.glassfish.grizzly.http.HttpServerFilter;
+import org.glassfish.grizzly.http.server.AddOn;
+import org.glassfish.grizzly.http.server.NetworkListener;
+import org.glassfish.grizzly.http.util.Header;
+import org.glassfish.grizzly.http.util.MimeHeaders.MaxHeaderCountExceededException;
+import org.glassfish.grizzly.memory.Buffers;
+import org.usrz.libs.logging.Log;
+
+/**
+ * An {@link AddOn} rejecting requests exceeding size limits as early as
+ * possible, before any handler gets to see them.
+ *
+ * <p>Requests whose body is bigger than the configured maximum (either
+ * declared by <code>Content-Length</code> or counted while chunks are
+ * received) are answered with <code>413</code> and their connection is
+ * closed without reading the rest of the body.</p>
+ *
+ * <p>Requests whose headers exceed the listener's maximum header size
+ * or count are answered with <code>431</code> (or <code>414</code> for
+ * an overlong request line) rather than Grizzly's generic
+ * <code>400</code>.</p>
+ *
+ * @author <a href="mailto:pier@usrz.com">Pier Fumagalli</a>
+ */
+public class RequestLimits implements AddOn {
+
+    /* Request attributes: bytes received so far and rejection marker */
+    private static final String RECEIVED = RequestLimits.class.getName() + ".received";
+    private static final String REJECTED = RequestLimits.class.getName() + ".rejected";
+
+    private final Log log = new Log();
+    private final LongAdder bodies = new LongAdder();
+    private final LongAdder headers = new LongAdder();
+    private final long maxBodySize;
+
+    /**
+     * Create a new {@link RequestLimits} instance rejecting bodies bigger
+     * than the specified number of bytes (or negative for no limit).
+     */
+    public RequestLimits(long maxBodySize) {
+        this.maxBodySize = maxBodySize;
+    }
+
+    /** The maximum size of a request body, or negative for no limit. */
+    public long getMaxBodySize() {
+        return maxBodySize;
+    }
+
+    /** The number of requests rejected for their body size. */
+    public long getRejectedBodies() {
+        return bodies.sum();
+    }
+
+    /** The number of requests rejected for their header size or count. */
+    public long getRejectedHeaders() {
+        return headers.sum();
+    }
+
+    /* ====================================================================== */
+
+    @Override
+    public void setup(NetworkListener listener, FilterChainBuilder builder) {
+        final int index = builder.indexOfType(HttpServerFilter.class);
+        if (index < 0) {
+            log.warn("No HTTP filter found for listener \"%s\", not enforcing request limits", listener.getName());
+            return;
+        }
+
+        /* The probe is notified of errors before Grizzly sends its 400 */
+        ((HttpServerFilter) builder.get(index)).getMonitoringConfig().addProbes(new HeaderErrorProbe());
+        if (maxBodySize >= 0) builder.add(index + 1, new BodySizeFilter());
+    }
+
+    /* ====================================================================== */
+
+    private final class BodySizeFilter extends BaseFilter {
+
+        @Override
+        public NextAction handleRead(FilterChainContext context)
+        throws IOException {
+            final Object message = context.getMessage();
+            if (! (message instanceof HttpContent)) return context.getInvokeAction();
+
+            final HttpContent content = (HttpContent) message;
+            final HttpHeader header = content.getHttpHeader();
+            if (! (header instanceof HttpRequestPacket)) return context.getInvokeAction();
+
+            /* Already rejected, just swallow whatever else comes in */
+            final HttpRequestPacket request = (HttpRequestPacket) header;
+            if (request.getAttribute(REJECTED) != null) {
+                content.recycle();
+                return context.getStopAction();
+            }
+
+            /* Declared length first, then what was actually received */
+            final long length = request.getContentLength();
+            if (length > maxBodySize) return reject(context, request, length);
+            if (length < 0) {
+                final Long previous = (Long) request.getAttribute(RECEIVED);
+                final long received = (previous == null ? 0 : previous) + content.getContent().remaining();
+                if (received > maxBodySize) return reject(context, request, received);
+                request.setAttribute(RECEIVED, received);
+            }
+
+            return context.getInvokeAction();
+        }
+
+        private NextAction reject(FilterChainContext context, HttpRequestPacket request, long length) {
+            request.setAttribute(REJECTED, Boolean.TRUE);
+            bodies.increment();
+
+            final Connection<?> connection = context.getConnection();
+            log.debug("Rejecting request for \"%s\" from %s with a body of at least %d bytes (max %d)",
+                      request.getRequestURI(), connection.getPeerAddress(), length, maxBodySize);
+
+            final HttpResponsePacket response = request.getResponse();
+            if (response.isCommitted()) {
+                connection.closeSilently();
+            } else {
+                response.setStatus(413);
+                response.setReasonPhrase("Request Entity Too Large");
+                response.setContentLength(0);
+                response.setHeader(Header.Connection, "close");
+                response.getProcessingState().setKeepAlive(false);
+
+                final HttpContent last = HttpContent.builder(response).content(Buffers.EMPTY_BUFFER).last(true).build();
+                context.write(last, new EmptyCompletionHandler<WriteResult>() {
+                    @Override
+                    public void completed(WriteResult result) {
+                        connection.closeSilently();
+                    }
+                });
+            }
+            return context.getStopAction();
+        }
+    }
+
+    /* ====================================================================== */
+
+    private final class HeaderErrorProbe extends HttpProbe.Adapter {
+
+        /* Where the parser was (its "state"), when it overflowed */
+        private static final int NONE = -1;
+        private static final int INITIAL_LINE = 0;
+        private static final int HEADERS = 1;
+
+        @Override
+        public void onErrorEvent(Connection connection, HttpPacket packet, Throwable error) {
+            if (! (packet instanceof HttpRequestPacket)) return;
+
+            final HttpResponsePacket response = ((HttpRequestPacket) packet).getResponse();
+            if ((response == null) || response.isCommitted()) return;
+
+            switch (overflow(packet, error)) {
+                case INITIAL_LINE:
+                    response.setStatus(414);
+                    response.setReasonPhrase("Request-URI Too Long");
+                    break;
+                case HEADERS:
+                    response.setStatus(431);
+                    response.setReasonPhrase("Request Header Fields Too Large");
+                    break;
+                default:
+                    return;
+            }
+
+            headers.increment();
+            log.debug("Rejecting request from %s with status %d: %s", connection.getPeerAddress(), response.getStatus(), error.getMessage());
+        }
+
+        /*
+         * Grizzly signals an overflow with a plain IllegalStateException, so
+         * rather than its message look at the parser: it stopped past the
+         * packet limit either in the initial line or in the headers.
+         */
+        private int overflow(HttpPacket packet, Throwable error) {
+            if (error instanceof MaxHeaderCountExceededException) return HEADERS;
+            if (! (error instanceof IllegalStateException)) return NONE;
+            if (! (packet instanceof HttpPacketParsing)) return NONE;
+
+            final HeaderParsingState state = ((HttpPacketParsing) packet).getHeaderParsingState();
+            if (state.offset < state.packetLimit) return NONE;
+            return state.state == INITIAL_LINE ? INITIAL_LINE :
+                   state.state == HEADERS ? HEADERS :
+                   NONE;
+        }
+    }
+}
@@ -0,0 +1,235 @@
+/* ========================================================================== *
+ * Copyright 2014 USRZ.com and Pier Paolo Fumagalli                           *
+ * -------------------------------------------------------------------------- *
+ * Licensed under the Apache License, Version 2.0 (the "License");            *
+ * you may not use this file except in compliance with the License.           *
+ * You may obtain a copy of the License at                                    *
+ *                                                                            *
+ *  http://www.apache.org/licenses/LICENSE-2.0                                *
+ *                                                                            *
+ * Unless required by applicable law or agreed to in writing, software        *
+ * distributed under the License is distributed on an "AS IS" BASIS,          *
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.   *
+ * See the License for the specific language governing permissions and        *
+ * limitations under the License.                                             *
+ * ========================================================================== */
+package org.usrz.libs.httpd.inject;
+
+import static org.usrz.libs.utils.Check.notNull;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
+
+import org.glassfish.grizzly.Buffer;
+import org.glassfish.grizzly.Connection;
+import org.glassfish.grizzly.Grizzly;
+import org.glassfish.grizzly.attributes.Attribute;
+import org.glassfish.grizzly.filterchain.FilterChainBuilder;
+import org.glassfish.grizzly.http.ContentEncoding;
+import org.glassfish.grizzly.http.EncodingFilter;
+import org.glassfish.grizzly.http.GZipContentEncoding;
+import org.glassfish.grizzly.http.HttpContent;
+import org.glassfish.grizzly.http.HttpHeader;
+import org.glassfish.grizzly.http.HttpRequestPacket;
+import org.glassfish.grizzly.http.HttpResponsePacket;
+import org.glassfish.grizzly.http.HttpServerFilter;
+import org.glassfish.grizzly.http.ParsingResult;
+import org.glassfish.grizzly.http.server.AddOn;
+import org.glassfish.grizzly.http.server.CompressionEncodingFilter;
+import org.glassfish.grizzly.http.server.NetworkListener;
+import org.glassfish.grizzly.http.util.Header;
+import org.glassfish.grizzly.memory.Buffers;
+import org.usrz.libs.logging.Log;
+
+/**
+ * An {@link AddOn} replacing the content encodings Grizzly configures
+ * for a {@link NetworkListener} with compression enabled by a single
+ * GZIP encoding, compressing at the specified level.
+ *
+ * <p>Other than what the listener's own compression configuration
+ * excludes (small or non-compressible responses, excluded user agents
+ * and responses already carrying a <code>Content-Encoding</code>), this
+ * never compresses partial (<code>206</code>) responses, whose ranges
+ * refer to the uncompressed content, nor responses to clients whose
+ * <code>User-Agent</code> contains any of the excluded strings.</p>
+ *
+ * @author <a href="mailto:pier@usrz.com">Pier Fumagalli</a>
+ */
+public class ResponseCompression implements AddOn {
+
+    private final Log log = new Log();
+    private final List<String> excludedUserAgents;
+    private final int level;
+
+    /**
+     * Create a new {@link ResponseCompression} instance compressing at
+     * the specified level (from 1 to 9, or -1 for the JVM's default).
+     */
+    public ResponseCompression(int level, Collection<String> excludedUserAgents) {
+        if ((level != Deflater.DEFAULT_COMPRESSION) && ((level < 1) || (level > 9)))
+            throw new IllegalArgumentException("Invalid compression level " + level);
+        this.excludedUserAgents = new ArrayList<>(notNull(excludedUserAgents, "Null excluded user agents"));
+        this.level = level;
+    }
+
+    /** The GZIP compression level. */
+    public int getLevel() {
+        return level;
+    }
+
+    /* ====================================================================== */
+
+    @Override
+    public void setup(NetworkListener listener, FilterChainBuilder builder) {
+        final int index = builder.indexOfType(HttpServerFilter.class);
+        if (index < 0) {
+            log.warn("No HTTP filter found for listener \"%s\", not configuring compression", listener.getName());
+            return;
+        }
+
+        /* Remove whatever Grizzly added (GZIP and LZMA) */
+        final HttpServerFilter filter = (HttpServerFilter) builder.get(index);
+        for (ContentEncoding encoding: filter.getContentEncodings()) filter.removeContentEncoding(encoding);
+
+        /* Add our own GZIP encoding, with our own extra checks */
+        final EncodingFilter encodingFilter = new ResponseFilter(new CompressionEncodingFilter(listener.getCompressionConfig(), GZipContentEncoding.getGzipAliases()));
+        filter.addContentEncoding(new LevelGZipEncoding(encodingFilter));
+
+        log.debug("Configured GZIP compression (level %d) for listener \"%s\"", level, listener.getName());
+    }
+
+    /* ====================================================================== */
+
+    /*
+     * Grizzly's GZIP encoding always uses the default compression level,
+     * so we use our own: each response gets its own GZIP stream (kept as
+     * an attribute of the response header) deflating at our level.
+     */
+    private final class LevelGZipEncoding implements ContentEncoding {
+
+        private final Attribute<Compressor> compressor = Grizzly.DEFAULT_ATTRIBUTE_BUILDER.createAttribute(LevelGZipEncoding.class.getName() + ".compressor");
+        private final EncodingFilter filter;
+
+        private LevelGZipEncoding(EncodingFilter filter) {
+            this.filter = notNull(filter, "Null encoding filter");
+        }
+
+        @Override
+        public String getName() {
+            return "gzip";
+        }
+
+        @Override
+        public String[] getAliases() {
+            return GZipContentEncoding.getGzipAliases();
+        }
+
+        @Override
+        public boolean wantDecode(HttpHeader header) {
+            return false;
+        }
+
+        @Override
+        public boolean wantEncode(HttpHeader header) {
+            return filter.applyEncoding(header);
+        }
+
+        @Override
+        public ParsingResult decode(Connection connection, HttpContent content) {
+            throw new UnsupportedOperationException("Decoding not supported");
+        }
+
+        @Override
+        public HttpContent encode(Connection connection, HttpContent content) {
+            final HttpHeader header = content.getHttpHeader();
+            final Buffer buffer = content.getContent();
+            final boolean last = content.isLast();
+            if ((! last) && (! buffer.hasRemaining())) return content;
+
+            final byte[] compressed;
+            try {
+                Compressor compressor = this.compressor.get(header);
+                if (compressor == null) {
+                    compressor = new Compressor(level);
+                    this.compressor.set(header, compressor);
+                }
+                compressed = compressor.compress(buffer, last);
+            } catch (IOException exception) {
+                /* Only ever writing to memory, this should never happen */
+                throw new IllegalStateException("Unable to compress response", exception);
+            } finally {
+                buffer.tryDispose();
+                if (last) this.compressor.remove(header);
+            }
+
+            /* Nothing out of the deflater yet, wait for more content */
+            if (compressed.length == 0) return null;
+
+            return HttpContent.create(header, last, Buffers.wrap(connection.getTransport().getMemoryManager(), compressed));
+        }
+    }
+
+    /* A GZIP stream deflating at the given level into memory */
+    private static final class Compressor extends GZIPOutputStream {
+
+        private Compressor(int level)
+        throws IOException {
+            super(new ByteArrayOutputStream(), GZipContentEncoding.DEFAULT_OUT_BUFFER_SIZE);
+            def.setLevel(level);
+        }
+
+        private byte[] compress(Buffer buffer, boolean last)
+        throws IOException {
+            if (buffer.hasArray()) {
+                write(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+            } else {
+                final byte[] bytes = new byte[buffer.remaining()];
+                buffer.get(bytes);
+                write(bytes);
+            }
+
+            /* Closing writes the GZIP trailer and releases the deflater */
+            if (last) close();
+
+            final ByteArrayOutputStream output = (ByteArrayOutputStream) out;
+            final byte[] compressed = output.toByteArray();
+            output.reset();
+            return compressed;
+        }
+    }
+
+    private final class ResponseFilter implements EncodingFilter {
+
+        private final EncodingFilter filter;
+
+        private ResponseFilter(EncodingFilter filter) {
+            this.filter = notNull(filter, "Null encoding filter");
+        }
+
+        @Override
+        public boolean applyEncoding(HttpHeader header) {
+            if (header instanceof HttpResponsePacket) {
+                final HttpResponsePacket response = (HttpResponsePacket) header;
+                if (response.getStatus() == 206) return false;
+                if (response.containsHeader(Header.ContentRange)) return false;
+
+                final HttpRequestPacket request = response.getRequest();
+                final String userAgent = request == null ? null : request.getHeader(Header.UserAgent);
+                if (userAgent != null) for (String excluded: excludedUserAgents) {
+                    if (userAgent.contains(excluded)) return false;
+                }
+            }
+            return filter.applyEncoding(header);
+        }
+
+        @Override
+        public boolean applyDecoding(HttpHeader header) {
+            return filter.applyDecoding(header);
+        }
+    }
+}
@@ -0,0 +1,281 @@
+/* ========================================================================== *
+ * Copyright 2014 USRZ.com and Pier Paolo Fumagalli                           *
+ * -------------------------------------------------------------------------- *
+ * Licensed under the Apache License, Version 2.0 (the "License");            *
+ * you may not use this file except in compliance with the License.           *
+ * You may obtain a copy of the License at                                    *
+ *                                                                            *
+ *  http://www.apache.org/licenses/LICENSE-2.0                                *
+ *                                                                            *
+ * Unless required by applicable law or agreed to in writing, software        *
+ * distributed under the License is distributed on an "AS IS" BASIS,          *
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.   *
+ * See the License for the specific language governing permissions and        *
+ * limitations under the License.                                             *
+ * ========================================================================== */
+package org.usrz.libs.httpd.inject;
+
+import java.net.Socket;
+import java.security.Principal;
+import java.security.PrivateKey;
+import java.security.cert.CertificateParsingException;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+import javax.naming.InvalidNameException;
+import javax.naming.ldap.LdapName;
+import javax.naming.ldap.Rdn;
+import javax.net.ssl.ExtendedSSLSession;
+import javax.net.ssl.SNIHostName;
+import javax.net.ssl.SNIServerName;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.X509ExtendedKeyManager;
+import javax.net.ssl.X509KeyManager;
+
+/**
+ * A server-only {@link X509ExtendedKeyManager} selecting certificates
+ * from multiple key stores by SNI host name and key type.
+ *
+ * <p>When the client's SNI host name matches any certificate (by its
+ * DNS subject alternative names, or its common name when none is
+ * present), only matching certificates are considered, exact matches
+ * before wildcards. Otherwise the first certificate (in key store order)
+ * of the requested key type is used.</p>
+ *
+ * <p>Certificates can be {@linkplain #update(List) replaced} at any time,
+ * without affecting handshakes already in progress.</p>
+ *
+ * <p>The JDK asks for key types in order of preference of the cipher
+ * suites or, with TLS 1.3, of the client's signature algorithms: when
+ * those put ECDSA first, an <code>EC</code> certificate is chosen over
+ * an <code>RSA</code> one for the same host.</p>
+ *
+ * @author <a href="mailto:pier@usrz.com">Pier Fumagalli</a>
+ */
+final class SNIKeyManager extends X509ExtendedKeyManager {
+
+    /* Key types the JDK asks for, we ask our delegates for aliases */
+    private static final String[] KEY_TYPES = { "RSA", "EC", "RSASSA-PSS", "DSA", "EdDSA" };
+
+    /* How well a certificate matches a host name */
+    private static final int EXACT = 2;
+    private static final int WILDCARD = 1;
+
+    /* The previous generation is kept for handshakes in progress */
+    private volatile Generation current;
+    private volatile Generation previous;
+
+    /**
+     * Create a new {@link SNIKeyManager} from the key managers of all our
+     * key stores, in order of preference.
+     */
+    SNIKeyManager(List<X509KeyManager> managers) {
+        current = new Generation(0, managers);
+    }
+
+    /**
+     * Atomically replace all our certificates, for new handshakes only.
+     */
+    synchronized void update(List<X509KeyManager> managers) {
+        final Generation next = new Generation(current.number + 1, managers);
+        previous = current;
+        current = next;
+    }
+
+    /* ====================================================================== */
+
+    @Override
+    public String chooseEngineServerAlias(String keyType, Principal[] issuers, SSLEngine engine) {
+        return choose(keyType, engine == null ? null : engine.getHandshakeSession());
+    }
+
+    @Override
+    public String chooseServerAlias(String keyType, Principal[] issuers, Socket socket) {
+        return choose(keyType, socket instanceof SSLSocket ? ((SSLSocket) socket).getHandshakeSession() : null);
+    }
+
+    @Override
+    public String[] getServerAliases(String keyType, Principal[] issuers) {
+        final List<String> aliases = new ArrayList<>();
+        for (Entry entry: current.entries) if (entry.keyType.equals(baseKeyType(keyType))) aliases.add(entry.alias);
+        return aliases.isEmpty() ? null : aliases.toArray(new String[aliases.size()]);
+    }
+
+    @Override
+    public X509Certificate[] getCertificateChain(String alias) {
+        final Entry entry = entry(alias);
+        return entry == null ? null : entry.chain.clone();
+    }
+
+    @Override
+    public PrivateKey getPrivateKey(String alias) {
+        final Entry entry = entry(alias);
+        return entry == null ? null : entry.key;
+    }
+
+    /* We are a server, we never authenticate as clients */
+
+    @Override
+    public String[] getClientAliases(String keyType, Principal[] issuers) {
+        return null;
+    }
+
+    @Override
+    public String chooseClientAlias(String[] keyTypes, Principal[] issuers, Socket socket) {
+        return null;
+    }
+
+    @Override
+    public String chooseEngineClientAlias(String[] keyTypes, Principal[] issuers, SSLEngine engine) {
+        return null;
+    }
+
+    /* ====================================================================== */
+
+    /* Select the alias to use for a key type and the handshake session */
+    String choose(String keyType, SSLSession session) {
+        return choose(baseKeyType(keyType), hostName(session));
+    }
+
+    String choose(String keyType, String hostName) {
+        if (keyType == null) return null;
+        final List<Entry> entries = current.entries;
+
+        if (hostName != null) {
+            Entry wildcard = null;
+            boolean matched = false;
+            for (Entry entry: entries) {
+                final int match = entry.matches(hostName);
+                if (match == 0) continue;
+                matched = true;
+                if (! entry.keyType.equals(keyType)) continue;
+                if (match == EXACT) return entry.alias;
+                if (wildcard == null) wildcard = entry;
+            }
+
+            /* If the host matches something, never serve a certificate for another host */
+            if (matched) return wildcard == null ? null : wildcard.alias;
+        }
+
+        /* No SNI, or no certificate for the host: first one of the right type */
+        for (Entry entry: entries) if (entry.keyType.equals(keyType)) return entry.alias;
+        return null;
+    }
+
+    private Entry entry(String alias) {
+        if (alias == null) return null;
+        final Generation current = this.current, previous = this.previous;
+        for (Entry entry: current.entries) if (entry.alias.equals(alias)) return entry;
+        if (previous != null) for (Entry entry: previous.entries) if (entry.alias.equals(alias)) return entry;
+        return null;
+    }
+
+    /* Key types like "EC_EC" or "EC_RSA" (static ECDH) refer to EC keys */
+    private static String baseKeyType(String keyType) {
+        if (keyType == null) return null;
+        final int underscore = keyType.indexOf('_');
+        return underscore < 0 ? keyType : keyType.substring(0, underscore);
+    }
+
+    private static String hostName(SSLSession session) {
+        if (! (session instanceof ExtendedSSLSession)) return null;
+        for (SNIServerName name: ((ExtendedSSLSession) session).getRequestedServerNames()) {
+            if (name instanceof SNIHostName) return ((SNIHostName) name).getAsciiName().toLowerCase(Locale.ROOT);
+        }
+        return null;
+    }
+
+    /* ====================================================================== */
+
+    /* Match a host name against a name (possibly wildcard) from a certificate */
+    static int matches(String name, String hostName) {
+        if (name.equals(hostName)) return EXACT;
+        if (! name.startsWith("*.")) return 0;
+
+        /* Wildcards match exactly one label: "*.foo.com" matches "bar.foo.com" only */
+        final int dot = hostName.indexOf('.');
+        return (dot > 0) && hostName.substring(dot).equals(name.substring(1)) ? WILDCARD : 0;
+    }
+
+    /* All the DNS names (or the common name) of a certificate */
+    static Set<String> names(X509Certificate certificate) {
+        final Set<String> names = new LinkedHashSet<>();
+        try {
+            final Collection<List<?>> alternatives = certificate.getSubjectAlternativeNames();
+            if (alternatives != null) for (List<?> alternative: alternatives) {
+                if (Integer.valueOf(2).equals(alternative.get(0))) names.add(alternative.get(1).toString().toLowerCase(Locale.ROOT));
+            }
+        } catch (CertificateParsingException exception) {
+            /* Fall back to the common name */
+        }
+
+        if (names.isEmpty()) try {
+            for (Rdn rdn: new LdapName(certificate.getSubjectX500Principal().getName()).getRdns()) {
+                if ("CN".equalsIgnoreCase(rdn.getType())) names.add(rdn.getValue().toString().toLowerCase(Locale.ROOT));
+            }
+        } catch (InvalidNameException exception) {
+            /* No names at all, we'll be a default certificate */
+        }
+        return names;
+    }
+
+    /* ====================================================================== */
+
+    private static final class Generation {
+
+        private final int number;
+        private final List<Entry> entries;
+
+        private Generation(int number, List<X509KeyManager> managers) {
+            final List<Entry> entries = new ArrayList<>();
+            for (X509KeyManager manager: managers) {
+                final Set<String> aliases = new LinkedHashSet<>();
+                for (String keyType: KEY_TYPES) {
+                    final String[] found = manager.getServerAliases(keyType, null);
+                    if (found != null) Collections.addAll(aliases, found);
+                }
+                for (String alias: aliases) {
+                    final X509Certificate[] chain = manager.getCertificateChain(alias);
+                    final PrivateKey key = manager.getPrivateKey(alias);
+                    if ((chain == null) || (chain.length == 0) || (key == null)) continue;
+                    entries.add(new Entry(number + ":" + entries.size() + ":" + alias, chain, key));
+                }
+            }
+            if (entries.isEmpty()) throw new IllegalArgumentException("No private keys found in key stores");
+
+            this.number = number;
+            this.entries = Collections.unmodifiableList(entries);
+        }
+    }
+
+    private static final class Entry {
+
+        private final String alias;
+        private final X509Certificate[] chain;
+        private final PrivateKey key;
+        private final String keyType;
+        private final Set<String> names;
+
+        private Entry(String alias, X509Certificate[] chain, PrivateKey key) {
+            this.alias = alias;
+            this.chain = chain;
+            this.key = key;
+            keyType = key.getAlgorithm();
+            names = names(chain[0]);
+        }
+
+        private int matches(String hostName) {
+            int best = 0;
+            for (String name: names) best = Math.max(best, SNIKeyManager.matches(name, hostName));
+            return best;
+        }
+    }
+}
@@ -0,0 +1,356 @@
+/* ========================================================================== *
+ * Copyright 2014 USRZ.com and Pier Paolo Fumagalli                           *
+ * -------------------------------------------------------------------------- *
+ * Licensed under the Apache License, Version 2.0 (the "License");            *
+ * you may not use this file except in compliance with the License.           *
+ * You may obtain a copy of the License at                                    *
+ *                                                                            *
+ *  http://www.apache.org/licenses/LICENSE-2.0                                *
+ *                                                                            *
+ * Unless required by applicable law or agreed to in writing, software        *
+ * distributed under the License is distributed on an "AS IS" BASIS,          *
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.   *
+ * See the License for the specific language governing permissions and        *
+ * limitations under the License.                                             *
+ * ========================================================================== */
+package org.usrz.libs.httpd.inject;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.usrz.libs.utils.Check.notNull;
+
+import java.io.Closeable;
+import java.io.File;
+import java.security.KeyStore;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import javax.net.ssl.KeyManager;
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSessionContext;
+import javax.net.ssl.X509KeyManager;
+
+import org.usrz.libs.configurations.Configurations;
+import org.usrz.libs.configurations.ConfigurationsBuilder;
+import org.usrz.libs.configurations.Password;
+import org.usrz.libs.crypto.utils.KeyStoreBuilder;
+import org.usrz.libs.logging.Log;
+
+/**
+ * A cache of {@link SSLContext}s shared by all secure listeners using the
+ * same <code>keystore</code> and <code>session</code> configurations.
+ *
+ * <p>Contexts can be built from multiple key stores, and always select
+ * their certificates through an {@link SNIKeyManager}.</p>
+ *
+ * <p>Session configurations keys are <code>cache_size</code> (the number
+ * of server sessions kept for resumption, zero for unlimited) and
+ * <code>timeout</code> (in seconds).</p>
+ *
+ * <p>Whether stateless session tickets are issued is a JVM-wide setting
+ * (the <code>jdk.tls.server.enableSessionTicketExtension</code> system
+ * property) honored only if configured before the first TLS handshake: it
+ * can not be configured per listener, but only once for all of them with
+ * {@link #sessionTickets(boolean)}.</p>
+ *
+ * <p>When a reload interval is specified, the key store files are checked
+ * periodically (by a background thread, never by the selectors) and when
+ * any of them changes, new certificates are swapped into the context for
+ * all subsequent handshakes, leaving established connections alone. A key
+ * store failing to load keeps the old certificates in use. Servers close
+ * their (normally {@linkplain org.usrz.libs.crypto.vault.SecureConfigurations
+ * secure}) configurations once started, so a copy of the key store
+ * configurations, passwords included, is kept for reloading until this
+ * cache is {@linkplain #close() closed}, which happens when the server
+ * using it shuts down.</p>
+ *
+ * @author <a href="mailto:pier@usrz.com">Pier Fumagalli</a>
+ */
+@Singleton
+public class SSLContextCache implements Closeable {
+
+    private static final String SESSION_TICKETS = "jdk.tls.server.enableSessionTicketExtension";
+
+    private final Log log = new Log();
+    private final Map<String, SSLContext> contexts = new HashMap<>();
+    private final LongAdder rotations = new LongAdder();
+    private final LongAdder failures = new LongAdder();
+    private ScheduledExecutorService reloader;
+    private boolean closed;
+
+    public SSLContextCache() {
+        /* Nothing to do */
+    }
+
+    @Inject
+    private void setup(HttpServerProvider provider) {
+        provider.closeOnShutdown(this);
+    }
+
+    /* ====================================================================== */
+
+    /**
+     * Return a (possibly shared) {@link SSLContext} for the specified
+     * <code>keystore</code> and <code>session</code> configurations.
+     */
+    public SSLContext get(Configurations keyStoreConfig, Configurations sessionConfig)
+    throws Exception {
+        return get(Collections.singletonList(notNull(keyStoreConfig, "Null keystore configurations")), sessionConfig);
+    }
+
+    /**
+     * Return a (possibly shared) {@link SSLContext} for the specified
+     * <code>keystore</code> configurations, selecting certificates by SNI
+     * host name and key type through an {@link SNIKeyManager}.
+     */
+    public SSLContext get(List<Configurations> keyStoreConfigs, Configurations sessionConfig)
+    throws Exception {
+        return get(keyStoreConfigs, sessionConfig, 0);
+    }
+
+    /**
+     * Return a (possibly shared) {@link SSLContext} for the specified
+     * <code>keystore</code> configurations, checking every
+     * <code>reloadInterval</code> seconds (if positive) whether the key
+     * store files changed, and rotating certificates if so.
+     */
+    public synchronized SSLContext get(List<Configurations> keyStoreConfigs, Configurations sessionConfig, int reloadInterval)
+    throws Exception {
+        if (notNull(keyStoreConfigs, "Null keystore configurations").isEmpty()) throw new IllegalArgumentException("No keystore configurations");
+        if (reloadInterval < 0) throw new IllegalArgumentException("Invalid keystore reload interval " + reloadInterval);
+        if (closed) throw new IllegalStateException("SSL context cache closed");
+        final String key = fingerprint(keyStoreConfigs, notNull(sessionConfig, "Null session configurations"), reloadInterval);
+
+        final SSLContext cached = contexts.get(key);
+        if (cached != null) {
+            log.debug("Sharing SSL context for keystores %s", files(keyStoreConfigs));
+            return cached;
+        }
+
+        /* Remember what the files looked like before we read them */
+        final long stamp = stamp(keyStoreConfigs);
+        final SNIKeyManager keyManager = new SNIKeyManager(keyManagers(keyStoreConfigs));
+
+        /* Initialize the SSL context, choosing certificates by SNI */
+        final SSLContext context = SSLContext.getInstance("TLS");
+        context.init(new KeyManager[] { keyManager }, null, null);
+        log.debug("Created SSL context for keystores %s", files(keyStoreConfigs));
+
+        configure(context, sessionConfig);
+        contexts.put(key, context);
+
+        if (reloadInterval > 0) {
+            if (reloader == null) reloader = Executors.newSingleThreadScheduledExecutor((runnable) -> {
+                final Thread thread = new Thread(runnable, "SSLContextCache reloader");
+                thread.setDaemon(true);
+                return thread;
+            });
+            reloader.scheduleWithFixedDelay(new Reloader(detach(keyStoreConfigs), keyManager, stamp), reloadInterval, reloadInterval, TimeUnit.SECONDS);
+            log.debug("Checking keystores %s for changes every %d seconds", files(keyStoreConfigs), reloadInterval);
+        }
+        return context;
+    }
+
+    /**
+     * Stop checking key stores for changes, forgetting their configurations
+     * and all the cached {@link SSLContext}s.
+     */
+    @Override
+    public synchronized void close() {
+        if (closed) return;
+        closed = true;
+        contexts.clear();
+
+        if (reloader != null) {
+            reloader.shutdownNow();
+            reloader = null;
+            log.debug("Stopped checking keystores for changes");
+        }
+    }
+
+    /** The number of times certificates were rotated after a change. */
+    public long getRotations() {
+        return rotations.sum();
+    }
+
+    /** The number of times changed key stores could not be loaded. */
+    public long getRotationFailures() {
+        return failures.sum();
+    }
+
+    /**
+     * Enable or disable stateless TLS session tickets for <em>all</em> the
+     * SSL contexts in this JVM, before the first TLS handshake.
+     *
+     * @throws IllegalStateException If the system property controlling
+     *                               session tickets was already set to a
+     *                               different value.
+     */
+    public static void sessionTickets(boolean enabled) {
+        final String tickets = Boolean.toString(enabled);
+        synchronized (SESSION_TICKETS) {
+            final String current = System.getProperty(SESSION_TICKETS);
+            if ((current != null) && (! current.equalsIgnoreCase(tickets)))
+                throw new IllegalStateException("Session tickets already configured with \"" + SESSION_TICKETS + "=" + current + "\", can not set them to \"" + tickets + "\"");
+            System.setProperty(SESSION_TICKETS, tickets);
+        }
+    }
+
+    /**
+     * Configure the server sessions of an {@link SSLContext} (normally, one
+     * not created by this cache).
+     */
+    public SSLContext configure(SSLContext context, Configurations sessionConfig) {
+        notNull(context, "Null SSL context");
+        if (notNull(sessionConfig, "Null session configurations").isEmpty()) return context;
+
+        /* Tickets are for the whole JVM, don't let a listener pretend otherwise */
+        if (sessionConfig.getString("tickets") != null)
+            throw new IllegalArgumentException("Session tickets can not be configured per listener, use the server's \"session_tickets\"");
+
+        final SSLSessionContext sessions = context.getServerSessionContext();
+        sessions.setSessionCacheSize(sessionConfig.get("cache_size", sessions.getSessionCacheSize()));
+        sessions.setSessionTimeout(sessionConfig.get("timeout", sessions.getSessionTimeout()));
+
+        log.debug("Configured SSL sessions (cache size %d, timeout %d seconds, tickets %s)",
+                  sessions.getSessionCacheSize(), sessions.getSessionTimeout(),
+                  System.getProperty(SESSION_TICKETS, "(jvm default)"));
+        return context;
+    }
+
+    /* ====================================================================== */
+
+    private static List<X509KeyManager> keyManagers(List<Configurations> keyStoreConfigs)
+    throws Exception {
+        final List<X509KeyManager> keyManagers = new ArrayList<>();
+        for (Configurations keyStoreConfig: keyStoreConfigs) {
+
+            /* Start building a KeyStore */
+            final KeyStore keyStore = new KeyStoreBuilder().withConfiguration(keyStoreConfig).build();
+
+            /* We can't use a callback handler (for key store or key passwords), as KeyManagerFactory wants a password */
+            final Password keyPasswd = keyStoreConfig.getPassword("key_password");
+            final Password sharedPwd = keyStoreConfig.getPassword("password");
+            final Password password = keyPasswd != null ? keyPasswd :
+                                      sharedPwd != null ? sharedPwd :
+                                      null;
+
+            /* Build up our key manager factory and close up the password */
+            final KeyManagerFactory keyFactory = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+            keyFactory.init(keyStore, password == null ? null : password.get());
+            if (keyPasswd != null) keyPasswd.close();
+            if (sharedPwd != null) sharedPwd.close();
+
+            for (KeyManager keyManager: keyFactory.getKeyManagers()) {
+                if (keyManager instanceof X509KeyManager) keyManagers.add((X509KeyManager) keyManager);
+            }
+        }
+        return keyManagers;
+    }
+
+    /*
+     * Copy key store configurations while they can still be read: secure
+     * configurations are normally closed once the server has started.
+     */
+    private static List<Configurations> detach(List<Configurations> keyStoreConfigs) {
+        final List<Configurations> detached = new ArrayList<>();
+        for (Configurations keyStoreConfig: keyStoreConfigs) {
+            final ConfigurationsBuilder builder = new ConfigurationsBuilder();
+            for (String key: keyStoreConfig.keySet()) {
+                if ("password".equals(key) || "key_password".equals(key)) {
+                    final Password password = keyStoreConfig.getPassword(key);
+                    if (password == null) continue;
+                    builder.put(key, new String(password.get()));
+                    password.close();
+                } else {
+                    builder.put(key, keyStoreConfig.getString(key));
+                }
+            }
+            detached.add(builder.build());
+        }
+        return detached;
+    }
+
+    /* Modification times and lengths of all our key store files, hashed */
+    private static long stamp(List<Configurations> keyStoreConfigs) {
+        long stamp = 17;
+        for (Configurations keyStoreConfig: keyStoreConfigs) {
+            final File file = keyStoreConfig.getFile("file");
+            stamp = (stamp * 31) + (file == null ? 0 : file.lastModified());
+            stamp = (stamp * 31) + (file == null ? 0 : file.length());
+        }
+        return stamp;
+    }
+
+    static List<String> files(List<Configurations> keyStoreConfigs) {
+        final List<String> files = new ArrayList<>();
+        for (Configurations keyStoreConfig: keyStoreConfigs) files.add(keyStoreConfig.get("file", "(no file specified)"));
+        return files;
+    }
+
+    /*
+     * A digest of our configurations: we don't want to keep (possibly
+     * secret) values around, and values we can't compare (for example,
+     * encrypted passwords) simply won't share their contexts.
+     */
+    private static String fingerprint(List<Configurations> keyStoreConfigs, Configurations sessionConfig, int reloadInterval)
+    throws Exception {
+        final MessageDigest digest = MessageDigest.getInstance("SHA-256");
+        digest.update(("reload_interval=" + reloadInterval + "\n").getBytes(UTF_8));
+        for (int index = 0; index < keyStoreConfigs.size(); index ++) {
+            for (Map.Entry<String, Object> entry: new TreeMap<>(keyStoreConfigs.get(index)).entrySet()) {
+                digest.update(("keystore." + index + "." + entry.getKey() + "=" + entry.getValue() + "\n").getBytes(UTF_8));
+            }
+        }
+        for (Map.Entry<String, Object> entry: new TreeMap<>(sessionConfig).entrySet()) {
+            digest.update(("session." + entry.getKey() + "=" + entry.getValue() + "\n").getBytes(UTF_8));
+        }
+
+        final StringBuilder builder = new StringBuilder();
+        for (byte b: digest.digest()) builder.append(String.format("%02x", b));
+        return builder.toString();
+    }
+
+    /* ====================================================================== */
+
+    private final class Reloader implements Runnable {
+
+        private final List<Configurations> keyStoreConfigs;
+        private final SNIKeyManager keyManager;
+        private long stamp;
+
+        private Reloader(List<Configurations> keyStoreConfigs, SNIKeyManager keyManager, long stamp) {
+            this.keyStoreConfigs = keyStoreConfigs;
+            this.keyManager = keyManager;
+            this.stamp = stamp;
+        }
+
+        @Override
+        public void run() {
+            final long current = stamp(keyStoreConfigs);
+            if (current == stamp) return;
+
+            /* Whatever happens, don't try again until the files change again */
+            stamp = current;
+            try {
+                keyManager.update(keyManagers(keyStoreConfigs));
+                rotations.increment();
+                log.info("Rotated certificates from keystores %s", files(keyStoreConfigs));
+            } catch (Exception exception) {
+                failures.increment();
+                log.error(exception, "Error reloading keystores %s, keeping old certificates", files(keyStoreConfigs));
+            }
+        }
+    }
+}
@@ -0,0 +1,745 @@
+/* ========================================================================== *
+ * Copyright 2014 USRZ.com and Pier Paolo Fumagalli                           *
+ * -------------------------------------------------------------------------- *
+ * Licensed under the Apache License, Version 2.0 (the "License");            *
+ * you may not use this file except in compliance with the License.           *
+ * You may obtain a copy of the License at                                    *
+ *                                                                            *
+ *  http://www.apache.org/licenses/LICENSE-2.0                                *
+ *                                                                            *
+ * Unless required by applicable law or agreed to in writing, software        *
+ * distributed under the License is distributed on an "AS IS" BASIS,          *
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.   *
+ * See the License for the specific language governing permissions and        *
+ * limitations under the License.                                             *
+ * ========================================================================== */
+package org.usrz.libs.httpd.inject;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.usrz.libs.utils.Check.notNull;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+
+import org.glassfish.grizzly.Connection;
+import org.glassfish.grizzly.Grizzly;
+import org.glassfish.grizzly.attributes.Attribute;
+import org.glassfish.grizzly.filterchain.BaseFilter;
+import org.glassfish.grizzly.filterchain.FilterChainBuilder;
+import org.glassfish.grizzly.filterchain.FilterChainContext;
+import org.glassfish.grizzly.filterchain.NextAction;
+import org.glassfish.grizzly.http.HttpServerFilter;
+import org.glassfish.grizzly.http.KeepAlive;
+import org.glassfish.grizzly.http.server.AddOn;
+import org.glassfish.grizzly.http.server.HttpHandler;
+import org.glassfish.grizzly.http.server.HttpServer;
+import org.glassfish.grizzly.http.server.NetworkListener;
+import org.glassfish.grizzly.nio.transport.TCPNIOTransport;
+import org.glassfish.grizzly.threadpool.GrizzlyExecutorService;
+import org.glassfish.grizzly.threadpool.ThreadPoolConfig;
+import org.glassfish.grizzly.utils.IdleTimeoutFilter;
+import org.usrz.libs.httpd.handlers.FileCache;
+import org.usrz.libs.httpd.handlers.FileHandler;
+import org.usrz.libs.logging.Log;
+
+import com.google.inject.Injector;
+import com.google.inject.Key;
+
+/**
+ * Registers MBeans for an {@link HttpServer} in the platform
+ * {@link MBeanServer}, under the <code>org.usrz.libs.httpd</code> domain.
+ *
+ * <p>One MBean describes the server itself, and one each is registered
+ * for every {@link NetworkListener} (by
+ * {@linkplain NetworkListenerProvider#getName() name}), for its worker
+ * pool and for every handler path. Listeners and pools expose their own
+ * live counters, and allow keep-alive limits and pool sizes to be changed
+ * while the server is running. Handlers expose request counts and
+ * latencies from {@link HandlerTimings}, and hits and misses of their
+ * {@link FileCache}, if any.</p>
+ *
+ * <p>Changing keep-alive limits of a running listener depends on Grizzly
+ * 2.3 internals: its HTTP filter works on a private copy of the
+ * listener's {@link KeepAlive}, found by reflection, and its idle timeout
+ * filter is configured once, so new timeouts are applied to connections
+ * as they are accepted or as their next request is read. Should those
+ * internals change, a warning is logged and new values only apply once the
+ * server is restarted.</p>
+ *
+ * <p>All MBeans are unregistered when the server shuts down.</p>
+ *
+ * @author <a href="mailto:pier@usrz.com">Pier Fumagalli</a>
+ */
+@Singleton
+public class ServerMBeans implements Closeable {
+
+    /** The domain of all our MBeans' {@link ObjectName}s. */
+    public static final String DOMAIN = "org.usrz.libs.httpd";
+
+    /* The idle timeout (in seconds) last applied to a connection */
+    private static final Attribute<Integer> IDLE_TIMEOUT = Grizzly.DEFAULT_ATTRIBUTE_BUILDER.createAttribute(ServerMBeans.class.getName() + ".idleTimeout");
+
+    private final Log log = new Log();
+
+    private final MBeanServer mbeanServer = ManagementFactory.getPlatformMBeanServer();
+    private final List<ObjectName> registered = new ArrayList<>();
+    private final Map<String, HttpHandler> handlers = new ConcurrentHashMap<>();
+
+    private HttpServer server;
+    private String serverName;
+    private HandlerTimings timings;
+    private SlowRequestWatchdog watchdog;
+
+    public ServerMBeans() {
+        /* Nothing to do */
+    }
+
+    @Inject
+    private void setup(Injector injector, HttpServer server, HttpServerProvider provider) {
+        this.server = server;
+        serverName = server.getServerConfiguration().getName();
+
+        if (injector.getExistingBinding(Key.get(HandlerTimings.class)) != null) timings = injector.getInstance(HandlerTimings.class);
+        if (injector.getExistingBinding(Key.get(SlowRequestWatchdog.class)) != null) watchdog = injector.getInstance(SlowRequestWatchdog.class);
+
+        register(name("Server"), new Server(), ServerMXBean.class);
+
+        /* Unregister everything when the server shuts down */
+        provider.closeOnShutdown(this);
+    }
+
+    /**
+     * Register the MBeans of a listener and its worker pool, adding our
+     * counters to its transport before it is started.
+     */
+    void register(NetworkListenerProvider provider) {
+        final NetworkListener listener = notNull(provider.get(), "Listener not created yet");
+        final TCPNIOTransport transport = listener.getTransport();
+
+        final ConnectionCounters connections = new ConnectionCounters();
+        transport.getConnectionMonitoringConfig().addProbes(connections);
+        final Listener mbean = new Listener(provider, connections);
+        listener.registerAddOn(mbean);
+        register(name("Listener", "name", provider.getName()), mbean, ListenerMXBean.class);
+
+        /* No worker pool, nothing to manage (for example, with "same_thread" I/O) */
+        if (transport.getWorkerThreadPoolConfig() == null) return;
+        final ThreadPoolCounters workers = new ThreadPoolCounters();
+        transport.getThreadPoolMonitoringConfig().addProbes(workers);
+        register(name("WorkerPool", "listener", provider.getName()), new WorkerPool(provider, workers), WorkerPoolMXBean.class);
+
+    }
+
+    /** Register the MBean of the (undecorated) handler at the given path. */
+    void register(String path, HttpHandler handler) {
+        register(name("Handler", "path", path), new Handler(path, handler), HandlerMXBean.class);
+        handlers.put(path, handler);
+    }
+
+    /** Unregister all MBeans registered so far. */
+    @Override
+    public synchronized void close() {
+        for (ObjectName name: registered) try {
+            if (mbeanServer.isRegistered(name)) mbeanServer.unregisterMBean(name);
+        } catch (JMException exception) {
+            log.warn(exception, "Unable to unregister MBean %s", name);
+        }
+        registered.clear();
+    }
+
+    /* ====================================================================== */
+
+    private ObjectName name(String type, String... properties) {
+        final StringBuilder builder = new StringBuilder(DOMAIN).append(":type=").append(type)
+                                                               .append(",server=").append(ObjectName.quote(serverName));
+        for (int x = 0; x < properties.length; x += 2)
+            builder.append(',').append(properties[x]).append('=').append(ObjectName.quote(properties[x + 1]));
+        try {
+            return new ObjectName(builder.toString());
+        } catch (JMException exception) {
+            throw new IllegalArgumentException("Invalid MBean name " + builder, exception);
+        }
+    }
+
+    private synchronized <T> void register(ObjectName name, T mbean, Class<T> type) {
+        try {
+            /* Servers sharing a name (in tests, mostly) replace each other */
+            if (mbeanServer.isRegistered(name)) {
+                log.warn("Replacing MBean %s already registered", name);
+                mbeanServer.unregisterMBean(name);
+            }
+            mbeanServer.registerMBean(new StandardMBean(mbean, type, true), name);
+            registered.add(name);
+            log.debug("Registered MBean %s", name);
+        } catch (JMException exception) {
+            log.warn(exception, "Unable to register MBean %s", name);
+        }
+    }
+
+    /* ====================================================================== */
+
+    /** Management interface of an {@link HttpServer}. */
+    public interface ServerMXBean {
+
+        public String getName();
+
+        public boolean isStarted();
+
+        public String[] getListenerNames();
+
+        public String[] getHandlerPaths();
+
+        /** Requests detected by the {@link SlowRequestWatchdog}, or -1. */
+        public long getSlowRequests();
+
+    }
+
+    /** Management interface of a {@link NetworkListener}. */
+    public interface ListenerMXBean {
+
+        public String getName();
+
+        public String getHost();
+
+        public int getPort();
+
+        public boolean isSecure();
+
+        public boolean isStarted();
+
+        public boolean isPaused();
+
+        /** Stop accepting connections, keeping those already open. */
+        public void pause();
+
+        /** Accept connections again after a {@link #pause()}. */
+        public void resume();
+
+        /** Requests served on a connection before closing it, -1 for no limit. */
+        public int getKeepAliveMaxRequests();
+
+        public void setKeepAliveMaxRequests(int maxRequests);
+
+        /** Seconds an idle connection is kept open for, -1 for no limit. */
+        public int getKeepAliveIdleTimeout();
+
+        public void setKeepAliveIdleTimeout(int seconds);
+
+        public long getOpenConnections();
+
+        public long getAcceptedConnections();
+
+        public long getConnectionErrors();
+
+        public long getBytesRead();
+
+        public long getBytesWritten();
+
+        public long getRejectedHeaders();
+
+        public long getRejectedBodies();
+
+        public long getFullHandshakes();
+
+        public long getResumedHandshakes();
+
+    }
+
+    /** Management interface of the worker pool of a {@link NetworkListener}. */
+    public interface WorkerPoolMXBean {
+
+        /** Either <code>grizzly</code>, <code>virtual</code> or <code>stopped</code>. */
+        public String getType();
+
+        public int getCorePoolSize();
+
+        /** Change the number of threads kept alive, even when idle. */
+        public void setCorePoolSize(int size);
+
+        /** The maximum number of threads (or of concurrent virtual threads). */
+        public int getMaxPoolSize();
+
+        /** Change the maximum number of threads. */
+        public void setMaxPoolSize(int size);
+
+        public int getQueueLimit();
+
+        public long getThreads();
+
+        public long getActiveThreads();
+
+        public long getQueueDepth();
+
+        public long getQueueOverflows();
+
+        public long getCompletedTasks();
+
+    }
+
+    /** Management interface of an {@link HttpHandler} served at a path. */
+    public interface HandlerMXBean {
+
+        public String getPath();
+
+        public String getHandlerClass();
+
+        /** Requests completed, if {@link HandlerTimings} are collected. */
+        public long getRequests();
+
+        /** Requests completed with a <code>5xx</code> status. */
+        public long getServerErrors();
+
+        public double getLatencyMedianMillis();
+
+        public double getLatency99thMillis();
+
+        public double getLatency999thMillis();
+
+        /** Hits of the handler's {@link FileCache}, or -1 without one. */
+        public long getFileCacheHits();
+
+        public long getFileCacheMisses();
+
+        public int getFileCacheEntries();
+
+        /** Bytes held by the handler's {@link FileCache}, or -1. */
+        public long getFileCacheSize();
+
+    }
+
+    /* ====================================================================== */
+
+    private final class Server implements ServerMXBean {
+
+        @Override
+        public String getName() {
+            return serverName;
+        }
+
+        @Override
+        public boolean isStarted() {
+            return server.isStarted();
+        }
+
+        @Override
+        public String[] getListenerNames() {
+            final List<String> names = new ArrayList<>();
+            for (NetworkListener listener: server.getListeners()) names.add(listener.getName());
+            return names.toArray(new String[names.size()]);
+        }
+
+        @Override
+        public String[] getHandlerPaths() {
+            return handlers.keySet().stream().sorted().toArray(String[]::new);
+        }
+
+        @Override
+        public long getSlowRequests() {
+            return watchdog == null ? -1 : watchdog.getDetected();
+        }
+    }
+
+    /* ---------------------------------------------------------------------- */
+
+    private final class Listener implements ListenerMXBean, AddOn {
+
+        private final NetworkListenerProvider provider;
+        private final NetworkListener listener;
+        private final ConnectionCounters connections;
+        private volatile KeepAlive running;
+        private volatile int configuredTimeout;
+
+        private Listener(NetworkListenerProvider provider, ConnectionCounters connections) {
+            this.provider = provider;
+            this.listener = provider.get();
+            this.connections = connections;
+        }
+
+        /*
+         * Grizzly's HTTP filter copies the listener's keep-alive when started
+         * into its private "keepAlive" field (true for Grizzly 2.3): find the
+         * copy, so that changes apply to the running listener, too.
+         */
+        @Override
+        public void setup(NetworkListener listener, FilterChainBuilder builder) {
+            running = null;
+            configuredTimeout = listener.getKeepAlive().getIdleTimeoutInSeconds();
+            final int index = builder.indexOfType(HttpServerFilter.class);
+            if (index >= 0) try {
+                final Field field = HttpServerFilter.class.getDeclaredField("keepAlive");
+                field.setAccessible(true);
+                running = (KeepAlive) field.get(builder.get(index));
+            } catch (ReflectiveOperationException | RuntimeException exception) {
+                log.warn(exception, "Keep-alive changes for listener \"%s\" will only apply after a restart", provider.getName());
+            }
+
+            /* Grizzly's idle timeout is fixed, but can be changed per connection */
+            final int idle = builder.indexOfType(IdleTimeoutFilter.class);
+            if (idle >= 0) builder.add(idle + 1, new IdleTimeoutUpdater());
+        }
+
+        private KeepAlive keepAlive() {
+            final KeepAlive keepAlive = running;
+            return keepAlive == null ? listener.getKeepAlive() : keepAlive;
+        }
+
+        @Override
+        public String getName() {
+            return provider.getName();
+        }
+
+        @Override
+        public String getHost() {
+            return listener.getHost();
+        }
+
+        @Override
+        public int getPort() {
+            return listener.getPort();
+        }
+
+        @Override
+        public boolean isSecure() {
+            return listener.isSecure();
+        }
+
+        @Override
+        public boolean isStarted() {
+            return listener.isStarted();
+        }
+
+        @Override
+        public boolean isPaused() {
+            return listener.isPaused();
+        }
+
+        @Override
+        public void pause() {
+            listener.pause();
+            log.info("Listener \"%s\" paused", provider.getName());
+        }
+
+        @Override
+        public void resume() {
+            listener.resume();
+            log.info("Listener \"%s\" resumed", provider.getName());
+        }
+
+        @Override
+        public int getKeepAliveMaxRequests() {
+            return keepAlive().getMaxRequestsCount();
+        }
+
+        @Override
+        public void setKeepAliveMaxRequests(int maxRequests) {
+            final KeepAlive keepAlive = running;
+            if (keepAlive != null) keepAlive.setMaxRequestsCount(maxRequests < 0 ? -1 : maxRequests);
+            listener.getKeepAlive().setMaxRequestsCount(maxRequests < 0 ? -1 : maxRequests);
+            log.info("Keep-alive max requests of listener \"%s\" now %d", provider.getName(), getKeepAliveMaxRequests());
+        }
+
+        @Override
+        public int getKeepAliveIdleTimeout() {
+            return keepAlive().getIdleTimeoutInSeconds();
+        }
+
+        @Override
+        public void setKeepAliveIdleTimeout(int seconds) {
+            final KeepAlive keepAlive = running;
+            if (keepAlive != null) keepAlive.setIdleTimeoutInSeconds(seconds < 0 ? -1 : seconds);
+            listener.getKeepAlive().setIdleTimeoutInSeconds(seconds < 0 ? -1 : seconds);
+            log.info("Keep-alive idle timeout of listener \"%s\" now %d seconds", provider.getName(), getKeepAliveIdleTimeout());
+        }
+
+        @Override
+        public long getOpenConnections() {
+            return connections.getOpen();
+        }
+
+        @Override
+        public long getAcceptedConnections() {
+            return connections.getAccepted();
+        }
+
+        @Override
+        public long getConnectionErrors() {
+            return connections.getErrors();
+        }
+
+        @Override
+        public long getBytesRead() {
+            return connections.getBytesRead();
+        }
+
+        @Override
+        public long getBytesWritten() {
+            return connections.getBytesWritten();
+        }
+
+        @Override
+        public long getRejectedHeaders() {
+            return provider.getRequestLimits().getRejectedHeaders();
+        }
+
+        @Override
+        public long getRejectedBodies() {
+            return provider.getRequestLimits().getRejectedBodies();
+        }
+
+        @Override
+        public long getFullHandshakes() {
+            final HandshakeCounter handshakes = provider.getHandshakeCounter();
+            return handshakes == null ? 0 : handshakes.getFullHandshakes();
+        }
+
+        @Override
+        public long getResumedHandshakes() {
+            final HandshakeCounter handshakes = provider.getHandshakeCounter();
+            return handshakes == null ? 0 : handshakes.getResumedHandshakes();
+        }
+
+        /*
+         * Apply the current idle timeout to connections when accepted and
+         * when requests are read from them (Grizzly's idle timeout filter
+         * sits after the HTTP codec, so only complete requests get there),
+         * only touching those whose timeout differs from the current one.
+         */
+        private final class IdleTimeoutUpdater extends BaseFilter {
+
+            @Override
+            public NextAction handleAccept(FilterChainContext context)
+            throws IOException {
+                update(context.getConnection());
+                return context.getInvokeAction();
+            }
+
+            @Override
+            public NextAction handleRead(FilterChainContext context)
+            throws IOException {
+                update(context.getConnection());
+                return context.getInvokeAction();
+            }
+
+            private void update(Connection<?> connection) {
+                final int seconds = keepAlive().getIdleTimeoutInSeconds();
+                final Integer applied = IDLE_TIMEOUT.get(connection);
+                if (seconds == (applied == null ? configuredTimeout : applied)) return;
+
+                if (seconds < 0) IdleTimeoutFilter.setCustomTimeout(connection, IdleTimeoutFilter.FOREVER, MILLISECONDS);
+                else IdleTimeoutFilter.setCustomTimeout(connection, seconds, SECONDS);
+                IDLE_TIMEOUT.set(connection, seconds);
+            }
+        }
+    }
+
+    /* ---------------------------------------------------------------------- */
+
+    private final class WorkerPool implements WorkerPoolMXBean {
+
+        private final NetworkListenerProvider provider;
+        private final TCPNIOTransport transport;
+        private final ThreadPoolCounters workers;
+
+        private WorkerPool(NetworkListenerProvider provider, ThreadPoolCounters workers) {
+            this.provider = provider;
+            this.transport = provider.get().getTransport();
+            this.workers = workers;
+        }
+
+        /* Before the transport starts, the pool is only configured */
+        private ThreadPoolConfig configuration() {
+            final ExecutorService pool = transport.getWorkerThreadPool();
+            if (pool instanceof GrizzlyExecutorService) return ((GrizzlyExecutorService) pool).getConfiguration();
+            return transport.getWorkerThreadPoolConfig();
+        }
+
+        /* Validate, then reconfigure the running pool or its configuration */
+        private synchronized void resize(int coreSize, int maxSize) {
+            final ExecutorService pool = transport.getWorkerThreadPool();
+            if (pool instanceof VirtualThreadExecutor)
+                throw new UnsupportedOperationException("Virtual threads of listener \"" + provider.getName() + "\" can not be resized");
+            if ((coreSize < 0) || (maxSize < 1) || (coreSize > maxSize))
+                throw new IllegalArgumentException("Invalid worker pool for listener \"" + provider.getName() + "\" (core_size=" + coreSize + ", max_size=" + maxSize + ")");
+
+            final ThreadPoolConfig configuration = configuration().copy().setCorePoolSize(coreSize).setMaxPoolSize(maxSize);
+            if (pool instanceof GrizzlyExecutorService) {
+                /* Queued tasks move to the new pool, old threads finish what they run */
+                ((GrizzlyExecutorService) pool).reconfigure(configuration);
+            } else {
+                transport.setWorkerThreadPoolConfig(configuration);
+            }
+            log.info("Worker pool of listener \"%s\" resized (core_size=%d, max_size=%d)", provider.getName(), coreSize, maxSize);
+        }
+
+        @Override
+        public String getType() {
+            final ExecutorService pool = transport.getWorkerThreadPool();
+            return pool instanceof VirtualThreadExecutor ? "virtual" :
+                   pool instanceof GrizzlyExecutorService ? "grizzly" :
+                   "stopped";
+        }
+
+        @Override
+        public int getCorePoolSize() {
+            return transport.getWorkerThreadPool() instanceof VirtualThreadExecutor ? 0 : configuration().getCorePoolSize();
+        }
+
+        @Override
+        public void setCorePoolSize(int size) {
+            resize(size, Math.max(size, getMaxPoolSize()));
+        }
+
+        @Override
+        public int getMaxPoolSize() {
+            final ExecutorService pool = transport.getWorkerThreadPool();
+            if (pool instanceof VirtualThreadExecutor) return ((VirtualThreadExecutor) pool).getMaxConcurrency();
+            return configuration().getMaxPoolSize();
+        }
+
+        @Override
+        public void setMaxPoolSize(int size) {
+            resize(Math.min(size, getCorePoolSize()), size);
+        }
+
+        @Override
+        public int getQueueLimit() {
+            return transport.getWorkerThreadPool() instanceof VirtualThreadExecutor ? -1 : configuration().getQueueLimit();
+        }
+
+        @Override
+        public long getThreads() {
+            final ExecutorService pool = transport.getWorkerThreadPool();
+            if (pool instanceof VirtualThreadExecutor) return ((VirtualThreadExecutor) pool).getThreadCount();
+            return workers.getThreads();
+        }
+
+        @Override
+        public long getActiveThreads() {
+            final ExecutorService pool = transport.getWorkerThreadPool();
+            if (pool instanceof VirtualThreadExecutor) return ((VirtualThreadExecutor) pool).getThreadCount();
+            return workers.getActiveThreads();
+        }
+
+        @Override
+        public long getQueueDepth() {
+            final ExecutorService pool = transport.getWorkerThreadPool();
+            if (pool instanceof VirtualThreadExecutor) return ((VirtualThreadExecutor) pool).getWaitingCount();
+            return workers.getQueueDepth();
+        }
+
+        @Override
+        public long getQueueOverflows() {
+            return workers.getQueueOverflows();
+        }
+
+        @Override
+        public long getCompletedTasks() {
+            return workers.getCompletedTasks();
+        }
+    }
+
+    /* ---------------------------------------------------------------------- */
+
+    private final class Handler implements HandlerMXBean {
+
+        private final String path;
+        private final HttpHandler handler;
+
+        private Handler(String path, HttpHandler handler) {
+            this.path = path;
+            this.handler = handler;
+        }
+
+        private LatencyHistogram[] histograms() {
+            if ((timings == null) || (! timings.getPaths().contains(path))) return new LatencyHistogram[0];
+            final LatencyHistogram[] histograms = new LatencyHistogram[ServerMetrics.STATUS_CLASSES.length];
+            for (int x = 0; x < histograms.length; x ++) histograms[x] = timings.getHistogram(path, x * 100);
+            return histograms;
+        }
+
+        private double latency(double quantile) {
+            return LatencyHistogram.getQuantile(quantile, histograms()) / 1000.0;
+        }
+
+        private FileCache cache() {
+            return handler instanceof FileHandler ? ((FileHandler) handler).getFileCache() : null;
+        }
+
+        @Override
+        public String getPath() {
+            return path;
+        }
+
+        @Override
+        public String getHandlerClass() {
+            return handler.getClass().getName();
+        }
+
+        @Override
+        public long getRequests() {
+            long requests = 0;
+            for (LatencyHistogram histogram: histograms()) requests += histogram.getCount();
+            return requests;
+        }
+
+        @Override
+        public long getServerErrors() {
+            final LatencyHistogram histogram = timings == null ? null : timings.getHistogram(path, 500);
+            return histogram == null ? 0 : histogram.getCount();
+        }
+
+        @Override
+        public double getLatencyMedianMillis() {
+            return latency(0.5);
+        }
+
+        @Override
+        public double getLatency99thMillis() {
+            return latency(0.99);
+        }
+
+        @Override
+        public double getLatency999thMillis() {
+            return latency(0.999);
+        }
+
+        @Override
+        public long getFileCacheHits() {
+            final FileCache cache = cache();
+            return cache == null ? -1 : cache.getHits();
+        }
+
+        @Override
+        public long getFileCacheMisses() {
+            final FileCache cache = cache();
+            return cache == null ? -1 : cache.getMisses();
+        }
+
+        @Override
+        public int getFileCacheEntries() {
+            final FileCache cache = cache();
+            return cache == null ? -1 : cache.getEntries();
+        }
+
+        @Override
+        public long getFileCacheSize() {
+            final FileCache cache = cache();
+            return cache == null ? -1 : cache.getSize();
+        }
+    }
+}
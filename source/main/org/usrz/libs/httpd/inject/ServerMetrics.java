@@ -0,0 +1,308 @@
+/* ========================================================================== *
+ * Copyright 2014 USRZ.com and Pier Paolo Fumagalli                           *
+ * -------------------------------------------------------------------------- *
+ * Licensed under the Apache License, Version 2.0 (the "License");            *
+ * you may not use this file except in compliance with the License.           *
+ * You may obtain a copy of the License at                                    *
+ *                                                                            *
+ *  http://www.apache.org/licenses/LICENSE-2.0                                *
+ *                                                                            *
+ * Unless required by applicable law or agreed to in writing, software        *
+ * distributed under the License is distributed on an "AS IS" BASIS,          *
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.   *
+ * See the License for the specific language governing permissions and        *
+ * limitations under the License.                                             *
+ * ========================================================================== */
+package org.usrz.libs.httpd.inject;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+import org.glassfish.grizzly.Connection;
+import org.glassfish.grizzly.http.server.HttpServer;
+import org.glassfish.grizzly.http.server.HttpServerFilter;
+import org.glassfish.grizzly.http.server.HttpServerMonitoringConfig;
+import org.glassfish.grizzly.http.server.HttpServerProbe;
+import org.glassfish.grizzly.http.server.Request;
+import org.glassfish.grizzly.http.server.Response;
+import org.glassfish.grizzly.http.server.accesslog.AccessLogProbe;
+import org.usrz.libs.logging.Log;
+
+import com.google.inject.Binding;
+import com.google.inject.Injector;
+import com.google.inject.Key;
+import com.google.inject.TypeLiteral;
+
+/**
+ * Runtime metrics for an {@link HttpServer}, collected by Grizzly probes
+ * backed by {@link LongAdder}s and written in Prometheus' text format.
+ *
+ * <p>Connections, bytes, worker threads and requests are counted by probes
+ * added to the server's monitoring configuration. Listeners, the memory
+ * manager, the SSL context cache and asynchronous access logs contribute
+ * the counters they already keep.</p>
+ *
+ * @author <a href="mailto:pier@usrz.com">Pier Fumagalli</a>
+ */
+@Singleton
+public class ServerMetrics {
+
+    static final String[] STATUS_CLASSES = { "other", "1xx", "2xx", "3xx", "4xx", "5xx" };
+    private static final double[] QUANTILES = { 0.5, 0.99, 0.999 };
+    private static final String[] QUANTILE_LABELS = { "0.5", "0.99", "0.999" };
+
+    private final Log log = new Log();
+
+    /* Connections, worker threads and their queue */
+    private final ConnectionCounters connections = new ConnectionCounters();
+    private final ThreadPoolCounters workers = new ThreadPoolCounters();
+
+    /* Requests, by status class */
+    private final LongAdder received = new LongAdder();
+    private final LongAdder cancelled = new LongAdder();
+    private final LongAdder[] statuses = new LongAdder[STATUS_CLASSES.length];
+
+    /* Everyone else contributing metrics */
+    private final List<NetworkListenerProvider> listeners = new CopyOnWriteArrayList<>();
+    private final List<AsyncAccessLog> accessLogs = new CopyOnWriteArrayList<>();
+    private MemoryManagerProvider memory;
+    private SSLContextCache sslContextCache;
+    private HandlerTimings timings;
+    private SlowRequestWatchdog watchdog;
+
+    public ServerMetrics() {
+        for (int x = 0; x < statuses.length; x ++) statuses[x] = new LongAdder();
+    }
+
+    @Inject
+    private void setup(Injector injector, HttpServer server) {
+        final HttpServerMonitoringConfig monitoring = server.getServerConfiguration().getMonitoringConfig();
+        monitoring.getConnectionConfig().addProbes(connections);
+        monitoring.getThreadPoolConfig().addProbes(workers);
+        monitoring.getWebServerConfig().addProbes(new Requests());
+
+        memory = injector.getInstance(MemoryManagerProvider.class);
+        sslContextCache = injector.getInstance(SSLContextCache.class);
+        if (injector.getExistingBinding(Key.get(HandlerTimings.class)) != null) timings = injector.getInstance(HandlerTimings.class);
+        if (injector.getExistingBinding(Key.get(SlowRequestWatchdog.class)) != null) watchdog = injector.getInstance(SlowRequestWatchdog.class);
+
+        for (Binding<AccessLogProbe> binding: injector.findBindingsByType(TypeLiteral.get(AccessLogProbe.class))) {
+            final AccessLogProbe probe = binding.getProvider().get();
+            if (probe instanceof AsyncAccessLog) accessLogs.add((AsyncAccessLog) probe);
+        }
+
+        log.info("Collecting metrics for server \"%s\"", server.getServerConfiguration().getName());
+    }
+
+    /** Include the counters of a listener in these metrics. */
+    void register(NetworkListenerProvider listener) {
+        listeners.add(listener);
+    }
+
+    /* ====================================================================== */
+
+    /** The number of connections currently open. */
+    public long getOpenConnections() {
+        return connections.getOpen();
+    }
+
+    /** The number of tasks waiting for a worker thread. */
+    public long getQueueDepth() {
+        return workers.getQueueDepth();
+    }
+
+    /** The number of worker threads currently running a task. */
+    public long getActiveThreads() {
+        return workers.getActiveThreads();
+    }
+
+    /** The number of requests completed with the specified status. */
+    public long getRequests(int status) {
+        return statuses[statusClass(status)].sum();
+    }
+
+    /* ====================================================================== */
+
+    /**
+     * Write all metrics in Prometheus' text exposition format (version
+     * <code>0.0.4</code>) to the specified {@link StringBuilder}.
+     */
+    public void writeTo(StringBuilder out) {
+        counter(out, "httpd_connections_accepted_total", "Connections accepted", connections.getAccepted());
+        counter(out, "httpd_connections_closed_total", "Connections closed", connections.getClosed());
+        gauge(out, "httpd_connections_open", "Connections currently open", getOpenConnections());
+        counter(out, "httpd_connection_errors_total", "Errors on connections", connections.getErrors());
+        counter(out, "httpd_bytes_read_total", "Bytes read from connections", connections.getBytesRead());
+        counter(out, "httpd_bytes_written_total", "Bytes written to connections", connections.getBytesWritten());
+
+        gauge(out, "httpd_worker_threads", "Worker threads in Grizzly pools", workers.getThreads());
+        gauge(out, "httpd_worker_threads_active", "Worker threads running a task", getActiveThreads());
+        gauge(out, "httpd_worker_queue_depth", "Tasks waiting for a worker thread", getQueueDepth());
+        counter(out, "httpd_worker_queue_overflows_total", "Tasks rejected by a full worker queue", workers.getQueueOverflows());
+
+        header(out, "httpd_virtual_threads", "gauge", "Virtual threads running a task");
+        for (NetworkListenerProvider listener: listeners) {
+            final VirtualThreadExecutor executor = listener.getVirtualThreadExecutor();
+            if (executor != null) sample(out, "httpd_virtual_threads", "listener", listener.getName(), executor.getThreadCount());
+        }
+        header(out, "httpd_virtual_threads_waiting", "gauge", "Tasks waiting for a virtual thread");
+        for (NetworkListenerProvider listener: listeners) {
+            final VirtualThreadExecutor executor = listener.getVirtualThreadExecutor();
+            if (executor != null) sample(out, "httpd_virtual_threads_waiting", "listener", listener.getName(), executor.getWaitingCount());
+        }
+
+        header(out, "httpd_requests_total", "counter", "Requests completed, by status class");
+        for (int x = 1; x < statuses.length; x ++) sample(out, "httpd_requests_total", "status", STATUS_CLASSES[x], statuses[x].sum());
+        sample(out, "httpd_requests_total", "status", STATUS_CLASSES[0], statuses[0].sum());
+        long completed = 0;
+        for (LongAdder status: statuses) completed += status.sum();
+        gauge(out, "httpd_requests_in_flight", "Requests received and not yet completed", Math.max(0, received.sum() - completed - cancelled.sum()));
+        counter(out, "httpd_requests_cancelled_total", "Requests cancelled before completion", cancelled.sum());
+        if (watchdog != null) counter(out, "httpd_requests_slow_total", "Requests exceeding the slow request threshold", watchdog.getDetected());
+
+        header(out, "httpd_requests_rejected_total", "counter", "Requests rejected for exceeding limits");
+        for (NetworkListenerProvider listener: listeners) {
+            final RequestLimits limits = listener.getRequestLimits();
+            if (limits == null) continue;
+            sample(out, "httpd_requests_rejected_total", "listener", listener.getName(), "reason", "body", limits.getRejectedBodies());
+            sample(out, "httpd_requests_rejected_total", "listener", listener.getName(), "reason", "headers", limits.getRejectedHeaders());
+        }
+
+        header(out, "httpd_tls_handshakes_total", "counter", "TLS handshakes completed");
+        for (NetworkListenerProvider listener: listeners) {
+            final HandshakeCounter handshakes = listener.getHandshakeCounter();
+            if (handshakes == null) continue;
+            sample(out, "httpd_tls_handshakes_total", "listener", listener.getName(), "type", "full", handshakes.getFullHandshakes());
+            sample(out, "httpd_tls_handshakes_total", "listener", listener.getName(), "type", "resumed", handshakes.getResumedHandshakes());
+        }
+
+        if (sslContextCache != null) {
+            counter(out, "httpd_keystore_rotations_total", "Keystores reloaded after a change", sslContextCache.getRotations());
+            counter(out, "httpd_keystore_rotation_failures_total", "Keystores failing to reload", sslContextCache.getRotationFailures());
+        }
+
+        /* Absent when using Grizzly's default (JVM-wide) memory manager */
+        final MemoryStatistics statistics = memory == null ? null : memory.getStatistics();
+        if (statistics != null) {
+            counter(out, "httpd_memory_allocated_bytes_total", "Bytes in newly allocated buffers", statistics.getAllocatedBytes());
+            counter(out, "httpd_memory_pooled_bytes_total", "Bytes in buffers taken from pools", statistics.getPooledBytes());
+            counter(out, "httpd_memory_released_bytes_total", "Bytes in buffers released to pools", statistics.getReleasedBytes());
+        }
+
+        if (timings != null) {
+            final String name = "httpd_handler_latency_seconds";
+            header(out, name, "summary", "Latency of handlers, by path and status class");
+            for (String path: timings.getPaths()) {
+                for (int x = 1; x <= STATUS_CLASSES.length; x ++) {
+                    final String status = STATUS_CLASSES[x % STATUS_CLASSES.length];
+                    final LatencyHistogram histogram = timings.getHistogram(path, x * 100);
+                    final long count = histogram.getCount();
+                    if (count == 0) continue;
+
+                    for (int q = 0; q < QUANTILES.length; q ++) {
+                        out.append(name).append('{');
+                        label(out, "handler", path).append(',');
+                        label(out, "status", status).append(',');
+                        label(out, "quantile", QUANTILE_LABELS[q]).append("} ");
+                        seconds(out, histogram.getQuantile(QUANTILES[q])).append('\n');
+                    }
+                    out.append(name).append("_sum{");
+                    label(out, "handler", path).append(',');
+                    label(out, "status", status).append("} ");
+                    seconds(out, histogram.getSum()).append('\n');
+                    out.append(name).append("_count{");
+                    label(out, "handler", path).append(',');
+                    label(out, "status", status).append("} ").append(count).append('\n');
+                }
+            }
+        }
+
+        if (accessLogs.isEmpty()) return;
+        header(out, "httpd_access_log_queue_depth", "gauge", "Access log lines waiting to be written");
+        for (AsyncAccessLog accessLog: accessLogs) sample(out, "httpd_access_log_queue_depth", "file", accessLog.getFile().getPath(), accessLog.getQueueDepth());
+        header(out, "httpd_access_log_written_total", "counter", "Access log lines written");
+        for (AsyncAccessLog accessLog: accessLogs) sample(out, "httpd_access_log_written_total", "file", accessLog.getFile().getPath(), accessLog.getWritten());
+        header(out, "httpd_access_log_dropped_total", "counter", "Access log lines dropped by a full queue");
+        for (AsyncAccessLog accessLog: accessLogs) sample(out, "httpd_access_log_dropped_total", "file", accessLog.getFile().getPath(), accessLog.getDropped());
+        header(out, "httpd_access_log_filtered_total", "counter", "Access log lines skipped by sampling");
+        for (AsyncAccessLog accessLog: accessLogs) sample(out, "httpd_access_log_filtered_total", "file", accessLog.getFile().getPath(), accessLog.getFiltered());
+    }
+
+    /* ====================================================================== */
+
+    static int statusClass(int status) {
+        return (status >= 100) && (status < 600) ? status / 100 : 0;
+    }
+
+    /* Microseconds as seconds, without going through doubles */
+    private static StringBuilder seconds(StringBuilder out, long micros) {
+        out.append(micros / 1000000).append('.');
+        final long fraction = micros % 1000000;
+        for (long x = 100000; x > fraction && x > 1; x /= 10) out.append('0');
+        return out.append(fraction);
+    }
+
+    private static void counter(StringBuilder out, String name, String help, long value) {
+        header(out, name, "counter", help);
+        out.append(name).append(' ').append(value).append('\n');
+    }
+
+    private static void gauge(StringBuilder out, String name, String help, long value) {
+        header(out, name, "gauge", help);
+        out.append(name).append(' ').append(value).append('\n');
+    }
+
+    private static void header(StringBuilder out, String name, String type, String help) {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    private static void sample(StringBuilder out, String name, String label, String value, long sample) {
+        out.append(name).append('{');
+        label(out, label, value).append("} ").append(sample).append('\n');
+    }
+
+    private static void sample(StringBuilder out, String name, String label1, String value1, String label2, String value2, long sample) {
+        out.append(name).append('{');
+        label(out, label1, value1).append(',');
+        label(out, label2, value2).append("} ").append(sample).append('\n');
+    }
+
+    private static StringBuilder label(StringBuilder out, String label, String value) {
+        out.append(label).append("=\"");
+        for (int x = 0; x < value.length(); x ++) {
+            final char c = value.charAt(x);
+            switch (c) {
+                case '\\': out.append("\\\\"); break;
+                case '"':  out.append("\\\""); break;
+                case '\n': out.append("\\n"); break;
+                default:   out.append(c);
+            }
+        }
+        return out.append('"');
+    }
+
+    /* ====================================================================== */
+
+    private final class Requests extends HttpServerProbe.Adapter {
+
+        @Override
+        public void onRequestReceiveEvent(HttpServerFilter filter, Connection connection, Request request) {
+            received.increment();
+        }
+
+        @Override
+        public void onRequestCompleteEvent(HttpServerFilter filter, Connection connection, Response response) {
+            statuses[statusClass(response.getStatus())].increment();
+        }
+
+        @Override
+        public void onRequestCancelEvent(HttpServerFilter filter, Connection connection, Request request) {
+            cancelled.increment();
+        }
+    }
+}
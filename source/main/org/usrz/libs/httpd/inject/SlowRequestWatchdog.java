@@ -0,0 +1,273 @@
+/* ========================================================================== *
+ * Copyright 2014 USRZ.com and Pier Paolo Fumagalli                           *
+ * -------------------------------------------------------------------------- *
+ * Licensed under the Apache License, Version 2.0 (the "License");            *
+ * you may not use this file except in compliance with the License.           *
+ * You may obtain a copy of the License at                                    *
+ *                                                                            *
+ *  http://www.apache.org/licenses/LICENSE-2.0                                *
+ *                                                                            *
+ * Unless required by applicable law or agreed to in writing, software        *
+ * distributed under the License is distributed on an "AS IS" BASIS,          *
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.   *
+ * See the License for the specific language governing permissions and        *
+ * limitations under the License.                                             *
+ * ========================================================================== */
+package org.usrz.libs.httpd.inject;
+
+import static org.usrz.libs.utils.Check.notNull;
+
+import java.io.Closeable;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.inject.Inject;
+
+import org.glassfish.grizzly.http.server.HttpHandler;
+import org.glassfish.grizzly.http.server.Request;
+import org.glassfish.grizzly.http.server.Response;
+import org.usrz.libs.configurations.Configurations;
+import org.usrz.libs.logging.Log;
+
+/**
+ * A watchdog logging the stack of threads stuck serving a request for
+ * longer than a threshold.
+ *
+ * <p>Handlers {@linkplain #wrap(String, HttpHandler) wrapped} by this
+ * watchdog record the request they are serving in a slot owned by the
+ * current thread: slots are created once per thread and scanned
+ * periodically, so tracking a request costs a small allocation and two
+ * volatile writes. Only the time spent in the handler's <code>service(...)</code>
+ * method is watched: a suspended response holds no thread to sample.</p>
+ *
+ * <p>Configurations are <code>threshold</code> (in milliseconds, required),
+ * <code>samples</code> (stacks to capture for each slow request, default
+ * 1), <code>sample_interval</code> (milliseconds between samples, default
+ * 100) and <code>check_interval</code> (milliseconds between scans,
+ * defaults to a quarter of the threshold).</p>
+ *
+ * <p>When bound in a server's injector, the watchdog stops when the
+ * server shuts down.</p>
+ *
+ * @author <a href="mailto:pier@usrz.com">Pier Fumagalli</a>
+ */
+public class SlowRequestWatchdog implements Closeable {
+
+    private final Log log = new Log();
+
+    private final Queue<Slot> slots = new ConcurrentLinkedQueue<>();
+    private final ThreadLocal<Slot> slot = ThreadLocal.withInitial(() -> {
+        final Slot slot = new Slot(Thread.currentThread());
+        slots.add(slot);
+        return slot;
+    });
+
+    private final LongAdder detected = new LongAdder();
+    private final long threshold;
+    private final int samples;
+    private final long sampleInterval;
+    private final long checkInterval;
+    private ScheduledExecutorService executor;
+
+    public SlowRequestWatchdog(Configurations configurations) {
+        this(configurations.get("threshold", 0L),
+             configurations.get("samples", 1),
+             configurations.get("sample_interval", 100L),
+             configurations.get("check_interval", 0L));
+    }
+
+    /**
+     * Create a new {@link SlowRequestWatchdog}, with all intervals in
+     * milliseconds (a zero <code>checkInterval</code> defaults to a quarter
+     * of the threshold).
+     */
+    public SlowRequestWatchdog(long threshold, int samples, long sampleInterval, long checkInterval) {
+        if (threshold <= 0) throw new IllegalArgumentException("Invalid slow request threshold " + threshold);
+        if (samples < 1) throw new IllegalArgumentException("Invalid number of samples " + samples);
+        if (sampleInterval < 1) throw new IllegalArgumentException("Invalid sample interval " + sampleInterval);
+        if (checkInterval < 0) throw new IllegalArgumentException("Invalid check interval " + checkInterval);
+
+        this.threshold = TimeUnit.MILLISECONDS.toNanos(threshold);
+        this.samples = samples;
+        this.sampleInterval = sampleInterval;
+        this.checkInterval = checkInterval > 0 ? checkInterval : Math.max(10, threshold / 4);
+    }
+
+    @Inject
+    private void setup(HttpServerProvider provider) {
+        provider.closeOnShutdown(this);
+    }
+
+    /* ====================================================================== */
+
+    /** Wrap an {@link HttpHandler} served at the specified path. */
+    public HttpHandler wrap(String path, HttpHandler handler) {
+        start();
+        return new WatchedHandler(handler, notNull(path, "Null path"));
+    }
+
+    /** Start watching, if not already doing so. */
+    public synchronized void start() {
+        if (executor != null) return;
+        executor = Executors.newSingleThreadScheduledExecutor((runnable) -> {
+            final Thread thread = new Thread(runnable, "SlowRequestWatchdog");
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.scheduleWithFixedDelay(this::check, checkInterval, checkInterval, TimeUnit.MILLISECONDS);
+        log.info("Watching requests slower than %d ms (%d samples every %d ms)", TimeUnit.NANOSECONDS.toMillis(threshold), samples, sampleInterval);
+    }
+
+    @Override
+    public synchronized void close() {
+        if (executor == null) return;
+        executor.shutdownNow();
+        executor = null;
+    }
+
+    /** The number of slow requests detected so far. */
+    public long getDetected() {
+        return detected.sum();
+    }
+
+    /* ====================================================================== */
+
+    /** Record the request being served by the current thread. */
+    void begin(String method, String uri, String query, String protocol, String path) {
+        slot.get().watch = new Watch(method, uri, query, protocol, path);
+    }
+
+    /** Forget the request being served by the current thread. */
+    void end() {
+        slot.get().watch = null;
+    }
+
+    /** Log a report about a slow request. */
+    void report(String message) {
+        log.warn("%s", message);
+    }
+
+    /* ---------------------------------------------------------------------- */
+
+    private void check() {
+        try {
+            final Iterator<Slot> iterator = slots.iterator();
+            while (iterator.hasNext()) {
+                final Slot slot = iterator.next();
+                if (! slot.thread.isAlive()) {
+                    iterator.remove();
+                    continue;
+                }
+
+                final Watch watch = slot.watch;
+                if ((watch == null) || (watch == slot.reported)) continue;
+                if (System.nanoTime() - watch.started < threshold) continue;
+
+                slot.reported = watch;
+                detected.increment();
+                report(sample(slot, watch));
+            }
+        } catch (InterruptedException exception) {
+            Thread.currentThread().interrupt();
+        } catch (RuntimeException exception) {
+            log.error(exception, "Exception checking for slow requests");
+        }
+    }
+
+    private String sample(Slot slot, Watch watch)
+    throws InterruptedException {
+        final StringBuilder builder = new StringBuilder("Slow request \"")
+                        .append(watch.method).append(' ').append(watch.uri);
+        if (watch.query != null) builder.append('?').append(watch.query);
+        builder.append(' ').append(watch.protocol).append("\" served at \"").append(watch.path)
+               .append("\" by thread \"").append(slot.thread.getName()).append('"');
+
+        StackTraceElement[] previous = null;
+        for (int x = 0; x < samples; x ++) {
+            if (x > 0) Thread.sleep(sampleInterval);
+
+            final StackTraceElement[] stack = slot.thread.getStackTrace();
+            final long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - watch.started);
+
+            /* The stack is only good if we're still serving the same request */
+            if (slot.watch != watch) {
+                builder.append("\n  completed after about ").append(elapsed).append(" ms");
+                break;
+            }
+
+            builder.append("\n  sample ").append(x + 1).append(" of ").append(samples)
+                   .append(" after ").append(elapsed).append(" ms");
+            if (Arrays.equals(stack, previous)) {
+                builder.append(": same as previous");
+            } else {
+                for (StackTraceElement element: stack) builder.append("\n\tat ").append(element);
+            }
+            previous = stack;
+        }
+        return builder.toString();
+    }
+
+    /* ====================================================================== */
+
+    private static final class Slot {
+
+        private final Thread thread;
+        private volatile Watch watch;
+        private Watch reported; // only used by the watchdog
+
+        private Slot(Thread thread) {
+            this.thread = thread;
+        }
+    }
+
+    private static final class Watch {
+
+        private final long started = System.nanoTime();
+        private final String method;
+        private final String uri;
+        private final String query;
+        private final String protocol;
+        private final String path;
+
+        private Watch(String method, String uri, String query, String protocol, String path) {
+            this.method = method;
+            this.uri = uri;
+            this.query = query;
+            this.protocol = protocol;
+            this.path = path;
+        }
+    }
+
+    /* ====================================================================== */
+
+    private final class WatchedHandler extends HttpHandlerWrapper {
+
+        private final String path;
+
+        private WatchedHandler(HttpHandler handler, String path) {
+            super(handler);
+            this.path = path;
+        }
+
+        @Override
+        public void service(Request request, Response response)
+        throws Exception {
+            begin(request.getMethod().getMethodString(),
+                  request.getRequestURI(),
+                  request.getQueryString(),
+                  request.getProtocol().getProtocolString(),
+                  path);
+            try {
+                handler.service(request, response);
+            } finally {
+                end();
+            }
+        }
+    }
+}
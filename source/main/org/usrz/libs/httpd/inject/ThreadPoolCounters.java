@@ -0,0 +1,98 @@
+/* ========================================================================== *
+ * Copyright 2014 USRZ.com and Pier Paolo Fumagalli                           *
+ * -------------------------------------------------------------------------- *
+ * Licensed under the Apache License, Version 2.0 (the "License");            *
+ * you may not use this file except in compliance with the License.           *
+ * You may obtain a copy of the License at                                    *
+ *                                                                            *
+ *  http://www.apache.org/licenses/LICENSE-2.0                                *
+ *                                                                            *
+ * Unless required by applicable law or agreed to in writing, software        *
+ * distributed under the License is distributed on an "AS IS" BASIS,          *
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.   *
+ * See the License for the specific language governing permissions and        *
+ * limitations under the License.                                             *
+ * ========================================================================== */
+package org.usrz.libs.httpd.inject;
+
+import java.util.concurrent.atomic.LongAdder;
+
+import org.glassfish.grizzly.threadpool.AbstractThreadPool;
+import org.glassfish.grizzly.threadpool.ThreadPoolProbe;
+
+/**
+ * A {@link ThreadPoolProbe} counting threads and tasks of Grizzly's
+ * thread pools.
+ *
+ * @author <a href="mailto:pier@usrz.com">Pier Fumagalli</a>
+ */
+final class ThreadPoolCounters extends ThreadPoolProbe.Adapter {
+
+    private final LongAdder threadsAllocated = new LongAdder();
+    private final LongAdder threadsReleased = new LongAdder();
+    private final LongAdder tasksQueued = new LongAdder();
+    private final LongAdder tasksDequeued = new LongAdder();
+    private final LongAdder tasksCompleted = new LongAdder();
+    private final LongAdder queueOverflows = new LongAdder();
+
+    ThreadPoolCounters() {
+        /* Nothing to do */
+    }
+
+    /* ====================================================================== */
+
+    /** The number of threads currently in the pools. */
+    long getThreads() {
+        return Math.max(0, threadsAllocated.sum() - threadsReleased.sum());
+    }
+
+    /** The number of threads currently running a task. */
+    long getActiveThreads() {
+        return Math.max(0, tasksDequeued.sum() - tasksCompleted.sum());
+    }
+
+    /** The number of tasks waiting for a thread. */
+    long getQueueDepth() {
+        return Math.max(0, tasksQueued.sum() - tasksDequeued.sum());
+    }
+
+    long getCompletedTasks() {
+        return tasksCompleted.sum();
+    }
+
+    long getQueueOverflows() {
+        return queueOverflows.sum();
+    }
+
+    /* ====================================================================== */
+
+    @Override
+    public void onThreadAllocateEvent(AbstractThreadPool threadPool, Thread thread) {
+        threadsAllocated.increment();
+    }
+
+    @Override
+    public void onThreadReleaseEvent(AbstractThreadPool threadPool, Thread thread) {
+        threadsReleased.increment();
+    }
+
+    @Override
+    public void onTaskQueueEvent(AbstractThreadPool threadPool, Runnable task) {
+        tasksQueued.increment();
+    }
+
+    @Override
+    public void onTaskDequeueEvent(AbstractThreadPool threadPool, Runnable task) {
+        tasksDequeued.increment();
+    }
+
+    @Override
+    public void onTaskCompleteEvent(AbstractThreadPool threadPool, Runnable task) {
+        tasksCompleted.increment();
+    }
+
+    @Override
+    public void onTaskQueueOverflowEvent(AbstractThreadPool threadPool) {
+        queueOverflows.increment();
+    }
+}
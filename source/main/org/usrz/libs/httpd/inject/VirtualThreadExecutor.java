@@ -0,0 +1,180 @@
+/* ========================================================================== *
+ * Copyright 2014 USRZ.com and Pier Paolo Fumagalli                           *
+ * -------------------------------------------------------------------------- *
+ * Licensed under the Apache License, Version 2.0 (the "License");            *
+ * you may not use this file except in compliance with the License.           *
+ * You may obtain a copy of the License at                                    *
+ *                                                                            *
+ *  http://www.apache.org/licenses/LICENSE-2.0                                *
+ *                                                                            *
+ * Unless required by applicable law or agreed to in writing, software        *
+ * distributed under the License is distributed on an "AS IS" BASIS,          *
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.   *
+ * See the License for the specific language governing permissions and        *
+ * limitations under the License.                                             *
+ * ========================================================================== */
+package org.usrz.libs.httpd.inject;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.usrz.libs.logging.Log;
+
+/**
+ * An {@link java.util.concurrent.ExecutorService} running each task in its
+ * own <em>virtual thread</em>, available only when running on Java 21 or
+ * later (and looked up reflectively, as we still compile for Java 8).
+ *
+ * <p>At most <code>maxConcurrency</code> tasks run at any given time:
+ * tasks over the limit park in their virtual thread, never blocking the
+ * selector thread submitting them.</p>
+ *
+ * <p>This executor does not detect pinned virtual threads by itself: when
+ * the JVM is started with <code>-Djdk.tracePinnedThreads</code> it prints
+ * their stack traces, and we only log how our threads are named so that
+ * those traces can be tied to a listener.</p>
+ *
+ * @author <a href="mailto:pier@usrz.com">Pier Fumagalli</a>
+ */
+public class VirtualThreadExecutor extends AbstractExecutorService {
+
+    private static final Log log = new Log();
+    private static final String TRACE_PINNED = "jdk.tracePinnedThreads";
+
+    private final Set<Thread> threads = ConcurrentHashMap.newKeySet();
+    private final ThreadFactory factory;
+    private final Semaphore permits;
+    private final int maxConcurrency;
+    private volatile boolean shutdown;
+
+    /**
+     * Create a new {@link VirtualThreadExecutor} naming its threads after
+     * the specified prefix, and limiting concurrency (zero for unlimited).
+     *
+     * @throws UnsupportedOperationException If virtual threads are not
+     *                                       available in this JVM.
+     */
+    public VirtualThreadExecutor(String name, int maxConcurrency) {
+        if (maxConcurrency < 0) throw new IllegalArgumentException("Invalid maximum concurrency " + maxConcurrency);
+        factory = factory(name + "-");
+        permits = maxConcurrency == 0 ? null : new Semaphore(maxConcurrency);
+        this.maxConcurrency = maxConcurrency;
+
+        /* Only the JVM traces pinned threads, just say what ours are called */
+        final String tracePinned = System.getProperty(TRACE_PINNED);
+        if (tracePinned != null) {
+            log.info("JVM tracing pinned threads (%s=%s), virtual threads for this executor are named \"%s-<n>\"", TRACE_PINNED, tracePinned, name);
+        }
+    }
+
+    /** Check whether virtual threads are available in this JVM. */
+    public static boolean isAvailable() {
+        try {
+            factory("test-");
+            return true;
+        } catch (UnsupportedOperationException exception) {
+            return false;
+        }
+    }
+
+    /* Thread.ofVirtual().name(prefix, 0).factory() */
+    private static ThreadFactory factory(String prefix) {
+        try {
+            final Class<?> builder = Class.forName("java.lang.Thread$Builder");
+            final Object virtual = Thread.class.getMethod("ofVirtual").invoke(null);
+            final Object named = builder.getMethod("name", String.class, long.class).invoke(virtual, prefix, 0L);
+            return (ThreadFactory) builder.getMethod("factory").invoke(named);
+        } catch (Exception | LinkageError exception) {
+            throw new UnsupportedOperationException("Virtual threads not available in Java " + System.getProperty("java.version"), exception);
+        }
+    }
+
+    /* ====================================================================== */
+
+    /** The maximum number of tasks running concurrently, or zero. */
+    public int getMaxConcurrency() {
+        return maxConcurrency;
+    }
+
+    /** The number of tasks running or waiting for a permit. */
+    public int getThreadCount() {
+        return threads.size();
+    }
+
+    /** The number of tasks waiting for a permit to run. */
+    public int getWaitingCount() {
+        return permits == null ? 0 : permits.getQueueLength();
+    }
+
+    /* ====================================================================== */
+
+    @Override
+    public void execute(Runnable command) {
+        if (command == null) throw new NullPointerException("Null command");
+        if (shutdown) throw new RejectedExecutionException("Executor shut down");
+
+        final Thread thread = factory.newThread(() -> {
+            try {
+                if (permits != null) permits.acquire();
+                try {
+                    command.run();
+                } finally {
+                    if (permits != null) permits.release();
+                }
+            } catch (InterruptedException exception) {
+                /* Interrupted waiting for a permit, we're shutting down */
+            } finally {
+                threads.remove(Thread.currentThread());
+                synchronized (threads) {
+                    if (shutdown && threads.isEmpty()) threads.notifyAll();
+                }
+            }
+        });
+
+        threads.add(thread);
+        thread.start();
+    }
+
+    @Override
+    public void shutdown() {
+        shutdown = true;
+    }
+
+    @Override
+    public List<Runnable> shutdownNow() {
+        shutdown = true;
+        threads.forEach(Thread::interrupt);
+        return new ArrayList<>(); // tasks are never queued
+    }
+
+    @Override
+    public boolean isShutdown() {
+        return shutdown;
+    }
+
+    @Override
+    public boolean isTerminated() {
+        return shutdown && threads.isEmpty();
+    }
+
+    @Override
+    public boolean awaitTermination(long timeout, TimeUnit unit)
+    throws InterruptedException {
+        final long deadline = System.nanoTime() + unit.toNanos(timeout);
+        synchronized (threads) {
+            while (! isTerminated()) {
+                final long remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+                if (remaining <= 0) return false;
+                threads.wait(remaining);
+            }
+            return true;
+        }
+    }
+}
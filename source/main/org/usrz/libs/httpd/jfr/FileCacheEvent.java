@@ -0,0 +1,69 @@
+/* ========================================================================== *
+ * Copyright 2014 USRZ.com and Pier Paolo Fumagalli                           *
+ * -------------------------------------------------------------------------- *
+ * Licensed under the Apache License, Version 2.0 (the "License");            *
+ * you may not use this file except in compliance with the License.           *
+ * You may obtain a copy of the License at                                    *
+ *                                                                            *
+ *  http://www.apache.org/licenses/LICENSE-2.0                                *
+ *                                                                            *
+ * Unless required by applicable law or agreed to in writing, software        *
+ * distributed under the License is distributed on an "AS IS" BASIS,          *
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.   *
+ * See the License for the specific language governing permissions and        *
+ * limitations under the License.                                             *
+ * ========================================================================== */
+package org.usrz.libs.httpd.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Enabled;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * A Java Flight Recorder event for a lookup in a
+ * {@link org.usrz.libs.httpd.handlers.FileCache}, disabled by default as
+ * there is one for every static file served.
+ *
+ * @author <a href="mailto:pier@usrz.com">Pier Fumagalli</a>
+ */
+@Name(FileCacheEvent.NAME)
+@Label("File Cache Lookup")
+@Description("A static file looked up in the file cache")
+@Category(FlightEvents.CATEGORY)
+@Enabled(false)
+@StackTrace(false)
+public final class FileCacheEvent extends Event {
+
+    /** The name of this event. */
+    public static final String NAME = "org.usrz.libs.httpd.FileCache";
+
+    @Label("Path")
+    String path;
+
+    @Label("Hit")
+    boolean hit;
+
+    @Label("Bytes")
+    @Description("The size of the cached file, or 0 on a miss")
+    @DataAmount
+    long bytes;
+
+    private FileCacheEvent() {
+        /* Use the static method */
+    }
+
+    /** Emit a new {@link FileCacheEvent}, if enabled. */
+    public static void emit(String path, boolean hit, long bytes) {
+        final FileCacheEvent event = new FileCacheEvent();
+        if (! event.shouldCommit()) return;
+        event.path = path;
+        event.hit = hit;
+        event.bytes = bytes;
+        event.commit();
+    }
+}
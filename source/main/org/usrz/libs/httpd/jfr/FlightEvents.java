@@ -0,0 +1,74 @@
+/* ========================================================================== *
+ * Copyright 2014 USRZ.com and Pier Paolo Fumagalli                           *
+ * -------------------------------------------------------------------------- *
+ * Licensed under the Apache License, Version 2.0 (the "License");            *
+ * you may not use this file except in compliance with the License.           *
+ * You may obtain a copy of the License at                                    *
+ *                                                                            *
+ *  http://www.apache.org/licenses/LICENSE-2.0                                *
+ *                                                                            *
+ * Unless required by applicable law or agreed to in writing, software        *
+ * distributed under the License is distributed on an "AS IS" BASIS,          *
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.   *
+ * See the License for the specific language governing permissions and        *
+ * limitations under the License.                                             *
+ * ========================================================================== */
+package org.usrz.libs.httpd.jfr;
+
+/**
+ * Access to the Java Flight Recorder events emitted by this library.
+ *
+ * <p>Events are configured like any other JFR event, by name, in a
+ * <code>.jfc</code> settings file or on a
+ * {@link jdk.jfr.Recording#enable(String) Recording}:</p>
+ *
+ * <pre>
+ * &lt;event name="org.usrz.libs.httpd.Request"&gt;
+ *   &lt;setting name="enabled"&gt;true&lt;/setting&gt;
+ *   &lt;setting name="threshold"&gt;20 ms&lt;/setting&gt;
+ * &lt;/event&gt;
+ * </pre>
+ *
+ * <table summary="Events">
+ * <tr><th>Event</th><th>Default</th></tr>
+ * <tr><td>{@link RequestEvent org.usrz.libs.httpd.Request}</td><td>Threshold 10 ms</td></tr>
+ * <tr><td>{@link TlsHandshakeEvent org.usrz.libs.httpd.TlsHandshake}</td><td>Threshold 0 ms</td></tr>
+ * <tr><td>{@link RedirectEvent org.usrz.libs.httpd.Redirect}</td><td>Enabled</td></tr>
+ * <tr><td>{@link FileCacheEvent org.usrz.libs.httpd.FileCache}</td><td>Disabled</td></tr>
+ * <tr><td>{@link JerseyInitEvent org.usrz.libs.httpd.JerseyInit}</td><td>Enabled</td></tr>
+ * </table>
+ *
+ * <p>When no recording is running, emitting an event costs a single check
+ * of its enabled flag.</p>
+ *
+ * <p>The <code>jdk.jfr</code> API is only present in Java 8u262 and later,
+ * so callers must check {@link #AVAILABLE} before touching any event.</p>
+ *
+ * <p>As the API is not part of the Java 8 platform signatures, building
+ * this library requires JDK 11 or later, compiling with
+ * <code>-source 8 -target 8</code> (not <code>--release 8</code>). The
+ * resulting classes still run on Java 8.</p>
+ *
+ * @author <a href="mailto:pier@usrz.com">Pier Fumagalli</a>
+ */
+public final class FlightEvents {
+
+    /** The category of all our events. */
+    public static final String CATEGORY = "HTTP Server";
+
+    /** Whether Java Flight Recorder events can be emitted in this JVM. */
+    public static final boolean AVAILABLE = available();
+
+    private FlightEvents() {
+        throw new IllegalStateException("Do not construct");
+    }
+
+    private static boolean available() {
+        try {
+            Class.forName("jdk.jfr.Event", false, FlightEvents.class.getClassLoader());
+            return true;
+        } catch (ClassNotFoundException | LinkageError error) {
+            return false;
+        }
+    }
+}
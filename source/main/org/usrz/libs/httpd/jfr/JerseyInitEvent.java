@@ -0,0 +1,58 @@
+/* ========================================================================== *
+ * Copyright 2014 USRZ.com and Pier Paolo Fumagalli                           *
+ * -------------------------------------------------------------------------- *
+ * Licensed under the Apache License, Version 2.0 (the "License");            *
+ * you may not use this file except in compliance with the License.           *
+ * You may obtain a copy of the License at                                    *
+ *                                                                            *
+ *  http://www.apache.org/licenses/LICENSE-2.0                                *
+ *                                                                            *
+ * Unless required by applicable law or agreed to in writing, software        *
+ * distributed under the License is distributed on an "AS IS" BASIS,          *
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.   *
+ * See the License for the specific language governing permissions and        *
+ * limitations under the License.                                             *
+ * ========================================================================== */
+package org.usrz.libs.httpd.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * A Java Flight Recorder event for the initialization of a Jersey
+ * application.
+ *
+ * @author <a href="mailto:pier@usrz.com">Pier Fumagalli</a>
+ */
+@Name(JerseyInitEvent.NAME)
+@Label("Jersey Initialization")
+@Description("A Jersey application being initialized")
+@Category(FlightEvents.CATEGORY)
+public final class JerseyInitEvent extends Event {
+
+    /** The name of this event. */
+    public static final String NAME = "org.usrz.libs.httpd.JerseyInit";
+
+    @Label("Path")
+    String path;
+
+    @Label("Application")
+    String application;
+
+    /** Create and {@linkplain #begin() begin} a new {@link JerseyInitEvent}. */
+    public JerseyInitEvent() {
+        begin();
+    }
+
+    /** End this event and commit it, if enabled. */
+    public void commit(String path, String application) {
+        end();
+        if (! shouldCommit()) return;
+        this.path = path;
+        this.application = application;
+        commit();
+    }
+}
@@ -0,0 +1,68 @@
+/* ========================================================================== *
+ * Copyright 2014 USRZ.com and Pier Paolo Fumagalli                           *
+ * -------------------------------------------------------------------------- *
+ * Licensed under the Apache License, Version 2.0 (the "License");            *
+ * you may not use this file except in compliance with the License.           *
+ * You may obtain a copy of the License at                                    *
+ *                                                                            *
+ *  http://www.apache.org/licenses/LICENSE-2.0                                *
+ *                                                                            *
+ * Unless required by applicable law or agreed to in writing, software        *
+ * distributed under the License is distributed on an "AS IS" BASIS,          *
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.   *
+ * See the License for the specific language governing permissions and        *
+ * limitations under the License.                                             *
+ * ========================================================================== */
+package org.usrz.libs.httpd.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * A Java Flight Recorder event for a request redirected by a
+ * {@link org.usrz.libs.httpd.handlers.RedirectHandler}.
+ *
+ * @author <a href="mailto:pier@usrz.com">Pier Fumagalli</a>
+ */
+@Name(RedirectEvent.NAME)
+@Label("Redirect")
+@Description("A request matched by a redirect map or rule")
+@Category(FlightEvents.CATEGORY)
+@StackTrace(false)
+public final class RedirectEvent extends Event {
+
+    /** The name of this event. */
+    public static final String NAME = "org.usrz.libs.httpd.Redirect";
+
+    @Label("Path")
+    String path;
+
+    @Label("Location")
+    String location;
+
+    @Label("Status")
+    int status;
+
+    @Label("Mapped")
+    @Description("Whether the path was found in a redirect map, rather than matching a rule")
+    boolean mapped;
+
+    private RedirectEvent() {
+        /* Use the static method */
+    }
+
+    /** Emit a new {@link RedirectEvent}, if enabled. */
+    public static void emit(String path, String location, int status, boolean mapped) {
+        final RedirectEvent event = new RedirectEvent();
+        if (! event.shouldCommit()) return;
+        event.path = path;
+        event.location = location;
+        event.status = status;
+        event.mapped = mapped;
+        event.commit();
+    }
+}
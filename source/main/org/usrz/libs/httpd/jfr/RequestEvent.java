@@ -0,0 +1,120 @@
+/* ========================================================================== *
+ * Copyright 2014 USRZ.com and Pier Paolo Fumagalli                           *
+ * -------------------------------------------------------------------------- *
+ * Licensed under the Apache License, Version 2.0 (the "License");            *
+ * you may not use this file except in compliance with the License.           *
+ * You may obtain a copy of the License at                                    *
+ *                                                                            *
+ *  http://www.apache.org/licenses/LICENSE-2.0                                *
+ *                                                                            *
+ * Unless required by applicable law or agreed to in writing, software        *
+ * distributed under the License is distributed on an "AS IS" BASIS,          *
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.   *
+ * See the License for the specific language governing permissions and        *
+ * limitations under the License.                                             *
+ * ========================================================================== */
+package org.usrz.libs.httpd.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.EventType;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Threshold;
+
+import org.glassfish.grizzly.Connection;
+import org.glassfish.grizzly.http.Note;
+import org.glassfish.grizzly.http.server.HttpServerFilter;
+import org.glassfish.grizzly.http.server.HttpServerProbe;
+import org.glassfish.grizzly.http.server.Request;
+import org.glassfish.grizzly.http.server.Response;
+
+/**
+ * A Java Flight Recorder event for an HTTP request, from the moment it is
+ * received until its response is completed.
+ *
+ * @author <a href="mailto:pier@usrz.com">Pier Fumagalli</a>
+ */
+@Name(RequestEvent.NAME)
+@Label("HTTP Request")
+@Description("An HTTP request, from reception to completion of its response")
+@Category(FlightEvents.CATEGORY)
+@Threshold("10 ms")
+@StackTrace(false)
+public final class RequestEvent extends Event {
+
+    /** The name of this event. */
+    public static final String NAME = "org.usrz.libs.httpd.Request";
+
+    @Label("Method")
+    String method;
+
+    @Label("Path")
+    String path;
+
+    @Label("Handler Path")
+    @Description("The path the handler serving the request is mounted at")
+    String handler;
+
+    @Label("Status")
+    int status;
+
+    @Label("Bytes")
+    @Description("The content length of the response, or -1 if unknown")
+    @DataAmount
+    long bytes;
+
+    RequestEvent() {
+        /* Created by our probe only */
+    }
+
+    /* ====================================================================== */
+
+    /**
+     * An {@link HttpServerProbe} emitting {@link RequestEvent}s, creating
+     * them only while a recording has them enabled.
+     */
+    public static final class Probe extends HttpServerProbe.Adapter {
+
+        private static final Note<RequestEvent> EVENT = Request.createNote(RequestEvent.class.getName());
+        private static final EventType TYPE = EventType.getEventType(RequestEvent.class);
+
+        public Probe() {
+            /* Nothing to do */
+        }
+
+        @Override
+        public void onRequestReceiveEvent(HttpServerFilter filter, Connection connection, Request request) {
+            if (! TYPE.isEnabled()) return;
+            final RequestEvent event = new RequestEvent();
+            request.setNote(EVENT, event);
+            event.begin();
+        }
+
+        @Override
+        public void onRequestCompleteEvent(HttpServerFilter filter, Connection connection, Response response) {
+            final Request request = response.getRequest();
+            final RequestEvent event = request.removeNote(EVENT);
+            if (event == null) return;
+
+            event.end();
+            if (! event.shouldCommit()) return;
+
+            final String contextPath = request.getContextPath();
+            event.method = request.getMethod().getMethodString();
+            event.path = request.getRequestURI();
+            event.handler = (contextPath == null) || contextPath.isEmpty() ? "/" : contextPath;
+            event.status = response.getStatus();
+            event.bytes = response.getContentLengthLong();
+            event.commit();
+        }
+
+        @Override
+        public void onRequestCancelEvent(HttpServerFilter filter, Connection connection, Request request) {
+            request.removeNote(EVENT);
+        }
+    }
+}
@@ -0,0 +1,95 @@
+/* ========================================================================== *
+ * Copyright 2014 USRZ.com and Pier Paolo Fumagalli                           *
+ * -------------------------------------------------------------------------- *
+ * Licensed under the Apache License, Version 2.0 (the "License");            *
+ * you may not use this file except in compliance with the License.           *
+ * You may obtain a copy of the License at                                    *
+ *                                                                            *
+ *  http://www.apache.org/licenses/LICENSE-2.0                                *
+ *                                                                            *
+ * Unless required by applicable law or agreed to in writing, software        *
+ * distributed under the License is distributed on an "AS IS" BASIS,          *
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.   *
+ * See the License for the specific language governing permissions and        *
+ * limitations under the License.                                             *
+ * ========================================================================== */
+package org.usrz.libs.httpd.jfr;
+
+import javax.net.ssl.SSLSession;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.EventType;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Threshold;
+
+import org.glassfish.grizzly.Connection;
+import org.glassfish.grizzly.Grizzly;
+import org.glassfish.grizzly.attributes.Attribute;
+
+/**
+ * A Java Flight Recorder event for a TLS handshake on a secure listener.
+ *
+ * @author <a href="mailto:pier@usrz.com">Pier Fumagalli</a>
+ */
+@Name(TlsHandshakeEvent.NAME)
+@Label("TLS Handshake")
+@Description("A TLS handshake completed on a secure listener")
+@Category(FlightEvents.CATEGORY)
+@Threshold("0 ms")
+@StackTrace(false)
+public final class TlsHandshakeEvent extends Event {
+
+    /** The name of this event. */
+    public static final String NAME = "org.usrz.libs.httpd.TlsHandshake";
+
+    private static final Attribute<TlsHandshakeEvent> EVENT = Grizzly.DEFAULT_ATTRIBUTE_BUILDER.createAttribute(TlsHandshakeEvent.class.getName());
+    private static final EventType TYPE = EventType.getEventType(TlsHandshakeEvent.class);
+
+    @Label("Listener")
+    String listener;
+
+    @Label("Resumed")
+    @Description("Whether an existing session was resumed")
+    boolean resumed;
+
+    @Label("Protocol")
+    String protocol;
+
+    @Label("Cipher Suite")
+    String cipherSuite;
+
+    private TlsHandshakeEvent() {
+        /* Use the static methods */
+    }
+
+    /* ====================================================================== */
+
+    /** Start timing a handshake, if this event is enabled. */
+    public static void begin(Connection connection) {
+        if (! TYPE.isEnabled()) return;
+        final TlsHandshakeEvent event = new TlsHandshakeEvent();
+        EVENT.set(connection, event);
+        event.begin();
+    }
+
+    /** Commit the event for a handshake started with {@link #begin(Connection)}. */
+    public static void end(Connection connection, String listener, boolean resumed, SSLSession session) {
+        final TlsHandshakeEvent event = EVENT.remove(connection);
+        if (event == null) return;
+
+        event.end();
+        if (! event.shouldCommit()) return;
+
+        event.listener = listener;
+        event.resumed = resumed;
+        if (session != null) {
+            event.protocol = session.getProtocol();
+            event.cipherSuite = session.getCipherSuite();
+        }
+        event.commit();
+    }
+}
@@ -34,6 +34,10 @@ import javax.net.ssl.SSLSession;
 import javax.net.ssl.TrustManager;
 import javax.net.ssl.X509TrustManager;
 
+import org.glassfish.grizzly.http.server.NetworkListener;
+import org.glassfish.grizzly.nio.transport.TCPNIOTransport;
+import org.glassfish.grizzly.strategies.WorkerThreadIOStrategy;
+import org.glassfish.grizzly.threadpool.ThreadPoolConfig;
 import org.testng.annotations.Test;
 import org.usrz.libs.configurations.Configurations;
 import org.usrz.libs.configurations.ConfigurationsBuilder;
@@ -73,6 +77,12 @@ public class ServerBuilderTest extends AbstractTest {
                 .put("server.listener.host", "127.0.0.1")
                 .put("server.listener.port", port1)
                 .put("server.listener.secure", false)
+                .put("server.listener.io_strategy", "worker_thread")
+                .put("server.listener.selectors", 2)
+                .put("server.listener.worker_pool.core_size", 2)
+                .put("server.listener.worker_pool.max_size", 8)
+                .put("server.listener.worker_pool.queue_limit", 64)
+                .put("server.listener.keep_alive.max_requests", 100)
 
                 .put("server.listeners.0.host", "127.0.0.1")
                 .put("server.listeners.0.port", port2)
@@ -90,6 +100,7 @@ public class ServerBuilderTest extends AbstractTest {
                 .put("server.access_log.synchronous", true) // for tests, easy
                 .put("server.access_log.format", "%A:%p %r") // only GET /foo HTTP/1.1
                 .put("server.document_root", documentRoot)
+                .put("server.files.cache.max_size", 1048576)
                 .put("server.json.use_timestamps", true)
                 .put("server.json.field_naming", "underscores")
                 .put("server.json.order_keys", true) // sanity for tests belok
@@ -201,6 +212,24 @@ public class ServerBuilderTest extends AbstractTest {
             /* Check our server name */
             assertEquals(starter.server().getServerConfiguration().getName(), "myServer123");
 
+            /* Check the transport, worker pool and keep-alive of our plain listener */
+            NetworkListener listener = null;
+            for (NetworkListener current: starter.server().getListeners())
+                if (current.getPort() == port1) listener = current;
+            assertNotNull(listener, "Listener on port " + port1 + " not found");
+
+            final TCPNIOTransport transport = listener.getTransport();
+            assertSame(transport.getIOStrategy(), WorkerThreadIOStrategy.getInstance());
+            assertEquals(transport.getSelectorRunnersCount(), 2);
+
+            final ThreadPoolConfig workers = transport.getWorkerThreadPoolConfig();
+            assertNotNull(workers, "No worker pool configured");
+            assertEquals(workers.getCorePoolSize(), 2);
+            assertEquals(workers.getMaxPoolSize(), 8);
+            assertEquals(workers.getQueueLimit(), 64);
+
+            assertEquals(listener.getKeepAlive().getMaxRequestsCount(), 100);
+
             /* Read our INDEX.HTML and compare for equality */
             byte[] index = IO.read("index.html");
             log.info("Executing 300 static requests");
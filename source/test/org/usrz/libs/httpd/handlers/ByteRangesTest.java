@@ -0,0 +1,63 @@
+/* ========================================================================== *
+ * Copyright 2014 USRZ.com and Pier Paolo Fumagalli                           *
+ * -------------------------------------------------------------------------- *
+ * Licensed under the Apache License, Version 2.0 (the "License");            *
+ * you may not use this file except in compliance with the License.           *
+ * You may obtain a copy of the License at                                    *
+ *                                                                            *
+ *  http://www.apache.org/licenses/LICENSE-2.0                                *
+ *                                                                            *
+ * Unless required by applicable law or agreed to in writing, software        *
+ * distributed under the License is distributed on an "AS IS" BASIS,          *
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.   *
+ * See the License for the specific language governing permissions and        *
+ * limitations under the License.                                             *
+ * ========================================================================== */
+package org.usrz.libs.httpd.handlers;
+
+import static org.usrz.libs.httpd.handlers.ByteRanges.UNSATISFIABLE;
+import static org.usrz.libs.httpd.handlers.ByteRanges.parse;
+
+import org.testng.annotations.Test;
+import org.usrz.libs.testing.AbstractTest;
+
+public class ByteRangesTest extends AbstractTest {
+
+    @Test
+    public void testSingleRanges() {
+        assertEquals(parse("bytes=0-9", 100), new long[] { 0, 9 });
+        assertEquals(parse("bytes=90-", 100), new long[] { 90, 99 });
+        assertEquals(parse("bytes=90-1000", 100), new long[] { 90, 99 });
+        assertEquals(parse("bytes=-10", 100), new long[] { 90, 99 });
+        assertEquals(parse("bytes=-1000", 100), new long[] { 0, 99 });
+        assertEquals(parse("Bytes = 5-5", 100), new long[] { 5, 5 });
+    }
+
+    @Test
+    public void testMultipleRanges() {
+        assertEquals(parse("bytes=0-0, -1", 100), new long[] { 0, 0, 99, 99 });
+        assertEquals(parse("bytes=0-1,,200-300,4-5", 100), new long[] { 0, 1, 4, 5 });
+    }
+
+    @Test
+    public void testUnsatisfiable() {
+        assertSame(parse("bytes=100-", 100), UNSATISFIABLE);
+        assertSame(parse("bytes=-0", 100), UNSATISFIABLE);
+        assertSame(parse("bytes=0-", 0), UNSATISFIABLE);
+    }
+
+    @Test
+    public void testIgnored() {
+        assertNull(parse(null, 100));
+        assertNull(parse("items=0-9", 100));
+        assertNull(parse("bytes=", 100));
+        assertNull(parse("bytes=9-0", 100));
+        assertNull(parse("bytes=a-b", 100));
+        assertNull(parse("bytes=--5", 100));
+        assertNull(parse("bytes=0-99,0-99", 100));
+
+        final StringBuilder many = new StringBuilder("bytes=0-0");
+        for (int x = 1; x <= ByteRanges.MAX_RANGES; x ++) many.append(',').append(x).append('-').append(x);
+        assertNull(parse(many.toString(), 100));
+    }
+}
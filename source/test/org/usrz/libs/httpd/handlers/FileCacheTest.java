@@ -0,0 +1,135 @@
+/* ========================================================================== *
+ * Copyright 2014 USRZ.com and Pier Paolo Fumagalli                           *
+ * -------------------------------------------------------------------------- *
+ * Licensed under the Apache License, Version 2.0 (the "License");            *
+ * you may not use this file except in compliance with the License.           *
+ * You may obtain a copy of the License at                                    *
+ *                                                                            *
+ *  http://www.apache.org/licenses/LICENSE-2.0                                *
+ *                                                                            *
+ * Unless required by applicable law or agreed to in writing, software        *
+ * distributed under the License is distributed on an "AS IS" BASIS,          *
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.   *
+ * See the License for the specific language governing permissions and        *
+ * limitations under the License.                                             *
+ * ========================================================================== */
+package org.usrz.libs.httpd.handlers;
+
+import static java.nio.charset.StandardCharsets.US_ASCII;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.attribute.FileTime;
+
+import org.glassfish.grizzly.http.server.HttpServer;
+import org.glassfish.grizzly.http.server.NetworkListener;
+import org.testng.annotations.Test;
+import org.usrz.libs.configurations.ConfigurationsBuilder;
+import org.usrz.libs.testing.AbstractTest;
+import org.usrz.libs.testing.IO;
+import org.usrz.libs.testing.NET;
+
+public class FileCacheTest extends AbstractTest {
+
+    @Test
+    public void testEviction()
+    throws Exception {
+        final File directory = IO.makeTempDir();
+        for (String name: new String[] { "a", "b", "c", "d", "e", "f" })
+            Files.write(new File(directory, name + ".txt").toPath(), "0123456789".getBytes("US-ASCII"));
+
+        /* Files are written before watching, or they would invalidate the cache */
+        try (FileCache cache = new FileCache(new ConfigurationsBuilder().put("max_size", 30).build())) {
+            load(cache, directory, "a", "b", "c");
+            assertEquals(cache.getSize(), 30);
+
+            /* Nothing was served since loading: the oldest goes */
+            load(cache, directory, "d");
+            assertNull(cache.get("/a"));
+            assertEquals(cache.getEntries(), 3);
+
+            /* Served entries get a second chance, "d" goes before "c" */
+            assertNotNull(cache.get("/c"));
+            load(cache, directory, "e");
+            load(cache, directory, "f");
+            assertNull(cache.get("/b"));
+            assertNull(cache.get("/d"));
+            assertNotNull(cache.get("/c"));
+            assertNotNull(cache.get("/e"));
+            assertNotNull(cache.get("/f"));
+
+            assertEquals(cache.getEntries(), 3);
+            assertEquals(cache.getSize(), 30);
+            assertEquals(cache.getHits(), 4);
+            assertEquals(cache.getMisses(), 3);
+        }
+    }
+
+    @Test
+    public void testInvalidation()
+    throws Exception {
+        final File directory = IO.makeTempDir();
+        final File file = new File(directory, "file.txt");
+        Files.write(file.toPath(), "old content".getBytes(US_ASCII));
+
+        final int port = NET.serverPort();
+        final HttpServer server = new HttpServer();
+        server.addListener(new NetworkListener("test", "127.0.0.1", port));
+
+        final FileHandler handler = new FileHandler(directory, new ConfigurationsBuilder().put("cache.max_size", 1024).build());
+        server.getServerConfiguration().addHttpHandler(handler, "/");
+        server.start();
+        try {
+            final String[] response = get(port, "/file.txt");
+            assertEquals(response[1], "old content");
+            assertEquals(get(port, "/file.txt"), response);
+            assertEquals(handler.getFileCache().getHits(), 1);
+
+            /* Move the modification time ahead, coarse file systems would not see a change */
+            Files.write(file.toPath(), "new content".getBytes(US_ASCII));
+            Files.setLastModifiedTime(file.toPath(), FileTime.fromMillis(file.lastModified() + 2000));
+
+            final long deadline = System.currentTimeMillis() + 10000;
+            String[] modified = get(port, "/file.txt");
+            while ((! "new content".equals(modified[1])) && (System.currentTimeMillis() < deadline)) {
+                Thread.sleep(50);
+                modified = get(port, "/file.txt");
+            }
+
+            assertEquals(modified[1], "new content");
+            assertNotNull(modified[0]);
+            assertNotEquals(modified[0], response[0]);
+
+            /* The new content is cached again */
+            final long hits = handler.getFileCache().getHits();
+            assertEquals(get(port, "/file.txt"), modified);
+            assertEquals(handler.getFileCache().getHits(), hits + 1);
+        } finally {
+            server.shutdownNow();
+        }
+    }
+
+    /* Return the ETag and the body of a response */
+    private String[] get(int port, String path)
+    throws Exception {
+        final HttpURLConnection connection = (HttpURLConnection) new URL("http://127.0.0.1:" + port + path).openConnection();
+        assertEquals(connection.getResponseCode(), 200, path);
+
+        final ByteArrayOutputStream body = new ByteArrayOutputStream();
+        try (InputStream input = connection.getInputStream()) {
+            final byte[] buffer = new byte[4096];
+            int read;
+            while ((read = input.read(buffer)) >= 0) body.write(buffer, 0, read);
+        }
+        return new String[] { connection.getHeaderField("ETag"), new String(body.toByteArray(), US_ASCII) };
+    }
+
+    private void load(FileCache cache, File directory, String... names)
+    throws Exception {
+        for (String name: names) assertNotNull(cache.load("/" + name, new File(directory, name + ".txt").toPath()));
+    }
+}
@@ -0,0 +1,201 @@
+/* ========================================================================== *
+ * Copyright 2014 USRZ.com and Pier Paolo Fumagalli                           *
+ * -------------------------------------------------------------------------- *
+ * Licensed under the Apache License, Version 2.0 (the "License");            *
+ * you may not use this file except in compliance with the License.           *
+ * You may obtain a copy of the License at                                    *
+ *                                                                            *
+ *  http://www.apache.org/licenses/LICENSE-2.0                                *
+ *                                                                            *
+ * Unless required by applicable law or agreed to in writing, software        *
+ * distributed under the License is distributed on an "AS IS" BASIS,          *
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.   *
+ * See the License for the specific language governing permissions and        *
+ * limitations under the License.                                             *
+ * ========================================================================== */
+package org.usrz.libs.httpd.handlers;
+
+import static java.nio.charset.StandardCharsets.US_ASCII;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.file.Files;
+import java.util.zip.GZIPInputStream;
+
+import org.glassfish.grizzly.http.server.HttpServer;
+import org.glassfish.grizzly.http.server.NetworkListener;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+import org.usrz.libs.configurations.ConfigurationsBuilder;
+import org.usrz.libs.testing.AbstractTest;
+import org.usrz.libs.testing.IO;
+import org.usrz.libs.testing.NET;
+
+public class FileCompressionTest extends AbstractTest {
+
+    private File root;
+    private byte[] text;
+    private FileHandler handler;
+    private HttpServer server;
+    private int port;
+
+    @BeforeClass
+    public void startServer()
+    throws Exception {
+        final StringBuilder builder = new StringBuilder();
+        while (builder.length() < 2048) builder.append("The quick brown fox jumps over the lazy dog\n");
+        text = builder.toString().getBytes(US_ASCII);
+
+        root = IO.makeTempDir();
+        write("sidecar.js", text);
+        write("sidecar.js.br", "brotli sidecar".getBytes(US_ASCII));
+        write("sidecar.js.gz", "gzip sidecar".getBytes(US_ASCII));
+        write("plain.txt", text);
+        write("absent.txt", text);
+        write("small.txt", "too small".getBytes(US_ASCII));
+        write("image.png", text);
+
+        port = NET.serverPort();
+        server = new HttpServer();
+        server.addListener(new NetworkListener("test", "127.0.0.1", port));
+
+        handler = new FileHandler(root, new ConfigurationsBuilder().put("compression.min_size", 256).build());
+        server.getServerConfiguration().addHttpHandler(handler, "/");
+        server.start();
+    }
+
+    @AfterClass(alwaysRun = true)
+    public void stopServer() {
+        if (server != null) server.shutdownNow();
+    }
+
+    /* ====================================================================== */
+
+    @Test
+    public void testSidecars()
+    throws Exception {
+        /* Brotli is preferred, whatever the order or quality */
+        assertResponse("/sidecar.js", "gzip, br;q=0.5", "br", "brotli sidecar".getBytes(US_ASCII));
+        assertResponse("/sidecar.js", "gzip", "gzip", "gzip sidecar".getBytes(US_ASCII));
+        assertResponse("/sidecar.js", "br;q=0, gzip", "gzip", "gzip sidecar".getBytes(US_ASCII));
+        assertResponse("/sidecar.js", "*", "br", "brotli sidecar".getBytes(US_ASCII));
+
+        /* Nothing acceptable, the original */
+        assertResponse("/sidecar.js", null, null, text);
+        assertResponse("/sidecar.js", "identity", null, text);
+        assertResponse("/sidecar.js", "gzip;q=0, br; Q = 0.0", null, text);
+        assertResponse("/sidecar.js", "*;q=0", null, text);
+    }
+
+    @Test
+    public void testQualities() {
+        assertEquals(FileCompression.accepted("gzip;q=0.5"), FileCompression.GZIP);
+        assertEquals(FileCompression.accepted("gzip;q=0.001"), FileCompression.GZIP);
+        assertEquals(FileCompression.accepted("gzip;q=0"), 0);
+        assertEquals(FileCompression.accepted("gzip;q=0.000"), 0);
+        assertEquals(FileCompression.accepted("GZIP, BR"), FileCompression.GZIP | FileCompression.BROTLI);
+        assertEquals(FileCompression.accepted("deflate, compress"), 0);
+
+        /* Explicit codings take precedence over the wildcard */
+        assertEquals(FileCompression.accepted("*, br;q=0"), FileCompression.GZIP);
+        assertEquals(FileCompression.accepted("*;q=0, gzip"), FileCompression.GZIP);
+    }
+
+    @Test
+    public void testCompressOnce()
+    throws Exception {
+        final FileCache cache = handler.getFileCompression().getFileCache();
+
+        final byte[] compressed = assertResponse("/plain.txt", "gzip", "gzip", null);
+        assertTrue(compressed.length < text.length, "Not compressed");
+        assertEquals(gunzip(compressed), text);
+
+        /* Second time around, straight from the cache, same bytes */
+        final long hits = cache.getHits();
+        assertEquals(assertResponse("/plain.txt", "gzip", "gzip", null), compressed);
+        assertEquals(cache.getHits(), hits + 1);
+
+        /* Too small, or not compressible */
+        assertResponse("/small.txt", "gzip", null, "too small".getBytes(US_ASCII));
+        assertResponse("/image.png", "gzip", null, text);
+    }
+
+    @Test
+    public void testAbsent()
+    throws Exception {
+        final FileCache cache = handler.getFileCompression().getFileCache();
+
+        /* No brotli sidecar, and we can't compress with brotli */
+        assertResponse("/absent.txt", "br", null, text);
+        final long hits = cache.getHits();
+        final long misses = cache.getMisses();
+
+        /* The second time, we know there is nothing to look for */
+        assertResponse("/absent.txt", "br", null, text);
+        assertEquals(cache.getHits(), hits + 1);
+        assertEquals(cache.getMisses(), misses);
+
+        /* Until a sidecar appears */
+        write("absent.txt.br", "brotli sidecar".getBytes(US_ASCII));
+        final long deadline = System.currentTimeMillis() + 10000;
+        while ((encoding("/absent.txt", "br") == null) && (System.currentTimeMillis() < deadline)) Thread.sleep(50);
+        assertResponse("/absent.txt", "br", "br", "brotli sidecar".getBytes(US_ASCII));
+    }
+
+    /* ====================================================================== */
+
+    private void write(String name, byte[] content)
+    throws Exception {
+        Files.write(new File(root, name).toPath(), content);
+    }
+
+    /* Request, check encoding, Vary and body (if not null), return the body */
+    private byte[] assertResponse(String path, String acceptEncoding, String contentEncoding, byte[] content)
+    throws Exception {
+        final HttpURLConnection connection = request(path, acceptEncoding);
+        assertEquals(connection.getResponseCode(), 200, path);
+        assertEquals(connection.getHeaderField("Content-Encoding"), contentEncoding, path + " " + acceptEncoding);
+        assertEquals(connection.getHeaderField("Vary"), "Accept-Encoding", path);
+
+        final byte[] body = read(connection.getInputStream());
+        assertEquals(connection.getHeaderFieldInt("Content-Length", -1), body.length, path);
+        if (content != null) assertEquals(body, content, path + " " + acceptEncoding);
+        return body;
+    }
+
+    private HttpURLConnection request(String path, String acceptEncoding)
+    throws Exception {
+        final HttpURLConnection connection = (HttpURLConnection) new URL("http://127.0.0.1:" + port + path).openConnection();
+        if (acceptEncoding != null) connection.setRequestProperty("Accept-Encoding", acceptEncoding);
+        connection.getResponseCode();
+        return connection;
+    }
+
+    private String encoding(String path, String acceptEncoding)
+    throws Exception {
+        final HttpURLConnection connection = request(path, acceptEncoding);
+        read(connection.getInputStream());
+        return connection.getHeaderField("Content-Encoding");
+    }
+
+    private static byte[] gunzip(byte[] compressed)
+    throws Exception {
+        return read(new GZIPInputStream(new ByteArrayInputStream(compressed)));
+    }
+
+    private static byte[] read(InputStream input)
+    throws Exception {
+        final ByteArrayOutputStream output = new ByteArrayOutputStream();
+        try (InputStream stream = input) {
+            final byte[] buffer = new byte[4096];
+            int read;
+            while ((read = stream.read(buffer)) >= 0) output.write(buffer, 0, read);
+        }
+        return output.toByteArray();
+    }
+}
@@ -0,0 +1,86 @@
+/* ========================================================================== *
+ * Copyright 2014 USRZ.com and Pier Paolo Fumagalli                           *
+ * -------------------------------------------------------------------------- *
+ * Licensed under the Apache License, Version 2.0 (the "License");            *
+ * you may not use this file except in compliance with the License.           *
+ * You may obtain a copy of the License at                                    *
+ *                                                                            *
+ *  http://www.apache.org/licenses/LICENSE-2.0                                *
+ *                                                                            *
+ * Unless required by applicable law or agreed to in writing, software        *
+ * distributed under the License is distributed on an "AS IS" BASIS,          *
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.   *
+ * See the License for the specific language governing permissions and        *
+ * limitations under the License.                                             *
+ * ========================================================================== */
+package org.usrz.libs.httpd.handlers;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+import org.usrz.libs.configurations.ConfigurationsBuilder;
+import org.usrz.libs.httpd.handlers.FileIndex.Entry;
+import org.usrz.libs.testing.AbstractTest;
+
+public class FileIndexTest extends AbstractTest {
+
+    private Path root;
+    private FileIndex index;
+
+    @BeforeClass
+    public void setup()
+    throws Exception {
+        root = Files.createTempDirectory("index");
+        Files.createDirectories(root.resolve("assets/empty"));
+        Files.write(root.resolve("index.html"), "<html/>".getBytes(UTF_8));
+        Files.write(root.resolve("assets/app.3f2a9c1b.js"), "var x;".getBytes(UTF_8));
+        Files.write(root.resolve("assets/app.js"), "var x;".getBytes(UTF_8));
+
+        index = new FileIndex(root.toFile(), new ConfigurationsBuilder().put("max_age", 600).build());
+    }
+
+    @AfterClass(alwaysRun = true)
+    public void cleanup()
+    throws Exception {
+        if (index != null) index.close();
+        if (root != null) Files.walk(root).map(Path::toFile).sorted((a, b) -> b.compareTo(a)).forEach(File::delete);
+    }
+
+    @Test
+    public void testEntries() {
+        assertEquals(index.getEntries(), 7); // 3 directories, 3 files, and "/" for "/index.html"
+
+        assertTrue(index.get("").isDirectory());
+        assertTrue(index.get("/assets").isDirectory());
+        assertTrue(index.get("/assets/empty").isDirectory());
+        assertNull(index.get("/assets/empty/"));
+        assertNull(index.get("/missing.html"));
+
+        final Entry entry = index.get("/index.html");
+        assertSame(index.get("/"), entry);
+        assertEquals(entry.file, root.resolve("index.html"));
+        assertEquals(entry.length, 7);
+        assertEquals(entry.contentType, "text/html");
+        assertFalse(entry.isDirectory());
+        assertFalse(entry.immutable);
+    }
+
+    @Test
+    public void testFingerprints() {
+        final Entry fingerprinted = index.get("/assets/app.3f2a9c1b.js");
+        final Entry plain = index.get("/assets/app.js");
+
+        assertTrue(fingerprinted.immutable);
+        assertFalse(plain.immutable);
+        assertNotNull(fingerprinted.hash);
+        assertEquals(fingerprinted.hash, plain.hash);
+        assertNotEquals(fingerprinted.hash, index.get("/index.html").hash);
+        assertEquals(index.getCacheControl(), "max-age=600, immutable");
+    }
+}
@@ -0,0 +1,185 @@
+/* ========================================================================== *
+ * Copyright 2014 USRZ.com and Pier Paolo Fumagalli                           *
+ * -------------------------------------------------------------------------- *
+ * Licensed under the Apache License, Version 2.0 (the "License");            *
+ * you may not use this file except in compliance with the License.           *
+ * You may obtain a copy of the License at                                    *
+ *                                                                            *
+ *  http://www.apache.org/licenses/LICENSE-2.0                                *
+ *                                                                            *
+ * Unless required by applicable law or agreed to in writing, software        *
+ * distributed under the License is distributed on an "AS IS" BASIS,          *
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.   *
+ * See the License for the specific language governing permissions and        *
+ * limitations under the License.                                             *
+ * ========================================================================== */
+package org.usrz.libs.httpd.handlers;
+
+import static java.nio.charset.StandardCharsets.US_ASCII;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.security.KeyStore;
+import java.util.Arrays;
+import java.util.Random;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.TrustManagerFactory;
+
+import org.glassfish.grizzly.http.server.HttpServer;
+import org.glassfish.grizzly.http.server.NetworkListener;
+import org.glassfish.grizzly.ssl.SSLEngineConfigurator;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+import org.usrz.libs.configurations.ConfigurationsBuilder;
+import org.usrz.libs.crypto.utils.KeyStoreBuilder;
+import org.usrz.libs.testing.AbstractTest;
+import org.usrz.libs.testing.IO;
+import org.usrz.libs.testing.NET;
+
+public class FileMappingTest extends AbstractTest {
+
+    private static final int WINDOW_SIZE = 1024 * 1024;
+
+    private byte[] content;
+    private SSLContext client;
+    private FileHandler handler;
+    private HttpServer server;
+    private int port;
+
+    @BeforeClass
+    public void startServer()
+    throws Exception {
+        /* A bit more than three windows of random bytes */
+        content = new byte[3 * WINDOW_SIZE + 12345];
+        new Random(42).nextBytes(content);
+        final File root = IO.makeTempDir();
+        Files.write(new File(root, "large.bin").toPath(), content);
+
+        /* Our server uses our certificate, our client trusts it */
+        final File file = new File(getClass().getResource("/org/usrz/libs/httpd/certificate1.pem").toURI());
+        final KeyStore keyStore = new KeyStoreBuilder().withConfiguration(new ConfigurationsBuilder()
+                .put("file", file)
+                .put("password", "qwer") // password "qwer"
+                .build()).build();
+
+        final KeyManagerFactory keyManagers = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+        keyManagers.init(keyStore, "qwer".toCharArray());
+        final SSLContext context = SSLContext.getInstance("TLS");
+        context.init(keyManagers.getKeyManagers(), null, null);
+
+        final TrustManagerFactory trustManagers = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+        trustManagers.init(keyStore);
+        client = SSLContext.getInstance("TLS");
+        client.init(null, trustManagers.getTrustManagers(), null);
+
+        port = NET.serverPort();
+        final NetworkListener listener = new NetworkListener("test", "127.0.0.1", port);
+        listener.setSSLEngineConfig(new SSLEngineConfigurator(context, false, false, false));
+        listener.setSecure(true);
+
+        server = new HttpServer();
+        server.addListener(listener);
+
+        handler = new FileHandler(root, new ConfigurationsBuilder()
+                .put("mapping.min_size", 1024)
+                .put("mapping.chunk_size", 65536)
+                .put("mapping.window_size", WINDOW_SIZE)
+                .build());
+        server.getServerConfiguration().addHttpHandler(handler, "/");
+        server.start();
+    }
+
+    @AfterClass(alwaysRun = true)
+    public void stopServer() {
+        if (server != null) server.shutdownNow();
+    }
+
+    /* ====================================================================== */
+
+    @Test
+    public void testLargeFile()
+    throws Exception {
+        final byte[] response = exchange("GET /large.bin HTTP/1.1\r\nHost: localhost\r\nConnection: close\r\n\r\n");
+        final int body = body(response);
+        final String headers = new String(response, 0, body, US_ASCII);
+        assertTrue(headers.startsWith("HTTP/1.1 200 "), headers);
+        assertTrue(headers.contains("\r\nContent-Length: " + content.length + "\r\n"), headers);
+        assertEquals(Arrays.copyOfRange(response, body, response.length), content);
+        assertEquals(handler.getFileMapping().getActive(), 0);
+    }
+
+    @Test
+    public void testRangeAcrossWindows()
+    throws Exception {
+        final int first = WINDOW_SIZE - 1000;
+        final int last = 2 * WINDOW_SIZE + 1000;
+        final byte[] response = exchange("GET /large.bin HTTP/1.1\r\nHost: localhost\r\nConnection: close\r\n"
+                                       + "Range: bytes=" + first + "-" + last + "\r\n\r\n");
+        final int body = body(response);
+        final String headers = new String(response, 0, body, US_ASCII);
+        assertTrue(headers.startsWith("HTTP/1.1 206 "), headers);
+        assertTrue(headers.contains("\r\nContent-Range: bytes " + first + "-" + last + "/" + content.length + "\r\n"), headers);
+        assertEquals(Arrays.copyOfRange(response, body, response.length), Arrays.copyOfRange(content, first, last + 1));
+    }
+
+    @Test
+    public void testClientAbort()
+    throws Exception {
+        try (SSLSocket socket = (SSLSocket) client.getSocketFactory().createSocket("127.0.0.1", port)) {
+            socket.setSoTimeout(5000);
+            final OutputStream output = socket.getOutputStream();
+            output.write("GET /large.bin HTTP/1.1\r\nHost: localhost\r\n\r\n".getBytes(US_ASCII));
+            output.flush();
+
+            /* Read a bit, then go away while the server is still sending */
+            final InputStream input = socket.getInputStream();
+            final byte[] buffer = new byte[65536];
+            for (int read = 0; read < 256 * 1024; ) read += input.read(buffer);
+            assertEquals(handler.getFileMapping().getActive(), 1);
+        }
+
+        /* The response must be cancelled, not left suspended */
+        final long deadline = System.currentTimeMillis() + 10000;
+        while ((handler.getFileMapping().getActive() > 0) && (System.currentTimeMillis() < deadline)) Thread.sleep(50);
+        assertEquals(handler.getFileMapping().getActive(), 0);
+
+        /* And everything else still works */
+        final byte[] response = exchange("GET /large.bin HTTP/1.1\r\nHost: localhost\r\nConnection: close\r\n\r\n");
+        assertEquals(Arrays.copyOfRange(response, body(response), response.length), content);
+    }
+
+    /* ====================================================================== */
+
+    /* Send a request, and read the response until the server closes */
+    private byte[] exchange(String request)
+    throws Exception {
+        try (SSLSocket socket = (SSLSocket) client.getSocketFactory().createSocket("127.0.0.1", port)) {
+            socket.setSoTimeout(5000);
+            final OutputStream output = socket.getOutputStream();
+            output.write(request.getBytes(US_ASCII));
+            output.flush();
+
+            final InputStream input = socket.getInputStream();
+            final ByteArrayOutputStream response = new ByteArrayOutputStream();
+            final byte[] buffer = new byte[65536];
+            int read;
+            while ((read = input.read(buffer)) >= 0) response.write(buffer, 0, read);
+            return response.toByteArray();
+        }
+    }
+
+    /* The offset of the body, after the headers */
+    private static int body(byte[] response) {
+        for (int x = 3; x < response.length; x ++) {
+            if ((response[x - 3] == '\r') && (response[x - 2] == '\n') && (response[x - 1] == '\r') && (response[x] == '\n')) return x + 1;
+        }
+        throw new AssertionError("No headers in response");
+    }
+}
@@ -0,0 +1,220 @@
+/* ========================================================================== *
+ * Copyright 2014 USRZ.com and Pier Paolo Fumagalli                           *
+ * -------------------------------------------------------------------------- *
+ * Licensed under the Apache License, Version 2.0 (the "License");            *
+ * you may not use this file except in compliance with the License.           *
+ * You may obtain a copy of the License at                                    *
+ *                                                                            *
+ *  http://www.apache.org/licenses/LICENSE-2.0                                *
+ *                                                                            *
+ * Unless required by applicable law or agreed to in writing, software        *
+ * distributed under the License is distributed on an "AS IS" BASIS,          *
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.   *
+ * See the License for the specific language governing permissions and        *
+ * limitations under the License.                                             *
+ * ========================================================================== */
+package org.usrz.libs.httpd.handlers;
+
+import static java.nio.charset.StandardCharsets.US_ASCII;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.file.Files;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.glassfish.grizzly.http.server.HttpServer;
+import org.glassfish.grizzly.http.server.NetworkListener;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+import org.usrz.libs.configurations.ConfigurationsBuilder;
+import org.usrz.libs.testing.AbstractTest;
+import org.usrz.libs.testing.IO;
+import org.usrz.libs.testing.NET;
+
+public class FileSenderTest extends AbstractTest {
+
+    private static final String CONTENT = "0123456789abcdefghijklmnopqrstuvwxyzABCDEFGHIJKLMNOPQRSTUVWXYZ"
+                                        + "0123456789abcdefghijklmnopqrstuvwxyzAB";
+
+    private HttpServer server;
+    private int port;
+
+    @BeforeClass
+    public void startServer()
+    throws Exception {
+        assertEquals(CONTENT.length(), 100);
+        final File root = IO.makeTempDir();
+        Files.write(new File(root, "file.txt").toPath(), CONTENT.getBytes(US_ASCII));
+
+        port = NET.serverPort();
+        server = new HttpServer();
+        server.addListener(new NetworkListener("test", "127.0.0.1", port));
+
+        /* The same file, streamed from disk or served from memory */
+        server.getServerConfiguration().addHttpHandler(new FileHandler(root, new ConfigurationsBuilder().build()), "/streamed");
+        server.getServerConfiguration().addHttpHandler(new FileHandler(root, new ConfigurationsBuilder().put("cache.max_size", 1024).build()), "/cached");
+        server.start();
+    }
+
+    @AfterClass(alwaysRun = true)
+    public void stopServer() {
+        if (server != null) server.shutdownNow();
+    }
+
+    @DataProvider(name = "paths")
+    public Object[][] paths() {
+        return new Object[][] { { "/streamed/file.txt" }, { "/cached/file.txt" } };
+    }
+
+    /* ====================================================================== */
+
+    @Test(dataProvider = "paths")
+    public void testNotModified(String path)
+    throws Exception {
+        final HttpURLConnection full = request(path);
+        assertEquals(full.getResponseCode(), 200);
+        assertEquals(body(full), CONTENT);
+
+        final String etag = full.getHeaderField("ETag");
+        final String lastModified = full.getHeaderField("Last-Modified");
+        assertTrue(etag.startsWith("\""), etag);
+        assertNotNull(lastModified);
+
+        assertStatus(request(path, "If-None-Match", etag), 304, "");
+        assertStatus(request(path, "If-None-Match", "\"other\", W/" + etag), 304, "");
+        assertStatus(request(path, "If-None-Match", "*"), 304, "");
+        assertStatus(request(path, "If-None-Match", "\"other\""), 200, CONTENT);
+
+        assertStatus(request(path, "If-Modified-Since", lastModified), 304, "");
+        assertStatus(request(path, "If-Modified-Since", "Thu, 01 Jan 1970 00:00:00 GMT"), 200, CONTENT);
+
+        /* "If-None-Match" wins over "If-Modified-Since" */
+        assertStatus(request(path, "If-None-Match", "\"other\"", "If-Modified-Since", lastModified), 200, CONTENT);
+
+        /* Revalidations still carry validators */
+        final HttpURLConnection revalidated = request(path, "If-None-Match", etag);
+        assertEquals(revalidated.getResponseCode(), 304);
+        assertEquals(revalidated.getHeaderField("ETag"), etag);
+        assertEquals(revalidated.getHeaderField("Last-Modified"), lastModified);
+    }
+
+    @Test(dataProvider = "paths")
+    public void testPreconditionFailed(String path)
+    throws Exception {
+        final String etag = request(path).getHeaderField("ETag");
+
+        assertStatus(request(path, "If-Match", etag), 200, CONTENT);
+        assertStatus(request(path, "If-Match", "\"other\", " + etag), 200, CONTENT);
+        assertStatus(request(path, "If-Match", "*"), 200, CONTENT);
+        assertStatus(request(path, "If-Match", "\"other\""), 412, "");
+
+        /* Weak comparisons never match "If-Match" */
+        assertStatus(request(path, "If-Match", "W/" + etag), 412, "");
+
+        assertStatus(request(path, "If-Unmodified-Since", "Thu, 01 Jan 1970 00:00:00 GMT"), 412, "");
+        assertStatus(request(path, "If-Unmodified-Since", "Fri, 31 Dec 9999 23:59:59 GMT"), 200, CONTENT);
+    }
+
+    @Test(dataProvider = "paths")
+    public void testRange(String path)
+    throws Exception {
+        final HttpURLConnection connection = request(path, "Range", "bytes=10-19");
+        assertStatus(connection, 206, CONTENT.substring(10, 20));
+        assertEquals(connection.getHeaderField("Content-Range"), "bytes 10-19/100");
+        assertEquals(connection.getHeaderField("Content-Length"), "10");
+        assertEquals(connection.getHeaderField("Accept-Ranges"), "bytes");
+
+        /* Suffixes and open-ended ranges */
+        assertStatus(request(path, "Range", "bytes=-5"), 206, CONTENT.substring(95));
+        assertStatus(request(path, "Range", "bytes=90-"), 206, CONTENT.substring(90));
+        assertStatus(request(path, "Range", "bytes=95-1000"), 206, CONTENT.substring(95));
+    }
+
+    @Test(dataProvider = "paths")
+    public void testIfRange(String path)
+    throws Exception {
+        final HttpURLConnection full = request(path);
+        final String etag = full.getHeaderField("ETag");
+        final String lastModified = full.getHeaderField("Last-Modified");
+
+        assertStatus(request(path, "Range", "bytes=0-9", "If-Range", etag), 206, CONTENT.substring(0, 10));
+        assertStatus(request(path, "Range", "bytes=0-9", "If-Range", lastModified), 206, CONTENT.substring(0, 10));
+
+        /* Mismatches send the whole file */
+        assertStatus(request(path, "Range", "bytes=0-9", "If-Range", "\"other\""), 200, CONTENT);
+        assertStatus(request(path, "Range", "bytes=0-9", "If-Range", "W/" + etag), 200, CONTENT);
+        assertStatus(request(path, "Range", "bytes=0-9", "If-Range", "Thu, 01 Jan 1970 00:00:00 GMT"), 200, CONTENT);
+    }
+
+    @Test(dataProvider = "paths")
+    public void testRangeNotSatisfiable(String path)
+    throws Exception {
+        final HttpURLConnection connection = request(path, "Range", "bytes=100-200");
+        assertStatus(connection, 416, "");
+        assertEquals(connection.getHeaderField("Content-Range"), "bytes */100");
+
+        /* Syntactically invalid ranges are ignored */
+        assertStatus(request(path, "Range", "bytes=20-10"), 200, CONTENT);
+        assertStatus(request(path, "Range", "lines=1-2"), 200, CONTENT);
+    }
+
+    @Test(dataProvider = "paths")
+    public void testMultipleRanges(String path)
+    throws Exception {
+        final HttpURLConnection connection = request(path, "Range", "bytes=0-4, 90-99");
+        final String body = body(connection);
+        assertEquals(connection.getResponseCode(), 206);
+        assertEquals(connection.getHeaderFieldInt("Content-Length", -1), body.length());
+        assertNull(connection.getHeaderField("Content-Range"));
+
+        final Matcher matcher = Pattern.compile("multipart/byteranges; ?boundary=(\\w+)").matcher(connection.getHeaderField("Content-Type"));
+        assertTrue(matcher.matches(), connection.getHeaderField("Content-Type"));
+        final String boundary = matcher.group(1);
+
+        assertEquals(body, "\r\n--" + boundary + "\r\n"
+                         + "Content-Type: text/plain\r\n"
+                         + "Content-Range: bytes 0-4/100\r\n"
+                         + "\r\n"
+                         + CONTENT.substring(0, 5)
+                         + "\r\n--" + boundary + "\r\n"
+                         + "Content-Type: text/plain\r\n"
+                         + "Content-Range: bytes 90-99/100\r\n"
+                         + "\r\n"
+                         + CONTENT.substring(90)
+                         + "\r\n--" + boundary + "--\r\n");
+    }
+
+    /* ====================================================================== */
+
+    private HttpURLConnection request(String path, String... headers)
+    throws Exception {
+        final HttpURLConnection connection = (HttpURLConnection) new URL("http://127.0.0.1:" + port + path).openConnection();
+        for (int x = 0; x < headers.length; x += 2) connection.setRequestProperty(headers[x], headers[x + 1]);
+        connection.getResponseCode();
+        return connection;
+    }
+
+    private static void assertStatus(HttpURLConnection connection, int status, String body)
+    throws Exception {
+        assertEquals(connection.getResponseCode(), status, connection.getRequestMethod() + " " + connection.getURL());
+        assertEquals(body(connection), body);
+    }
+
+    private static String body(HttpURLConnection connection)
+    throws Exception {
+        final InputStream stream = connection.getResponseCode() < 400 ? connection.getInputStream() : connection.getErrorStream();
+        final ByteArrayOutputStream output = new ByteArrayOutputStream();
+        if (stream != null) try (InputStream input = stream) {
+            final byte[] buffer = new byte[4096];
+            int read;
+            while ((read = input.read(buffer)) >= 0) output.write(buffer, 0, read);
+        }
+        return new String(output.toByteArray(), US_ASCII);
+    }
+}
@@ -0,0 +1,192 @@
+/* ========================================================================== *
+ * Copyright 2014 USRZ.com and Pier Paolo Fumagalli                           *
+ * -------------------------------------------------------------------------- *
+ * Licensed under the Apache License, Version 2.0 (the "License");            *
+ * you may not use this file except in compliance with the License.           *
+ * You may obtain a copy of the License at                                    *
+ *                                                                            *
+ *  http://www.apache.org/licenses/LICENSE-2.0                                *
+ *                                                                            *
+ * Unless required by applicable law or agreed to in writing, software        *
+ * distributed under the License is distributed on an "AS IS" BASIS,          *
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.   *
+ * See the License for the specific language governing permissions and        *
+ * limitations under the License.                                             *
+ * ========================================================================== */
+package org.usrz.libs.httpd.handlers;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.glassfish.grizzly.http.util.HttpStatus.MOVED_PERMANENTLY_301;
+import static org.glassfish.grizzly.http.util.HttpStatus.TEMPORARY_REDIRECT_307;
+import static org.usrz.libs.httpd.inject.HttpHandlerProvider.handlerPath;
+
+import java.io.File;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.attribute.FileTime;
+
+import org.glassfish.grizzly.http.server.HttpServer;
+import org.glassfish.grizzly.http.server.NetworkListener;
+import org.testng.annotations.Test;
+import org.usrz.libs.testing.AbstractTest;
+import org.usrz.libs.testing.IO;
+import org.usrz.libs.testing.NET;
+
+public class RedirectMapTest extends AbstractTest {
+
+    private File write(File file, String contents)
+    throws Exception {
+        Files.write(file.toPath(), contents.getBytes(UTF_8));
+        return file;
+    }
+
+    private String target(RedirectMap map, String source) {
+        final RedirectMap.Table table = map.table();
+        final int index = table.find(source);
+        return index < 0 ? null : table.target(index);
+    }
+
+    /* ====================================================================== */
+
+    @Test
+    public void testParser()
+    throws Exception {
+        final File file = write(IO.makeTempFile(), "# A comment\n"
+                                                 + "\n"
+                                                 + "/one\t/uno\n"
+                                                 + "  /two \t\t /due \t 301\n"
+                                                 + "/one\t/ignored\n"
+                                                 + "/caf\u00e9\t/coffee\n");
+        try (RedirectMap map = new RedirectMap(file)) {
+            assertEquals(map.size(), 3);
+            assertEquals(target(map, "/one"), "/uno");
+            assertEquals(target(map, "/two"), "/due");
+            assertEquals(target(map, "/caf\u00e9"), "/coffee");
+            assertNull(target(map, "/three"));
+
+            final RedirectMap.Table table = map.table();
+            assertSame(table.status(table.find("/one")), TEMPORARY_REDIRECT_307);
+            assertSame(table.status(table.find("/two")), MOVED_PERMANENTLY_301);
+        }
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class,
+          expectedExceptionsMessageRegExp = "Invalid redirect at line 2 .*")
+    public void testInvalidLine()
+    throws Exception {
+        new RedirectMap(write(IO.makeTempFile(), "/one\t/uno\nnot/absolute\t/target\n"));
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class,
+          expectedExceptionsMessageRegExp = "Invalid status \"200\" at line 1 .*")
+    public void testInvalidStatus()
+    throws Exception {
+        new RedirectMap(write(IO.makeTempFile(), "/one\t/uno\t200\n"));
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class,
+          expectedExceptionsMessageRegExp = "Invalid status \"304\" at line 2 .*")
+    public void testNonRedirectStatus()
+    throws Exception {
+        new RedirectMap(write(IO.makeTempFile(), "/one\t/uno\t308\n/two\t/due\t304\n"));
+    }
+
+    @Test
+    public void testRedirectStatuses()
+    throws Exception {
+        try (RedirectMap map = new RedirectMap(write(IO.makeTempFile(), "/a\t/1\t301\n"
+                                                                       + "/b\t/2\t302\n"
+                                                                       + "/c\t/3\t303\n"
+                                                                       + "/d\t/4\t307\n"
+                                                                       + "/e\t/5\t308\n"))) {
+            final RedirectMap.Table table = map.table();
+            assertEquals(table.status(table.find("/a")).getStatusCode(), 301);
+            assertEquals(table.status(table.find("/b")).getStatusCode(), 302);
+            assertEquals(table.status(table.find("/c")).getStatusCode(), 303);
+            assertEquals(table.status(table.find("/d")).getStatusCode(), 307);
+            assertEquals(table.status(table.find("/e")).getStatusCode(), 308);
+        }
+    }
+
+    @Test
+    public void testCollisions()
+    throws Exception {
+        /* All these strings share the same hash code */
+        final String[] sources = { "/AaAa", "/AaBB", "/BBAa", "/BBBB" };
+        assertEquals(sources[0].hashCode(), sources[3].hashCode());
+
+        final StringBuilder builder = new StringBuilder();
+        for (String source: sources) builder.append(source).append('\t').append(source.toLowerCase()).append('\n');
+        try (RedirectMap map = new RedirectMap(write(IO.makeTempFile(), builder.toString()))) {
+            assertEquals(map.size(), sources.length);
+            for (String source: sources) assertEquals(target(map, source), source.toLowerCase());
+            assertNull(target(map, "/AaAb"));
+        }
+    }
+
+    @Test
+    public void testLargeTable()
+    throws Exception {
+        final StringBuilder builder = new StringBuilder();
+        for (int x = 0; x < 10000; x ++) builder.append("/old/").append(x).append("\t/new/").append(x).append('\n');
+        try (RedirectMap map = new RedirectMap(write(IO.makeTempFile(), builder.toString()))) {
+            assertEquals(map.size(), 10000);
+            for (int x = 0; x < 10000; x ++) assertEquals(target(map, "/old/" + x), "/new/" + x);
+            assertNull(target(map, "/old/10000"));
+        }
+    }
+
+    @Test
+    public void testReload()
+    throws Exception {
+        final File file = write(new File(IO.makeTempDir(), "redirects.map"), "/one\t/uno\n");
+        try (RedirectMap map = new RedirectMap(file)) {
+            assertEquals(target(map, "/one"), "/uno");
+
+            /* Move the modification time ahead, coarse file systems would not see a change */
+            write(file, "/one\t/eins\n/two\t/zwei\n");
+            Files.setLastModifiedTime(file.toPath(), FileTime.fromMillis(file.lastModified() + 2000));
+
+            final long deadline = System.currentTimeMillis() + 30000;
+            while ((map.size() != 2) && (System.currentTimeMillis() < deadline)) Thread.sleep(50);
+            assertEquals(target(map, "/one"), "/eins");
+            assertEquals(target(map, "/two"), "/zwei");
+
+            /* Broken files keep the old redirects */
+            write(file, "broken\n");
+            Files.setLastModifiedTime(file.toPath(), FileTime.fromMillis(file.lastModified() + 4000));
+            Thread.sleep(1000);
+            assertEquals(map.size(), 2);
+            assertEquals(target(map, "/one"), "/eins");
+        }
+    }
+
+    @Test
+    public void testMapBeforeRules()
+    throws Exception {
+        final int port = NET.serverPort();
+        final HttpServer server = new HttpServer();
+        server.addListener(new NetworkListener("test", "127.0.0.1", port));
+
+        final RedirectHandler handler = new RedirectHandler(handlerPath("/"));
+        handler.addRedirect("^/old/", "/rule/", false, false, false);
+        handler.addRedirectMap(write(IO.makeTempFile(), "/old/mapped\t/map\t301\n"));
+        server.getServerConfiguration().addHttpHandler(handler, "/*");
+        server.start();
+        try {
+            assertRedirect(port, "/old/mapped?a=b", 301, "/map?a=b");
+            assertRedirect(port, "/old/other", 307, "/rule/other");
+        } finally {
+            server.shutdownNow();
+        }
+    }
+
+    private void assertRedirect(int port, String path, int status, String location)
+    throws Exception {
+        final HttpURLConnection connection = (HttpURLConnection) new URL("http://127.0.0.1:" + port + path).openConnection();
+        connection.setInstanceFollowRedirects(false);
+        assertEquals(connection.getResponseCode(), status, path);
+        assertTrue(connection.getHeaderField("Location").endsWith(location), connection.getHeaderField("Location"));
+    }
+}
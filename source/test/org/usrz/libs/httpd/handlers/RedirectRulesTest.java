@@ -0,0 +1,89 @@
+/* ========================================================================== *
+ * Copyright 2014 USRZ.com and Pier Paolo Fumagalli                           *
+ * -------------------------------------------------------------------------- *
+ * Licensed under the Apache License, Version 2.0 (the "License");            *
+ * you may not use this file except in compliance with the License.           *
+ * You may obtain a copy of the License at                                    *
+ *                                                                            *
+ *  http://www.apache.org/licenses/LICENSE-2.0                                *
+ *                                                                            *
+ * Unless required by applicable law or agreed to in writing, software        *
+ * distributed under the License is distributed on an "AS IS" BASIS,          *
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.   *
+ * See the License for the specific language governing permissions and        *
+ * limitations under the License.                                             *
+ * ========================================================================== */
+package org.usrz.libs.httpd.handlers;
+
+import static org.glassfish.grizzly.http.util.HttpStatus.MOVED_PERMANENTLY_301;
+import static org.glassfish.grizzly.http.util.HttpStatus.TEMPORARY_REDIRECT_307;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+import org.usrz.libs.httpd.handlers.RedirectRules.Kind;
+import org.usrz.libs.httpd.handlers.RedirectRules.Match;
+import org.usrz.libs.httpd.handlers.RedirectRules.Rule;
+import org.usrz.libs.testing.AbstractTest;
+
+public class RedirectRulesTest extends AbstractTest {
+
+    private List<Rule> rules;
+
+    @BeforeMethod
+    public void resetRules() {
+        rules = new ArrayList<>();
+    }
+
+    private Rule add(String match, String replacement) {
+        final Rule rule = new Rule(rules.size(), match, replacement, TEMPORARY_REDIRECT_307, false);
+        rules.add(rule);
+        return rule;
+    }
+
+    @Test
+    public void testClassification() {
+        assertEquals(add("^/foo$", "/bar").kind, Kind.EXACT);
+        assertEquals(add("^/foo\\.html$", "/bar").kind, Kind.EXACT);
+        assertEquals(add("^/foo/", "/bar/").kind, Kind.PREFIX);
+        assertEquals(add("^/foo/(.*)$", "/bar/$1").kind, Kind.EXPRESSION);
+        assertEquals(add("/foo", "/bar").kind, Kind.EXPRESSION);
+    }
+
+    @Test
+    public void testFirstRuleWins() {
+        add("^/old/(.*)\\.php$", "/new/$1");
+        add("^/old/", "/older/");
+        add("^/old/index.html$", "/index.html");
+        add("/legacy", "/modern");
+        final RedirectRules redirects = new RedirectRules(rules);
+
+        assertEquals(redirects.match("/old/page.php").location, "/new/page");
+        assertEquals(redirects.match("/old/index.html").location, "/older/index.html");
+        assertEquals(redirects.match("/x/legacy/y").location, "/x/modern/y");
+        assertNull(redirects.match("/nowhere"));
+    }
+
+    @Test
+    public void testExactBeforePrefix() {
+        add("^/a/b$", "/exact");
+        add("^/a/", "/prefix/");
+        add("^/a/b/c", "/longer");
+        final RedirectRules redirects = new RedirectRules(rules);
+
+        assertEquals(redirects.match("/a/b").location, "/exact");
+        assertEquals(redirects.match("/a/b/c").location, "/prefix/b/c");
+        assertEquals(redirects.match("/a/z").location, "/prefix/z");
+    }
+
+    @Test
+    public void testStatus() {
+        rules.add(new Rule(rules.size(), "^/moved$", "/here", MOVED_PERMANENTLY_301, true));
+        final Match match = new RedirectRules(rules).match("/moved");
+        assertEquals(match.location, "/here");
+        assertSame(match.rule.status, MOVED_PERMANENTLY_301);
+        assertTrue(match.rule.qsa);
+    }
+}
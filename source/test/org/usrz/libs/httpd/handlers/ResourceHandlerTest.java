@@ -0,0 +1,108 @@
+/* ========================================================================== *
+ * Copyright 2014 USRZ.com and Pier Paolo Fumagalli                           *
+ * -------------------------------------------------------------------------- *
+ * Licensed under the Apache License, Version 2.0 (the "License");            *
+ * you may not use this file except in compliance with the License.           *
+ * You may obtain a copy of the License at                                    *
+ *                                                                            *
+ *  http://www.apache.org/licenses/LICENSE-2.0                                *
+ *                                                                            *
+ * Unless required by applicable law or agreed to in writing, software        *
+ * distributed under the License is distributed on an "AS IS" BASIS,          *
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.   *
+ * See the License for the specific language governing permissions and        *
+ * limitations under the License.                                             *
+ * ========================================================================== */
+package org.usrz.libs.httpd.handlers;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.io.File;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+import org.usrz.libs.configurations.ConfigurationsBuilder;
+import org.usrz.libs.testing.AbstractTest;
+
+public class ResourceHandlerTest extends AbstractTest {
+
+    private Path root;
+    private URLClassLoader classLoader;
+
+    @BeforeClass
+    public void setup()
+    throws Exception {
+        root = Files.createTempDirectory("resources");
+
+        /* A JAR with three files in two directories, one too big for memory */
+        final StringBuilder script = new StringBuilder();
+        while (script.length() < 4096) script.append("var x = 'abcdefghijklmnopqrstuvwxyz';\n");
+        try (JarOutputStream jar = new JarOutputStream(Files.newOutputStream(root.resolve("test.jar")))) {
+            for (String directory: new String[] { "web/", "web/js/" }) jar.putNextEntry(new JarEntry(directory));
+            write(jar, "web/index.html", "<html/>");
+            write(jar, "web/js/app.js", script.toString());
+            write(jar, "web/js/big.js", script.toString() + script.toString());
+            write(jar, "other/ignored.txt", "ignored");
+        }
+
+        classLoader = new URLClassLoader(new URL[] { root.resolve("test.jar").toUri().toURL() }, null);
+    }
+
+    private static void write(JarOutputStream jar, String name, String content)
+    throws Exception {
+        jar.putNextEntry(new JarEntry(name));
+        jar.write(content.getBytes(UTF_8));
+        jar.closeEntry();
+    }
+
+    @AfterClass(alwaysRun = true)
+    public void cleanup()
+    throws Exception {
+        if (classLoader != null) classLoader.close();
+        if (root != null) Files.walk(root).map(Path::toFile).sorted((a, b) -> b.compareTo(a)).forEach(File::delete);
+    }
+
+    @Test
+    public void testIndex() {
+        final ResourceHandler handler = new ResourceHandler(classLoader, "/web", new ConfigurationsBuilder()
+                .put("max_file_size", 5000)
+                .build());
+        try {
+            assertEquals(handler.getPrefix(), "web/");
+            assertEquals(handler.getEntries(), 6); // 2 directories, 3 files, and "/" for "/index.html"
+            assertEquals(handler.getSize(), 7 + 4104); // "big.js" is streamed from the JAR
+        } finally {
+            handler.destroy();
+        }
+    }
+
+    @Test
+    public void testCompression() {
+        final ResourceHandler handler = new ResourceHandler(classLoader, "web", new ConfigurationsBuilder()
+                .put("max_file_size", 5000)
+                .put("compression.min_size", 256)
+                .build());
+        try {
+            final long size = handler.getSize();
+            assertTrue(size > 7 + 4104, "Compressed \"app.js\" not in memory");
+            assertTrue(size < 7 + 4104 + 512, "Compressed \"app.js\" too big (or \"index.html\" compressed)");
+
+            /* Everything is compressed up front, nothing to cache or watch */
+            assertNull(handler.getFileCompression().getFileCache());
+        } finally {
+            handler.destroy();
+        }
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void testEmptyPrefix() {
+        new ResourceHandler(classLoader, "/", new ConfigurationsBuilder().build());
+    }
+}
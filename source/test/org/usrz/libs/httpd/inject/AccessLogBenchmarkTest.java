@@ -0,0 +1,123 @@
+/* ========================================================================== *
+ * Copyright 2014 USRZ.com and Pier Paolo Fumagalli                           *
+ * -------------------------------------------------------------------------- *
+ * Licensed under the Apache License, Version 2.0 (the "License");            *
+ * you may not use this file except in compliance with the License.           *
+ * You may obtain a copy of the License at                                    *
+ *                                                                            *
+ *  http://www.apache.org/licenses/LICENSE-2.0                                *
+ *                                                                            *
+ * Unless required by applicable law or agreed to in writing, software        *
+ * distributed under the License is distributed on an "AS IS" BASIS,          *
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.   *
+ * See the License for the specific language governing permissions and        *
+ * limitations under the License.                                             *
+ * ========================================================================== */
+package org.usrz.libs.httpd.inject;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.Date;
+import java.util.TimeZone;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.glassfish.grizzly.http.server.HttpHandler;
+import org.glassfish.grizzly.http.server.HttpServer;
+import org.glassfish.grizzly.http.server.NetworkListener;
+import org.glassfish.grizzly.http.server.Request;
+import org.glassfish.grizzly.http.server.Response;
+import org.glassfish.grizzly.http.server.accesslog.ApacheLogFormat;
+import org.testng.annotations.Test;
+import org.usrz.libs.httpd.inject.AsyncAccessLog.Dates;
+import org.usrz.libs.httpd.inject.AsyncAccessLog.Entry;
+import org.usrz.libs.httpd.inject.AsyncAccessLog.Field;
+import org.usrz.libs.httpd.inject.AsyncAccessLog.Format;
+import org.usrz.libs.testing.AbstractTest;
+import org.usrz.libs.testing.NET;
+
+/**
+ * Compare the cost of formatting a line with Grizzly's pattern-based
+ * {@link ApacheLogFormat} (then encoded to UTF-8) against our own
+ * {@link AccessLogLine} encoding, in both combined and JSON formats.
+ *
+ * <p>Disabled by default, as numbers only make sense on a quiet machine:
+ * enable it locally and look at the standard output.</p>
+ */
+public class AccessLogBenchmarkTest extends AbstractTest {
+
+    private static final String USER_AGENT = "Mozilla/5.0 (Macintosh; Intel Mac OS X 10_10_0) AppleWebKit/537.36 "
+                                           + "(KHTML, like Gecko) Chrome/38.0.2125.104 Safari/537.36";
+    private static final String REFERER = "http://www.example.com/search?q=caf%C3%A9&page=2";
+    private static final int LINES = 500000;
+
+    @Test(enabled = false)
+    public void benchmark()
+    throws Exception {
+        final Dates dates = new Dates(TimeZone.getTimeZone("UTC"));
+        final AccessLogLine line = new AccessLogLine();
+        final Entry entry = new Entry(0);
+        entry.timestamp = System.currentTimeMillis();
+        entry.duration = 1500000;
+        entry.remoteAddress = "127.0.0.1";
+        entry.method = "GET";
+        entry.uri = "/static/css/main.css";
+        entry.query = "v=20141010";
+        entry.protocol = "HTTP/1.1";
+        entry.status = 200;
+        entry.length = 12345;
+        entry.referer = REFERER;
+        entry.userAgent = USER_AGENT;
+        entry.listener = "http";
+        entry.handler = "/static";
+
+        /* One millisecond per line, dates change once every thousand */
+        report("AccessLogLine, combined", measure(() -> {
+            entry.timestamp ++;
+            Format.COMBINED.format(entry, line.reset(), dates, null);
+        }));
+        report("AccessLogLine, json", measure(() -> {
+            entry.timestamp ++;
+            Format.JSON.format(entry, line.reset(), dates, Field.values());
+        }));
+
+        /* Grizzly's formatter needs a live response: format it in a handler */
+        final AtomicReference<Double> grizzly = new AtomicReference<>();
+        final int port = NET.serverPort();
+        final HttpServer server = new HttpServer();
+        server.addListener(new NetworkListener("benchmark", "127.0.0.1", port));
+        server.getServerConfiguration().addHttpHandler(new HttpHandler() {
+            @Override
+            public void service(Request request, Response response) {
+                response.setContentLengthLong(12345);
+                grizzly.set(measure(() -> ApacheLogFormat.COMBINED.format(response, new Date(), 1500000).getBytes(UTF_8)));
+                response.setContentLengthLong(0);
+            }
+        }, "/");
+        server.start();
+
+        try {
+            final HttpURLConnection connection = (HttpURLConnection) new URL("http://127.0.0.1:" + port + "/static/css/main.css?v=20141010").openConnection();
+            connection.setRequestProperty("User-Agent", USER_AGENT);
+            connection.setRequestProperty("Referer", REFERER);
+            connection.setReadTimeout(300000);
+            assertEquals(connection.getResponseCode(), 200);
+        } finally {
+            server.shutdownNow();
+        }
+        report("ApacheLogFormat.COMBINED", grizzly.get());
+    }
+
+    /* Warm up, then return the average nanoseconds per run */
+    private static double measure(Runnable runnable) {
+        for (int x = 0; x < LINES; x ++) runnable.run();
+        final long start = System.nanoTime();
+        for (int x = 0; x < LINES; x ++) runnable.run();
+        return (double) (System.nanoTime() - start) / LINES;
+    }
+
+    private static void report(String name, double nanos) {
+        System.out.printf("%-28s %8.1f ns/line%n", name, nanos);
+    }
+}
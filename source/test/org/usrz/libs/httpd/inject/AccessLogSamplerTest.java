@@ -0,0 +1,70 @@
+/* ========================================================================== *
+ * Copyright 2014 USRZ.com and Pier Paolo Fumagalli                           *
+ * -------------------------------------------------------------------------- *
+ * Licensed under the Apache License, Version 2.0 (the "License");            *
+ * you may not use this file except in compliance with the License.           *
+ * You may obtain a copy of the License at                                    *
+ *                                                                            *
+ *  http://www.apache.org/licenses/LICENSE-2.0                                *
+ *                                                                            *
+ * Unless required by applicable law or agreed to in writing, software        *
+ * distributed under the License is distributed on an "AS IS" BASIS,          *
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.   *
+ * See the License for the specific language governing permissions and        *
+ * limitations under the License.                                             *
+ * ========================================================================== */
+package org.usrz.libs.httpd.inject;
+
+import static java.util.Arrays.asList;
+
+import org.testng.annotations.Test;
+import org.usrz.libs.testing.AbstractTest;
+
+public class AccessLogSamplerTest extends AbstractTest {
+
+    @Test
+    public void testRules() {
+        final AccessLogSampler sampler = new AccessLogSampler(1.0)
+                .add(null, "5xx", 1.0)
+                .add(asList("/health", "/ping"), null, 0)
+                .add(asList("/static/"), "200, 304", 0);
+
+        /* Errors are always logged, even for health checks */
+        assertTrue(sampler.sample("/health", 503));
+        assertTrue(sampler.sample("/static/app.js", 500));
+
+        /* Excluded paths and statuses */
+        assertFalse(sampler.sample("/health", 200));
+        assertFalse(sampler.sample("/ping/db", 404));
+        assertFalse(sampler.sample("/static/app.js", 200));
+        assertFalse(sampler.sample("/static/app.js", 304));
+
+        /* Anything else falls back to the default */
+        assertTrue(sampler.sample("/static/app.js", 404));
+        assertTrue(sampler.sample("/index.html", 200));
+        assertTrue(sampler.sample(null, 200));
+    }
+
+    @Test
+    public void testRates() {
+        final AccessLogSampler sampler = new AccessLogSampler(0)
+                .add(asList("/static/"), "2xx", 0.1);
+
+        int sampled = 0;
+        for (int x = 0; x < 100000; x ++) {
+            if (sampler.sample("/static/image.png", 200)) sampled ++;
+            assertFalse(sampler.sample("/index.html", 200));
+        }
+        assertTrue((sampled > 9000) && (sampled < 11000), "Sampled " + sampled + " requests");
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void testInvalidStatus() {
+        new AccessLogSampler(1.0).add(null, "6xx", 1.0);
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void testInvalidRate() {
+        new AccessLogSampler(1.5);
+    }
+}
@@ -0,0 +1,395 @@
+/* ========================================================================== *
+ * Copyright 2014 USRZ.com and Pier Paolo Fumagalli                           *
+ * -------------------------------------------------------------------------- *
+ * Licensed under the Apache License, Version 2.0 (the "License");            *
+ * you may not use this file except in compliance with the License.           *
+ * You may obtain a copy of the License at                                    *
+ *                                                                            *
+ *  http://www.apache.org/licenses/LICENSE-2.0                                *
+ *                                                                            *
+ * Unless required by applicable law or agreed to in writing, software        *
+ * distributed under the License is distributed on an "AS IS" BASIS,          *
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.   *
+ * See the License for the specific language governing permissions and        *
+ * limitations under the License.                                             *
+ * ========================================================================== */
+package org.usrz.libs.httpd.inject;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.file.Files;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.EnumSet;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.TimeZone;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.GZIPInputStream;
+
+import org.glassfish.grizzly.http.server.HttpServer;
+import org.testng.annotations.Test;
+import org.usrz.libs.configurations.ConfigurationsBuilder;
+import org.usrz.libs.httpd.ServerStarter;
+import org.usrz.libs.httpd.inject.AsyncAccessLog.Dates;
+import org.usrz.libs.httpd.inject.AsyncAccessLog.Entry;
+import org.usrz.libs.httpd.inject.AsyncAccessLog.Field;
+import org.usrz.libs.httpd.inject.AsyncAccessLog.Format;
+import org.usrz.libs.httpd.inject.AsyncAccessLog.Overflow;
+import org.usrz.libs.httpd.inject.AsyncAccessLog.Rotation;
+import org.usrz.libs.testing.AbstractTest;
+import org.usrz.libs.testing.NET;
+
+public class AsyncAccessLogTest extends AbstractTest {
+
+    @Test
+    public void testConcurrentWrites()
+    throws Exception {
+        final File file = File.createTempFile("access", ".log");
+        file.deleteOnExit();
+
+        /* A tiny ring, so that producers will have to wait */
+        final AsyncAccessLog log = new AsyncAccessLog(file, Format.COMMON, EnumSet.allOf(Field.class), Rotation.NEVER,
+                                                      TimeZone.getTimeZone("UTC"), 5, Overflow.BLOCK, 1024);
+        assertEquals(log.getCapacity(), 8);
+
+        final Thread[] threads = new Thread[8];
+        for (int x = 0; x < threads.length; x ++) {
+            final int thread = x;
+            threads[x] = new Thread(() -> {
+                for (int y = 0; y < 1000; y ++) log.append("thread " + thread + " line " + y + " \u00e8");
+            });
+        }
+        for (Thread thread: threads) thread.start();
+        for (Thread thread: threads) thread.join();
+        log.close();
+
+        final List<String> lines = Files.readAllLines(file.toPath(), UTF_8);
+        assertEquals(lines.size(), 8000);
+        assertEquals(new HashSet<>(lines).size(), 8000);
+        assertEquals(log.getWritten(), 8000);
+        assertEquals(log.getDropped(), 0);
+        assertEquals(log.getQueueDepth(), 0);
+
+        /* Lines from each thread are written in order */
+        final Set<String> seen = new HashSet<>();
+        for (String line: lines) {
+            final String[] parts = line.split(" ");
+            final int number = Integer.parseInt(parts[3]);
+            if (number > 0) assertTrue(seen.contains(parts[1] + " " + (number - 1)), "Out of order: " + line);
+            seen.add(parts[1] + " " + number);
+        }
+
+        /* Once closed, lines are simply dropped */
+        log.append("too late");
+        assertEquals(log.getDropped(), 1);
+    }
+
+    @Test
+    public void testDrop()
+    throws Exception {
+        final File file = File.createTempFile("access", ".log");
+        file.deleteOnExit();
+
+        /* The smallest ring (two slots), and long lines written one by one */
+        final AsyncAccessLog log = new AsyncAccessLog(file, Format.COMMON, EnumSet.allOf(Field.class), Rotation.NEVER,
+                                                      TimeZone.getTimeZone("UTC"), 1, Overflow.DROP, 1024);
+        assertEquals(log.getCapacity(), 2);
+        final char[] padding = new char[1000];
+        Arrays.fill(padding, 'x');
+        final String line = new String(padding);
+
+        final LongAdder appended = new LongAdder();
+        final long deadline = System.currentTimeMillis() + 10000;
+        final Thread[] threads = new Thread[4];
+        for (int x = 0; x < threads.length; x ++) {
+            threads[x] = new Thread(() -> {
+                while ((log.getDropped() == 0) && (System.currentTimeMillis() < deadline)) {
+                    log.append(line);
+                    appended.increment();
+                }
+            });
+        }
+        for (Thread thread: threads) thread.start();
+        for (Thread thread: threads) thread.join();
+        log.close();
+
+        /* Dropped lines are counted, never waited for, and never written */
+        assertTrue(log.getDropped() > 0, "No lines dropped");
+        assertEquals(log.getBlocked(), 0);
+        assertEquals(log.getWritten() + log.getDropped(), appended.sum());
+        assertEquals(Files.readAllLines(file.toPath(), UTF_8).size(), log.getWritten());
+    }
+
+    @Test
+    public void testHourlyRotation()
+    throws Exception {
+        final File directory = Files.createTempDirectory("access").toFile();
+        final File file = new File(directory, "access.log");
+
+        final AsyncAccessLog log = new AsyncAccessLog(file, Format.COMMON, EnumSet.allOf(Field.class), Rotation.HOURLY,
+                                                      TimeZone.getTimeZone("UTC"), 16, Overflow.BLOCK, 1024);
+
+        /* The second line is written one hour later */
+        final long now = System.currentTimeMillis();
+        log.append("first hour", now);
+        log.append("next hour", now + 3600000);
+        log.close();
+
+        assertEquals(Files.readAllLines(file.toPath(), UTF_8), Arrays.asList("next hour"));
+        assertEquals(log.getCompressed(), 0);
+
+        /* The archive is named after the hour it covers */
+        final String[] archives = directory.list((dir, name) -> ! name.equals("access.log"));
+        assertEquals(archives.length, 1, Arrays.toString(archives));
+        assertTrue(archives[0].matches("access-\\d{10}\\.log"), archives[0]);
+
+        final File archive = new File(directory, archives[0]);
+        assertEquals(Files.readAllLines(archive.toPath(), UTF_8), Arrays.asList("first hour"));
+
+        archive.delete();
+        file.delete();
+        directory.delete();
+    }
+
+    @Test
+    public void testRotationCompressed()
+    throws Exception {
+        final File directory = Files.createTempDirectory("access").toFile();
+        final File file = new File(directory, "access.log");
+
+        final AsyncAccessLog log = new AsyncAccessLog(file, Format.COMMON, EnumSet.allOf(Field.class), Rotation.HOURLY,
+                                                      TimeZone.getTimeZone("UTC"), 16, Overflow.BLOCK, 1024);
+        log.setCompressRotated(true);
+
+        final long now = System.currentTimeMillis();
+        log.append("first hour", now);
+        log.append("next hour", now + 3600000);
+
+        /* Compressed in the background, after rotating */
+        final long deadline = System.currentTimeMillis() + 5000;
+        while ((log.getCompressed() == 0) && (System.currentTimeMillis() < deadline)) Thread.sleep(10);
+        log.close();
+        assertEquals(log.getCompressed(), 1);
+
+        /* Only the current file and the compressed archive are left */
+        final String[] archives = directory.list((dir, name) -> ! name.equals("access.log"));
+        assertEquals(archives.length, 1, Arrays.toString(archives));
+        assertTrue(archives[0].matches("access-\\d{10}\\.log\\.gz"), archives[0]);
+        assertEquals(Files.readAllLines(file.toPath(), UTF_8), Arrays.asList("next hour"));
+
+        final File archive = new File(directory, archives[0]);
+        try (InputStream input = new GZIPInputStream(new FileInputStream(archive))) {
+            final ByteArrayOutputStream output = new ByteArrayOutputStream();
+            final byte[] buffer = new byte[4096];
+            int read;
+            while ((read = input.read(buffer)) >= 0) output.write(buffer, 0, read);
+            assertEquals(new String(output.toByteArray(), UTF_8), "first hour\n");
+        }
+
+        archive.delete();
+        file.delete();
+        directory.delete();
+    }
+
+    @Test
+    public void testRotationRenameFailure()
+    throws Exception {
+        final File directory = Files.createTempDirectory("access").toFile();
+        final File file = new File(directory, "access.log");
+
+        final AsyncAccessLog log = new AsyncAccessLog(file, Format.COMMON, EnumSet.allOf(Field.class), Rotation.HOURLY,
+                                                      TimeZone.getTimeZone("UTC"), 16, Overflow.BLOCK, 1024);
+
+        /* Whatever the archive name, a non-empty directory is in the way */
+        final long now = System.currentTimeMillis();
+        final SimpleDateFormat format = new SimpleDateFormat("yyyyMMddHH", Locale.US);
+        format.setTimeZone(TimeZone.getTimeZone("UTC"));
+        final File blocker = new File(directory, "access-" + format.format(new Date(now)) + ".log");
+        assertTrue(new File(blocker, "blocker").mkdirs());
+
+        log.append("first hour", now);
+        log.append("next hour", now + 3600000);
+        log.append("later", now + 3600000 + 60000);
+        log.close();
+
+        /* Nothing lost: we kept on appending to the original file */
+        assertEquals(Files.readAllLines(file.toPath(), UTF_8), Arrays.asList("first hour", "next hour", "later"));
+        assertEquals(log.getWritten(), 3);
+        assertTrue(blocker.isDirectory());
+
+        new File(blocker, "blocker").delete();
+        blocker.delete();
+        file.delete();
+        directory.delete();
+    }
+
+    @Test
+    public void testCompress()
+    throws Exception {
+        final File file = File.createTempFile("access-", ".log");
+        final File compressed = new File(file.getPath() + ".gz");
+        compressed.deleteOnExit();
+        file.deleteOnExit();
+
+        final StringBuilder builder = new StringBuilder();
+        for (int x = 0; x < 10000; x ++) builder.append("line number ").append(x).append('\n');
+        Files.write(file.toPath(), builder.toString().getBytes(UTF_8));
+
+        assertTrue(AsyncAccessLog.compress(file));
+        assertFalse(file.exists());
+        assertFalse(new File(file.getPath() + ".gz.tmp").exists());
+        assertTrue(compressed.length() < builder.length() / 4);
+
+        try (InputStream input = new GZIPInputStream(new FileInputStream(compressed))) {
+            final ByteArrayOutputStream output = new ByteArrayOutputStream();
+            final byte[] buffer = new byte[4096];
+            int read;
+            while ((read = input.read(buffer)) >= 0) output.write(buffer, 0, read);
+            assertEquals(new String(output.toByteArray(), UTF_8), builder.toString());
+        }
+
+        /* Missing files are not a problem */
+        assertFalse(AsyncAccessLog.compress(file));
+    }
+
+    @Test
+    public void testFormats() {
+        final Entry entry = entry();
+        final Dates dates = new Dates(TimeZone.getTimeZone("UTC"));
+        final AccessLogLine line = new AccessLogLine(8);
+
+        Format.COMMON.format(entry, line, dates, null);
+        assertEquals(line.toString(), "127.0.0.1 - - [10/Oct/2014:13:55:36 +0000] "
+                                    + "\"GET /caf\u00e9.html?a=\\\"b\\\" HTTP/1.1\" 200 1234");
+
+        entry.length = 0;
+        Format.COMBINED.format(entry, line.reset(), dates, null);
+        assertEquals(line.toString(), "127.0.0.1 - - [10/Oct/2014:13:55:36 +0000] "
+                                    + "\"GET /caf\u00e9.html?a=\\\"b\\\" HTTP/1.1\" 200 - "
+                                    + "\"-\" \"Agent\\x09Smith \ud83d\ude00\"");
+    }
+
+    @Test
+    public void testJson() {
+        final Entry entry = entry();
+        final Dates dates = new Dates(TimeZone.getTimeZone("GMT-07:30"));
+        final AccessLogLine line = new AccessLogLine(8);
+
+        Format.JSON.format(entry, line, dates, Field.values());
+        assertEquals(line.toString(), "{\"timestamp\":\"2014-10-10T06:25:36.007-07:30\","
+                                    + "\"method\":\"GET\",\"uri\":\"/caf\u00e9.html\",\"query\":\"a=\\\"b\\\"\","
+                                    + "\"protocol\":\"HTTP/1.1\",\"status\":200,\"bytes\":1234,\"duration_us\":1500,"
+                                    + "\"remote_address\":\"127.0.0.1\",\"remote_user\":null,\"referer\":null,"
+                                    + "\"user_agent\":\"Agent\\tSmith \ud83d\ude00\",\"listener\":\"http\",\"handler\":\"/\"}");
+
+        entry.length = -1;
+        entry.duration = -1;
+        Format.JSON.format(entry, line.reset(), dates, new Field[] { Field.STATUS, Field.BYTES, Field.DURATION_US });
+        assertEquals(line.toString(), "{\"status\":200,\"bytes\":null,\"duration_us\":null}");
+
+        assertEquals(Field.parse(" Remote_Address "), Field.REMOTE_ADDRESS);
+    }
+
+    @Test
+    public void testClosedOnShutdown()
+    throws Exception {
+        final List<String> lines = request(new ConfigurationsBuilder()
+                                                 .put("access_log.queue_size", 16));
+        assertEquals(lines.size(), 1, lines.toString());
+        assertTrue(lines.get(0).contains("\"GET /missing HTTP/1.1\" 404 "), lines.get(0));
+    }
+
+    @Test
+    public void testFieldOrder()
+    throws Exception {
+        /* Not in declaration order, where the timestamp comes first */
+        final List<String> lines = request(new ConfigurationsBuilder()
+                                                 .put("access_log.format", "json")
+                                                 .put("access_log.fields", "status, method,timestamp"));
+        assertEquals(lines.size(), 1, lines.toString());
+        assertTrue(lines.get(0).matches("\\{\"status\":404,\"method\":\"GET\",\"timestamp\":\"[^\"]+\"\\}"), lines.get(0));
+    }
+
+    @Test(expectedExceptions = IllegalStateException.class,
+          expectedExceptionsMessageRegExp = "Duplicate value \"status\" for parameter \"fields\"")
+    public void testDuplicateField()
+    throws Exception {
+        final File file = File.createTempFile("access", ".log");
+        file.deleteOnExit();
+
+        new AccessLogProvider(new ConfigurationsBuilder()
+                                    .put("file", file)
+                                    .put("format", "json")
+                                    .put("fields", "status,timestamp,status")
+                                    .build());
+    }
+
+    /* Request something from a server logging asynchronously, and stop it */
+    private List<String> request(ConfigurationsBuilder configurations)
+    throws Exception {
+        final File file = File.createTempFile("access", ".log");
+        file.deleteOnExit();
+
+        final int port = NET.serverPort();
+        final HttpServer server = new ServerStarter().start((builder) -> {
+            builder.configure(configurations.put("access_log.file", file)
+                                            .put("listener.host", "127.0.0.1")
+                                            .put("listener.port", port)
+                                            .build());
+        }).server();
+
+        try {
+            final HttpURLConnection connection = (HttpURLConnection) new URL("http://127.0.0.1:" + port + "/missing").openConnection();
+            connection.setRequestProperty("Connection", "close");
+            assertEquals(connection.getResponseCode(), 404);
+
+            /* Requests are logged when complete, after the client gets its response */
+            final long deadline = System.currentTimeMillis() + 5000;
+            while ((file.length() == 0) && (System.currentTimeMillis() < deadline)) Thread.sleep(10);
+        } finally {
+            server.shutdownNow();
+        }
+
+        /* Closed with the server, no need to wait for it */
+        assertFalse(writerRunning("AsyncAccessLog writer [" + file.getName() + "]"), "Access log writer still running");
+        return Files.readAllLines(file.toPath(), UTF_8);
+    }
+
+    private static boolean writerRunning(String name) {
+        for (Thread thread: Thread.getAllStackTraces().keySet())
+            if (name.equals(thread.getName())) return true;
+        return false;
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void testUnknownField() {
+        Field.parse("cookie");
+    }
+
+    private Entry entry() {
+        final Entry entry = new Entry(0);
+        entry.timestamp = 1412949336007L;
+        entry.duration = 1500000;
+        entry.remoteAddress = "127.0.0.1";
+        entry.method = "GET";
+        entry.uri = "/caf\u00e9.html";
+        entry.query = "a=\"b\"";
+        entry.protocol = "HTTP/1.1";
+        entry.status = 200;
+        entry.length = 1234;
+        entry.userAgent = "Agent\tSmith \ud83d\ude00";
+        entry.listener = "http";
+        entry.handler = "/";
+        return entry;
+    }
+}
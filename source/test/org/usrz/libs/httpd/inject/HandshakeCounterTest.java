@@ -0,0 +1,152 @@
+/* ========================================================================== *
+ * Copyright 2014 USRZ.com and Pier Paolo Fumagalli                           *
+ * -------------------------------------------------------------------------- *
+ * Licensed under the Apache License, Version 2.0 (the "License");            *
+ * you may not use this file except in compliance with the License.           *
+ * You may obtain a copy of the License at                                    *
+ *                                                                            *
+ *  http://www.apache.org/licenses/LICENSE-2.0                                *
+ *                                                                            *
+ * Unless required by applicable law or agreed to in writing, software        *
+ * distributed under the License is distributed on an "AS IS" BASIS,          *
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.   *
+ * See the License for the specific language governing permissions and        *
+ * limitations under the License.                                             *
+ * ========================================================================== */
+package org.usrz.libs.httpd.inject;
+
+import static java.nio.charset.StandardCharsets.US_ASCII;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.KeyStore;
+import java.util.Arrays;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.TrustManagerFactory;
+
+import org.glassfish.grizzly.http.server.HttpHandler;
+import org.glassfish.grizzly.http.server.HttpServer;
+import org.glassfish.grizzly.http.server.NetworkListener;
+import org.glassfish.grizzly.http.server.Request;
+import org.glassfish.grizzly.http.server.Response;
+import org.glassfish.grizzly.ssl.SSLEngineConfigurator;
+import org.testng.SkipException;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+import org.usrz.libs.configurations.Configurations;
+import org.usrz.libs.configurations.ConfigurationsBuilder;
+import org.usrz.libs.crypto.utils.KeyStoreBuilder;
+import org.usrz.libs.testing.AbstractTest;
+import org.usrz.libs.testing.NET;
+
+public class HandshakeCounterTest extends AbstractTest {
+
+    private final HandshakeCounter handshakes = new HandshakeCounter();
+    private TrustManagerFactory trustManagers;
+    private HttpServer server;
+    private int port;
+
+    @BeforeClass
+    public void startServer()
+    throws Exception {
+        final File file = new File(getClass().getResource("/org/usrz/libs/httpd/certificate1.pem").toURI());
+        final Configurations keyStoreConfig = new ConfigurationsBuilder()
+                .put("file", file)
+                .put("password", "qwer") // password "qwer"
+                .build();
+
+        /* Our clients trust our own certificate */
+        final KeyStore keyStore = new KeyStoreBuilder().withConfiguration(keyStoreConfig).build();
+        trustManagers = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+        trustManagers.init(keyStore);
+
+        final SSLContext context = new SSLContextCache().get(keyStoreConfig, new ConfigurationsBuilder()
+                .put("cache_size", 100)
+                .put("timeout", 300)
+                .build());
+
+        port = NET.serverPort();
+        final NetworkListener listener = new NetworkListener("test", "127.0.0.1", port);
+        listener.setSSLEngineConfig(new SSLEngineConfigurator(context, false, false, false));
+        listener.setSecure(true);
+        listener.registerAddOn(handshakes);
+
+        server = new HttpServer();
+        server.addListener(listener);
+        server.getServerConfiguration().addHttpHandler(new HttpHandler() {
+            @Override
+            public void service(Request request, Response response)
+            throws Exception {
+                response.getWriter().write("hello");
+            }
+        }, "/");
+        server.start();
+    }
+
+    @AfterClass(alwaysRun = true)
+    public void stopServer() {
+        if (server != null) server.shutdownNow();
+    }
+
+    @DataProvider(name = "protocols")
+    public Object[][] protocols() {
+        return new Object[][] { { "TLSv1.2" }, { "TLSv1.3" } };
+    }
+
+    /* ====================================================================== */
+
+    @Test(dataProvider = "protocols")
+    public void testResumption(String protocol)
+    throws Exception {
+        /* A new client context, with an empty session cache */
+        final SSLContext client = SSLContext.getInstance("TLS");
+        client.init(null, trustManagers.getTrustManagers(), null);
+        if (! Arrays.asList(client.getSupportedSSLParameters().getProtocols()).contains(protocol))
+            throw new SkipException(protocol + " not supported by this JVM");
+
+        final long full = handshakes.getFullHandshakes();
+        final long resumed = handshakes.getResumedHandshakes();
+
+        /* The first connection gets a new session... */
+        exchange(client, protocol);
+        assertEquals(handshakes.getFullHandshakes(), full + 1);
+        assertEquals(handshakes.getResumedHandshakes(), resumed);
+
+        /* ...and the following ones resume it */
+        exchange(client, protocol);
+        exchange(client, protocol);
+        assertEquals(handshakes.getFullHandshakes(), full + 1);
+        assertEquals(handshakes.getResumedHandshakes(), resumed + 2);
+    }
+
+    /* ====================================================================== */
+
+    /* Send a request, and read the response until the server closes */
+    private void exchange(SSLContext client, String protocol)
+    throws Exception {
+        try (SSLSocket socket = (SSLSocket) client.getSocketFactory().createSocket("127.0.0.1", port)) {
+            socket.setEnabledProtocols(new String[] { protocol });
+            socket.setSoTimeout(5000);
+
+            final OutputStream output = socket.getOutputStream();
+            output.write("GET / HTTP/1.1\r\nHost: localhost\r\nConnection: close\r\n\r\n".getBytes(US_ASCII));
+            output.flush();
+
+            /* Reading everything also gets us TLS 1.3 session tickets */
+            final InputStream input = socket.getInputStream();
+            final ByteArrayOutputStream response = new ByteArrayOutputStream();
+            final byte[] buffer = new byte[4096];
+            int read;
+            while ((read = input.read(buffer)) >= 0) response.write(buffer, 0, read);
+
+            assertEquals(socket.getSession().getProtocol(), protocol);
+            assertTrue(new String(response.toByteArray(), US_ASCII).startsWith("HTTP/1.1 200 "));
+        }
+    }
+}
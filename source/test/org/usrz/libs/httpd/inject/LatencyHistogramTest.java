@@ -0,0 +1,64 @@
+/* ========================================================================== *
+ * Copyright 2014 USRZ.com and Pier Paolo Fumagalli                           *
+ * -------------------------------------------------------------------------- *
+ * Licensed under the Apache License, Version 2.0 (the "License");            *
+ * you may not use this file except in compliance with the License.           *
+ * You may obtain a copy of the License at                                    *
+ *                                                                            *
+ *  http://www.apache.org/licenses/LICENSE-2.0                                *
+ *                                                                            *
+ * Unless required by applicable law or agreed to in writing, software        *
+ * distributed under the License is distributed on an "AS IS" BASIS,          *
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.   *
+ * See the License for the specific language governing permissions and        *
+ * limitations under the License.                                             *
+ * ========================================================================== */
+package org.usrz.libs.httpd.inject;
+
+import org.testng.annotations.Test;
+import org.usrz.libs.testing.AbstractTest;
+
+public class LatencyHistogramTest extends AbstractTest {
+
+    @Test
+    public void testBuckets() {
+        /* Every value falls in a bucket whose bounds contain it */
+        int previous = 0;
+        for (long micros = 0; micros < 1L << 40; micros += (micros >> 3) + 1) {
+            final int bucket = LatencyHistogram.bucket(micros);
+            assertTrue(bucket >= previous, "Bucket for " + micros + " going backwards");
+            if (micros < 1L << 38) {
+                assertTrue(LatencyHistogram.highest(bucket) >= micros, "Bucket " + bucket + " too low for " + micros);
+                if (bucket > 0) assertTrue(LatencyHistogram.highest(bucket - 1) < micros, "Bucket " + bucket + " too high for " + micros);
+            }
+            previous = bucket;
+        }
+        assertEquals(LatencyHistogram.bucket(Long.MAX_VALUE), previous);
+    }
+
+    @Test
+    public void testQuantiles() {
+        final LatencyHistogram histogram = new LatencyHistogram();
+        assertEquals(histogram.getQuantile(0.99), 0);
+
+        for (int x = 1; x <= 100000; x ++) histogram.record(x);
+        histogram.record(-1);
+
+        assertEquals(histogram.getCount(), 100001);
+        assertEquals(histogram.getSum(), 5000050000L);
+        assertEquals(histogram.getQuantile(0), 0);
+        assertWithin(histogram.getQuantile(0.5), 50000);
+        assertWithin(histogram.getQuantile(0.99), 99000);
+        assertWithin(histogram.getQuantile(0.999), 99900);
+        assertWithin(histogram.getQuantile(1), 100000);
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void testInvalidQuantile() {
+        new LatencyHistogram().getQuantile(1.5);
+    }
+
+    private void assertWithin(long actual, long expected) {
+        assertTrue((actual >= expected) && (actual <= expected + expected / 16), "Value " + actual + " not close to " + expected);
+    }
+}
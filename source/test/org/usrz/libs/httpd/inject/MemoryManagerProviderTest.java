@@ -0,0 +1,90 @@
+/* ========================================================================== *
+ * Copyright 2014 USRZ.com and Pier Paolo Fumagalli                           *
+ * -------------------------------------------------------------------------- *
+ * Licensed under the Apache License, Version 2.0 (the "License");            *
+ * you may not use this file except in compliance with the License.           *
+ * You may obtain a copy of the License at                                    *
+ *                                                                            *
+ *  http://www.apache.org/licenses/LICENSE-2.0                                *
+ *                                                                            *
+ * Unless required by applicable law or agreed to in writing, software        *
+ * distributed under the License is distributed on an "AS IS" BASIS,          *
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.   *
+ * See the License for the specific language governing permissions and        *
+ * limitations under the License.                                             *
+ * ========================================================================== */
+package org.usrz.libs.httpd.inject;
+
+import org.glassfish.grizzly.Buffer;
+import org.glassfish.grizzly.memory.ByteBufferManager;
+import org.glassfish.grizzly.memory.HeapMemoryManager;
+import org.glassfish.grizzly.memory.MemoryManager;
+import org.glassfish.grizzly.memory.PooledMemoryManager;
+import org.testng.annotations.Test;
+import org.usrz.libs.configurations.Configurations;
+import org.usrz.libs.configurations.ConfigurationsBuilder;
+import org.usrz.libs.testing.AbstractTest;
+
+public class MemoryManagerProviderTest extends AbstractTest {
+
+    private static final Configurations EMPTY = new ConfigurationsBuilder().build();
+
+    @Test
+    public void testTypes() {
+        assertSame(MemoryManagerProvider.create("default", EMPTY), MemoryManager.DEFAULT_MEMORY_MANAGER);
+        assertTrue(MemoryManagerProvider.create("heap", EMPTY) instanceof HeapMemoryManager);
+
+        final MemoryManager<?> direct = MemoryManagerProvider.create("Direct", EMPTY);
+        assertTrue(direct instanceof ByteBufferManager);
+        assertTrue(direct.willAllocateDirect(1024));
+
+        final MemoryManager<?> pooled = MemoryManagerProvider.create("pooled", new ConfigurationsBuilder()
+                .put("base_buffer_size", 1024)
+                .put("pools", 2)
+                .put("heap_fraction", 0.01)
+                .put("direct", true)
+                .build());
+        assertTrue(pooled instanceof PooledMemoryManager);
+        assertTrue(pooled.allocate(1024).isDirect());
+    }
+
+    @Test
+    public void testStatistics() {
+        final MemoryStatistics statistics = new MemoryStatistics();
+        final MemoryManager<Buffer> pooled = new PooledMemoryManager(1024, 1, 2, 1, 0.01f, 0f, false);
+        pooled.getMonitoringConfig().addProbes(statistics);
+
+        /* Nothing preallocated, the first buffer is new, the second reused */
+        pooled.release(pooled.allocate(1024));
+        pooled.release(pooled.allocate(1024));
+        assertEquals(statistics.getAllocatedBuffers(), 1);
+        assertEquals(statistics.getPooledBuffers(), 1);
+        assertEquals(statistics.getReleasedBuffers(), 2);
+        assertEquals(statistics.getReleasedBytes(), 2048);
+        assertEquals(statistics.getPoolHitRatio(), 0.5, 0.0);
+    }
+
+    @Test
+    public void testProviderStatistics() {
+        final int probes = MemoryManager.DEFAULT_MEMORY_MANAGER.getMonitoringConfig().getProbes().length;
+
+        /* The JVM-wide default manager is never instrumented */
+        final MemoryManagerProvider defaultProvider = new MemoryManagerProvider();
+        assertSame(defaultProvider.get(EMPTY), MemoryManager.DEFAULT_MEMORY_MANAGER);
+        assertNull(defaultProvider.getStatistics());
+        assertEquals(MemoryManager.DEFAULT_MEMORY_MANAGER.getMonitoringConfig().getProbes().length, probes);
+
+        /* Our own managers are */
+        final MemoryManagerProvider heapProvider = new MemoryManagerProvider();
+        assertNull(heapProvider.getStatistics());
+        final MemoryManager<?> heap = heapProvider.get(new ConfigurationsBuilder().put("memory.type", "heap").build());
+        assertNotNull(heapProvider.getStatistics());
+        assertEquals(heap.getMonitoringConfig().getProbes().length, 1);
+        assertSame(heapProvider.get(EMPTY), heap);
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void testInvalidType() {
+        MemoryManagerProvider.create("offheap", EMPTY);
+    }
+}
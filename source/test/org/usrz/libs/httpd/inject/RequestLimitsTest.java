@@ -0,0 +1,160 @@
+/* ========================================================================== *
+ * Copyright 2014 USRZ.com and Pier Paolo Fumagalli                           *
+ * -------------------------------------------------------------------------- *
+ * Licensed under the Apache License, Version 2.0 (the "License");            *
+ * you may not use this file except in compliance with the License.           *
+ * You may obtain a copy of the License at                                    *
+ *                                                                            *
+ *  http://www.apache.org/licenses/LICENSE-2.0                                *
+ *                                                                            *
+ * Unless required by applicable law or agreed to in writing, software        *
+ * distributed under the License is distributed on an "AS IS" BASIS,          *
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.   *
+ * See the License for the specific language governing permissions and        *
+ * limitations under the License.                                             *
+ * ========================================================================== */
+package org.usrz.libs.httpd.inject;
+
+import static java.nio.charset.StandardCharsets.US_ASCII;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.Arrays;
+
+import org.glassfish.grizzly.http.server.HttpHandler;
+import org.glassfish.grizzly.http.server.HttpServer;
+import org.glassfish.grizzly.http.server.NetworkListener;
+import org.glassfish.grizzly.http.server.Request;
+import org.glassfish.grizzly.http.server.Response;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+import org.usrz.libs.testing.AbstractTest;
+import org.usrz.libs.testing.NET;
+
+public class RequestLimitsTest extends AbstractTest {
+
+    private final RequestLimits limits = new RequestLimits(1024);
+    private HttpServer server;
+    private int port;
+
+    @BeforeClass
+    public void startServer()
+    throws Exception {
+        port = NET.serverPort();
+        final NetworkListener listener = new NetworkListener("test", "127.0.0.1", port);
+        listener.setMaxHttpHeaderSize(1024);
+        listener.registerAddOn(limits);
+
+        server = new HttpServer();
+        server.addListener(listener);
+        server.getServerConfiguration().addHttpHandler(new HttpHandler() {
+            @Override
+            public void service(Request request, Response response)
+            throws Exception {
+                final InputStream input = request.getInputStream();
+                long length = 0;
+                while (input.read() >= 0) length ++;
+                response.getWriter().write("read " + length);
+            }
+        }, "/");
+        server.start();
+    }
+
+    @AfterClass(alwaysRun = true)
+    public void stopServer() {
+        if (server != null) server.shutdownNow();
+    }
+
+    /* ====================================================================== */
+
+    @Test
+    public void testWithinLimits()
+    throws Exception {
+        final long bodies = limits.getRejectedBodies();
+        final long headers = limits.getRejectedHeaders();
+
+        final String response = exchange("POST /small HTTP/1.1\r\nHost: localhost\r\n"
+                                       + "Content-Length: 10\r\nConnection: close\r\n\r\n0123456789");
+        assertTrue(response.startsWith("HTTP/1.1 200 "), response);
+        assertTrue(response.endsWith("read 10"), response);
+
+        assertEquals(limits.getRejectedBodies(), bodies);
+        assertEquals(limits.getRejectedHeaders(), headers);
+    }
+
+    @Test
+    public void testDeclaredBody()
+    throws Exception {
+        final long bodies = limits.getRejectedBodies();
+
+        /* Only send the headers: the server must not wait for the body */
+        final String response = exchange("POST /declared HTTP/1.1\r\nHost: localhost\r\n"
+                                       + "Content-Length: 4096\r\n\r\n");
+        assertTrue(response.startsWith("HTTP/1.1 413 "), response);
+        assertEquals(limits.getRejectedBodies(), bodies + 1);
+    }
+
+    @Test
+    public void testChunkedBody()
+    throws Exception {
+        final long bodies = limits.getRejectedBodies();
+
+        final char[] chunk = new char[512];
+        Arrays.fill(chunk, 'x');
+        final StringBuilder request = new StringBuilder("POST /chunked HTTP/1.1\r\nHost: localhost\r\n"
+                                                      + "Transfer-Encoding: chunked\r\n\r\n");
+        for (int x = 0; x < 4; x ++) request.append("200\r\n").append(chunk).append("\r\n");
+
+        final String response = exchange(request.toString());
+        assertTrue(response.startsWith("HTTP/1.1 413 "), response);
+        assertEquals(limits.getRejectedBodies(), bodies + 1);
+    }
+
+    @Test
+    public void testHeaderTooLarge()
+    throws Exception {
+        final long headers = limits.getRejectedHeaders();
+
+        final char[] value = new char[2048];
+        Arrays.fill(value, 'x');
+        final String response = exchange("GET /header HTTP/1.1\r\nHost: localhost\r\n"
+                                       + "X-Large: " + new String(value) + "\r\n\r\n");
+        assertTrue(response.startsWith("HTTP/1.1 431 "), response);
+        assertEquals(limits.getRejectedHeaders(), headers + 1);
+    }
+
+    @Test
+    public void testRequestLineTooLarge()
+    throws Exception {
+        final long headers = limits.getRejectedHeaders();
+
+        final char[] path = new char[2048];
+        Arrays.fill(path, 'x');
+        final String response = exchange("GET /" + new String(path) + " HTTP/1.1\r\nHost: localhost\r\n\r\n");
+        assertTrue(response.startsWith("HTTP/1.1 414 "), response);
+        assertEquals(limits.getRejectedHeaders(), headers + 1);
+    }
+
+    /* ====================================================================== */
+
+    /* Send a request, and read the response until the server closes */
+    private String exchange(String request)
+    throws Exception {
+        try (Socket socket = new Socket("127.0.0.1", port)) {
+            socket.setSoTimeout(5000);
+            final OutputStream output = socket.getOutputStream();
+            output.write(request.getBytes(US_ASCII));
+            output.flush();
+
+            final InputStream input = socket.getInputStream();
+            final ByteArrayOutputStream response = new ByteArrayOutputStream();
+            final byte[] buffer = new byte[4096];
+            int read;
+            while ((read = input.read(buffer)) >= 0) response.write(buffer, 0, read);
+            return new String(response.toByteArray(), US_ASCII);
+        }
+    }
+}
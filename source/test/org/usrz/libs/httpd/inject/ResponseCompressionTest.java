@@ -0,0 +1,242 @@
+/* ========================================================================== *
+ * Copyright 2014 USRZ.com and Pier Paolo Fumagalli                           *
+ * -------------------------------------------------------------------------- *
+ * Licensed under the Apache License, Version 2.0 (the "License");            *
+ * you may not use this file except in compliance with the License.           *
+ * You may obtain a copy of the License at                                    *
+ *                                                                            *
+ *  http://www.apache.org/licenses/LICENSE-2.0                                *
+ *                                                                            *
+ * Unless required by applicable law or agreed to in writing, software        *
+ * distributed under the License is distributed on an "AS IS" BASIS,          *
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.   *
+ * See the License for the specific language governing permissions and        *
+ * limitations under the License.                                             *
+ * ========================================================================== */
+package org.usrz.libs.httpd.inject;
+
+import static java.nio.charset.StandardCharsets.US_ASCII;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.glassfish.grizzly.http.CompressionConfig;
+import org.glassfish.grizzly.http.CompressionConfig.CompressionMode;
+import org.glassfish.grizzly.http.server.HttpHandler;
+import org.glassfish.grizzly.http.server.HttpServer;
+import org.glassfish.grizzly.http.server.NetworkListener;
+import org.glassfish.grizzly.http.server.Request;
+import org.glassfish.grizzly.http.server.Response;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+import org.usrz.libs.testing.AbstractTest;
+import org.usrz.libs.testing.NET;
+
+public class ResponseCompressionTest extends AbstractTest {
+
+    private final byte[] body = body();
+    private HttpServer server;
+    private int fastPort;
+    private int bestPort;
+
+    @BeforeClass
+    public void startServer()
+    throws Exception {
+        fastPort = NET.serverPort();
+        bestPort = NET.serverPort();
+
+        server = new HttpServer();
+        server.addListener(listener("fast", fastPort, 1));
+        server.addListener(listener("best", bestPort, 9));
+        server.getServerConfiguration().addHttpHandler(new HttpHandler() {
+            @Override
+            public void service(Request request, Response response)
+            throws Exception {
+                response.setContentType("text/plain");
+                switch (request.getRequestURI()) {
+                    case "/partial":
+                        response.setStatus(206);
+                        response.setHeader("Content-Range", "bytes 0-" + (body.length - 1) + "/" + (body.length * 2));
+                        break;
+                    case "/range":
+                        response.setHeader("Content-Range", "bytes 0-" + (body.length - 1) + "/" + body.length);
+                        break;
+                    case "/encoded":
+                        response.setHeader("Content-Encoding", "x-test");
+                        break;
+                }
+                response.getOutputStream().write(body);
+            }
+        }, "/");
+        server.start();
+    }
+
+    @AfterClass(alwaysRun = true)
+    public void stopServer() {
+        if (server != null) server.shutdownNow();
+    }
+
+    /* ====================================================================== */
+
+    @Test
+    public void testLevel()
+    throws Exception {
+        final Map<String, String> fastHeaders = new HashMap<>();
+        final byte[] fast = exchange(fastPort, "/", null, fastHeaders);
+        final Map<String, String> bestHeaders = new HashMap<>();
+        final byte[] best = exchange(bestPort, "/", null, bestHeaders);
+
+        assertEquals(fastHeaders.get("content-encoding"), "gzip");
+        assertEquals(bestHeaders.get("content-encoding"), "gzip");
+        assertEquals(gunzip(fast), body);
+        assertEquals(gunzip(best), body);
+
+        /* Deflated at the configured levels, not at the default one */
+        assertEquals(fast.length, gzip(1).length, "Level 1");
+        assertEquals(best.length, gzip(9).length, "Level 9");
+        assertNotEquals(fast.length, gzip(Deflater.DEFAULT_COMPRESSION).length, "Default level");
+    }
+
+    @Test
+    public void testPartial()
+    throws Exception {
+        final Map<String, String> headers = new HashMap<>();
+        assertEquals(exchange(fastPort, "/partial", null, headers), body);
+        assertEquals(headers.get("status"), "206");
+        assertNull(headers.get("content-encoding"));
+    }
+
+    @Test
+    public void testContentRange()
+    throws Exception {
+        final Map<String, String> headers = new HashMap<>();
+        assertEquals(exchange(fastPort, "/range", null, headers), body);
+        assertEquals(headers.get("status"), "200");
+        assertNull(headers.get("content-encoding"));
+    }
+
+    @Test
+    public void testContentEncoding()
+    throws Exception {
+        final Map<String, String> headers = new HashMap<>();
+        assertEquals(exchange(fastPort, "/encoded", null, headers), body);
+        assertEquals(headers.get("content-encoding"), "x-test");
+    }
+
+    @Test
+    public void testExcludedUserAgent()
+    throws Exception {
+        final Map<String, String> headers = new HashMap<>();
+        assertEquals(exchange(fastPort, "/", "Mozilla/5.0 (compatible; Excluded/1.0)", headers), body);
+        assertNull(headers.get("content-encoding"));
+
+        /* Anything else still gets compressed */
+        headers.clear();
+        assertEquals(gunzip(exchange(fastPort, "/", "Mozilla/5.0 (compatible; Other/1.0)", headers)), body);
+        assertEquals(headers.get("content-encoding"), "gzip");
+    }
+
+    /* ====================================================================== */
+
+    private static NetworkListener listener(String name, int port, int level) {
+        final NetworkListener listener = new NetworkListener(name, "127.0.0.1", port);
+        final CompressionConfig config = listener.getCompressionConfig();
+        config.setCompressionMode(CompressionMode.ON);
+        config.setCompressionMinSize(1024);
+        config.setCompressableMimeTypes("text/plain");
+        listener.registerAddOn(new ResponseCompression(level, Collections.singleton("Excluded/")));
+        return listener;
+    }
+
+    /* Some compressible text, compressing differently at different levels */
+    private static byte[] body() {
+        final String[] words = { "alpha", "bravo", "charlie", "delta", "echo", "foxtrot", "golf", "hotel",
+                                 "india", "juliett", "kilo", "lima", "mike", "november", "oscar", "papa" };
+        final Random random = new Random(1234);
+        final StringBuilder builder = new StringBuilder();
+        while (builder.length() < 65536) builder.append(words[random.nextInt(words.length)])
+                                                .append(random.nextInt(100))
+                                                .append(random.nextInt(8) == 0 ? '\n' : ' ');
+        return builder.toString().getBytes(US_ASCII);
+    }
+
+    private byte[] gzip(int level)
+    throws Exception {
+        final ByteArrayOutputStream output = new ByteArrayOutputStream();
+        try (GZIPOutputStream gzip = new GZIPOutputStream(output) {{ def.setLevel(level); }}) {
+            gzip.write(body);
+        }
+        return output.toByteArray();
+    }
+
+    private static byte[] gunzip(byte[] compressed)
+    throws Exception {
+        final ByteArrayOutputStream output = new ByteArrayOutputStream();
+        try (InputStream input = new GZIPInputStream(new ByteArrayInputStream(compressed))) {
+            final byte[] buffer = new byte[4096];
+            int read;
+            while ((read = input.read(buffer)) >= 0) output.write(buffer, 0, read);
+        }
+        return output.toByteArray();
+    }
+
+    /*
+     * Send a request accepting GZIP, and read the response until the server
+     * closes: lower-cased headers (and the status) go in the map, and the
+     * (de-chunked) body is returned.
+     */
+    private static byte[] exchange(int port, String path, String userAgent, Map<String, String> headers)
+    throws Exception {
+        final byte[] response;
+        try (Socket socket = new Socket("127.0.0.1", port)) {
+            socket.setSoTimeout(5000);
+            final OutputStream output = socket.getOutputStream();
+            output.write(("GET " + path + " HTTP/1.1\r\nHost: localhost\r\nAccept-Encoding: gzip\r\n"
+                        + (userAgent == null ? "" : "User-Agent: " + userAgent + "\r\n")
+                        + "Connection: close\r\n\r\n").getBytes(US_ASCII));
+            output.flush();
+
+            final InputStream input = socket.getInputStream();
+            final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            final byte[] buffer = new byte[4096];
+            int read;
+            while ((read = input.read(buffer)) >= 0) bytes.write(buffer, 0, read);
+            response = bytes.toByteArray();
+        }
+
+        int position = 0;
+        while (! new String(response, position, 4, US_ASCII).equals("\r\n\r\n")) position ++;
+        final String[] lines = new String(response, 0, position, US_ASCII).split("\r\n");
+        headers.put("status", lines[0].split(" ")[1]);
+        for (int x = 1; x < lines.length; x ++) {
+            final int colon = lines[x].indexOf(':');
+            headers.put(lines[x].substring(0, colon).trim().toLowerCase(), lines[x].substring(colon + 1).trim());
+        }
+        position += 4;
+
+        if (! "chunked".equalsIgnoreCase(headers.get("transfer-encoding")))
+            return Arrays.copyOfRange(response, position, response.length);
+
+        final ByteArrayOutputStream body = new ByteArrayOutputStream();
+        while (true) {
+            int end = position;
+            while (response[end] != '\r') end ++;
+            final int size = Integer.parseInt(new String(response, position, end - position, US_ASCII).split(";")[0].trim(), 16);
+            if (size == 0) return body.toByteArray();
+            body.write(response, end + 2, size);
+            position = end + 2 + size + 2;
+        }
+    }
+}
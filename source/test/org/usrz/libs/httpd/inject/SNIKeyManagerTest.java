@@ -0,0 +1,126 @@
+/* ========================================================================== *
+ * Copyright 2014 USRZ.com and Pier Paolo Fumagalli                           *
+ * -------------------------------------------------------------------------- *
+ * Licensed under the Apache License, Version 2.0 (the "License");            *
+ * you may not use this file except in compliance with the License.           *
+ * You may obtain a copy of the License at                                    *
+ *                                                                            *
+ *  http://www.apache.org/licenses/LICENSE-2.0                                *
+ *                                                                            *
+ * Unless required by applicable law or agreed to in writing, software        *
+ * distributed under the License is distributed on an "AS IS" BASIS,          *
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.   *
+ * See the License for the specific language governing permissions and        *
+ * limitations under the License.                                             *
+ * ========================================================================== */
+package org.usrz.libs.httpd.inject;
+
+import java.io.File;
+import java.security.KeyStore;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import javax.net.ssl.KeyManager;
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.X509KeyManager;
+
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+import org.usrz.libs.configurations.Configurations;
+import org.usrz.libs.configurations.ConfigurationsBuilder;
+import org.usrz.libs.crypto.utils.KeyStoreBuilder;
+import org.usrz.libs.testing.AbstractTest;
+
+public class SNIKeyManagerTest extends AbstractTest {
+
+    private X509Certificate certificate1;
+    private X509Certificate certificate2;
+    private List<X509KeyManager> managers;
+    private SNIKeyManager manager;
+
+    @BeforeClass
+    public void setup()
+    throws Exception {
+        managers = new ArrayList<>();
+        certificate1 = load("certificate1.pem", "qwer", managers); // password "qwer"
+        certificate2 = load("certificate2.pem", "asdf", managers); // password "asdf"
+        manager = new SNIKeyManager(managers);
+    }
+
+    private X509Certificate load(String name, String password, List<X509KeyManager> managers)
+    throws Exception {
+        final File file = new File(getClass().getResource("/org/usrz/libs/httpd/" + name).toURI());
+        final Configurations configurations = new ConfigurationsBuilder()
+                .put("file", file)
+                .put("password", password)
+                .build();
+
+        final KeyStore keyStore = new KeyStoreBuilder().withConfiguration(configurations).build();
+        final KeyManagerFactory factory = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+        factory.init(keyStore, password.toCharArray());
+
+        X509Certificate certificate = null;
+        for (KeyManager keyManager: factory.getKeyManagers()) {
+            final X509KeyManager x509Manager = (X509KeyManager) keyManager;
+            certificate = x509Manager.getCertificateChain(x509Manager.getServerAliases("RSA", null)[0])[0];
+            managers.add(x509Manager);
+        }
+        return certificate;
+    }
+
+    @Test
+    public void testMatches() {
+        assertEquals(SNIKeyManager.matches("www.example.com", "www.example.com"), 2);
+        assertEquals(SNIKeyManager.matches("*.example.com", "www.example.com"), 1);
+        assertEquals(SNIKeyManager.matches("*.example.com", "example.com"), 0);
+        assertEquals(SNIKeyManager.matches("*.example.com", "a.www.example.com"), 0);
+        assertEquals(SNIKeyManager.matches("www.example.com", "ftp.example.com"), 0);
+    }
+
+    @Test
+    public void testNames() {
+        assertTrue(SNIKeyManager.names(certificate1).contains("testing self-signed certificate"));
+    }
+
+    @Test
+    public void testChoose() {
+        final String[] aliases = manager.getServerAliases("RSA", null);
+        assertEquals(aliases.length, 2);
+        assertNull(manager.getServerAliases("EC", null));
+
+        /* Without SNI, or for unknown hosts, the first certificate of the right type */
+        final String defaultAlias = manager.choose("RSA", (String) null);
+        assertEquals(manager.getCertificateChain(defaultAlias)[0], certificate1);
+        assertEquals(manager.choose("RSA", "www.example.com"), defaultAlias);
+        assertNull(manager.choose("EC", (String) null));
+
+        /* Both match, the first one wins */
+        assertEquals(manager.choose("RSA", "testing self-signed certificate"), defaultAlias);
+        assertEquals(manager.getCertificateChain(aliases[1])[0], certificate2);
+        assertNotNull(manager.getPrivateKey(aliases[1]));
+        assertNull(manager.getPrivateKey("unknown"));
+    }
+
+    @Test
+    public void testUpdate() {
+        final SNIKeyManager manager = new SNIKeyManager(managers);
+        final String oldAlias = manager.choose("RSA", (String) null);
+        assertEquals(manager.getCertificateChain(oldAlias)[0], certificate1);
+
+        /* New handshakes get the new certificates */
+        final List<X509KeyManager> reversed = new ArrayList<>(managers);
+        Collections.reverse(reversed);
+        manager.update(reversed);
+
+        final String newAlias = manager.choose("RSA", (String) null);
+        assertNotEquals(newAlias, oldAlias);
+        assertEquals(manager.getCertificateChain(newAlias)[0], certificate2);
+        assertEquals(manager.getServerAliases("RSA", null).length, 2);
+
+        /* Handshakes in progress can still use what they chose */
+        assertEquals(manager.getCertificateChain(oldAlias)[0], certificate1);
+        assertNotNull(manager.getPrivateKey(oldAlias));
+    }
+}
@@ -0,0 +1,205 @@
+/* ========================================================================== *
+ * Copyright 2014 USRZ.com and Pier Paolo Fumagalli                           *
+ * -------------------------------------------------------------------------- *
+ * Licensed under the Apache License, Version 2.0 (the "License");            *
+ * you may not use this file except in compliance with the License.           *
+ * You may obtain a copy of the License at                                    *
+ *                                                                            *
+ *  http://www.apache.org/licenses/LICENSE-2.0                                *
+ *                                                                            *
+ * Unless required by applicable law or agreed to in writing, software        *
+ * distributed under the License is distributed on an "AS IS" BASIS,          *
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.   *
+ * See the License for the specific language governing permissions and        *
+ * limitations under the License.                                             *
+ * ========================================================================== */
+package org.usrz.libs.httpd.inject;
+
+import java.io.File;
+import java.security.KeyStore;
+import java.security.cert.Certificate;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.TrustManagerFactory;
+
+import org.glassfish.grizzly.http.server.HttpServer;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.Test;
+import org.usrz.libs.configurations.Configurations;
+import org.usrz.libs.configurations.ConfigurationsBuilder;
+import org.usrz.libs.crypto.utils.KeyStoreBuilder;
+import org.usrz.libs.crypto.vault.SecureConfigurations;
+import org.usrz.libs.httpd.ServerStarter;
+import org.usrz.libs.testing.AbstractTest;
+import org.usrz.libs.testing.IO;
+import org.usrz.libs.testing.NET;
+
+public class SSLContextCacheTest extends AbstractTest {
+
+    private static final String SESSION_TICKETS = "jdk.tls.server.enableSessionTicketExtension";
+
+    @AfterMethod
+    public void clearSessionTickets() {
+        System.clearProperty(SESSION_TICKETS);
+    }
+
+    @Test
+    public void testSessionTickets() {
+        SSLContextCache.sessionTickets(false);
+        assertEquals(System.getProperty(SESSION_TICKETS), "false");
+
+        /* Configuring the same value twice is fine */
+        SSLContextCache.sessionTickets(false);
+        assertEquals(System.getProperty(SESSION_TICKETS), "false");
+
+        /* A conflicting value is not */
+        try {
+            SSLContextCache.sessionTickets(true);
+            fail("Conflicting session tickets accepted");
+        } catch (IllegalStateException exception) {
+            assertTrue(exception.getMessage().contains(SESSION_TICKETS), exception.getMessage());
+        }
+        assertEquals(System.getProperty(SESSION_TICKETS), "false");
+    }
+
+    @Test
+    public void testSharedContexts()
+    throws Exception {
+        final SSLContextCache cache = new SSLContextCache();
+        final Configurations sessions = new ConfigurationsBuilder().put("timeout", 300).build();
+
+        /* Equal configurations, even if different instances, share contexts */
+        final SSLContext context = cache.get(keyStore("certificate1.pem", "qwer"), sessions);
+        assertSame(cache.get(keyStore("certificate1.pem", "qwer"), sessions), context);
+        assertSame(cache.get(Collections.singletonList(keyStore("certificate1.pem", "qwer")), new ConfigurationsBuilder().put("timeout", 300).build()), context);
+
+        /* Anything different gets its own context */
+        assertNotSame(cache.get(keyStore("certificate1.pem", "qwer"), new ConfigurationsBuilder().put("timeout", 600).build()), context);
+        assertNotSame(cache.get(keyStore("certificate2.pem", "asdf"), sessions), context);
+        assertNotSame(cache.get(Arrays.asList(keyStore("certificate1.pem", "qwer"), keyStore("certificate2.pem", "asdf")), sessions), context);
+    }
+
+    private Configurations keyStore(String name, String password)
+    throws Exception {
+        return new ConfigurationsBuilder()
+                .put("file", new File(getClass().getResource("/org/usrz/libs/httpd/" + name).toURI()))
+                .put("password", password)
+                .build();
+    }
+
+    @Test
+    public void testRotation()
+    throws Exception {
+        final File keyStoreFile = IO.copyTempFile("certificate1.pem"); // password "qwer"
+        final Certificate oldCertificate = certificate("certificate1.pem", "qwer");
+        final Certificate newCertificate = certificate("certificate3.pem", "qwer"); // "certificate2.pem" with password "qwer"
+
+        /* Our clients trust both certificates */
+        final KeyStore trusted = KeyStore.getInstance(KeyStore.getDefaultType());
+        trusted.load(null, null);
+        trusted.setCertificateEntry("old", oldCertificate);
+        trusted.setCertificateEntry("new", newCertificate);
+        final TrustManagerFactory trustManagers = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+        trustManagers.init(trusted);
+
+        /* Configured like servers normally are, and closed once started */
+        final int port = NET.serverPort();
+        final SecureConfigurations configurations = new SecureConfigurations(new ConfigurationsBuilder()
+                .put("listener.host", "127.0.0.1")
+                .put("listener.port", port)
+                .put("listener.secure", true)
+                .put("listener.keystore.file", keyStoreFile)
+                .put("listener.keystore.password", "qwer")
+                .put("listener.keystore_reload_interval", 1)
+                .build());
+
+        final Set<Thread> before = reloaderThreads();
+        final HttpServer server = new ServerStarter().start((builder) -> builder.configure(configurations)).server();
+        configurations.close();
+
+        final Set<Thread> threads = reloaderThreads();
+        threads.removeAll(before);
+        try {
+            assertEquals(threads.size(), 1, threads.toString());
+            assertEquals(peerCertificate(port, trustManagers), oldCertificate);
+
+            /* Move the modification time ahead, coarse file systems would not see a change */
+            IO.copy("certificate3.pem", keyStoreFile);
+            keyStoreFile.setLastModified(keyStoreFile.lastModified() + 2000);
+
+            final long deadline = System.currentTimeMillis() + 10000;
+            while ((! newCertificate.equals(peerCertificate(port, trustManagers))) && (System.currentTimeMillis() < deadline)) Thread.sleep(100);
+            assertEquals(peerCertificate(port, trustManagers), newCertificate);
+        } finally {
+            server.shutdownNow();
+        }
+
+        /* Shutting down the server stops checking for changes */
+        for (Thread thread: threads) thread.join(5000);
+        for (Thread thread: threads) assertFalse(thread.isAlive(), "Keystore reloader still running");
+    }
+
+    @Test
+    public void testClose()
+    throws Exception {
+        final Set<Thread> before = reloaderThreads();
+        final SSLContextCache cache = new SSLContextCache();
+        cache.get(Collections.singletonList(keyStore("certificate1.pem", "qwer")), new ConfigurationsBuilder().build(), 60);
+
+        final Set<Thread> threads = reloaderThreads();
+        threads.removeAll(before);
+        assertEquals(threads.size(), 1, threads.toString());
+
+        cache.close();
+        for (Thread thread: threads) thread.join(5000);
+        for (Thread thread: threads) assertFalse(thread.isAlive(), "Keystore reloader still running");
+
+        try {
+            cache.get(keyStore("certificate1.pem", "qwer"), new ConfigurationsBuilder().build());
+            fail("Closed cache returned a context");
+        } catch (IllegalStateException exception) {
+            /* Good! */
+        }
+    }
+
+    /* A fresh client for every connection, no sessions to resume */
+    private static Certificate peerCertificate(int port, TrustManagerFactory trustManagers)
+    throws Exception {
+        final SSLContext client = SSLContext.getInstance("TLS");
+        client.init(null, trustManagers.getTrustManagers(), null);
+        try (SSLSocket socket = (SSLSocket) client.getSocketFactory().createSocket("127.0.0.1", port)) {
+            socket.setSoTimeout(5000);
+            socket.startHandshake();
+            return socket.getSession().getPeerCertificates()[0];
+        }
+    }
+
+    private Certificate certificate(String name, String password)
+    throws Exception {
+        final KeyStore keyStore = new KeyStoreBuilder().withConfiguration(keyStore(name, password)).build();
+        return keyStore.getCertificate(keyStore.aliases().nextElement());
+    }
+
+    private static Set<Thread> reloaderThreads() {
+        final Set<Thread> threads = new HashSet<>();
+        for (Thread thread: Thread.getAllStackTraces().keySet()) {
+            if ("SSLContextCache reloader".equals(thread.getName())) threads.add(thread);
+        }
+        return threads;
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class,
+          expectedExceptionsMessageRegExp = ".*server's \"session_tickets\".*")
+    public void testListenerSessionTickets()
+    throws Exception {
+        new SSLContextCache().configure(SSLContext.getInstance("TLS"), new ConfigurationsBuilder()
+                .put("timeout", 300)
+                .put("tickets", true)
+                .build());
+    }
+}
@@ -0,0 +1,224 @@
+/* ========================================================================== *
+ * Copyright 2014 USRZ.com and Pier Paolo Fumagalli                           *
+ * -------------------------------------------------------------------------- *
+ * Licensed under the Apache License, Version 2.0 (the "License");            *
+ * you may not use this file except in compliance with the License.           *
+ * You may obtain a copy of the License at                                    *
+ *                                                                            *
+ *  http://www.apache.org/licenses/LICENSE-2.0                                *
+ *                                                                            *
+ * Unless required by applicable law or agreed to in writing, software        *
+ * distributed under the License is distributed on an "AS IS" BASIS,          *
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.   *
+ * See the License for the specific language governing permissions and        *
+ * limitations under the License.                                             *
+ * ========================================================================== */
+package org.usrz.libs.httpd.inject;
+
+import static java.nio.charset.StandardCharsets.US_ASCII;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.net.HttpURLConnection;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.util.Arrays;
+import java.util.Collections;
+
+import javax.management.Attribute;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.RuntimeMBeanException;
+
+import org.glassfish.grizzly.http.server.HttpHandler;
+import org.glassfish.grizzly.http.server.HttpServer;
+import org.glassfish.grizzly.http.server.Request;
+import org.glassfish.grizzly.http.server.Response;
+import org.glassfish.grizzly.threadpool.GrizzlyExecutorService;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+import org.usrz.libs.configurations.ConfigurationsBuilder;
+import org.usrz.libs.httpd.ServerStarter;
+import org.usrz.libs.testing.AbstractTest;
+import org.usrz.libs.testing.NET;
+
+public class ServerMBeansTest extends AbstractTest {
+
+    private final MBeanServer mbeans = ManagementFactory.getPlatformMBeanServer();
+    private ServerStarter starter;
+    private int port;
+
+    @BeforeClass
+    public void startServer() {
+        port = NET.serverPort();
+        starter = new ServerStarter().start((builder) -> {
+            builder.configure(new ConfigurationsBuilder()
+                                    .put("name", "mbeans")
+                                    .put("jmx", true)
+                                    .put("listener.name", "test")
+                                    .put("listener.host", "127.0.0.1")
+                                    .put("listener.port", port)
+                                    .put("listener.worker_pool.core_size", 1)
+                                    .put("listener.worker_pool.max_size", 2)
+                                    .build());
+            builder.addHandler("/hello", new HttpHandler() {
+                @Override
+                public void service(Request request, Response response)
+                throws Exception {
+                    response.getWriter().write("hello");
+                }
+            });
+        });
+    }
+
+    @AfterClass(alwaysRun = true)
+    public void stopServer() {
+        if (starter != null) starter.stop();
+    }
+
+    /* ====================================================================== */
+
+    @Test
+    public void testCounters()
+    throws Exception {
+        get();
+        get();
+
+        final ObjectName server = name("Server", "server");
+        final ObjectName listener = name("Listener", "name", "test");
+        final ObjectName handler = name("Handler", "path", "/hello/*");
+
+        assertTrue(Arrays.asList((String[]) mbeans.getAttribute(server, "HandlerPaths")).contains("/hello/*"));
+        assertEquals(mbeans.getAttribute(listener, "Port"), port);
+        assertTrue((Long) mbeans.getAttribute(listener, "AcceptedConnections") > 0);
+        assertTrue((Long) mbeans.getAttribute(listener, "BytesWritten") > 0);
+        /* Requests are counted when complete, after clients get their responses */
+        final long deadline = System.currentTimeMillis() + 5000;
+        while (((Long) mbeans.getAttribute(handler, "Requests") < 2) && (System.currentTimeMillis() < deadline)) Thread.sleep(10);
+        assertTrue((Long) mbeans.getAttribute(handler, "Requests") >= 2);
+        assertEquals(mbeans.getAttribute(handler, "FileCacheHits"), -1L);
+    }
+
+    @Test
+    public void testWorkerPool()
+    throws Exception {
+        final ObjectName pool = name("WorkerPool", "listener", "test");
+        assertEquals(mbeans.getAttribute(pool, "Type"), "grizzly");
+
+        mbeans.setAttribute(pool, new Attribute("MaxPoolSize", 4));
+        mbeans.setAttribute(pool, new Attribute("CorePoolSize", 3));
+        assertEquals(mbeans.getAttribute(pool, "CorePoolSize"), 3);
+        assertEquals(mbeans.getAttribute(pool, "MaxPoolSize"), 4);
+
+        final HttpServer server = starter.server();
+        final GrizzlyExecutorService executor = (GrizzlyExecutorService) server.getListener("test").getTransport().getWorkerThreadPool();
+        assertEquals(executor.getConfiguration().getCorePoolSize(), 3);
+        assertEquals(executor.getConfiguration().getMaxPoolSize(), 4);
+        assertEquals(get(), "hello");
+
+        try {
+            mbeans.setAttribute(pool, new Attribute("CorePoolSize", -1));
+            fail("Negative pool size accepted");
+        } catch (RuntimeMBeanException exception) {
+            assertTrue(exception.getCause() instanceof IllegalArgumentException);
+        }
+    }
+
+    @Test
+    public void testKeepAlive()
+    throws Exception {
+        final ObjectName listener = name("Listener", "name", "test");
+        final int maxRequests = (Integer) mbeans.getAttribute(listener, "KeepAliveMaxRequests");
+        try {
+            mbeans.setAttribute(listener, new Attribute("KeepAliveMaxRequests", 1));
+            assertEquals(mbeans.getAttribute(listener, "KeepAliveMaxRequests"), 1);
+
+            /* The running listener closes connections after each request */
+            final HttpURLConnection connection = (HttpURLConnection) new URL("http://127.0.0.1:" + port + "/hello/").openConnection();
+            assertEquals(connection.getResponseCode(), 200);
+            assertEquals(connection.getHeaderField("Connection"), "close");
+            connection.getInputStream().close();
+        } finally {
+            mbeans.setAttribute(listener, new Attribute("KeepAliveMaxRequests", maxRequests));
+        }
+    }
+
+    @Test
+    public void testKeepAliveIdleTimeout()
+    throws Exception {
+        final ObjectName listener = name("Listener", "name", "test");
+        final int timeout = (Integer) mbeans.getAttribute(listener, "KeepAliveIdleTimeout");
+        assertTrue(timeout > 10, "Default idle timeout " + timeout + " too short for this test");
+        try {
+            mbeans.setAttribute(listener, new Attribute("KeepAliveIdleTimeout", 1));
+            assertEquals(mbeans.getAttribute(listener, "KeepAliveIdleTimeout"), 1);
+
+            /* Idle after a response, kept alive otherwise */
+            final String response = idle("GET /hello/ HTTP/1.1\r\nHost: localhost\r\n\r\n");
+            assertTrue(response.startsWith("HTTP/1.1 200 "), response);
+            assertTrue(response.contains("hello"), response);
+
+            /* Idle halfway through a request */
+            assertEquals(idle("GET /hello/ HTTP/1.1\r\n"), "");
+        } finally {
+            mbeans.setAttribute(listener, new Attribute("KeepAliveIdleTimeout", timeout));
+        }
+    }
+
+    /* Last, as it shuts down the server for all other tests */
+    @Test(priority = 1)
+    public void testUnregisteredOnShutdown()
+    throws Exception {
+        final ObjectName names = new ObjectName(ServerMBeans.DOMAIN + ":server=\"mbeans\",*");
+        assertFalse(mbeans.queryNames(names, null).isEmpty());
+
+        starter.server().shutdownNow();
+        assertEquals(mbeans.queryNames(names, null), Collections.emptySet());
+    }
+
+    /* ====================================================================== */
+
+    private ObjectName name(String type, String... properties)
+    throws Exception {
+        final StringBuilder builder = new StringBuilder(ServerMBeans.DOMAIN).append(":type=").append(type).append(",server=\"mbeans\"");
+        for (int x = 1; x < properties.length; x += 2) builder.append(',').append(properties[x - 1]).append('=').append(ObjectName.quote(properties[x]));
+        return new ObjectName(builder.toString());
+    }
+
+    /* Send something and wait for the server to close the connection */
+    private String idle(String request)
+    throws Exception {
+        try (Socket socket = new Socket("127.0.0.1", port)) {
+            socket.setSoTimeout(10000);
+            final long started = System.nanoTime();
+            socket.getOutputStream().write(request.getBytes(US_ASCII));
+
+            final InputStream input = socket.getInputStream();
+            final ByteArrayOutputStream output = new ByteArrayOutputStream();
+            final byte[] buffer = new byte[4096];
+            int read;
+            try {
+                while ((read = input.read(buffer)) >= 0) output.write(buffer, 0, read);
+            } catch (SocketTimeoutException exception) {
+                fail("Connection not closed after " + MILLISECONDS.convert(System.nanoTime() - started, NANOSECONDS) + " ms");
+            }
+            return new String(output.toByteArray(), US_ASCII);
+        }
+    }
+
+    private String get()
+    throws Exception {
+        final HttpURLConnection connection = (HttpURLConnection) new URL("http://127.0.0.1:" + port + "/hello/").openConnection();
+        assertEquals(connection.getResponseCode(), 200);
+        try (InputStream input = connection.getInputStream()) {
+            final byte[] buffer = new byte[64];
+            final int read = input.read(buffer);
+            return new String(buffer, 0, read, "UTF-8");
+        }
+    }
+}
@@ -0,0 +1,202 @@
+/* ========================================================================== *
+ * Copyright 2014 USRZ.com and Pier Paolo Fumagalli                           *
+ * -------------------------------------------------------------------------- *
+ * Licensed under the Apache License, Version 2.0 (the "License");            *
+ * you may not use this file except in compliance with the License.           *
+ * You may obtain a copy of the License at                                    *
+ *                                                                            *
+ *  http://www.apache.org/licenses/LICENSE-2.0                                *
+ *                                                                            *
+ * Unless required by applicable law or agreed to in writing, software        *
+ * distributed under the License is distributed on an "AS IS" BASIS,          *
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.   *
+ * See the License for the specific language governing permissions and        *
+ * limitations under the License.                                             *
+ * ========================================================================== */
+package org.usrz.libs.httpd.inject;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.glassfish.grizzly.http.server.HttpHandler;
+import org.glassfish.grizzly.http.server.Request;
+import org.glassfish.grizzly.http.server.Response;
+import org.testng.annotations.Test;
+import org.usrz.libs.configurations.ConfigurationsBuilder;
+import org.usrz.libs.httpd.ServerStarter;
+import org.usrz.libs.testing.AbstractTest;
+import org.usrz.libs.testing.NET;
+
+public class ServerMetricsTest extends AbstractTest {
+
+    @Test
+    public void testExposition() {
+        final StringBuilder builder = new StringBuilder();
+        new ServerMetrics().writeTo(builder);
+        final String metrics = builder.toString();
+        checkExposition(metrics);
+
+        assertTrue(metrics.contains("# HELP httpd_requests_total "));
+        assertTrue(metrics.contains("httpd_requests_total{status=\"5xx\"} 0\n"));
+        assertTrue(metrics.contains("httpd_connections_open 0\n"));
+    }
+
+    @Test
+    public void testLiveServer()
+    throws Exception {
+        final int port = NET.serverPort();
+        final ServerStarter starter = new ServerStarter().start((builder) -> {
+            builder.configure(new ConfigurationsBuilder()
+                                    .put("name", "metrics")
+                                    .put("handler_timings", true)
+                                    .put("metrics_path", "/metrics")
+                                    .put("listener.host", "127.0.0.1")
+                                    .put("listener.port", port)
+                                    .build());
+            builder.addHandler("/hello", new HttpHandler() {
+                @Override
+                public void service(Request request, Response response)
+                throws Exception {
+                    if (request.getParameter("fail") != null) response.setStatus(500);
+                    response.getWriter().write("hello");
+                }
+            });
+        });
+
+        try {
+            for (int x = 0; x < 3; x ++) assertEquals(status("http://127.0.0.1:" + port + "/hello"), 200);
+            assertEquals(status("http://127.0.0.1:" + port + "/hello?fail=true"), 500);
+
+            /* Requests are counted when complete, after clients get their responses */
+            String metrics = null;
+            final long deadline = System.currentTimeMillis() + 5000;
+            while (System.currentTimeMillis() < deadline) {
+                metrics = metrics("http://127.0.0.1:" + port + "/metrics");
+                if (metrics.contains("httpd_requests_total{status=\"5xx\"} 1\n")) break;
+                Thread.sleep(10);
+            }
+
+            checkExposition(metrics);
+
+            /* Our three requests, and possibly some previous scrapes */
+            assertTrue(metrics.contains("httpd_requests_total{status=\"5xx\"} 1\n"), metrics);
+            assertTrue(metrics.matches("(?s).*\nhttpd_requests_total\\{status=\"2xx\"\\} ([3-9]|\\d\\d+)\n.*"), metrics);
+
+            /* Latencies of our handler, by status class */
+            assertTrue(metrics.contains("# TYPE httpd_handler_latency_seconds summary\n"), metrics);
+            assertTrue(metrics.contains("httpd_handler_latency_seconds_count{handler=\"/hello/*\",status=\"2xx\"} 3\n"), metrics);
+            assertTrue(metrics.contains("httpd_handler_latency_seconds_count{handler=\"/hello/*\",status=\"5xx\"} 1\n"), metrics);
+            assertTrue(metrics.matches("(?s).*\nhttpd_handler_latency_seconds\\{handler=\"/hello/\\*\",status=\"2xx\",quantile=\"0\\.99\"\\} \\d+\\.\\d{6}\n.*"), metrics);
+        } finally {
+            starter.stop();
+        }
+    }
+
+    @Test
+    public void testSuspendedResponse()
+    throws Exception {
+        final int port = NET.serverPort();
+        final ServerStarter starter = new ServerStarter().start((builder) -> {
+            builder.configure(new ConfigurationsBuilder()
+                                    .put("name", "metrics")
+                                    .put("handler_timings", true)
+                                    .put("metrics_path", "/metrics")
+                                    .put("listener.host", "127.0.0.1")
+                                    .put("listener.port", port)
+                                    .build());
+            builder.addHandler("/slow", new HttpHandler() {
+                @Override
+                public void service(Request request, Response response)
+                throws Exception {
+                    /* Return right away, and complete from another thread */
+                    response.suspend();
+                    new Thread(() -> {
+                        try {
+                            Thread.sleep(500);
+                            response.getWriter().write("slow");
+                        } catch (Exception exception) {
+                            response.setStatus(500);
+                        } finally {
+                            response.resume();
+                        }
+                    }).start();
+                }
+            });
+        });
+
+        try {
+            assertEquals(status("http://127.0.0.1:" + port + "/slow"), 200);
+
+            String metrics = null;
+            final long deadline = System.currentTimeMillis() + 5000;
+            while (System.currentTimeMillis() < deadline) {
+                metrics = metrics("http://127.0.0.1:" + port + "/metrics");
+                if (metrics.contains("httpd_handler_latency_seconds_count{handler=\"/slow/*\",status=\"2xx\"} 1\n")) break;
+                Thread.sleep(10);
+            }
+            assertTrue(metrics.contains("httpd_handler_latency_seconds_count{handler=\"/slow/*\",status=\"2xx\"} 1\n"), metrics);
+
+            /* Timed until resumed, not until the handler returned */
+            final Matcher matcher = Pattern.compile("\nhttpd_handler_latency_seconds\\{handler=\"/slow/\\*\",status=\"2xx\",quantile=\"0\\.5\"\\} (\\d+\\.\\d+)\n").matcher(metrics);
+            assertTrue(matcher.find(), metrics);
+            final double seconds = Double.parseDouble(matcher.group(1));
+            assertTrue(seconds >= 0.5, "Latency " + seconds + " too low");
+            assertTrue(seconds < 1.5, "Latency " + seconds + " too high");
+        } finally {
+            starter.stop();
+        }
+    }
+
+    /* ====================================================================== */
+
+    /* Every family is described once, and its samples follow */
+    private void checkExposition(String metrics) {
+        final Set<String> families = new HashSet<>();
+        String family = null;
+        for (String line: metrics.split("\n")) {
+            if (line.startsWith("# HELP ")) {
+                family = line.split(" ")[2];
+                assertTrue(families.add(family), "Duplicate family " + family);
+            } else if (line.startsWith("# TYPE ")) {
+                assertEquals(line.split(" ")[2], family);
+                assertTrue(line.matches("# TYPE [a-z_]+ (counter|gauge|summary)"), line);
+            } else {
+                assertTrue(line.matches("[a-z_]+(\\{[a-z]+=\"[^\"]*\"(,[a-z]+=\"[^\"]*\")*\\})? \\d+(\\.\\d+)?"), line);
+                assertTrue(line.startsWith(family), "Sample outside its family: " + line);
+            }
+        }
+    }
+
+    private static int status(String url)
+    throws Exception {
+        final HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+        try {
+            return connection.getResponseCode();
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    private static String metrics(String url)
+    throws Exception {
+        final HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+        assertEquals(connection.getResponseCode(), 200);
+        assertTrue(connection.getContentType().startsWith("text/plain; version=0.0.4"), connection.getContentType());
+
+        try (InputStream input = connection.getInputStream()) {
+            final ByteArrayOutputStream output = new ByteArrayOutputStream();
+            final byte[] buffer = new byte[4096];
+            int read;
+            while ((read = input.read(buffer)) >= 0) output.write(buffer, 0, read);
+            return new String(output.toByteArray(), UTF_8);
+        }
+    }
+}
@@ -0,0 +1,134 @@
+/* ========================================================================== *
+ * Copyright 2014 USRZ.com and Pier Paolo Fumagalli                           *
+ * -------------------------------------------------------------------------- *
+ * Licensed under the Apache License, Version 2.0 (the "License");            *
+ * you may not use this file except in compliance with the License.           *
+ * You may obtain a copy of the License at                                    *
+ *                                                                            *
+ *  http://www.apache.org/licenses/LICENSE-2.0                                *
+ *                                                                            *
+ * Unless required by applicable law or agreed to in writing, software        *
+ * distributed under the License is distributed on an "AS IS" BASIS,          *
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.   *
+ * See the License for the specific language governing permissions and        *
+ * limitations under the License.                                             *
+ * ========================================================================== */
+package org.usrz.libs.httpd.inject;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.glassfish.grizzly.http.server.HttpHandler;
+import org.glassfish.grizzly.http.server.HttpServer;
+import org.glassfish.grizzly.http.server.Request;
+import org.glassfish.grizzly.http.server.Response;
+import org.testng.annotations.Test;
+import org.usrz.libs.configurations.ConfigurationsBuilder;
+import org.usrz.libs.httpd.ServerStarter;
+import org.usrz.libs.testing.AbstractTest;
+import org.usrz.libs.testing.NET;
+
+public class SlowRequestWatchdogTest extends AbstractTest {
+
+    @Test
+    public void testSlowRequest()
+    throws Exception {
+        final List<String> reports = new CopyOnWriteArrayList<>();
+        final SlowRequestWatchdog watchdog = new SlowRequestWatchdog(100, 3, 20, 10) {
+            @Override
+            void report(String message) {
+                reports.add(message);
+            }
+        };
+        watchdog.start();
+
+        final CountDownLatch latch = new CountDownLatch(1);
+        final Thread thread = new Thread(() -> {
+            /* A fast request first, never reported */
+            watchdog.begin("GET", "/fast", null, "HTTP/1.1", "/rest/*");
+            watchdog.end();
+
+            watchdog.begin("POST", "/slow", "a=b", "HTTP/1.1", "/rest/*");
+            try {
+                stuckInHere(latch);
+            } finally {
+                watchdog.end();
+            }
+        }, "StuckWorker");
+
+        try {
+            thread.start();
+            final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+            while (reports.isEmpty() && (System.nanoTime() < deadline)) Thread.sleep(10);
+        } finally {
+            latch.countDown();
+            thread.join();
+            watchdog.close();
+        }
+
+        assertEquals(reports.size(), 1);
+        assertEquals(watchdog.getDetected(), 1);
+
+        final String report = reports.get(0);
+        assertTrue(report.startsWith("Slow request \"POST /slow?a=b HTTP/1.1\" served at \"/rest/*\" by thread \"StuckWorker\""), report);
+        assertTrue(report.contains("sample 1 of 3"), report);
+        assertTrue(report.contains("sample 3 of 3 after"), report);
+        assertTrue(report.contains(SlowRequestWatchdogTest.class.getName() + ".stuckInHere("), report);
+    }
+
+    @Test
+    public void testClosedOnShutdown()
+    throws Exception {
+        final Set<Thread> before = watchdogThreads();
+
+        final int port = NET.serverPort();
+        final HttpServer server = new ServerStarter().start((builder) -> {
+            builder.configure(new ConfigurationsBuilder()
+                                    .put("slow_requests.threshold", 1000)
+                                    .put("listener.host", "127.0.0.1")
+                                    .put("listener.port", port)
+                                    .build());
+            builder.addHandler("/hello", new HttpHandler() {
+                @Override
+                public void service(Request request, Response response)
+                throws Exception {
+                    response.getWriter().write("hello");
+                }
+            });
+        }).server();
+
+        /* Our watchdog started with its wrapped handler */
+        final Set<Thread> threads = watchdogThreads();
+        threads.removeAll(before);
+        assertEquals(threads.size(), 1, threads.toString());
+
+        server.shutdownNow();
+        final Thread thread = threads.iterator().next();
+        thread.join(5000);
+        assertFalse(thread.isAlive(), "Watchdog still running");
+    }
+
+    private static Set<Thread> watchdogThreads() {
+        final Set<Thread> threads = new HashSet<>();
+        for (Thread thread: Thread.getAllStackTraces().keySet())
+            if ("SlowRequestWatchdog".equals(thread.getName())) threads.add(thread);
+        return threads;
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void testNoThreshold() {
+        new SlowRequestWatchdog(0, 1, 100, 0);
+    }
+
+    private static void stuckInHere(CountDownLatch latch) {
+        try {
+            latch.await();
+        } catch (InterruptedException exception) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
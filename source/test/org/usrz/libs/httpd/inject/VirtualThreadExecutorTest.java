@@ -0,0 +1,110 @@
+/* ========================================================================== *
+ * Copyright 2014 USRZ.com and Pier Paolo Fumagalli                           *
+ * -------------------------------------------------------------------------- *
+ * Licensed under the Apache License, Version 2.0 (the "License");            *
+ * you may not use this file except in compliance with the License.           *
+ * You may obtain a copy of the License at                                    *
+ *                                                                            *
+ *  http://www.apache.org/licenses/LICENSE-2.0                                *
+ *                                                                            *
+ * Unless required by applicable law or agreed to in writing, software        *
+ * distributed under the License is distributed on an "AS IS" BASIS,          *
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.   *
+ * See the License for the specific language governing permissions and        *
+ * limitations under the License.                                             *
+ * ========================================================================== */
+package org.usrz.libs.httpd.inject;
+
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.testng.SkipException;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+import org.usrz.libs.testing.AbstractTest;
+
+public class VirtualThreadExecutorTest extends AbstractTest {
+
+    @BeforeMethod
+    public void checkAvailable() {
+        if (! VirtualThreadExecutor.isAvailable()) throw new SkipException("Virtual threads not available");
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void testInvalidConcurrency() {
+        new VirtualThreadExecutor("test", -1);
+    }
+
+    @Test
+    public void testMaxConcurrency()
+    throws Exception {
+        final VirtualThreadExecutor executor = new VirtualThreadExecutor("test", 2);
+        assertEquals(executor.getMaxConcurrency(), 2);
+
+        final CountDownLatch release = new CountDownLatch(1);
+        final AtomicInteger running = new AtomicInteger();
+        final AtomicInteger maximum = new AtomicInteger();
+        final AtomicInteger completed = new AtomicInteger();
+
+        for (int x = 0; x < 10; x ++) executor.execute(() -> {
+            maximum.accumulateAndGet(running.incrementAndGet(), Math::max);
+            try {
+                release.await();
+            } catch (InterruptedException exception) {
+                Thread.currentThread().interrupt();
+            } finally {
+                running.decrementAndGet();
+                completed.incrementAndGet();
+            }
+        });
+
+        /* Two tasks run, the other eight wait for a permit */
+        final long deadline = System.currentTimeMillis() + 5000;
+        while ((executor.getWaitingCount() < 8) && (System.currentTimeMillis() < deadline)) Thread.sleep(10);
+        assertEquals(executor.getWaitingCount(), 8);
+        assertEquals(executor.getThreadCount(), 10);
+        assertEquals(running.get(), 2);
+
+        /* Let them all go, and wait for all of them */
+        release.countDown();
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(5, SECONDS), "Executor not terminated");
+        assertTrue(executor.isTerminated());
+
+        assertEquals(completed.get(), 10);
+        assertEquals(maximum.get(), 2);
+        assertEquals(executor.getThreadCount(), 0);
+    }
+
+    @Test
+    public void testShutdownNow()
+    throws Exception {
+        final VirtualThreadExecutor executor = new VirtualThreadExecutor("test", 1);
+        final CountDownLatch started = new CountDownLatch(1);
+
+        for (int x = 0; x < 5; x ++) executor.execute(() -> {
+            started.countDown();
+            try {
+                Thread.sleep(60000);
+            } catch (InterruptedException exception) {
+                /* Interrupted by shutdownNow() */
+            }
+        });
+        assertTrue(started.await(5, SECONDS), "No task started");
+
+        /* The running task and all those waiting for a permit are interrupted */
+        assertTrue(executor.shutdownNow().isEmpty());
+        assertTrue(executor.awaitTermination(5, SECONDS), "Executor not terminated");
+        assertEquals(executor.getThreadCount(), 0);
+
+        try {
+            executor.execute(() -> fail("Executed after shutdown"));
+            fail("Task accepted after shutdown");
+        } catch (RejectedExecutionException exception) {
+            /* Expected */
+        }
+    }
+}
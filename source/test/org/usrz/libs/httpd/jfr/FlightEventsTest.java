@@ -0,0 +1,164 @@
+/* ========================================================================== *
+ * Copyright 2014 USRZ.com and Pier Paolo Fumagalli                           *
+ * -------------------------------------------------------------------------- *
+ * Licensed under the Apache License, Version 2.0 (the "License");            *
+ * you may not use this file except in compliance with the License.           *
+ * You may obtain a copy of the License at                                    *
+ *                                                                            *
+ *  http://www.apache.org/licenses/LICENSE-2.0                                *
+ *                                                                            *
+ * Unless required by applicable law or agreed to in writing, software        *
+ * distributed under the License is distributed on an "AS IS" BASIS,          *
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.   *
+ * See the License for the specific language governing permissions and        *
+ * limitations under the License.                                             *
+ * ========================================================================== */
+package org.usrz.libs.httpd.jfr;
+
+import static org.usrz.libs.httpd.inject.HttpHandlerProvider.handlerPath;
+
+import java.io.File;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.time.Duration;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+
+import org.glassfish.grizzly.http.server.HttpServer;
+import org.glassfish.grizzly.http.server.NetworkListener;
+import org.testng.SkipException;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+import org.usrz.libs.httpd.handlers.RedirectHandler;
+import org.usrz.libs.testing.AbstractTest;
+import org.usrz.libs.testing.IO;
+import org.usrz.libs.testing.NET;
+
+public class FlightEventsTest extends AbstractTest {
+
+    private HttpServer server;
+    private int port;
+
+    @BeforeClass
+    public void startServer()
+    throws Exception {
+        if (! FlightEvents.AVAILABLE) throw new SkipException("Flight recorder not available");
+
+        port = NET.serverPort();
+        server = new HttpServer();
+        server.addListener(new NetworkListener("test", "127.0.0.1", port));
+        server.getServerConfiguration().getMonitoringConfig().getWebServerConfig().addProbes(new RequestEvent.Probe());
+
+        final RedirectHandler handler = new RedirectHandler(handlerPath("/redirect"));
+        handler.addRedirect("/old", "/new", true, true, false);
+        server.getServerConfiguration().addHttpHandler(handler, "/redirect/*");
+        server.start();
+    }
+
+    @AfterClass(alwaysRun = true)
+    public void stopServer() {
+        if (server != null) server.shutdownNow();
+    }
+
+    /* ====================================================================== */
+
+    @Test
+    public void testEvents()
+    throws Exception {
+        final List<RecordedEvent> events;
+        try (Recording recording = new Recording()) {
+            recording.enable(RequestEvent.NAME).withThreshold(Duration.ZERO);
+            recording.enable(RedirectEvent.NAME);
+            recording.enable(FileCacheEvent.NAME);
+            recording.enable(JerseyInitEvent.NAME);
+            recording.start();
+
+            assertEquals(get("/redirect/old"), 301);
+            assertEquals(get("/redirect/missing"), 404);
+            FileCacheEvent.emit("/index.html", true, 1234);
+            new JerseyInitEvent().commit("/api/*", "myApplication");
+
+            recording.stop();
+            events = read(recording);
+        }
+
+        final List<RecordedEvent> requests = filter(events, RequestEvent.NAME);
+        assertEquals(requests.size(), 2);
+        assertEquals(requests.get(0).getString("method"), "GET");
+        assertEquals(requests.get(0).getString("path"), "/redirect/old");
+        assertEquals(requests.get(0).getString("handler"), "/redirect");
+        assertEquals(requests.get(0).getInt("status"), 301);
+        assertEquals(requests.get(1).getString("path"), "/redirect/missing");
+        assertEquals(requests.get(1).getInt("status"), 404);
+        assertFalse(requests.get(0).getDuration().isNegative());
+
+        final List<RecordedEvent> redirects = filter(events, RedirectEvent.NAME);
+        assertEquals(redirects.size(), 1);
+        assertEquals(redirects.get(0).getString("path"), "/redirect/old");
+        assertEquals(redirects.get(0).getString("location"), "/new");
+        assertEquals(redirects.get(0).getInt("status"), 301);
+        assertFalse(redirects.get(0).getBoolean("mapped"));
+
+        final List<RecordedEvent> lookups = filter(events, FileCacheEvent.NAME);
+        assertEquals(lookups.size(), 1);
+        assertTrue(lookups.get(0).getBoolean("hit"));
+        assertEquals(lookups.get(0).getLong("bytes"), 1234L);
+
+        final List<RecordedEvent> inits = filter(events, JerseyInitEvent.NAME);
+        assertEquals(inits.size(), 1);
+        assertEquals(inits.get(0).getString("path"), "/api/*");
+        assertEquals(inits.get(0).getString("application"), "myApplication");
+    }
+
+    @Test
+    public void testThresholds()
+    throws Exception {
+        final List<RecordedEvent> events;
+        try (Recording recording = new Recording()) {
+            recording.enable(RequestEvent.NAME).withThreshold(Duration.ofSeconds(10));
+            recording.disable(RedirectEvent.NAME);
+            recording.start();
+
+            assertEquals(get("/redirect/old"), 301);
+
+            recording.stop();
+            events = read(recording);
+        }
+
+        /* Fast requests and disabled events are never recorded */
+        assertEquals(filter(events, RequestEvent.NAME).size(), 0);
+        assertEquals(filter(events, RedirectEvent.NAME).size(), 0);
+    }
+
+    /* ====================================================================== */
+
+    private int get(String path)
+    throws Exception {
+        final HttpURLConnection connection = (HttpURLConnection) new URL("http://127.0.0.1:" + port + path).openConnection();
+        connection.setInstanceFollowRedirects(false);
+        try {
+            return connection.getResponseCode();
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    private static List<RecordedEvent> read(Recording recording)
+    throws Exception {
+        final File file = IO.makeTempFile();
+        recording.dump(file.toPath());
+        return RecordingFile.readAllEvents(file.toPath());
+    }
+
+    private static List<RecordedEvent> filter(List<RecordedEvent> events, String name) {
+        return events.stream()
+                     .filter((event) -> event.getEventType().getName().equals(name))
+                     .sorted((a, b) -> a.getStartTime().compareTo(b.getStartTime()))
+                     .collect(Collectors.toList());
+    }
+}